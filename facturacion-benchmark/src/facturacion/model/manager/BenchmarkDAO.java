@@ -0,0 +1,70 @@
+package facturacion.model.manager;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.Producto;
+
+/**
+ * Benchmarks de los finders de {@link ManagerDAO}, sin pasar por las caches
+ * de {@link ManagerFacturacion}.
+ * @author mrea
+ *
+ */
+@BenchmarkMode({Mode.Throughput,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class BenchmarkDAO {
+	private static final String[] ORDEN_FACTURAS={"o.fechaEmision","o.numeroFactura"};
+	private static final boolean[] DESCENDENTE={true,true};
+
+	@Benchmark
+	public Object findById(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo) throws Exception{
+		return estado.managerDAO.findById(Producto.class, estado.catalogo.getCodigoAleatorio(hilo.random));
+	}
+
+	@Benchmark
+	public List<?> findAllProductos(EstadoBenchmark estado){
+		return estado.managerDAO.findAll(Producto.class, "o.nombre");
+	}
+
+	@Benchmark
+	public List<?> findWhereFacturasCliente(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo){
+		String cedula=estado.catalogo.getCedula(hilo.random.nextInt(estado.clientes));
+		return estado.managerDAO.findWhere(FacturaCab.class,
+				"o.cliente.cedulaCliente='"+cedula+"'", "o.numeroFactura");
+	}
+
+	@Benchmark
+	public List<FacturaCab> findWhereParametrosFacturasCliente(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo){
+		String cedula=estado.catalogo.getCedula(hilo.random.nextInt(estado.clientes));
+		return estado.managerDAO.findWhere(FacturaCab.class, "o.cliente.cedulaCliente=:cedula",
+				Collections.<String,Object>singletonMap("cedula", cedula), "o.numeroFactura");
+	}
+
+	@Benchmark
+	public List<FacturaCab> findNamedFacturasCliente(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo){
+		String cedula=estado.catalogo.getCedula(hilo.random.nextInt(estado.clientes));
+		return estado.managerDAO.findNamed(FacturaCab.class, "FacturaCab.findByCliente",
+				Collections.<String,Object>singletonMap("cedula", cedula));
+	}
+
+	@Benchmark
+	public List<?> findPaginaFacturas(EstadoBenchmark estado){
+		return estado.managerDAO.findPagina(FacturaCab.class, null, null,
+				ORDEN_FACTURAS, DESCENDENTE, null, 20);
+	}
+
+}
@@ -0,0 +1,156 @@
+package facturacion.model.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import facturacion.model.dao.entities.Cliente;
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.Producto;
+
+/**
+ * Benchmarks de las operaciones de {@link ManagerFacturacion} usadas al armar
+ * y guardar una factura. Se mide el rendimiento (operaciones por unidad de
+ * tiempo) y la distribucion de la latencia (percentiles del modo SampleTime).
+ * @author mrea
+ *
+ */
+@BenchmarkMode({Mode.Throughput,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class BenchmarkFacturacion {
+
+	/**
+	 * Recalculo completo de los totales de una factura ya armada.
+	 */
+	@Benchmark
+	public BigDecimal calcularFacturaTmp(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo) throws Exception{
+		estado.managerFacturacion.calcularFacturaTmp(hilo.factura);
+		return hilo.factura.getTotal();
+	}
+
+	/**
+	 * Armado de una factura nueva: cliente y detalles (productos desde la cache
+	 * y reserva de existencias), y descarte de la factura.
+	 */
+	@Benchmark
+	public FacturaCab agregarDetalleFacturaTmp(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo) throws Exception{
+		FacturaCab f=estado.crearFactura(hilo.random);
+		estado.managerFacturacion.descartarFacturaTmp(f);
+		return f;
+	}
+
+	/**
+	 * Autocompletado de productos (10 sugerencias) para el texto "producto"
+	 * mas un codigo al azar sin su ultimo digito.
+	 */
+	@Benchmark
+	public List<Producto> buscarProductos(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo){
+		String codigo=estado.catalogo.getCodigoAleatorio(hilo.random).toString();
+		return estado.managerFacturacion.buscarProductos("producto "+codigo.substring(0, codigo.length()-1), 10);
+	}
+
+	/**
+	 * Autocompletado de clientes (10 sugerencias) para la cedula de un
+	 * cliente al azar sin su ultimo caracter.
+	 */
+	@Benchmark
+	public List<Cliente> buscarClientes(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo){
+		String cedula=estado.catalogo.getCedula(hilo.random.nextInt(estado.clientes));
+		return estado.managerFacturacion.buscarClientes(cedula.substring(0, cedula.length()-1), 10);
+	}
+
+	/**
+	 * Documento PDF de una factura ya armada: plantilla compilada y escritura
+	 * del PDF en memoria.
+	 */
+	@Benchmark
+	public int generarDocumentoPdf(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo) throws Exception{
+		ByteArrayOutputStream salida=new ByteArrayOutputStream();
+		estado.managerFacturacion.generarDocumento(hilo.factura, GeneradorDocumentos.PDF, salida);
+		return salida.size();
+	}
+
+	/**
+	 * Reporte de ventas por producto del mes actual, leido de las tablas de
+	 * resumen (sin recorrer factura_det).
+	 */
+	@Benchmark
+	public List<FilaResumenVentas> findVentasPorProducto(EstadoBenchmark estado) throws Exception{
+		Date hoy=new Date();
+		return estado.managerFacturacion.findVentasPorProducto(hoy, hoy);
+	}
+
+	/**
+	 * Ventas por producto de los ultimos 30 dias, calculadas en paralelo
+	 * sobre la instantanea columnar en memoria (cargada en la primera llamada).
+	 */
+	@Benchmark
+	public List<FilaResumenVentas> analizarVentasPorProducto(EstadoBenchmark estado) throws Exception{
+		Date hasta=new Date();
+		Date desde=new Date(hasta.getTime()-30L*24*60*60*1000);
+		return estado.managerFacturacion.analizarVentas(InstantaneaVentas.POR_PRODUCTO, desde, hasta, null, null);
+	}
+
+	/**
+	 * Guardado asincrono de una factura: armado y escritura en el diario
+	 * local (con fsync agrupado); la base de datos se escribe en segundo plano.
+	 * Requiere facturacion.diario.activo=true.
+	 */
+	@Benchmark
+	public String guardarFacturaAsincrona(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo) throws Exception{
+		if(!estado.managerFacturacion.isGuardadoAsincrono())
+			throw new Exception("El guardado asincrono no esta activo ("+DiarioFacturas.PROP_ACTIVO+").");
+		FacturaCab f=estado.crearFactura(hilo.random);
+		return estado.managerFacturacion.guardarFacturaAsincrona(f);
+	}
+
+	/**
+	 * Edicion del precio de un producto al azar: lectura del original y
+	 * UPDATE de solo ese campo (el precio sube y baja un centavo, alternando).
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public boolean actualizarPrecioProducto(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo) throws Exception{
+		Producto original=estado.managerFacturacion.findProductoParaEdicion(estado.catalogo.getCodigoAleatorio(hilo.random));
+		Producto p=new Producto();
+		p.setCodigoProducto(original.getCodigoProducto());
+		p.setNombre(original.getNombre());
+		p.setDescripcion(original.getDescripcion());
+		p.setExistencia(original.getExistencia());
+		p.setTieneImpuesto(original.getTieneImpuesto());
+		BigDecimal centavo=new BigDecimal("0.01");
+		p.setPrecioUnitario(original.getPrecioUnitario().unscaledValue().testBit(0)
+				?original.getPrecioUnitario().subtract(centavo):original.getPrecioUnitario().add(centavo));
+		try {
+			return estado.managerFacturacion.actualizarProducto(original, p);
+		} catch (Exception e) {
+			//otro hilo edito el mismo producto (concurrencia optimista):
+			return false;
+		}
+	}
+
+	/**
+	 * Armado y guardado de una factura en la base de datos.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public String guardarFacturaTemporal(EstadoBenchmark estado,EstadoBenchmark.Hilo hilo) throws Exception{
+		FacturaCab f=estado.crearFactura(hilo.random);
+		estado.managerFacturacion.guardarFacturaTemporal(f);
+		return f.getNumeroFactura();
+	}
+
+}
@@ -0,0 +1,191 @@
+package facturacion.model.manager;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.persistence.EntityManager;
+
+import facturacion.model.dao.entities.Cliente;
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.FacturaDet;
+import facturacion.model.dao.entities.Producto;
+
+/**
+ * Datos de prueba de los benchmarks: productos, clientes y facturas en la base
+ * de datos configurada (persistence.xml, o las propiedades
+ * javax.persistence.jdbc.* de la JVM). Las filas creadas se identifican por
+ * sus claves (productos desde {@link #PRIMER_PRODUCTO}, clientes con el prefijo
+ * {@link #PREFIJO_CLIENTE}) para poder borrarlas sin tocar los datos reales.
+ * @author mrea
+ *
+ */
+public class CatalogoBenchmark {
+	public static final int PRIMER_PRODUCTO=1000000;
+	public static final String PREFIJO_CLIENTE="BM";
+
+	private static final String BORRAR_DET="DELETE FROM factura_det WHERE numero_factura IN "
+			+"(SELECT numero_factura FROM factura_cab WHERE cedula_cliente LIKE '"+PREFIJO_CLIENTE+"%')"
+			+" OR codigo_producto>="+PRIMER_PRODUCTO;
+	private static final String BORRAR_CAB="DELETE FROM factura_cab WHERE cedula_cliente LIKE '"+PREFIJO_CLIENTE+"%'";
+	private static final String BORRAR_CLIENTES="DELETE FROM cliente WHERE cedula_cliente LIKE '"+PREFIJO_CLIENTE+"%'";
+	private static final String BORRAR_PRODUCTOS="DELETE FROM producto WHERE codigo_producto>="+PRIMER_PRODUCTO;
+
+	private final int productos;
+	private final int clientes;
+	private final int facturas;
+	private final int detallesPorFactura;
+	private final Random random;
+
+	/**
+	 * @param productos numero de productos del catalogo.
+	 * @param clientes numero de clientes.
+	 * @param facturas numero de facturas historicas.
+	 * @param detallesPorFactura detalles de cada factura historica.
+	 * @param semilla semilla de los valores aleatorios (precios, cantidades).
+	 */
+	public CatalogoBenchmark(int productos,int clientes,int facturas,int detallesPorFactura,long semilla){
+		this.productos=productos;
+		this.clientes=clientes;
+		this.facturas=facturas;
+		this.detallesPorFactura=detallesPorFactura;
+		this.random=new Random(semilla);
+	}
+
+	/**
+	 * Borra los datos de una ejecucion anterior y crea el catalogo.
+	 * @throws Exception si falla la base de datos.
+	 */
+	public void sembrar() throws Exception{
+		limpiar();
+		EntityManager em=ManagerDAO.abrirContexto();
+		try{
+			em.getTransaction().begin();
+			Connection c=em.unwrap(Connection.class);
+			PreparedStatement ps=c.prepareStatement("INSERT INTO producto (codigo_producto,nombre,descripcion,"
+					+"existencia,precio_unitario,tiene_impuesto) VALUES (?,?,?,?,?,?)");
+			try{
+				for(int i=0;i<productos;i++){
+					ps.setInt(1, PRIMER_PRODUCTO+i);
+					ps.setString(2, "Producto "+i);
+					ps.setString(3, "Producto de prueba "+i);
+					ps.setInt(4, 1000000);
+					ps.setBigDecimal(5, BigDecimal.valueOf(1+random.nextInt(10000), 2));
+					ps.setString(6, i%5==0?"N":"S");
+					ps.addBatch();
+					if(i%500==499)
+						ps.executeBatch();
+				}
+				ps.executeBatch();
+			}finally{
+				ps.close();
+			}
+			ps=c.prepareStatement("INSERT INTO cliente (cedula_cliente,apellidos,nombres,direccion) VALUES (?,?,?,?)");
+			try{
+				for(int i=0;i<clientes;i++){
+					ps.setString(1, getCedula(i));
+					ps.setString(2, "Apellido "+i);
+					ps.setString(3, "Nombre "+i);
+					ps.setString(4, "Direccion "+i);
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			}finally{
+				ps.close();
+			}
+			em.getTransaction().commit();
+		}finally{
+			ManagerDAO.cerrarContexto();
+		}
+		CacheProductos.getInstancia().invalidarTodo();
+		IndiceProductos.getInstancia().recargar();
+		IndiceClientes.getInstancia().recargar();
+		MotorExistencias.getInstancia().reiniciar();
+		if(facturas>0)
+			new ManagerFacturacion().importarFacturas(generarFacturas().iterator(), 500, 5000);
+	}
+
+	private List<FacturaCab> generarFacturas(){
+		List<FacturaCab> lista=new ArrayList<FacturaCab>(facturas);
+		for(int i=0;i<facturas;i++){
+			FacturaCab f=new FacturaCab();
+			Cliente cliente=new Cliente();
+			cliente.setCedulaCliente(getCedula(random.nextInt(clientes)));
+			f.setCliente(cliente);
+			List<FacturaDet> detalles=new ArrayList<FacturaDet>(detallesPorFactura);
+			for(int j=0;j<detallesPorFactura;j++){
+				FacturaDet det=new FacturaDet();
+				det.setProducto(getProductoReferencia(getCodigoAleatorio(random)));
+				det.setCantidad(Integer.valueOf(1+random.nextInt(10)));
+				detalles.add(det);
+			}
+			f.setFacturaDets(detalles);
+			lista.add(f);
+		}
+		return lista;
+	}
+
+	private static Producto getProductoReferencia(Integer codigo){
+		Producto p=new Producto();
+		p.setCodigoProducto(codigo);
+		return p;
+	}
+
+	/**
+	 * Borra todas las filas creadas por los benchmarks (incluidas las facturas
+	 * guardadas durante las mediciones).
+	 * @throws Exception si falla la base de datos.
+	 */
+	public void limpiar() throws Exception{
+		EntityManager em=ManagerDAO.abrirContexto();
+		try{
+			em.getTransaction().begin();
+			Connection c=em.unwrap(Connection.class);
+			for(String sql:new String[]{BORRAR_DET,BORRAR_CAB,BORRAR_CLIENTES,BORRAR_PRODUCTOS}){
+				PreparedStatement ps=c.prepareStatement(sql);
+				try{
+					ps.executeUpdate();
+				}finally{
+					ps.close();
+				}
+			}
+			em.getTransaction().commit();
+			//las filas borradas por JDBC no deben quedar en la cache de EclipseLink:
+			em.getEntityManagerFactory().getCache().evictAll();
+		}finally{
+			ManagerDAO.cerrarContexto();
+		}
+		CacheProductos.getInstancia().invalidarTodo();
+		IndiceProductos.getInstancia().recargar();
+		IndiceClientes.getInstancia().recargar();
+		MotorExistencias.getInstancia().reiniciar();
+	}
+
+	/**
+	 * @param random generador del hilo que llama.
+	 * @return codigo de un producto del catalogo al azar.
+	 */
+	public Integer getCodigoAleatorio(Random random){
+		return Integer.valueOf(PRIMER_PRODUCTO+random.nextInt(productos));
+	}
+
+	/**
+	 * @param i indice del cliente (0 a clientes-1).
+	 * @return cedula del cliente.
+	 */
+	public String getCedula(int i){
+		return PREFIJO_CLIENTE+String.format("%08d", i);
+	}
+
+	public int getClientes(){
+		return clientes;
+	}
+
+	public int getDetallesPorFactura(){
+		return detallesPorFactura;
+	}
+
+}
@@ -0,0 +1,45 @@
+package facturacion.model.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Punto de entrada de los benchmarks. Acepta las mismas opciones de linea de
+ * comandos que JMH y agrega siempre el perfilador de memoria (tasa de
+ * asignacion, gc.alloc.rate.norm en bytes por operacion). Ejemplos:
+ * <pre>
+ * java -Djavax.persistence.jdbc.url=jdbc:postgresql://localhost:5432/facturacion_bench \
+ *      -cp ... facturacion.model.manager.EjecutarBenchmarks
+ * java -cp ... facturacion.model.manager.EjecutarBenchmarks BenchmarkDAO -p productos=100,10000
+ * java -cp ... facturacion.model.manager.EjecutarBenchmarks -rf csv -rff resultados.csv
+ * </pre>
+ * Las propiedades javax.persistence.jdbc.* y facturacion.* de la JVM se pasan
+ * a los procesos de medicion, de modo que los benchmarks pueden ejecutarse
+ * contra una base de datos distinta de la configurada en persistence.xml
+ * (con el mismo esquema). Los datos sembrados se borran al terminar cada
+ * ejecucion.
+ * @author mrea
+ *
+ */
+public class EjecutarBenchmarks {
+
+	public static void main(String[] args) throws Exception{
+		ChainedOptionsBuilder opciones=new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class);
+		List<String> propiedades=new ArrayList<String>();
+		for(String nombre:System.getProperties().stringPropertyNames())
+			if(nombre.startsWith("javax.persistence.jdbc.")||nombre.startsWith("facturacion."))
+				propiedades.add("-D"+nombre+"="+System.getProperty(nombre));
+		if(!propiedades.isEmpty())
+			opciones.jvmArgsAppend(propiedades.toArray(new String[propiedades.size()]));
+		new Runner(opciones.build()).run();
+	}
+
+}
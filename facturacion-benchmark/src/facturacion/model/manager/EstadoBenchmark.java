@@ -0,0 +1,91 @@
+package facturacion.model.manager;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import facturacion.model.dao.entities.FacturaCab;
+
+/**
+ * Estado compartido por los benchmarks: el catalogo sembrado en la base de
+ * datos y los managers de la aplicacion. El tamaño del catalogo se cambia con
+ * los parametros de JMH, por ejemplo: -p productos=100,10000 -p detalles=1,50
+ * @author mrea
+ *
+ */
+@State(Scope.Benchmark)
+public class EstadoBenchmark {
+	@Param("1000")
+	public int productos;
+	@Param("100")
+	public int clientes;
+	@Param("2000")
+	public int facturas;
+	@Param("5")
+	public int detalles;
+
+	CatalogoBenchmark catalogo;
+	ManagerFacturacion managerFacturacion;
+	ManagerDAO managerDAO;
+
+	@Setup(Level.Trial)
+	public void preparar() throws Exception{
+		catalogo=new CatalogoBenchmark(productos, clientes, facturas, detalles, 42);
+		catalogo.sembrar();
+		managerFacturacion=new ManagerFacturacion();
+		managerDAO=new ManagerDAO();
+		//cache de productos y parametros cargados antes de medir:
+		managerFacturacion.findAllProductos();
+		managerFacturacion.getPorcentajeIVA();
+	}
+
+	@TearDown(Level.Trial)
+	public void limpiar() throws Exception{
+		//las facturas del guardado asincrono se guardan antes de borrar sus clientes:
+		if(managerFacturacion.isGuardadoAsincrono()){
+			DiarioFacturas diario=DiarioFacturas.getInstancia();
+			for(int i=0;i<600&&diario.getPendientes()>0;i++)
+				Thread.sleep(100);
+		}
+		catalogo.limpiar();
+		//el resumen de ventas aun suma las facturas borradas:
+		managerFacturacion.reconstruirResumenVentas();
+	}
+
+	/**
+	 * Crea una factura temporal con cliente y {@link #detalles} productos al azar.
+	 * @param random generador del hilo que llama.
+	 * @return la factura temporal.
+	 * @throws Exception si falla el manager.
+	 */
+	FacturaCab crearFactura(Random random) throws Exception{
+		FacturaCab f=managerFacturacion.crearFacturaTmp();
+		managerFacturacion.asignarClienteFacturaTmp(f, catalogo.getCedula(random.nextInt(clientes)));
+		for(int i=0;i<detalles;i++)
+			managerFacturacion.agregarDetalleFacturaTmp(f, catalogo.getCodigoAleatorio(random),
+					Integer.valueOf(1+random.nextInt(10)));
+		return f;
+	}
+
+	/**
+	 * Estado de cada hilo de medicion: su generador de numeros al azar y una
+	 * factura ya armada para los calculos en memoria.
+	 */
+	@State(Scope.Thread)
+	public static class Hilo{
+		Random random;
+		FacturaCab factura;
+
+		@Setup(Level.Iteration)
+		public void preparar(EstadoBenchmark estado) throws Exception{
+			random=new Random(Thread.currentThread().getId());
+			factura=estado.crearFactura(random);
+		}
+	}
+
+}
@@ -1,16 +1,22 @@
 package facturacion.controller;
 
-import java.util.ArrayList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.List;
 
 import javax.faces.bean.ManagedBean;
 import javax.faces.bean.SessionScoped;
-import javax.faces.model.SelectItem;
+
+import org.primefaces.model.DefaultStreamedContent;
+import org.primefaces.model.StreamedContent;
 
 import facturacion.model.dao.entities.Cliente;
 import facturacion.model.dao.entities.FacturaCab;
 import facturacion.model.dao.entities.Producto;
+import facturacion.model.log.Bitacora;
+import facturacion.model.manager.GeneradorDocumentos;
 import facturacion.model.manager.ManagerFacturacion;
+import facturacion.model.manager.TicketFactura;
 
 /**
  * ManagedBean JSF para el manejo de la facturacion.
@@ -20,15 +26,28 @@ import facturacion.model.manager.ManagerFacturacion;
 @ManagedBean
 @SessionScoped
 public class BeanFactura {
+	private static final int MAXIMO_SUGERENCIAS=15;
+	private static final Bitacora log=Bitacora.getBitacora(BeanFactura.class);
 	private String cedulaCliente;
+	private Cliente cliente;
 	private ManagerFacturacion managerFacturacion;
 	private Integer codigoProducto;
+	private Producto producto;
 	private Integer cantidadProducto;
 	private FacturaCab facturaCabTmp;
 	private boolean facturaCabTmpGuardada;
+	private ModeloFacturasLazy modeloFacturas;
+	private String ticket;
+	private TicketFactura estadoTicket;
 	
 	public BeanFactura() {
 		managerFacturacion = new ManagerFacturacion();
+		try {
+			//las facturas que quedaron en el diario empiezan a guardarse:
+			managerFacturacion.iniciarGuardadoAsincrono();
+		} catch (Exception e) {
+			log.error("BeanFactura", "No se pudo iniciar el guardado asincrono", e);
+		}
 	}
 
 	/**
@@ -37,11 +56,18 @@ public class BeanFactura {
 	 * @return outcome para la navegacion.
 	 */
 	public String crearNuevaFactura(){
+		//la factura anterior sin guardar libera la existencia reservada:
+		if(!facturaCabTmpGuardada)
+			managerFacturacion.descartarFacturaTmp(facturaCabTmp);
 		facturaCabTmp=managerFacturacion.crearFacturaTmp();
 		cedulaCliente=null;
-		codigoProducto=0;
+		cliente=null;
+		codigoProducto=null;
+		producto=null;
 		cantidadProducto=0;
 		facturaCabTmpGuardada=false;
+		ticket=null;
+		estadoTicket=null;
 		return "";
 	}
 	/**
@@ -72,7 +98,8 @@ public class BeanFactura {
 		}
 		try {
 			managerFacturacion.agregarDetalleFacturaTmp(facturaCabTmp,codigoProducto, cantidadProducto);
-			codigoProducto=0;
+			codigoProducto=null;
+			producto=null;
 			cantidadProducto=0;
 		} catch (Exception e) {
 			JSFUtil.crearMensajeERROR(e.getMessage());
@@ -80,6 +107,25 @@ public class BeanFactura {
 		return "";
 	}
 	
+	/**
+	 * Action que quita un item de una factura temporal.
+	 * Hace uso del componente {@link facturacion.model.manager.ManagerFacturacion ManagerFacturacion} de la capa model.
+	 * @param indice posicion del item en la factura.
+	 * @return outcome para la navegacion.
+	 */
+	public String quitarDetalle(int indice){
+		if(facturaCabTmpGuardada==true){
+			JSFUtil.crearMensajeWARN("La factura ya fue guardada.");
+			return "";
+		}
+		try {
+			managerFacturacion.quitarDetalleFacturaTmp(facturaCabTmp, indice);
+		} catch (Exception e) {
+			JSFUtil.crearMensajeERROR(e.getMessage());
+		}
+		return "";
+	}
+	
 	/**
 	 * Action que almacena en la base de datos una factura temporal creada en memoria.
 	 * Hace uso del componente {@link facturacion.model.manager.ManagerFacturacion ManagerFacturacion} de la capa model.
@@ -91,8 +137,16 @@ public class BeanFactura {
 			return "";
 		}
 		try {
-			managerFacturacion.guardarFacturaTemporal(facturaCabTmp);
-			facturaCabTmpGuardada=true;
+			if(managerFacturacion.isGuardadoAsincrono()){
+				//se escribe en el diario local y se guarda en segundo plano:
+				ticket=managerFacturacion.guardarFacturaAsincrona(facturaCabTmp);
+				facturaCabTmpGuardada=true;
+				actualizarTicket();
+				JSFUtil.crearMensajeINFO("Factura recibida con el ticket "+ticket+".");
+			}else{
+				managerFacturacion.guardarFacturaTemporal(facturaCabTmp);
+				facturaCabTmpGuardada=true;
+			}
 		} catch (Exception e) {
 			JSFUtil.crearMensajeERROR(e.getMessage());
 		}
@@ -100,6 +154,54 @@ public class BeanFactura {
 		return "";
 	}
 	
+	/**
+	 * Documento PDF de la factura guardada, para el p:fileDownload.
+	 * @return el PDF de la factura, o null si no se pudo generar.
+	 */
+	public StreamedContent getDocumentoPdf(){
+		try {
+			ByteArrayOutputStream salida=new ByteArrayOutputStream();
+			managerFacturacion.generarDocumento(facturaCabTmp, GeneradorDocumentos.PDF, salida);
+			String numero=facturaCabTmp.getNumeroFactura()==null?ticket:facturaCabTmp.getNumeroFactura();
+			return new DefaultStreamedContent(new ByteArrayInputStream(salida.toByteArray()),
+					"application/pdf", "factura-"+numero+".pdf");
+		} catch (Exception e) {
+			JSFUtil.crearMensajeERROR(e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Listener del p:poll que consulta el estado del ticket de la factura
+	 * guardada de forma asincrona; cuando ya se guardo, muestra su numero.
+	 */
+	public void actualizarTicket(){
+		if(ticket==null)
+			return;
+		try {
+			estadoTicket=managerFacturacion.consultarTicket(ticket);
+			if(estadoTicket!=null && estadoTicket.getNumeroFactura()!=null)
+				facturaCabTmp.setNumeroFactura(estadoTicket.getNumeroFactura());
+		} catch (Exception e) {
+			JSFUtil.crearMensajeERROR(e.getMessage());
+		}
+	}
+	
+	public String getTicket() {
+		return ticket;
+	}
+	
+	public TicketFactura getEstadoTicket() {
+		return estadoTicket;
+	}
+	
+	/**
+	 * @return true mientras la factura del ticket no se guarde (o se rechace) en la base de datos.
+	 */
+	public boolean isTicketPendiente() {
+		return ticket!=null && (estadoTicket==null || !estadoTicket.isGuardada() && !estadoTicket.isRechazada());
+	}
+	
 	public String getCedulaCliente() {
 		return cedulaCliente;
 	}
@@ -108,6 +210,19 @@ public class BeanFactura {
 		this.cedulaCliente = cedulaCliente;
 	}
 
+	public Cliente getCliente() {
+		return cliente;
+	}
+
+	/**
+	 * Asigna el cliente elegido en el autocompletado, y su cedula.
+	 * @param cliente cliente seleccionado.
+	 */
+	public void setCliente(Cliente cliente) {
+		this.cliente = cliente;
+		cedulaCliente = cliente == null ? null : cliente.getCedulaCliente();
+	}
+
 	public Integer getCodigoProducto() {
 		return codigoProducto;
 	}
@@ -116,6 +231,19 @@ public class BeanFactura {
 		this.codigoProducto = codigoProducto;
 	}
 
+	public Producto getProducto() {
+		return producto;
+	}
+
+	/**
+	 * Asigna el producto elegido en el autocompletado, y su codigo.
+	 * @param producto producto seleccionado.
+	 */
+	public void setProducto(Producto producto) {
+		this.producto = producto;
+		codigoProducto = producto == null ? null : producto.getCodigoProducto();
+	}
+
 	public Integer getCantidadProducto() {
 		return cantidadProducto;
 	}
@@ -125,35 +253,23 @@ public class BeanFactura {
 	}
 
 	/**
-	 * Devuelve un listado de componentes SelectItem a partir de un listado de {@link model.dao.entities.Cliente Cliente}.
-	 * @return listado de SelectItems de clientes.
+	 * Metodo completeMethod del autocompletado de clientes: busca por prefijo
+	 * de la cedula o de apellidos y nombres en el indice en memoria.
+	 * @param texto texto escrito por el usuario.
+	 * @return los clientes que mejor coinciden.
 	 */
-	public List<SelectItem> getListaClientesSI(){
-		List<SelectItem> listadoSI=new ArrayList<SelectItem>();
-		List<Cliente> listadoClientes=managerFacturacion.findAllClientes();
-		
-		for(Cliente c:listadoClientes){
-			SelectItem item=new SelectItem(c.getCedulaCliente(), 
-					                   c.getApellidos()+" "+c.getNombres());
-			listadoSI.add(item);
-		}
-		return listadoSI;
+	public List<Cliente> completarCliente(String texto){
+		return managerFacturacion.buscarClientes(texto, MAXIMO_SUGERENCIAS);
 	}
+
 	/**
-	 * Devuelve un listado de componentes SelectItem a partir de un listado de {@link model.dao.entities.Producto Producto}.
-	 * 
-	 * @return listado de SelectItems de productos.
+	 * Metodo completeMethod del autocompletado de productos: busca por nombre,
+	 * codigo o descripcion en el indice en memoria del catalogo.
+	 * @param texto texto escrito por el usuario.
+	 * @return los productos que mejor coinciden.
 	 */
-	public List<SelectItem> getListaProductosSI(){
-		List<SelectItem> listadoSI=new ArrayList<SelectItem>();
-		List<Producto> listadoProductos=managerFacturacion.findAllProductos();
-		
-		for(Producto p:listadoProductos){
-			SelectItem item=new SelectItem(p.getCodigoProducto(), 
-					                   p.getNombre());
-			listadoSI.add(item);
-		}
-		return listadoSI;
+	public List<Producto> completarProducto(String texto){
+		return managerFacturacion.buscarProductos(texto, MAXIMO_SUGERENCIAS);
 	}
 
 	public FacturaCab getFacturaCabTmp() {
@@ -164,9 +280,15 @@ public class BeanFactura {
 		this.facturaCabTmp = facturaCabTmp;
 	}
 	
-	public List<FacturaCab> getListaFacturasCab(){
-		List<FacturaCab> listadoFacturas=managerFacturacion.findAllFacturaCab();
-		return listadoFacturas;
+	/**
+	 * Devuelve el modelo lazy del listado de facturas, que consulta solo la
+	 * pagina visible.
+	 * @return modelo de datos para el p:dataTable de facturas.
+	 */
+	public ModeloFacturasLazy getModeloFacturas(){
+		if(modeloFacturas==null)
+			modeloFacturas=new ModeloFacturasLazy(managerFacturacion);
+		return modeloFacturas;
 	}
 
 	public boolean isFacturaCabTmpGuardada() {
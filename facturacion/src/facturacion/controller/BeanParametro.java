@@ -21,4 +21,14 @@ public class BeanParametro {
 		return mFacturacion.findAllParametros();
 	}
 	
+	/**
+	 * Action que vuelve a cargar en memoria los parametros del sistema.
+	 * @return outcome para la navegacion.
+	 */
+	public String actionRecargarParametros(){
+		mFacturacion.recargarParametros();
+		JSFUtil.crearMensajeINFO("Parametros recargados.");
+		return "";
+	}
+	
 }
@@ -7,10 +7,12 @@ import javax.faces.bean.ManagedBean;
 import javax.faces.bean.SessionScoped;
 import facturacion.model.manager.ManagerFacturacion;
 import facturacion.model.dao.entities.Producto;
+import facturacion.model.log.Bitacora;
 
 @ManagedBean
 @SessionScoped
 public class BeanProductos {
+	private static final Bitacora log=Bitacora.getBitacora(BeanProductos.class);
 	private List<Producto> listaProductos;
 	private ManagerFacturacion managerFacturacion;
 	
@@ -20,6 +22,8 @@ public class BeanProductos {
 	private String nombre;
 	private BigDecimal precioUnitario;
 	private String tieneImpuesto;
+	//producto tal como se leyo antes de editarlo (concurrencia optimista):
+	private Producto productoOriginal;
 	
 	
 	public BeanProductos(){
@@ -58,6 +62,15 @@ public class BeanProductos {
 		return "";
 	}
 	public String actionCargarProducto(Producto producto){
+		try {
+			//el listado puede venir de la cache; se edita el producto actual:
+			producto=managerFacturacion.findProductoParaEdicion(producto.getCodigoProducto());
+		} catch (Exception e) {
+			JSFUtil.crearMensajeERROR(e.getMessage());
+			log.error("actionCargarProducto", "No se pudo cargar el producto "+producto.getCodigoProducto(), e);
+			return "";
+		}
+		productoOriginal=producto;
 		codigoProducto=producto.getCodigoProducto();
 		descripcion=producto.getDescripcion();
 		nombre=producto.getNombre();
@@ -75,8 +88,10 @@ public class BeanProductos {
 		p.setExistencia(existencia);
 		p.setTieneImpuesto(tieneImpuesto);
 		try {
-			managerFacturacion.actualizarProducto(p);
+			if(!managerFacturacion.actualizarProducto(productoOriginal, p))
+				JSFUtil.crearMensajeINFO("No existen cambios en el producto "+codigoProducto+".");
 			//limpiamos las variables del formulario:
+			productoOriginal=null;
 			codigoProducto=null;
 			descripcion="";
 			existencia=null;
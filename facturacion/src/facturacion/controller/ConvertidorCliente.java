@@ -0,0 +1,42 @@
+package facturacion.controller;
+
+import javax.faces.component.UIComponent;
+import javax.faces.context.FacesContext;
+import javax.faces.convert.Converter;
+import javax.faces.convert.FacesConverter;
+
+import facturacion.model.dao.entities.Cliente;
+import facturacion.model.manager.ManagerFacturacion;
+
+/**
+ * Convertidor JSF de {@link Cliente} a su cedula y viceversa, para el
+ * autocompletado de clientes de la factura.
+ * Hace uso del componente {@link facturacion.model.manager.ManagerFacturacion ManagerFacturacion} de la capa model.
+ * @author mrea
+ *
+ */
+@FacesConverter("convertidorCliente")
+public class ConvertidorCliente implements Converter {
+	private ManagerFacturacion managerFacturacion;
+
+	public ConvertidorCliente() {
+		managerFacturacion = new ManagerFacturacion();
+	}
+
+	public Object getAsObject(FacesContext context, UIComponent component, String value) {
+		if (value == null || value.trim().length() == 0)
+			return null;
+		try {
+			return managerFacturacion.findClienteById(value.trim());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	public String getAsString(FacesContext context, UIComponent component, Object value) {
+		if (value instanceof Cliente && ((Cliente) value).getCedulaCliente() != null)
+			return ((Cliente) value).getCedulaCliente();
+		return "";
+	}
+
+}
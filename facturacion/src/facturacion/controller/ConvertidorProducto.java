@@ -0,0 +1,42 @@
+package facturacion.controller;
+
+import javax.faces.component.UIComponent;
+import javax.faces.context.FacesContext;
+import javax.faces.convert.Converter;
+import javax.faces.convert.FacesConverter;
+
+import facturacion.model.dao.entities.Producto;
+import facturacion.model.manager.ManagerFacturacion;
+
+/**
+ * Convertidor JSF de {@link Producto} a su codigo y viceversa, para el
+ * autocompletado de productos de la factura.
+ * Hace uso del componente {@link facturacion.model.manager.ManagerFacturacion ManagerFacturacion} de la capa model.
+ * @author mrea
+ *
+ */
+@FacesConverter("convertidorProducto")
+public class ConvertidorProducto implements Converter {
+	private ManagerFacturacion managerFacturacion;
+
+	public ConvertidorProducto() {
+		managerFacturacion = new ManagerFacturacion();
+	}
+
+	public Object getAsObject(FacesContext context, UIComponent component, String value) {
+		if (value == null || value.trim().length() == 0)
+			return null;
+		try {
+			return managerFacturacion.findProductoById(Integer.valueOf(value.trim()));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	public String getAsString(FacesContext context, UIComponent component, Object value) {
+		if (value instanceof Producto && ((Producto) value).getCodigoProducto() != null)
+			return ((Producto) value).getCodigoProducto().toString();
+		return "";
+	}
+
+}
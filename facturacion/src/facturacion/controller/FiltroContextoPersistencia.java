@@ -0,0 +1,40 @@
+package facturacion.controller;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import facturacion.model.manager.ManagerDAO;
+
+/**
+ * Filtro que abre un contexto de persistencia (EntityManager) por cada peticion
+ * y lo cierra al terminar, devolviendolo al pool de {@link facturacion.model.manager.ManagerDAO ManagerDAO}.
+ * Asi cada peticion trabaja con su propio EntityManager y las relaciones lazy
+ * pueden cargarse mientras se genera la pagina.
+ * @author mrea
+ *
+ */
+public class FiltroContextoPersistencia implements Filter {
+
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	public void doFilter(ServletRequest request, ServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+		ManagerDAO.abrirContexto();
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			ManagerDAO.cerrarContexto();
+		}
+	}
+
+	public void destroy() {
+	}
+
+}
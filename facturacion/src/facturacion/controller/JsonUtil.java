@@ -0,0 +1,259 @@
+package facturacion.controller;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lectura y escritura de JSON para {@link ServletApiFacturas}, sin librerias
+ * externas. Los objetos se leen como Map (en el orden del texto), los
+ * arreglos como List, los numeros como BigDecimal y los demas valores como
+ * String, Boolean o null.
+ * @author mrea
+ *
+ */
+public class JsonUtil {
+	private final Reader entrada;
+	private int actual;
+	private int posicion;
+
+	private JsonUtil(Reader entrada){
+		this.entrada=entrada;
+	}
+
+	/**
+	 * Lee un valor JSON completo.
+	 * @param entrada texto JSON; no se cierra.
+	 * @return el valor leido.
+	 * @throws Exception si el texto no es JSON valido.
+	 */
+	public static Object leer(Reader entrada) throws Exception{
+		JsonUtil lector=new JsonUtil(entrada);
+		lector.avanzar();
+		Object valor=lector.leerValor();
+		lector.saltarEspacios();
+		if(lector.actual!=-1)
+			throw lector.error("fin del texto");
+		return valor;
+	}
+
+	/**
+	 * Escribe un valor como JSON: Map, Iterable, Number, Boolean, null o
+	 * cualquier otro objeto como texto.
+	 * @param w destino; no se cierra.
+	 * @param valor valor a escribir.
+	 * @throws IOException si falla la escritura.
+	 */
+	public static void escribir(Writer w,Object valor) throws IOException{
+		if(valor==null)
+			w.write("null");
+		else if(valor instanceof BigDecimal)
+			w.write(((BigDecimal)valor).toPlainString());
+		else if(valor instanceof Number||valor instanceof Boolean)
+			w.write(valor.toString());
+		else if(valor instanceof Map){
+			w.write('{');
+			boolean primero=true;
+			for(Map.Entry<?,?> e:((Map<?,?>)valor).entrySet()){
+				if(!primero)
+					w.write(',');
+				primero=false;
+				escribirTexto(w, String.valueOf(e.getKey()));
+				w.write(':');
+				escribir(w, e.getValue());
+			}
+			w.write('}');
+		}else if(valor instanceof Iterable){
+			w.write('[');
+			Iterator<?> i=((Iterable<?>)valor).iterator();
+			while(i.hasNext()){
+				escribir(w, i.next());
+				if(i.hasNext())
+					w.write(',');
+			}
+			w.write(']');
+		}else
+			escribirTexto(w, valor.toString());
+	}
+
+	private static void escribirTexto(Writer w,String v) throws IOException{
+		w.write('"');
+		for(int i=0;i<v.length();i++){
+			char ch=v.charAt(i);
+			if(ch=='"'||ch=='\\'){
+				w.write('\\');
+				w.write(ch);
+			}else if(ch<0x20)
+				w.write(String.format("\\u%04x", Integer.valueOf(ch)));
+			else
+				w.write(ch);
+		}
+		w.write('"');
+	}
+
+	private void avanzar() throws IOException{
+		actual=entrada.read();
+		posicion++;
+	}
+
+	private void saltarEspacios() throws IOException{
+		while(actual==' '||actual=='\t'||actual=='\n'||actual=='\r')
+			avanzar();
+	}
+
+	private Exception error(String esperado){
+		return new Exception("JSON no valido en la posicion "+posicion+": se esperaba "+esperado+".");
+	}
+
+	private void esperar(char ch) throws Exception{
+		if(actual!=ch)
+			throw error("'"+ch+"'");
+		avanzar();
+	}
+
+	private Object leerValor() throws Exception{
+		saltarEspacios();
+		switch(actual){
+		case '{':
+			return leerObjeto();
+		case '[':
+			return leerArreglo();
+		case '"':
+			return leerTexto();
+		case 't':
+			leerPalabra("true");
+			return Boolean.TRUE;
+		case 'f':
+			leerPalabra("false");
+			return Boolean.FALSE;
+		case 'n':
+			leerPalabra("null");
+			return null;
+		default:
+			if(actual=='-'||(actual>='0'&&actual<='9'))
+				return leerNumero();
+			throw error("un valor");
+		}
+	}
+
+	private Map<String,Object> leerObjeto() throws Exception{
+		Map<String,Object> objeto=new LinkedHashMap<String,Object>();
+		avanzar();
+		saltarEspacios();
+		if(actual=='}'){
+			avanzar();
+			return objeto;
+		}
+		while(true){
+			saltarEspacios();
+			if(actual!='"')
+				throw error("un nombre");
+			String nombre=leerTexto();
+			saltarEspacios();
+			esperar(':');
+			objeto.put(nombre, leerValor());
+			saltarEspacios();
+			if(actual=='}'){
+				avanzar();
+				return objeto;
+			}
+			esperar(',');
+		}
+	}
+
+	private List<Object> leerArreglo() throws Exception{
+		List<Object> arreglo=new ArrayList<Object>();
+		avanzar();
+		saltarEspacios();
+		if(actual==']'){
+			avanzar();
+			return arreglo;
+		}
+		while(true){
+			arreglo.add(leerValor());
+			saltarEspacios();
+			if(actual==']'){
+				avanzar();
+				return arreglo;
+			}
+			esperar(',');
+		}
+	}
+
+	private String leerTexto() throws Exception{
+		StringBuilder s=new StringBuilder();
+		avanzar();
+		while(actual!='"'){
+			if(actual==-1||actual<0x20)
+				throw error("'\"'");
+			if(actual=='\\'){
+				avanzar();
+				switch(actual){
+				case '"': case '\\': case '/':
+					s.append((char)actual);
+					break;
+				case 'b':
+					s.append('\b');
+					break;
+				case 'f':
+					s.append('\f');
+					break;
+				case 'n':
+					s.append('\n');
+					break;
+				case 'r':
+					s.append('\r');
+					break;
+				case 't':
+					s.append('\t');
+					break;
+				case 'u':
+					int codigo=0;
+					for(int i=0;i<4;i++){
+						avanzar();
+						int digito=Character.digit(actual, 16);
+						if(actual==-1||digito<0)
+							throw error("un digito hexadecimal");
+						codigo=codigo*16+digito;
+					}
+					s.append((char)codigo);
+					break;
+				default:
+					throw error("un escape");
+				}
+			}else
+				s.append((char)actual);
+			avanzar();
+		}
+		avanzar();
+		return s.toString();
+	}
+
+	private BigDecimal leerNumero() throws Exception{
+		StringBuilder s=new StringBuilder();
+		while(actual=='-'||actual=='+'||actual=='.'||actual=='e'||actual=='E'||(actual>='0'&&actual<='9')){
+			s.append((char)actual);
+			avanzar();
+		}
+		try{
+			return new BigDecimal(s.toString());
+		}catch(NumberFormatException e){
+			throw error("un numero");
+		}
+	}
+
+	private void leerPalabra(String palabra) throws Exception{
+		for(int i=0;i<palabra.length();i++){
+			if(actual!=palabra.charAt(i))
+				throw error(palabra);
+			avanzar();
+		}
+	}
+
+}
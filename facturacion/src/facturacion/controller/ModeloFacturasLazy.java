@@ -0,0 +1,116 @@
+package facturacion.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.primefaces.model.LazyDataModel;
+import org.primefaces.model.SortOrder;
+
+import facturacion.model.manager.ManagerFacturacion;
+import facturacion.model.manager.ResumenFactura;
+
+/**
+ * Modelo de datos lazy de PrimeFaces para el listado de facturas.
+ * Solo consulta la pagina visible, con ordenamiento y filtros en el servidor.
+ * Recuerda la clave de inicio de cada pagina ya visitada para continuar la
+ * consulta desde ella (keyset) en lugar de usar OFFSET.
+ * Las filas son {@link ResumenFactura} (factura y cliente en una sola consulta).
+ * Hace uso del componente {@link facturacion.model.manager.ManagerFacturacion ManagerFacturacion} de la capa model.
+ * @author mrea
+ *
+ */
+public class ModeloFacturasLazy extends LazyDataModel<ResumenFactura> {
+	private static final long serialVersionUID = 1L;
+	private static final int MAXIMO_CLAVES=1000;
+	/** campos de ResumenFactura con nombre distinto en ManagerFacturacion. */
+	private static final Map<String,String> CAMPOS=new HashMap<String,String>();
+	static{
+		CAMPOS.put("cedulaCliente", "cliente.cedulaCliente");
+		CAMPOS.put("apellidos", "cliente.apellidos");
+	}
+
+	private transient ManagerFacturacion managerFacturacion;
+	/** clave de la fila anterior a cada posicion de inicio de pagina conocida. */
+	private Map<Integer,Object[]> claves=new HashMap<Integer,Object[]>();
+	private String campoOrden;
+	private boolean descendente;
+	private Map<String,Object> filtros=new HashMap<String,Object>();
+	private List<ResumenFactura> pagina;
+
+	public ModeloFacturasLazy(ManagerFacturacion managerFacturacion){
+		this.managerFacturacion=managerFacturacion;
+	}
+
+	@Override
+	public List<ResumenFactura> load(int first, int pageSize, String sortField,
+			SortOrder sortOrder, Map<String, Object> filters) {
+		boolean desc=sortOrder!=SortOrder.ASCENDING;
+		sortField=campo(sortField);
+		Map<String,Object> nuevosFiltros=new HashMap<String,Object>();
+		if(filters!=null)
+			for(Map.Entry<String,Object> e:filters.entrySet())
+				nuevosFiltros.put(campo(e.getKey()), e.getValue());
+		boolean cambioCriterio=!igual(sortField,campoOrden)||desc!=descendente||!nuevosFiltros.equals(filtros);
+		if(cambioCriterio||claves.size()>MAXIMO_CLAVES){
+			claves.clear();
+			campoOrden=sortField;
+			descendente=desc;
+			filtros=nuevosFiltros;
+		}
+		if(cambioCriterio||first==0)
+			setRowCount((int)managerFacturacion.contarFacturaCab(filtros));
+
+		Object[] ancla=null;
+		if(first>0){
+			ancla=claves.get(first);
+			if(ancla==null){
+				//partimos de la pagina conocida mas cercana anterior a first:
+				int base=0;
+				Object[] claveBase=null;
+				for(Map.Entry<Integer,Object[]> e:claves.entrySet()){
+					if(e.getKey().intValue()<first&&e.getKey().intValue()>base){
+						base=e.getKey().intValue();
+						claveBase=e.getValue();
+					}
+				}
+				ancla=managerFacturacion.findClaveFacturaCab(filtros, campoOrden, descendente, claveBase, first-base);
+				if(ancla!=null)
+					claves.put(first, ancla);
+			}
+		}
+		if(first>0&&ancla==null){
+			pagina=new ArrayList<ResumenFactura>();
+			return pagina;
+		}
+		pagina=managerFacturacion.findResumenFacturaPagina(filtros, campoOrden, descendente, ancla, pageSize);
+		if(!pagina.isEmpty())
+			claves.put(first+pagina.size(), managerFacturacion.getClaveResumenFactura(pagina.get(pagina.size()-1), campoOrden));
+		return pagina;
+	}
+
+	@Override
+	public Object getRowKey(ResumenFactura factura) {
+		return factura.getNumeroFactura();
+	}
+
+	@Override
+	public ResumenFactura getRowData(String rowKey) {
+		if(pagina!=null)
+			for(ResumenFactura f:pagina)
+				if(f.getNumeroFactura().equals(rowKey))
+					return f;
+		return null;
+	}
+
+	private static String campo(String nombre){
+		String campo=nombre==null?null:CAMPOS.get(nombre);
+		return campo==null?nombre:campo;
+	}
+
+	private static boolean igual(String a,String b){
+		return a==null?b==null:a.equals(b);
+	}
+
+}
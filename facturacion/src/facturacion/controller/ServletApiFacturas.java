@@ -0,0 +1,294 @@
+package facturacion.controller;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.FacturaDet;
+import facturacion.model.log.Bitacora;
+import facturacion.model.manager.ErrorPersistencia;
+import facturacion.model.manager.FacturaRechazada;
+import facturacion.model.manager.ManagerDAO;
+import facturacion.model.manager.ManagerFacturacion;
+
+/**
+ * API JSON sin estado para crear facturas: cada peticion trae la factura
+ * completa, sin sesion HTTP ni factura temporal entre peticiones (para
+ * terminales de venta e integraciones). El cliente y los productos se leen
+ * de la base de datos y la existencia se descuenta en la transaccion del
+ * guardado, por lo que varios nodos pueden atender la API a la vez. Cada
+ * peticion abre su propio contexto de persistencia. Todas las rutas reciben POST:
+ * <ul>
+ * <li>/api/facturas: guarda una factura y devuelve su numero y sus totales (201).</li>
+ * <li>/api/facturas/cotizaciones: calcula los totales de varias facturas sin guardarlas.</li>
+ * <li>/api/facturas/lote: guarda varias facturas; cada una se guarda o falla por separado.</li>
+ * </ul>
+ * Una factura es {"cedulaCliente":"...","detalles":[{"codigoProducto":1,"cantidad":2},...]};
+ * los lotes son {"facturas":[...]} con hasta facturacion.api.lote.maximo facturas.
+ * Los errores se devuelven como {"error":"mensaje"}: 400 si la peticion no es
+ * valida, 422 si la factura se rechaza ({@link FacturaRechazada}: cliente o
+ * producto inexistente, cantidad no valida, existencia insuficiente), 503 con
+ * Retry-After si la base de datos no esta disponible por el momento (sin
+ * conexiones libres, tiempo agotado, conflicto) y 500 en otro caso. Los
+ * errores del servidor no muestran su detalle: traen una referencia que
+ * identifica el registro del error en la bitacora.
+ * @author mrea
+ *
+ */
+public class ServletApiFacturas extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+	public static final String PROP_LOTE_MAXIMO="facturacion.api.lote.maximo";
+	/**
+	 * Segundos sugeridos al cliente para reintentar tras un error temporal.
+	 */
+	private static final String REINTENTO="5";
+
+	private static final Bitacora log=Bitacora.getBitacora(ServletApiFacturas.class);
+
+	private ManagerFacturacion managerFacturacion;
+	private int loteMaximo;
+
+	/**
+	 * Peticion que no cumple el formato de la API (respuesta 400).
+	 */
+	private static class PeticionInvalida extends Exception{
+		private static final long serialVersionUID = 1L;
+
+		private PeticionInvalida(String mensaje){
+			super(mensaje);
+		}
+	}
+
+	@Override
+	public void init() throws ServletException {
+		managerFacturacion=new ManagerFacturacion();
+		loteMaximo=ManagerDAO.getPropiedad(PROP_LOTE_MAXIMO, 100);
+		try {
+			managerFacturacion.iniciarGuardadoAsincrono();
+		} catch (Exception e) {
+			log.error("init", "No se pudo iniciar el guardado asincrono", e);
+		}
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		String ruta=request.getPathInfo()==null?"/":request.getPathInfo();
+		Object respuesta;
+		int estado=HttpServletResponse.SC_OK;
+		try {
+			request.setCharacterEncoding("UTF-8");
+			Object cuerpo;
+			try {
+				cuerpo=JsonUtil.leer(request.getReader());
+			} catch (Exception e) {
+				throw new PeticionInvalida(e.getMessage());
+			}
+			ManagerDAO.abrirContexto();
+			try {
+				if(ruta.equals("/")){
+					respuesta=guardar(cuerpo);
+					estado=HttpServletResponse.SC_CREATED;
+				}else if(ruta.equals("/cotizaciones"))
+					respuesta=procesarLote(cuerpo, false);
+				else if(ruta.equals("/lote"))
+					respuesta=procesarLote(cuerpo, true);
+				else{
+					respuesta=error("No existe la ruta "+ruta+".");
+					estado=HttpServletResponse.SC_NOT_FOUND;
+				}
+			} finally {
+				ManagerDAO.cerrarContexto();
+			}
+		} catch (PeticionInvalida e) {
+			respuesta=error(e.getMessage());
+			estado=HttpServletResponse.SC_BAD_REQUEST;
+		} catch (FacturaRechazada e) {
+			respuesta=error(e.getMessage());
+			estado=422;
+		} catch (Exception e) {
+			estado=estadoError(e);
+			respuesta=errorServidor("doPost", "Error en la peticion "+ruta, e, estado);
+		}
+		if(estado==HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+			response.setHeader("Retry-After", REINTENTO);
+		responder(response, estado, respuesta);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		response.setHeader("Allow", "POST");
+		responder(response, HttpServletResponse.SC_METHOD_NOT_ALLOWED, error("Solo se admite POST."));
+	}
+
+	/**
+	 * Guarda una factura; los errores se propagan.
+	 */
+	private Map<String,Object> guardar(Object cuerpo) throws Exception{
+		Map<String,Object> solicitud=objeto(cuerpo, "la factura");
+		return factura(managerFacturacion.guardarFactura(cedula(solicitud), detalles(solicitud)));
+	}
+
+	/**
+	 * Cotiza o guarda cada factura de un lote por separado: una factura
+	 * que falla tiene su error en su posicion, con el estado HTTP que tendria
+	 * sola, y no detiene las demas.
+	 */
+	private Map<String,Object> procesarLote(Object cuerpo,boolean guardar) throws PeticionInvalida{
+		Object lista=objeto(cuerpo, "el lote").get("facturas");
+		if(!(lista instanceof List))
+			throw new PeticionInvalida("Debe enviar la lista de facturas.");
+		List<?> facturas=(List<?>)lista;
+		if(facturas.size()>loteMaximo)
+			throw new PeticionInvalida("El lote tiene "+facturas.size()+" facturas; el maximo es "+loteMaximo+".");
+		List<Object> resultados=new ArrayList<Object>(facturas.size());
+		int errores=0;
+		for(Object item:facturas){
+			try {
+				Map<String,Object> solicitud=objeto(item, "la factura");
+				String cedula=cedula(solicitud);
+				Map<Integer,Integer> detalles=detalles(solicitud);
+				resultados.add(factura(guardar?managerFacturacion.guardarFactura(cedula, detalles)
+						:managerFacturacion.cotizarFactura(cedula, detalles)));
+			} catch (PeticionInvalida e) {
+				resultados.add(error(e.getMessage(), HttpServletResponse.SC_BAD_REQUEST));
+				errores++;
+			} catch (FacturaRechazada e) {
+				resultados.add(error(e.getMessage(), 422));
+				errores++;
+			} catch (Exception e) {
+				resultados.add(errorServidor("procesarLote", "Error en una factura del lote", e, estadoError(e)));
+				errores++;
+			}
+		}
+		Map<String,Object> respuesta=new LinkedHashMap<String,Object>();
+		respuesta.put("facturas", resultados);
+		respuesta.put("correctas", Integer.valueOf(facturas.size()-errores));
+		respuesta.put("errores", Integer.valueOf(errores));
+		return respuesta;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String,Object> objeto(Object valor,String nombre) throws PeticionInvalida{
+		if(!(valor instanceof Map))
+			throw new PeticionInvalida("Se esperaba un objeto JSON con "+nombre+".");
+		return (Map<String,Object>)valor;
+	}
+
+	private static String cedula(Map<String,Object> solicitud) throws PeticionInvalida{
+		Object cedula=solicitud.get("cedulaCliente");
+		if(!(cedula instanceof String))
+			throw new PeticionInvalida("Debe especificar la cedula del cliente como texto.");
+		return (String)cedula;
+	}
+
+	/**
+	 * Lee los detalles de una factura; las lineas del mismo producto se suman.
+	 */
+	private static Map<Integer,Integer> detalles(Map<String,Object> solicitud) throws PeticionInvalida{
+		Object lista=solicitud.get("detalles");
+		if(!(lista instanceof List)||((List<?>)lista).isEmpty())
+			throw new PeticionInvalida("Debe ingresar los productos en la factura.");
+		Map<Integer,Integer> detalles=new LinkedHashMap<Integer,Integer>();
+		for(Object item:(List<?>)lista){
+			Map<String,Object> linea=objeto(item, "el detalle");
+			Integer codigo=entero(linea.get("codigoProducto"), "el codigo del producto");
+			Integer cantidad=entero(linea.get("cantidad"), "la cantidad del producto");
+			Integer anterior=detalles.get(codigo);
+			detalles.put(codigo, anterior==null?cantidad:Integer.valueOf(anterior.intValue()+cantidad.intValue()));
+		}
+		return detalles;
+	}
+
+	private static Integer entero(Object valor,String nombre) throws PeticionInvalida{
+		try {
+			return Integer.valueOf(((BigDecimal)valor).intValueExact());
+		} catch (RuntimeException e) {
+			throw new PeticionInvalida("Debe especificar "+nombre+" como numero entero.");
+		}
+	}
+
+	private static Map<String,Object> factura(FacturaCab f){
+		Map<String,Object> r=new LinkedHashMap<String,Object>();
+		r.put("numeroFactura", f.getNumeroFactura());
+		r.put("fechaEmision", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(f.getFechaEmision()));
+		r.put("cedulaCliente", f.getCliente().getCedulaCliente());
+		List<Object> detalles=new ArrayList<Object>(f.getFacturaDets().size());
+		for(FacturaDet d:f.getFacturaDets()){
+			Map<String,Object> linea=new LinkedHashMap<String,Object>();
+			linea.put("codigoProducto", d.getProducto().getCodigoProducto());
+			linea.put("cantidad", d.getCantidad());
+			linea.put("precioUnitarioVenta", d.getPrecioUnitarioVenta());
+			detalles.add(linea);
+		}
+		r.put("detalles", detalles);
+		r.put("subtotal", f.getSubtotal());
+		r.put("baseCero", f.getBaseCero());
+		r.put("valorIva", f.getValorIva());
+		r.put("total", f.getTotal());
+		return r;
+	}
+
+	private static Map<String,Object> error(String mensaje){
+		Map<String,Object> r=new LinkedHashMap<String,Object>();
+		r.put("error", mensaje);
+		return r;
+	}
+
+	private static Map<String,Object> error(String mensaje,int estado){
+		Map<String,Object> r=error(mensaje);
+		r.put("estado", Integer.valueOf(estado));
+		return r;
+	}
+
+	/**
+	 * 503 si reintentar puede funcionar (ver {@link ErrorPersistencia#esTemporal(Throwable)}),
+	 * 500 en otro caso.
+	 */
+	private static int estadoError(Exception e){
+		return ErrorPersistencia.esTemporal(e)?HttpServletResponse.SC_SERVICE_UNAVAILABLE
+				:HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+	}
+
+	/**
+	 * Registra un error del servidor en la bitacora con una referencia nueva
+	 * y devuelve la respuesta para el cliente, sin el detalle del error.
+	 */
+	private static Map<String,Object> errorServidor(String metodo,String mensaje,Exception e,int estado){
+		String referencia=UUID.randomUUID().toString();
+		Map<String,Object> r;
+		if(estado==HttpServletResponse.SC_SERVICE_UNAVAILABLE){
+			log.advertencia(metodo, "{} (referencia {}): {}", mensaje, referencia, e);
+			r=error("Servicio no disponible, intente nuevamente; referencia "+referencia+".", estado);
+		}else{
+			log.error(metodo, mensaje+" (referencia "+referencia+")", e);
+			r=error("Error interno, referencia "+referencia+".", estado);
+		}
+		r.put("referencia", referencia);
+		return r;
+	}
+
+	private static void responder(HttpServletResponse response,int estado,Object respuesta) throws IOException{
+		response.setStatus(estado);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-store");
+		Writer w=response.getWriter();
+		JsonUtil.escribir(w, respuesta);
+		w.flush();
+	}
+
+}
@@ -0,0 +1,196 @@
+package facturacion.model.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache de sentencias preparadas de una conexion fisica del
+ * {@link PoolConexiones}. Al cerrar una sentencia preparada, la sentencia real
+ * no se cierra sino que se guarda (por su texto SQL) para la siguiente vez que
+ * se prepare el mismo SQL en la misma conexion. Asi el driver puede pasar a
+ * usar una sentencia preparada en el servidor (PostgreSQL lo hace a partir de
+ * la quinta ejecucion, parametro prepareThreshold de la url) y la base de
+ * datos no vuelve a analizar ni planificar la consulta.
+ * Cuando se supera el tamaño maximo se cierra la sentencia usada hace mas
+ * tiempo.
+ *
+ * @author mrea
+ *
+ */
+class CacheSentencias {
+	private final int maximo;
+	private final LinkedHashMap<String, PreparedStatement> libres;
+	private final AtomicLong reutilizadas;
+	private final AtomicLong preparadas;
+
+	/**
+	 * @param maximo
+	 *            numero maximo de sentencias guardadas.
+	 * @param reutilizadas
+	 *            contador (del pool) de sentencias tomadas de la cache.
+	 * @param preparadas
+	 *            contador (del pool) de sentencias preparadas en el driver.
+	 */
+	@SuppressWarnings("serial")
+	CacheSentencias(final int maximo, AtomicLong reutilizadas,
+			AtomicLong preparadas) {
+		this.maximo = maximo;
+		this.reutilizadas = reutilizadas;
+		this.preparadas = preparadas;
+		this.libres = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > CacheSentencias.this.maximo) {
+					cerrarReal(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Prepara una sentencia, reutilizando la guardada para el mismo SQL si
+	 * existe.
+	 *
+	 * @param fisica
+	 *            conexion fisica propietaria de la cache.
+	 * @param conexion
+	 *            conexion entregada a la aplicacion (para getConnection()).
+	 * @param sql
+	 *            sentencia SQL.
+	 * @return la sentencia preparada; su close() la devuelve a la cache.
+	 * @throws SQLException
+	 *             si el driver no puede preparar la sentencia.
+	 */
+	PreparedStatement preparar(Connection fisica, Connection conexion, String sql)
+			throws SQLException {
+		PreparedStatement real;
+		synchronized (this) {
+			real = libres.remove(sql);
+		}
+		if (real != null)
+			reutilizadas.incrementAndGet();
+		else {
+			real = fisica.prepareStatement(sql);
+			preparadas.incrementAndGet();
+		}
+		return envolver(real, conexion, sql);
+	}
+
+	/**
+	 * Guarda una sentencia cerrada por la aplicacion, restablecida como recien
+	 * preparada: sin resultado abierto, sin parametros ni lote, y con los
+	 * limites por omision. Si no se puede restablecer, la sentencia se cierra
+	 * en lugar de guardarse.
+	 */
+	private void devolver(String sql, PreparedStatement real) {
+		try {
+			if (real.isClosed())
+				return;
+			ResultSet rs = real.getResultSet();
+			if (rs != null)
+				rs.close();
+			real.clearParameters();
+			real.clearBatch();
+			real.clearWarnings();
+			real.setMaxRows(0);
+			real.setMaxFieldSize(0);
+			real.setFetchSize(0);
+			real.setFetchDirection(ResultSet.FETCH_FORWARD);
+			real.setQueryTimeout(0);
+			real.setEscapeProcessing(true);
+		} catch (SQLException e) {
+			cerrarReal(real);
+			return;
+		} catch (RuntimeException e) {
+			cerrarReal(real);
+			return;
+		}
+		synchronized (this) {
+			if (!libres.containsKey(sql)) {
+				libres.put(sql, real);
+				return;
+			}
+		}
+		// ya existe otra sentencia guardada para el mismo SQL:
+		cerrarReal(real);
+	}
+
+	/**
+	 * Cierra todas las sentencias guardadas (antes de cerrar la conexion
+	 * fisica).
+	 */
+	void cerrar() {
+		List<PreparedStatement> sentencias;
+		synchronized (this) {
+			sentencias = new ArrayList<PreparedStatement>(libres.values());
+			libres.clear();
+		}
+		for (PreparedStatement ps : sentencias)
+			cerrarReal(ps);
+	}
+
+	synchronized int getTamanio() {
+		return libres.size();
+	}
+
+	private static void cerrarReal(PreparedStatement ps) {
+		try {
+			ps.close();
+		} catch (SQLException e) {
+			// la sentencia ya no es utilizable, se descarta.
+		}
+	}
+
+	/**
+	 * Envuelve la sentencia real para que close() la devuelva a la cache.
+	 */
+	private PreparedStatement envolver(final PreparedStatement real,
+			final Connection conexion, final String sql) {
+		return (PreparedStatement) Proxy.newProxyInstance(
+				CacheSentencias.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+					private boolean cerrada;
+
+					public Object invoke(Object proxy, Method metodo,
+							Object[] args) throws Throwable {
+						String nombre = metodo.getName();
+						if ("close".equals(nombre)) {
+							if (!cerrada) {
+								cerrada = true;
+								devolver(sql, real);
+							}
+							return null;
+						}
+						if ("equals".equals(nombre))
+							return Boolean.valueOf(proxy == args[0]);
+						if ("hashCode".equals(nombre))
+							return Integer.valueOf(System.identityHashCode(proxy));
+						if ("isClosed".equals(nombre))
+							return Boolean.valueOf(cerrada || real.isClosed());
+						if ("getConnection".equals(nombre))
+							return conexion;
+						if (cerrada)
+							throw new SQLException("La sentencia ya fue cerrada.");
+						try {
+							return metodo.invoke(real, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+}
@@ -0,0 +1,102 @@
+package facturacion.model.dao;
+
+import java.util.Collection;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sessions.DatabaseLogin;
+import org.eclipse.persistence.sessions.JNDIConnector;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+import facturacion.model.log.Bitacora;
+
+/**
+ * Personalizador de la sesion de EclipseLink (propiedad
+ * eclipselink.session.customizer de persistence.xml). Reemplaza las
+ * conexiones directas de DriverManager por un {@link PoolConexiones}
+ * configurado con las propiedades facturacion.pool.* de la unidad de
+ * persistencia, y ajusta el tamaño de la cache de consultas JPQL traducidas
+ * (facturacion.jpql.cache). Tambien aplica la configuracion de la {@link Bitacora}
+ * (propiedades facturacion.log.*).
+ * El pool se cierra cuando se cierra la sesion (el EntityManagerFactory).
+ * Las sesiones de las replicas de lectura llevan facturacion.pool.principal
+ * en false, para que {@link PoolConexiones#getInstancia()} siga siendo el
+ * pool de la base de datos principal, y en facturacion.pool.registro una
+ * coleccion donde se agrega el pool creado (para cerrarlo aunque la sesion
+ * no haya llegado a conectarse).
+ *
+ * @author mrea
+ *
+ */
+public class PersonalizadorSesion implements SessionCustomizer {
+	public static final String PROP_MINIMO = "facturacion.pool.minimo";
+	public static final String PROP_MAXIMO = "facturacion.pool.maximo";
+	public static final String PROP_ESPERA = "facturacion.pool.espera";
+	public static final String PROP_INACTIVIDAD = "facturacion.pool.inactividad";
+	public static final String PROP_VALIDACION = "facturacion.pool.validacion";
+	public static final String PROP_SENTENCIAS = "facturacion.pool.sentencias";
+	public static final String PROP_CACHE_JPQL = "facturacion.jpql.cache";
+	public static final String PROP_PRINCIPAL = "facturacion.pool.principal";
+	public static final String PROP_REGISTRO = "facturacion.pool.registro";
+
+	public void customize(Session session) throws Exception {
+		Bitacora.configurar(leerTexto(session, Bitacora.PROP_NIVEL),
+				leerEntero(session, Bitacora.PROP_CAPACIDAD, 10000));
+		DatabaseLogin login = (DatabaseLogin) session.getDatasourceLogin();
+		PoolConexiones pool = new PoolConexiones(
+				login.getDriverClassName(),
+				login.getConnectionString(),
+				login.getUserName(),
+				(String) session.getProperty("javax.persistence.jdbc.password"),
+				leerEntero(session, PROP_MINIMO, 2),
+				leerEntero(session, PROP_MAXIMO, 20),
+				leerEntero(session, PROP_ESPERA, 5000),
+				leerEntero(session, PROP_INACTIVIDAD, 300000),
+				leerTexto(session, PROP_VALIDACION),
+				leerEntero(session, PROP_SENTENCIAS, 50));
+		login.setConnector(new JNDIConnector(pool));
+		login.setUsesExternalConnectionPooling(true);
+		final PoolConexiones poolSesion = pool;
+		session.getEventManager().addListener(new SessionEventAdapter() {
+			@Override
+			public void postLogout(SessionEvent event) {
+				poolSesion.cerrar();
+			}
+		});
+		if (!"false".equalsIgnoreCase(leerTexto(session, PROP_PRINCIPAL)))
+			PoolConexiones.setInstancia(pool);
+		Object registro = session.getProperty(PROP_REGISTRO);
+		if (registro instanceof Collection)
+			registrar((Collection<?>) registro, pool);
+		//consultas JPQL dinamicas ya traducidas a SQL, por su texto:
+		session.getProject().setJPQLParseCacheMaxSize(leerEntero(session, PROP_CACHE_JPQL, 500));
+		Bitacora.getBitacora(PersonalizadorSesion.class).informacion("customize",
+				"Pool de conexiones instalado, minimo {}, maximo {}", pool.getMinimo(), pool.getMaximo());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void registrar(Collection<?> registro, PoolConexiones pool) {
+		((Collection<PoolConexiones>) registro).add(pool);
+	}
+
+	private static String leerTexto(Session session, String nombre) {
+		Object valor = session.getProperty(nombre);
+		if (valor == null || valor.toString().trim().length() == 0)
+			return null;
+		return valor.toString().trim();
+	}
+
+	private static int leerEntero(Session session, String nombre,
+			int valorDefecto) {
+		String valor = leerTexto(session, nombre);
+		if (valor == null)
+			return valorDefecto;
+		try {
+			return Integer.parseInt(valor);
+		} catch (NumberFormatException e) {
+			return valorDefecto;
+		}
+	}
+
+}
@@ -0,0 +1,507 @@
+package facturacion.model.dao;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import facturacion.model.log.Bitacora;
+
+/**
+ * Pool de conexiones JDBC para la unidad de persistencia facturacion.
+ * Mantiene entre un minimo y un maximo de conexiones fisicas, valida las
+ * conexiones antes de prestarlas, cierra las conexiones inactivas que superan
+ * el minimo y lleva estadisticas de uso (conexiones activas, inactivas, en
+ * espera y tiempos de espera para obtener una conexion). Cada conexion
+ * fisica guarda sus sentencias preparadas para reutilizarlas
+ * ({@link CacheSentencias}).
+ * Se instala en EclipseLink mediante {@link PersonalizadorSesion}.
+ *
+ * @author mrea
+ *
+ */
+public class PoolConexiones implements DataSource {
+	private static final Bitacora log = Bitacora.getBitacora(PoolConexiones.class);
+	private static volatile PoolConexiones instancia;
+
+	private final String url;
+	private final String usuario;
+	private final String clave;
+	private final int minimo;
+	private final int maximo;
+	private final long esperaMaxima;
+	private final long tiempoInactividad;
+	private final String consultaValidacion;
+	private final int sentenciasPorConexion;
+
+	private final Semaphore permisos;
+	private final LinkedBlockingDeque<ConexionInactiva> inactivas = new LinkedBlockingDeque<ConexionInactiva>();
+	private final ScheduledExecutorService mantenimiento;
+	private final ConcurrentHashMap<Connection, CacheSentencias> sentencias = new ConcurrentHashMap<Connection, CacheSentencias>();
+
+	private final AtomicInteger activas = new AtomicInteger();
+	private final AtomicInteger esperando = new AtomicInteger();
+	private final AtomicInteger fisicas = new AtomicInteger();
+	private final AtomicLong prestamos = new AtomicLong();
+	private final AtomicLong esperaTotalNanos = new AtomicLong();
+	private final AtomicLong esperaMaximaNanos = new AtomicLong();
+	private final AtomicLong tiemposAgotados = new AtomicLong();
+	private final AtomicLong conexionesInvalidas = new AtomicLong();
+	private final AtomicLong sentenciasReutilizadas = new AtomicLong();
+	private final AtomicLong sentenciasPreparadas = new AtomicLong();
+	private volatile boolean cerrado;
+
+	/**
+	 * Conexion fisica devuelta al pool, junto con el momento en que se devolvio.
+	 */
+	private static class ConexionInactiva {
+		private final Connection conexion;
+		private final long desde;
+
+		private ConexionInactiva(Connection conexion) {
+			this.conexion = conexion;
+			this.desde = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Constructor del pool.
+	 *
+	 * @param driver
+	 *            clase del driver JDBC.
+	 * @param url
+	 *            url de conexion JDBC.
+	 * @param usuario
+	 *            usuario de la base de datos.
+	 * @param clave
+	 *            clave del usuario.
+	 * @param minimo
+	 *            numero minimo de conexiones fisicas que se mantienen abiertas.
+	 * @param maximo
+	 *            numero maximo de conexiones prestadas al mismo tiempo.
+	 * @param esperaMaxima
+	 *            tiempo maximo (milisegundos) de espera por una conexion libre.
+	 * @param tiempoInactividad
+	 *            tiempo (milisegundos) tras el cual se cierra una conexion
+	 *            inactiva que excede el minimo.
+	 * @param consultaValidacion
+	 *            sentencia SQL para validar las conexiones. Si es null se usa
+	 *            Connection.isValid().
+	 * @param sentenciasPorConexion
+	 *            numero maximo de sentencias preparadas que se guardan por
+	 *            cada conexion fisica. Con 0 no se guardan.
+	 * @throws SQLException
+	 *             si no se puede cargar el driver.
+	 */
+	public PoolConexiones(String driver, String url, String usuario,
+			String clave, int minimo, int maximo, long esperaMaxima,
+			long tiempoInactividad, String consultaValidacion,
+			int sentenciasPorConexion) throws SQLException {
+		if (maximo <= 0 || minimo < 0 || minimo > maximo)
+			throw new IllegalArgumentException(
+					"Tamaño de pool invalido: minimo " + minimo + ", maximo "
+							+ maximo);
+		try {
+			if (driver != null)
+				Class.forName(driver);
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("No se encontro el driver JDBC: " + driver);
+		}
+		this.url = url;
+		this.usuario = usuario;
+		this.clave = clave;
+		this.minimo = minimo;
+		this.maximo = maximo;
+		this.esperaMaxima = esperaMaxima;
+		this.tiempoInactividad = tiempoInactividad;
+		this.consultaValidacion = consultaValidacion;
+		this.sentenciasPorConexion = sentenciasPorConexion;
+		this.permisos = new Semaphore(maximo, true);
+
+		mantenimiento = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread hilo = new Thread(r, "facturacion-pool-mantenimiento");
+				hilo.setDaemon(true);
+				return hilo;
+			}
+		});
+		long intervalo = Math.max(1000, tiempoInactividad / 2);
+		mantenimiento.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				mantener();
+			}
+		}, 0, intervalo, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Devuelve el pool de la base de datos principal (no el de las replicas
+	 * de lectura), para consultar sus estadisticas.
+	 *
+	 * @return el pool de conexiones, o null si aun no se ha creado.
+	 */
+	public static PoolConexiones getInstancia() {
+		return instancia;
+	}
+
+	/**
+	 * Registra el pool de la base de datos principal (ver {@link #getInstancia()}).
+	 */
+	static void setInstancia(PoolConexiones pool) {
+		instancia = pool;
+	}
+
+	public Connection getConnection() throws SQLException {
+		if (cerrado)
+			throw new SQLException("El pool de conexiones esta cerrado.");
+		long inicio = System.nanoTime();
+		esperando.incrementAndGet();
+		boolean obtenido;
+		try {
+			obtenido = permisos.tryAcquire(esperaMaxima, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrumpido mientras esperaba una conexion.");
+		} finally {
+			esperando.decrementAndGet();
+		}
+		if (!obtenido) {
+			tiemposAgotados.incrementAndGet();
+			throw new SQLTransientConnectionException("No se obtuvo una conexion en " + esperaMaxima
+					+ " ms (activas: " + activas.get() + ", maximo: " + maximo + ").");
+		}
+		Connection fisica;
+		try {
+			fisica = tomarConexionValida();
+		} catch (SQLException e) {
+			permisos.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permisos.release();
+			throw e;
+		}
+		activas.incrementAndGet();
+		registrarEspera(System.nanoTime() - inicio);
+		return envolver(fisica);
+	}
+
+	public Connection getConnection(String usuario, String clave)
+			throws SQLException {
+		if (usuario == null || usuario.equals(this.usuario))
+			return getConnection();
+		throw new SQLFeatureNotSupportedException(
+				"El pool solo entrega conexiones del usuario configurado.");
+	}
+
+	/**
+	 * Toma una conexion inactiva valida, o abre una nueva si no existe.
+	 */
+	private Connection tomarConexionValida() throws SQLException {
+		ConexionInactiva inactiva;
+		while ((inactiva = inactivas.pollFirst()) != null) {
+			if (esValida(inactiva.conexion))
+				return inactiva.conexion;
+			conexionesInvalidas.incrementAndGet();
+			cerrarFisica(inactiva.conexion);
+		}
+		return abrirFisica();
+	}
+
+	private Connection abrirFisica() throws SQLException {
+		Connection c = DriverManager.getConnection(url, usuario, clave);
+		fisicas.incrementAndGet();
+		if (sentenciasPorConexion > 0)
+			sentencias.put(c, new CacheSentencias(sentenciasPorConexion,
+					sentenciasReutilizadas, sentenciasPreparadas));
+		return c;
+	}
+
+	private void cerrarFisica(Connection c) {
+		fisicas.decrementAndGet();
+		CacheSentencias cache = sentencias.remove(c);
+		if (cache != null)
+			cache.cerrar();
+		try {
+			c.close();
+		} catch (SQLException e) {
+			// la conexion ya no es utilizable, se descarta.
+		}
+	}
+
+	private boolean esValida(Connection c) {
+		try {
+			if (c.isClosed())
+				return false;
+			if (consultaValidacion == null)
+				return c.isValid(5);
+			Statement s = c.createStatement();
+			try {
+				s.setQueryTimeout(5);
+				s.execute(consultaValidacion);
+			} finally {
+				s.close();
+			}
+			return true;
+		} catch (SQLException e) {
+			return false;
+		} catch (AbstractMethodError e) {
+			// driver JDBC3 sin soporte para isValid():
+			return true;
+		}
+	}
+
+	/**
+	 * Devuelve una conexion prestada al pool.
+	 */
+	private void devolver(Connection fisica) {
+		activas.decrementAndGet();
+		try {
+			boolean reutilizable = !cerrado && !fisica.isClosed();
+			if (reutilizable && !fisica.getAutoCommit()) {
+				fisica.rollback();
+				fisica.setAutoCommit(true);
+			}
+			if (reutilizable)
+				inactivas.offerFirst(new ConexionInactiva(fisica));
+			else
+				cerrarFisica(fisica);
+		} catch (SQLException e) {
+			cerrarFisica(fisica);
+		} finally {
+			permisos.release();
+		}
+	}
+
+	/**
+	 * Tarea periodica: cierra las conexiones inactivas que exceden el minimo y
+	 * superan el tiempo de inactividad, y abre conexiones hasta completar el
+	 * minimo.
+	 */
+	private void mantener() {
+		if (cerrado)
+			return;
+		long limite = System.currentTimeMillis() - tiempoInactividad;
+		Iterator<ConexionInactiva> it = inactivas.descendingIterator();
+		while (it.hasNext() && fisicas.get() > minimo) {
+			ConexionInactiva inactiva = it.next();
+			if (inactiva.desde < limite && inactivas.remove(inactiva))
+				cerrarFisica(inactiva.conexion);
+		}
+		try {
+			while (fisicas.get() < minimo && !cerrado)
+				inactivas.offerLast(new ConexionInactiva(abrirFisica()));
+		} catch (SQLException e) {
+			log.advertencia("mantener", "No se pudo abrir una conexion: {}", e.getMessage());
+		}
+	}
+
+	private void registrarEspera(long nanos) {
+		prestamos.incrementAndGet();
+		esperaTotalNanos.addAndGet(nanos);
+		long actual;
+		while (nanos > (actual = esperaMaximaNanos.get())) {
+			if (esperaMaximaNanos.compareAndSet(actual, nanos))
+				break;
+		}
+	}
+
+	/**
+	 * Envuelve la conexion fisica para que close() la devuelva al pool y
+	 * prepareStatement(sql) use la cache de sentencias de la conexion.
+	 */
+	private Connection envolver(final Connection fisica) {
+		final CacheSentencias cache = sentencias.get(fisica);
+		return (Connection) Proxy.newProxyInstance(
+				PoolConexiones.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+					private boolean devuelta;
+
+					public Object invoke(Object proxy, Method metodo,
+							Object[] args) throws Throwable {
+						String nombre = metodo.getName();
+						if ("close".equals(nombre)) {
+							if (!devuelta) {
+								devuelta = true;
+								devolver(fisica);
+							}
+							return null;
+						}
+						if ("equals".equals(nombre))
+							return Boolean.valueOf(proxy == args[0]);
+						if ("hashCode".equals(nombre))
+							return Integer.valueOf(System.identityHashCode(proxy));
+						if ("isClosed".equals(nombre))
+							return Boolean.valueOf(devuelta || fisica.isClosed());
+						if (devuelta)
+							throw new SQLException("La conexion ya fue devuelta al pool.");
+						if (cache != null && "prepareStatement".equals(nombre)
+								&& args.length == 1)
+							return cache.preparar(fisica, (Connection) proxy, (String) args[0]);
+						try {
+							return metodo.invoke(fisica, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Cierra todas las conexiones inactivas y detiene el mantenimiento. Las
+	 * conexiones prestadas se cierran cuando son devueltas.
+	 */
+	public void cerrar() {
+		cerrado = true;
+		mantenimiento.shutdownNow();
+		ConexionInactiva inactiva;
+		while ((inactiva = inactivas.pollFirst()) != null)
+			cerrarFisica(inactiva.conexion);
+	}
+
+	// ESTADISTICAS:
+
+	/**
+	 * @return numero de conexiones prestadas en este momento.
+	 */
+	public int getActivas() {
+		return activas.get();
+	}
+
+	/**
+	 * @return numero de conexiones abiertas disponibles en el pool.
+	 */
+	public int getInactivas() {
+		return inactivas.size();
+	}
+
+	/**
+	 * @return numero de hilos esperando una conexion.
+	 */
+	public int getEsperando() {
+		return esperando.get();
+	}
+
+	/**
+	 * @return numero total de conexiones prestadas desde que se creo el pool.
+	 */
+	public long getPrestamos() {
+		return prestamos.get();
+	}
+
+	/**
+	 * @return tiempo promedio (milisegundos) para obtener una conexion.
+	 */
+	public double getEsperaPromedioMs() {
+		long n = prestamos.get();
+		return n == 0 ? 0 : esperaTotalNanos.get() / (n * 1000000.0);
+	}
+
+	/**
+	 * @return tiempo maximo (milisegundos) que se espero por una conexion.
+	 */
+	public double getEsperaMaximaMs() {
+		return esperaMaximaNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * @return numero de solicitudes que no obtuvieron conexion a tiempo.
+	 */
+	public long getTiemposAgotados() {
+		return tiemposAgotados.get();
+	}
+
+	/**
+	 * @return numero de conexiones descartadas por no pasar la validacion.
+	 */
+	public long getConexionesInvalidas() {
+		return conexionesInvalidas.get();
+	}
+
+	/**
+	 * @return numero de sentencias preparadas tomadas de la cache.
+	 */
+	public long getSentenciasReutilizadas() {
+		return sentenciasReutilizadas.get();
+	}
+
+	/**
+	 * @return numero de sentencias preparadas en el driver (no estaban en la
+	 *         cache).
+	 */
+	public long getSentenciasPreparadas() {
+		return sentenciasPreparadas.get();
+	}
+
+	public int getMinimo() {
+		return minimo;
+	}
+
+	public int getMaximo() {
+		return maximo;
+	}
+
+	@Override
+	public String toString() {
+		return "PoolConexiones[activas=" + getActivas() + ", inactivas="
+				+ getInactivas() + ", esperando=" + getEsperando()
+				+ ", prestamos=" + getPrestamos() + ", esperaPromedioMs="
+				+ String.format("%.3f", getEsperaPromedioMs())
+				+ ", esperaMaximaMs="
+				+ String.format("%.3f", getEsperaMaximaMs())
+				+ ", tiemposAgotados=" + getTiemposAgotados()
+				+ ", sentenciasReutilizadas=" + getSentenciasReutilizadas()
+				+ ", sentenciasPreparadas=" + getSentenciasPreparadas() + "]";
+	}
+
+	// METODOS DE javax.sql.DataSource SIN SOPORTE ESPECIAL:
+
+	public PrintWriter getLogWriter() throws SQLException {
+		return DriverManager.getLogWriter();
+	}
+
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		DriverManager.setLogWriter(out);
+	}
+
+	public void setLoginTimeout(int seconds) throws SQLException {
+		DriverManager.setLoginTimeout(seconds);
+	}
+
+	public int getLoginTimeout() throws SQLException {
+		return DriverManager.getLoginTimeout();
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this))
+			return iface.cast(this);
+		throw new SQLException("No es un wrapper de " + iface.getName());
+	}
+
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this);
+	}
+
+}
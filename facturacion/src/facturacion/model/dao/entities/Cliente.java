@@ -10,7 +10,10 @@ import java.util.List;
  * 
  */
 @Entity
-@NamedQuery(name="Cliente.findAll", query="SELECT c FROM Cliente c")
+@NamedQueries({
+	@NamedQuery(name="Cliente.findAll", query="SELECT c FROM Cliente c"),
+	@NamedQuery(name="Cliente.findAllOrdenado", query="SELECT c FROM Cliente c ORDER BY c.apellidos")
+})
 public class Cliente implements Serializable {
 	private static final long serialVersionUID = 1L;
 
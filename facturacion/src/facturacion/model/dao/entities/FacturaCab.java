@@ -13,7 +13,13 @@ import java.util.List;
  */
 @Entity
 @Table(name="factura_cab")
-@NamedQuery(name="FacturaCab.findAll", query="SELECT f FROM FacturaCab f")
+@NamedQueries({
+	@NamedQuery(name="FacturaCab.findAll", query="SELECT f FROM FacturaCab f"),
+	@NamedQuery(name="FacturaCab.findAllOrdenado",
+			query="SELECT f FROM FacturaCab f ORDER BY f.fechaEmision DESC, f.numeroFactura DESC"),
+	@NamedQuery(name="FacturaCab.findByCliente",
+			query="SELECT f FROM FacturaCab f WHERE f.cliente.cedulaCliente = :cedula ORDER BY f.numeroFactura")
+})
 public class FacturaCab implements Serializable {
 	private static final long serialVersionUID = 1L;
 
@@ -44,6 +50,13 @@ public class FacturaCab implements Serializable {
 	@OneToMany(mappedBy="facturaCab",cascade=CascadeType.PERSIST)
 	private List<FacturaDet> facturaDets;
 
+	//acumuladores en centavos para el calculo incremental de totales (no se guardan en la bdd):
+	@Transient
+	private long subtotalCentavos;
+
+	@Transient
+	private long baseCeroCentavos;
+
 	public FacturaCab() {
 	}
 
@@ -111,6 +124,22 @@ public class FacturaCab implements Serializable {
 		this.facturaDets = facturaDets;
 	}
 
+	public long getSubtotalCentavos() {
+		return this.subtotalCentavos;
+	}
+
+	public void setSubtotalCentavos(long subtotalCentavos) {
+		this.subtotalCentavos = subtotalCentavos;
+	}
+
+	public long getBaseCeroCentavos() {
+		return this.baseCeroCentavos;
+	}
+
+	public void setBaseCeroCentavos(long baseCeroCentavos) {
+		this.baseCeroCentavos = baseCeroCentavos;
+	}
+
 	public FacturaDet addFacturaDet(FacturaDet facturaDet) {
 		getFacturaDets().add(facturaDet);
 		facturaDet.setFacturaCab(this);
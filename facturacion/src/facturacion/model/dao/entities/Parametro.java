@@ -3,13 +3,19 @@ package facturacion.model.dao.entities;
 import java.io.Serializable;
 import javax.persistence.*;
 
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
 
 /**
  * The persistent class for the parametro database table.
  * 
  */
 @Entity
-@NamedQuery(name="Parametro.findAll", query="SELECT p FROM Parametro p")
+//los parametros solo cambian fuera de la aplicacion: la consulta siempre
+//refresca la cache compartida (ver RegistroParametros.recargar()).
+@NamedQuery(name="Parametro.findAll", query="SELECT p FROM Parametro p",
+	hints=@QueryHint(name=QueryHints.REFRESH, value=HintValues.TRUE))
 public class Parametro implements Serializable {
 	private static final long serialVersionUID = 1L;
 
@@ -11,7 +11,11 @@ import java.util.List;
  * 
  */
 @Entity
-@NamedQuery(name="Producto.findAll", query="SELECT p FROM Producto p")
+@NamedQueries({
+	@NamedQuery(name="Producto.findAll", query="SELECT p FROM Producto p"),
+	@NamedQuery(name="Producto.findAllOrdenado", query="SELECT p FROM Producto p ORDER BY p.nombre"),
+	@NamedQuery(name="Producto.findExistencia", query="SELECT p.existencia FROM Producto p WHERE p.codigoProducto = :codigo")
+})
 public class Producto implements Serializable {
 	private static final long serialVersionUID = 1L;
 
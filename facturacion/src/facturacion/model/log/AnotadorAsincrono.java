@@ -0,0 +1,136 @@
+package facturacion.model.log;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Escritor asincrono de la {@link Bitacora}. Los mensajes se encolan en una
+ * cola acotada y un hilo de fondo los escribe por bloques en la salida.
+ * Si la cola esta llena, los mensajes de depuracion, informacion y
+ * advertencia se descartan (y se informa cuantos); los de error se escriben
+ * directamente en System.err para no perderlos.
+ * @author mrea
+ *
+ */
+class AnotadorAsincrono implements Runnable {
+	private static final int TAMANIO_BLOQUE=256;
+
+	private final BlockingQueue<Registro> cola;
+	private final PrintStream salida;
+	private final SimpleDateFormat formatoFecha=new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	private final AtomicLong escritos=new AtomicLong();
+	private final AtomicLong descartados=new AtomicLong();
+	private long descartadosInformados;
+
+	/**
+	 * Mensaje ya formateado; la fecha se formatea en el hilo de escritura.
+	 */
+	static class Registro{
+		private final long tiempo;
+		private final Nivel nivel;
+		private final String texto;
+		Registro(Nivel nivel,String texto){
+			this.tiempo=System.currentTimeMillis();
+			this.nivel=nivel;
+			this.texto=texto;
+		}
+	}
+
+	/**
+	 * Crea el anotador e inicia su hilo de escritura (daemon). Al terminar la
+	 * JVM se escriben los mensajes pendientes.
+	 * @param capacidad numero maximo de mensajes en espera.
+	 * @param salida destino de los mensajes.
+	 */
+	AnotadorAsincrono(int capacidad,PrintStream salida){
+		this.cola=new ArrayBlockingQueue<Registro>(Math.max(1, capacidad));
+		this.salida=salida;
+		Thread hilo=new Thread(this, "facturacion-bitacora");
+		hilo.setDaemon(true);
+		hilo.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("facturacion-bitacora-cierre"){
+			@Override
+			public void run(){
+				vaciar();
+			}
+		});
+	}
+
+	/**
+	 * Encola un mensaje sin bloquear al hilo que lo genera.
+	 * @param registro mensaje a escribir.
+	 */
+	void anotar(Registro registro){
+		if(cola.offer(registro))
+			return;
+		if(registro.nivel==Nivel.ERROR){
+			synchronized(this){
+				System.err.println(formatear(registro));
+			}
+		}else
+			descartados.incrementAndGet();
+	}
+
+	public void run(){
+		List<Registro> bloque=new ArrayList<Registro>(TAMANIO_BLOQUE);
+		while(true){
+			try{
+				bloque.add(cola.take());
+			}catch(InterruptedException e){
+				return;
+			}
+			cola.drainTo(bloque, TAMANIO_BLOQUE-1);
+			escribir(bloque);
+			bloque.clear();
+		}
+	}
+
+	/**
+	 * Escribe todos los mensajes pendientes en el hilo actual.
+	 */
+	void vaciar(){
+		List<Registro> bloque=new ArrayList<Registro>();
+		cola.drainTo(bloque);
+		escribir(bloque);
+	}
+
+	private synchronized void escribir(List<Registro> bloque){
+		StringBuilder sb=new StringBuilder(bloque.size()*120);
+		long d=descartados.get();
+		if(d>descartadosInformados){
+			sb.append(formatoFecha.format(new Date())).append(" ADVERTENCIA [Bitacora]: ")
+				.append(d-descartadosInformados).append(" mensajes descartados (cola llena)\n");
+			descartadosInformados=d;
+		}
+		for(Registro r:bloque)
+			sb.append(formatear(r)).append('\n');
+		if(sb.length()>0){
+			salida.print(sb);
+			salida.flush();
+		}
+		escritos.addAndGet(bloque.size());
+	}
+
+	private String formatear(Registro r){
+		return formatoFecha.format(new Date(r.tiempo))+" "+r.nivel+" "+r.texto;
+	}
+
+	long getEscritos(){
+		return escritos.get();
+	}
+
+	long getDescartados(){
+		return descartados.get();
+	}
+
+	int getPendientes(){
+		return cola.size();
+	}
+
+}
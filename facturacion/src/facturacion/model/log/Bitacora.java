@@ -0,0 +1,218 @@
+package facturacion.model.log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bitacora (log) de la aplicacion, con niveles y escritura asincrona.
+ * Cada mensaje se identifica con la clase y el metodo que lo genera:
+ * <pre>
+ * 2015-01-01 10:00:00.000 INFORMACION [ManagerDAO/findAll]: Producto
+ * </pre>
+ * Los mensajes se escriben con patrones, en los que cada {} se reemplaza por
+ * el siguiente argumento:
+ * <pre>
+ * log.depuracion("findById", "{} : {}", clase.getSimpleName(), pID);
+ * </pre>
+ * El texto solo se construye si el nivel esta habilitado, por lo que un
+ * mensaje deshabilitado cuesta una comparacion. Los argumentos se convierten a
+ * texto en el hilo que llama (las entidades no pueden compartirse entre
+ * hilos); la escritura la hace {@link AnotadorAsincrono} en segundo plano.
+ * El nivel se configura con la propiedad facturacion.log.nivel (de la JVM o
+ * de persistence.xml; la de la JVM tiene prioridad).
+ * @author mrea
+ *
+ */
+public final class Bitacora {
+	public static final String PROP_NIVEL="facturacion.log.nivel";
+	public static final String PROP_CAPACIDAD="facturacion.log.capacidad";
+
+	private static final ConcurrentHashMap<String,Bitacora> bitacoras=new ConcurrentHashMap<String,Bitacora>();
+	private static final boolean nivelJVM=System.getProperty(PROP_NIVEL)!=null;
+	private static volatile int nivelMinimo=Nivel.valorDe(System.getProperty(PROP_NIVEL), Nivel.INFORMACION).ordinal();
+	private static int capacidad=Integer.getInteger(PROP_CAPACIDAD, 10000).intValue();
+	private static volatile AnotadorAsincrono anotador;
+
+	private final String nombre;
+
+	private Bitacora(String nombre){
+		this.nombre=nombre;
+	}
+
+	/**
+	 * Devuelve la bitacora de una clase.
+	 * @param clase clase que genera los mensajes.
+	 * @return la bitacora de la clase.
+	 */
+	public static Bitacora getBitacora(Class<?> clase){
+		String nombre=clase.getSimpleName();
+		Bitacora b=bitacoras.get(nombre);
+		if(b==null){
+			bitacoras.putIfAbsent(nombre, new Bitacora(nombre));
+			b=bitacoras.get(nombre);
+		}
+		return b;
+	}
+
+	/**
+	 * Aplica la configuracion de la unidad de persistencia. El nivel se ignora
+	 * si fue definido como propiedad de la JVM; la capacidad solo se aplica si
+	 * todavia no se ha escrito ningun mensaje.
+	 * @param nivel nombre del nivel minimo (puede ser null).
+	 * @param capacidadCola numero maximo de mensajes en espera de escritura.
+	 */
+	public static synchronized void configurar(String nivel,int capacidadCola){
+		if(!nivelJVM)
+			nivelMinimo=Nivel.valorDe(nivel, Nivel.values()[nivelMinimo]).ordinal();
+		if(anotador==null&&capacidadCola>0)
+			capacidad=capacidadCola;
+	}
+
+	/**
+	 * @param nivel nuevo nivel minimo de los mensajes registrados.
+	 */
+	public static void setNivel(Nivel nivel){
+		nivelMinimo=nivel.ordinal();
+	}
+
+	public static Nivel getNivel(){
+		return Nivel.values()[nivelMinimo];
+	}
+
+	/**
+	 * Escribe los mensajes pendientes en el hilo actual.
+	 */
+	public static void vaciar(){
+		AnotadorAsincrono a=getAnotadorCreado();
+		if(a!=null)
+			a.vaciar();
+	}
+
+	/**
+	 * @return estadisticas de escritura de la bitacora.
+	 */
+	public static String getEstadisticas(){
+		AnotadorAsincrono a=getAnotadorCreado();
+		return "Bitacora[nivel="+getNivel()+(a==null?"":", escritos="+a.getEscritos()
+				+", descartados="+a.getDescartados()+", pendientes="+a.getPendientes())+"]";
+	}
+
+	public boolean isHabilitado(Nivel nivel){
+		return nivel.ordinal()>=nivelMinimo;
+	}
+
+	public boolean isDepuracion(){
+		return nivelMinimo==0;
+	}
+
+	// DEPURACION: sobrecargas sin varargs para no crear arreglos cuando el nivel esta deshabilitado.
+
+	public void depuracion(String metodo,String mensaje){
+		if(nivelMinimo==0)
+			registrar(Nivel.DEPURACION, metodo, mensaje, null, null);
+	}
+
+	public void depuracion(String metodo,String patron,Object arg){
+		if(nivelMinimo==0)
+			registrar(Nivel.DEPURACION, metodo, patron, new Object[]{arg}, null);
+	}
+
+	public void depuracion(String metodo,String patron,Object arg1,Object arg2){
+		if(nivelMinimo==0)
+			registrar(Nivel.DEPURACION, metodo, patron, new Object[]{arg1,arg2}, null);
+	}
+
+	public void depuracion(String metodo,String patron,Object... args){
+		if(nivelMinimo==0)
+			registrar(Nivel.DEPURACION, metodo, patron, args, null);
+	}
+
+	// INFORMACION:
+
+	public void informacion(String metodo,String mensaje){
+		if(isHabilitado(Nivel.INFORMACION))
+			registrar(Nivel.INFORMACION, metodo, mensaje, null, null);
+	}
+
+	public void informacion(String metodo,String patron,Object... args){
+		if(isHabilitado(Nivel.INFORMACION))
+			registrar(Nivel.INFORMACION, metodo, patron, args, null);
+	}
+
+	// ADVERTENCIA:
+
+	public void advertencia(String metodo,String mensaje){
+		if(isHabilitado(Nivel.ADVERTENCIA))
+			registrar(Nivel.ADVERTENCIA, metodo, mensaje, null, null);
+	}
+
+	public void advertencia(String metodo,String patron,Object... args){
+		if(isHabilitado(Nivel.ADVERTENCIA))
+			registrar(Nivel.ADVERTENCIA, metodo, patron, args, null);
+	}
+
+	// ERROR:
+
+	public void error(String metodo,String mensaje){
+		if(isHabilitado(Nivel.ERROR))
+			registrar(Nivel.ERROR, metodo, mensaje, null, null);
+	}
+
+	public void error(String metodo,String mensaje,Throwable t){
+		if(isHabilitado(Nivel.ERROR))
+			registrar(Nivel.ERROR, metodo, mensaje, null, t);
+	}
+
+	private void registrar(Nivel nivel,String metodo,String patron,Object[] args,Throwable t){
+		StringBuilder sb=new StringBuilder(64+patron.length());
+		sb.append('[').append(nombre).append('/').append(metodo).append("]: ");
+		formatear(sb, patron, args);
+		if(t!=null){
+			StringWriter sw=new StringWriter();
+			t.printStackTrace(new PrintWriter(sw));
+			sb.append('\n').append(sw.toString().trim());
+		}
+		getAnotador().anotar(new AnotadorAsincrono.Registro(nivel, sb.toString()));
+	}
+
+	/**
+	 * Reemplaza cada {} del patron por el siguiente argumento; los arreglos se
+	 * muestran con sus elementos.
+	 */
+	static void formatear(StringBuilder sb,String patron,Object[] args){
+		if(args==null||args.length==0){
+			sb.append(patron);
+			return;
+		}
+		int desde=0,i=0,pos;
+		while(i<args.length&&(pos=patron.indexOf("{}", desde))>=0){
+			sb.append(patron, desde, pos);
+			Object arg=args[i++];
+			if(arg instanceof Object[])
+				sb.append(Arrays.deepToString((Object[])arg));
+			else
+				sb.append(arg);
+			desde=pos+2;
+		}
+		sb.append(patron, desde, patron.length());
+	}
+
+	private static AnotadorAsincrono getAnotador(){
+		AnotadorAsincrono a=anotador;
+		if(a==null){
+			synchronized(Bitacora.class){
+				if(anotador==null)
+					anotador=new AnotadorAsincrono(capacidad, System.out);
+				a=anotador;
+			}
+		}
+		return a;
+	}
+
+	private static AnotadorAsincrono getAnotadorCreado(){
+		return anotador;
+	}
+
+}
@@ -0,0 +1,39 @@
+package facturacion.model.log;
+
+/**
+ * Niveles de la {@link Bitacora}, de menor a mayor severidad.
+ * @author mrea
+ *
+ */
+public enum Nivel {
+	DEPURACION,
+	INFORMACION,
+	ADVERTENCIA,
+	ERROR,
+	/** no se registra ningun mensaje. */
+	NINGUNO;
+
+	/**
+	 * Convierte un texto (ej. "informacion", "DEBUG") en un nivel.
+	 * @param texto nombre del nivel; se aceptan tambien DEBUG, INFO y WARN.
+	 * @param valorDefecto nivel que se devuelve si el texto es nulo o no es valido.
+	 * @return el nivel correspondiente.
+	 */
+	public static Nivel valorDe(String texto,Nivel valorDefecto){
+		if(texto==null||texto.trim().length()==0)
+			return valorDefecto;
+		String t=texto.trim().toUpperCase();
+		if(t.equals("DEBUG"))
+			return DEPURACION;
+		if(t.equals("INFO"))
+			return INFORMACION;
+		if(t.equals("WARN"))
+			return ADVERTENCIA;
+		try{
+			return valueOf(t);
+		}catch(IllegalArgumentException e){
+			return valorDefecto;
+		}
+	}
+
+}
@@ -0,0 +1,208 @@
+package facturacion.model.manager;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import facturacion.model.dao.entities.Producto;
+
+/**
+ * Cache en memoria del catalogo de productos, compartido por todas las
+ * sesiones. Guarda los productos por codigoProducto con un limite de tamaño
+ * (se desaloja el menos usado recientemente) y un tiempo de vida, ademas del
+ * listado completo ordenado por nombre.
+ * {@link ManagerFacturacion} la invalida cada vez que inserta, actualiza o
+ * elimina un producto.
+ * Los productos de la cache son compartidos y no deben modificarse.
+ * @author mrea
+ *
+ */
+public class CacheProductos {
+	public static final String PROP_MAXIMO="facturacion.cache.productos.maximo";
+	public static final String PROP_TTL="facturacion.cache.productos.ttl";
+
+	private static CacheProductos instancia;
+
+	private final int maximo;
+	private final long ttl;
+	private final LinkedHashMap<Integer,Entrada> productos;
+	private List<Producto> listado;
+	private long listadoDesde;
+	private long version;
+
+	private final AtomicLong aciertos=new AtomicLong();
+	private final AtomicLong fallos=new AtomicLong();
+	private final AtomicLong desalojos=new AtomicLong();
+	private final AtomicLong invalidaciones=new AtomicLong();
+
+	private static class Entrada{
+		private final Producto producto;
+		private final long desde;
+		private Entrada(Producto producto){
+			this.producto=producto;
+			this.desde=System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Devuelve la cache de productos de la aplicacion, configurada con las
+	 * propiedades facturacion.cache.productos.* de persistence.xml.
+	 * @return la cache de productos.
+	 */
+	public static synchronized CacheProductos getInstancia(){
+		if(instancia==null)
+			instancia=new CacheProductos(ManagerDAO.getPropiedad(PROP_MAXIMO, 10000),
+					ManagerDAO.getPropiedad(PROP_TTL, 300000));
+		return instancia;
+	}
+
+	/**
+	 * Constructor de la cache.
+	 * @param maximo numero maximo de productos guardados.
+	 * @param ttl tiempo de vida (milisegundos) de cada producto y del listado.
+	 */
+	@SuppressWarnings("serial")
+	public CacheProductos(final int maximo,long ttl){
+		this.maximo=Math.max(1, maximo);
+		this.ttl=ttl;
+		productos=new LinkedHashMap<Integer,Entrada>(16,0.75f,true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer,Entrada> eldest){
+				if(size()>CacheProductos.this.maximo){
+					desalojos.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Busca un producto en la cache.
+	 * @param codigoProducto codigo del producto.
+	 * @return el producto, o null si no esta en la cache o expiro.
+	 */
+	public synchronized Producto get(Integer codigoProducto){
+		Entrada e=productos.get(codigoProducto);
+		if(e!=null&&!expirado(e.desde)){
+			aciertos.incrementAndGet();
+			return e.producto;
+		}
+		if(e!=null)
+			productos.remove(codigoProducto);
+		fallos.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Guarda un producto leido de la base de datos.
+	 * @param producto producto a guardar.
+	 * @param versionLectura valor de {@link #getVersion()} antes de leer el
+	 * producto; si hubo una invalidacion mientras tanto, el producto no se guarda.
+	 */
+	public synchronized void put(Producto producto,long versionLectura){
+		if(producto!=null&&versionLectura==version)
+			productos.put(producto.getCodigoProducto(), new Entrada(producto));
+	}
+
+	/**
+	 * Devuelve el listado completo de productos ordenado por nombre.
+	 * @return el listado (no modificable), o null si no esta en la cache o expiro.
+	 */
+	public synchronized List<Producto> getListado(){
+		if(listado!=null&&!expirado(listadoDesde)){
+			aciertos.incrementAndGet();
+			return listado;
+		}
+		listado=null;
+		fallos.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Guarda el listado completo de productos, y cada producto por su codigo.
+	 * @param lista listado leido de la base de datos.
+	 * @param versionLectura valor de {@link #getVersion()} antes de leer el listado.
+	 */
+	public synchronized void putListado(List<Producto> lista,long versionLectura){
+		if(lista==null||versionLectura!=version)
+			return;
+		listado=Collections.unmodifiableList(lista);
+		listadoDesde=System.currentTimeMillis();
+		for(Producto p:lista)
+			if(productos.size()<maximo)
+				productos.put(p.getCodigoProducto(), new Entrada(p));
+	}
+
+	/**
+	 * Descarta un producto y el listado, luego de una modificacion.
+	 * @param codigoProducto codigo del producto modificado.
+	 */
+	public synchronized void invalidar(Integer codigoProducto){
+		version++;
+		invalidaciones.incrementAndGet();
+		productos.remove(codigoProducto);
+		listado=null;
+	}
+
+	/**
+	 * Descarta todo el contenido de la cache.
+	 */
+	public synchronized void invalidarTodo(){
+		version++;
+		invalidaciones.incrementAndGet();
+		productos.clear();
+		listado=null;
+	}
+
+	/**
+	 * @return contador que cambia con cada invalidacion.
+	 */
+	public synchronized long getVersion(){
+		return version;
+	}
+
+	private boolean expirado(long desde){
+		return ttl>0&&System.currentTimeMillis()-desde>ttl;
+	}
+
+	// ESTADISTICAS:
+
+	public long getAciertos(){
+		return aciertos.get();
+	}
+
+	public long getFallos(){
+		return fallos.get();
+	}
+
+	public long getDesalojos(){
+		return desalojos.get();
+	}
+
+	public long getInvalidaciones(){
+		return invalidaciones.get();
+	}
+
+	public synchronized int getTamanio(){
+		return productos.size();
+	}
+
+	/**
+	 * @return porcentaje de consultas atendidas desde la cache.
+	 */
+	public double getPorcentajeAciertos(){
+		long a=aciertos.get(), total=a+fallos.get();
+		return total==0?0:a*100.0/total;
+	}
+
+	@Override
+	public String toString(){
+		return "CacheProductos[tamanio="+getTamanio()+", aciertos="+getAciertos()
+				+", fallos="+getFallos()+", desalojos="+getDesalojos()
+				+", invalidaciones="+getInvalidaciones()+"]";
+	}
+
+}
@@ -0,0 +1,137 @@
+package facturacion.model.manager;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.FacturaDet;
+
+/**
+ * Calculo de totales de una factura con aritmetica exacta en centavos (long).
+ * Los acumuladores de la factura (subtotal y base cero en centavos) se
+ * actualizan en tiempo constante al agregar o quitar un detalle; el IVA y el
+ * total se derivan de ellos.
+ * Reglas de redondeo (HALF_UP):
+ * <ul>
+ * <li>el subtotal de cada linea (cantidad * precio unitario) se redondea a centavos.</li>
+ * <li>el IVA se calcula una sola vez sobre la base gravada y se redondea a centavos.</li>
+ * </ul>
+ * Los productos con tieneImpuesto igual a "N" suman a la base cero; los demas
+ * a la base gravada.
+ * @author mrea
+ *
+ */
+public final class CalculadoraTotales {
+	/** escala interna de los precios unitarios (diezmilesimas). */
+	private static final int ESCALA_PRECIO=4;
+	private static final long FACTOR_PRECIO_CENTAVOS=100;
+	/** el porcentaje se maneja en centesimas de punto: 12% = 1200. */
+	private static final long FACTOR_PORCENTAJE=10000;
+
+	private CalculadoraTotales(){
+	}
+
+	/**
+	 * Suma un detalle a los acumuladores de la factura y actualiza sus totales.
+	 * @param factura factura a actualizar.
+	 * @param det detalle agregado.
+	 * @param porcentajeIVA porcentaje de IVA en centesimas (ver {@link #porcentajeACentesimas(BigDecimal)}).
+	 */
+	public static void agregarDetalle(FacturaCab factura,FacturaDet det,long porcentajeIVA){
+		long valor=valorLinea(det);
+		factura.setSubtotalCentavos(factura.getSubtotalCentavos()+valor);
+		if(esBaseCero(det))
+			factura.setBaseCeroCentavos(factura.getBaseCeroCentavos()+valor);
+		actualizarTotales(factura, porcentajeIVA);
+	}
+
+	/**
+	 * Resta un detalle de los acumuladores de la factura y actualiza sus totales.
+	 * @param factura factura a actualizar.
+	 * @param det detalle quitado.
+	 * @param porcentajeIVA porcentaje de IVA en centesimas.
+	 */
+	public static void quitarDetalle(FacturaCab factura,FacturaDet det,long porcentajeIVA){
+		long valor=valorLinea(det);
+		factura.setSubtotalCentavos(factura.getSubtotalCentavos()-valor);
+		if(esBaseCero(det))
+			factura.setBaseCeroCentavos(factura.getBaseCeroCentavos()-valor);
+		actualizarTotales(factura, porcentajeIVA);
+	}
+
+	/**
+	 * Vuelve a calcular los acumuladores recorriendo todos los detalles de la
+	 * factura, y actualiza sus totales.
+	 * @param factura factura a calcular.
+	 * @param porcentajeIVA porcentaje de IVA en centesimas.
+	 */
+	public static void recalcular(FacturaCab factura,long porcentajeIVA){
+		long subtotal=0,baseCero=0;
+		if(factura.getFacturaDets()!=null){
+			for(FacturaDet det:factura.getFacturaDets()){
+				long valor=valorLinea(det);
+				subtotal+=valor;
+				if(esBaseCero(det))
+					baseCero+=valor;
+			}
+		}
+		factura.setSubtotalCentavos(subtotal);
+		factura.setBaseCeroCentavos(baseCero);
+		actualizarTotales(factura, porcentajeIVA);
+	}
+
+	/**
+	 * Convierte un porcentaje (ej. 12 o 12.5) a centesimas de punto (1200, 1250).
+	 * @param porcentaje porcentaje decimal.
+	 * @return porcentaje en centesimas.
+	 */
+	public static long porcentajeACentesimas(BigDecimal porcentaje){
+		return porcentaje.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
+	}
+
+	/**
+	 * Calcula el subtotal de una linea en centavos: cantidad * precio unitario,
+	 * redondeado a centavos.
+	 * @param det detalle de factura.
+	 * @return subtotal de la linea en centavos.
+	 */
+	public static long valorLinea(FacturaDet det){
+		return valorLinea(det.getPrecioUnitarioVenta(), det.getCantidad().intValue());
+	}
+
+	/**
+	 * @param precioUnitario precio unitario de venta.
+	 * @param cantidad unidades vendidas.
+	 * @return subtotal de la linea en centavos, igual que {@link #valorLinea(FacturaDet)}.
+	 */
+	static long valorLinea(BigDecimal precioUnitario,int cantidad){
+		long precio=precioUnitario.setScale(ESCALA_PRECIO, RoundingMode.HALF_UP).unscaledValue().longValue();
+		return dividirRedondeando(precio*cantidad, FACTOR_PRECIO_CENTAVOS);
+	}
+
+	/**
+	 * @return true si el producto del detalle no paga IVA (suma a la base cero).
+	 */
+	static boolean esBaseCero(FacturaDet det){
+		return det.getProducto()!=null&&"N".equalsIgnoreCase(det.getProducto().getTieneImpuesto());
+	}
+
+	private static void actualizarTotales(FacturaCab factura,long porcentajeIVA){
+		long subtotal=factura.getSubtotalCentavos();
+		long baseCero=factura.getBaseCeroCentavos();
+		long iva=dividirRedondeando((subtotal-baseCero)*porcentajeIVA, FACTOR_PORCENTAJE);
+		factura.setSubtotal(BigDecimal.valueOf(subtotal, 2));
+		factura.setBaseCero(BigDecimal.valueOf(baseCero, 2));
+		factura.setValorIva(BigDecimal.valueOf(iva, 2));
+		factura.setTotal(BigDecimal.valueOf(subtotal+iva, 2));
+	}
+
+	/**
+	 * Division entera con redondeo HALF_UP (alejandose de cero en los empates).
+	 */
+	static long dividirRedondeando(long dividendo,long divisor){
+		long mitad=divisor/2;
+		return dividendo>=0?(dividendo+mitad)/divisor:-((-dividendo+mitad)/divisor);
+	}
+
+}
@@ -0,0 +1,611 @@
+package facturacion.model.manager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import facturacion.model.dao.entities.Cliente;
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.FacturaDet;
+import facturacion.model.dao.entities.Producto;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Diario local de facturas para el guardado asincrono: la factura se escribe
+ * en un archivo del disco (con fsync) y se responde de inmediato con un
+ * ticket; hilos de fondo la guardan luego en la base de datos, reintentando
+ * mientras falle, de modo que una caida de la base de datos no detiene a los
+ * cajeros.
+ * <ul>
+ * <li>El diario son archivos diario-N.log en facturacion.diario.directorio,
+ * con un registro por linea y su CRC32: F (factura recibida: fecha, cliente y
+ * detalles con su precio), N (numero asignado), G (guardada) y R (rechazada).</li>
+ * <li>Los fsync de los cajeros que registran facturas al mismo tiempo se
+ * agrupan: un solo fsync cubre todo lo escrito hasta ese momento.</li>
+ * <li>El numero de la factura se reserva y se escribe en el diario antes de
+ * insertarla; asi, si la aplicacion cae justo despues del commit, al
+ * recuperarse se verifica si ese numero ya existe en lugar de guardarla dos
+ * veces. En numeracion estricta el numero se confirma en su propia
+ * transaccion (no queda hueco, porque la factura se reintenta hasta
+ * guardarse).</li>
+ * <li>La existencia se descuenta al guardar la factura en la base de datos,
+ * no al recibirla. Una factura que se rechaza (ver {@link FacturaRechazada},
+ * por ejemplo porque la existencia ya no alcanza) no se reintenta: su ticket
+ * queda {@link TicketFactura#RECHAZADA} y la existencia no cambia (en
+ * numeracion estricta su numero queda como hueco).</li>
+ * <li>Al iniciar se leen todos los archivos, las facturas no guardadas se
+ * copian a un archivo nuevo y los anteriores se borran. Durante la ejecucion
+ * se cambia de archivo cada facturacion.diario.segmento bytes y se borran los
+ * archivos antiguos que ya no tienen facturas pendientes.</li>
+ * </ul>
+ * Una factura cuyo fsync no termino nunca recibio su ticket, por lo que una
+ * ultima linea incompleta (CRC invalido) se descarta al recuperar.
+ * @author mrea
+ *
+ */
+public class DiarioFacturas implements Runnable {
+	public static final String PROP_ACTIVO="facturacion.diario.activo";
+	public static final String PROP_DIRECTORIO="facturacion.diario.directorio";
+	public static final String PROP_ESCRITORES="facturacion.diario.escritores";
+	public static final String PROP_REINTENTO="facturacion.diario.reintento";
+	public static final String PROP_SEGMENTO="facturacion.diario.segmento";
+
+	private static final Bitacora log=Bitacora.getBitacora(DiarioFacturas.class);
+	private static final String PREFIJO="diario-";
+	private static final String EXTENSION=".log";
+	private static final String CODIFICACION="UTF-8";
+	private static final long REINTENTO_MAXIMO=60000;
+	private static final int TICKETS_GUARDADOS=1000;
+
+	private static DiarioFacturas instancia;
+
+	private final File directorio;
+	private final int escritores;
+	private final long reintento;
+	private final long tamanioSegmento;
+	private final ManagerFacturacion managerFacturacion;
+	private final ManagerNumeracion managerNumeracion;
+	private final ManagerDAO managerDAO;
+
+	private final DelayQueue<Pendiente> cola=new DelayQueue<Pendiente>();
+	private final Map<String,Pendiente> pendientes=new ConcurrentHashMap<String,Pendiente>();
+	//ultimos tickets guardados, para consultar su estado:
+	private final Map<String,TicketFactura> guardados=new LinkedHashMap<String,TicketFactura>(){
+		private static final long serialVersionUID=1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,TicketFactura> e){
+			return size()>TICKETS_GUARDADOS;
+		}
+	};
+	private final AtomicLong secuencia=new AtomicLong(System.currentTimeMillis()*1000);
+
+	//archivo actual; numero de facturas pendientes de cada archivo (por su registro F):
+	private final TreeMap<Long,int[]> segmentos=new TreeMap<Long,int[]>();
+	private long segmentoActual;
+	private FileOutputStream salida;
+	private long tamanioActual;
+	private long escrito;
+	private final Object sincronizacion=new Object();
+	private long sincronizado;
+	private Thread[] hilos;
+
+	private final AtomicLong recibidas=new AtomicLong();
+	private final AtomicLong guardadas=new AtomicLong();
+	private final AtomicLong rechazadas=new AtomicLong();
+	private final AtomicLong fallos=new AtomicLong();
+	private final AtomicLong fsyncs=new AtomicLong();
+
+	/**
+	 * Factura del diario aun no guardada en la base de datos.
+	 */
+	static class Pendiente implements Delayed{
+		private final String ticket;
+		private final long fecha;
+		private final String cedula;
+		private final int[] productos;
+		private final int[] cantidades;
+		private final BigDecimal[] precios;
+		private long segmento;
+		private volatile long numero;
+		//un intento anterior pudo guardarla (se verifica el numero antes de insertar):
+		private boolean verificar;
+		private volatile int intentos;
+		private volatile String mensaje;
+		private long momento;
+
+		private Pendiente(String ticket,long fecha,String cedula,int[] productos,int[] cantidades,BigDecimal[] precios){
+			this.ticket=ticket;
+			this.fecha=fecha;
+			this.cedula=cedula;
+			this.productos=productos;
+			this.cantidades=cantidades;
+			this.precios=precios;
+			this.momento=System.currentTimeMillis();
+		}
+
+		public long getDelay(TimeUnit unidad){
+			return unidad.convert(momento-System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o){
+			long d=momento-((Pendiente)o).momento;
+			return d<0?-1:d>0?1:0;
+		}
+
+		TicketFactura getTicket(){
+			return new TicketFactura(ticket, TicketFactura.PENDIENTE, numero==0?null:Long.toString(numero),
+					new Date(fecha), intentos, mensaje);
+		}
+	}
+
+	/**
+	 * Devuelve el diario de la aplicacion, configurado con las propiedades
+	 * facturacion.diario.* de persistence.xml. La primera vez recupera las
+	 * facturas pendientes del directorio e inicia los hilos de escritura.
+	 * @return el diario de facturas.
+	 * @throws Exception si no se puede leer o escribir el directorio del diario.
+	 */
+	public static synchronized DiarioFacturas getInstancia() throws Exception{
+		if(instancia==null){
+			File directorio=new File(ManagerDAO.getPropiedad(PROP_DIRECTORIO,
+					System.getProperty("user.home")+File.separator+"facturacion"+File.separator+"diario"));
+			DiarioFacturas diario=new DiarioFacturas(directorio, ManagerDAO.getPropiedad(PROP_ESCRITORES, 2),
+					ManagerDAO.getPropiedad(PROP_REINTENTO, 1000), ManagerDAO.getPropiedad(PROP_SEGMENTO, 1048576));
+			diario.iniciar();
+			instancia=diario;
+		}
+		return instancia;
+	}
+
+	/**
+	 * Constructor del diario (sin recuperar ni iniciar los hilos, ver {@link #iniciar()}).
+	 * @param directorio directorio de los archivos del diario.
+	 * @param escritores numero de hilos que guardan facturas en la base de datos.
+	 * @param reintento espera (milisegundos) antes del primer reintento; se
+	 * duplica en cada fallo, hasta un minuto.
+	 * @param tamanioSegmento tamaño (bytes) a partir del cual se cambia de archivo.
+	 */
+	public DiarioFacturas(File directorio,int escritores,long reintento,long tamanioSegmento){
+		this.directorio=directorio;
+		this.escritores=Math.max(1, escritores);
+		this.reintento=Math.max(1, reintento);
+		this.tamanioSegmento=Math.max(1024, tamanioSegmento);
+		this.managerFacturacion=new ManagerFacturacion();
+		this.managerNumeracion=new ManagerNumeracion();
+		this.managerDAO=new ManagerDAO();
+		//la verificacion de facturas ya guardadas no puede leer de una replica atrasada:
+		this.managerDAO.setLecturasEnPrincipal(true);
+	}
+
+	/**
+	 * Recupera las facturas pendientes de los archivos del diario, las copia a
+	 * un archivo nuevo, borra los anteriores e inicia los hilos (daemon) que
+	 * las guardan en la base de datos.
+	 * @throws IOException si no se puede leer o escribir el directorio.
+	 */
+	public synchronized void iniciar() throws IOException{
+		if(hilos!=null)
+			return;
+		if(!directorio.isDirectory()&&!directorio.mkdirs())
+			throw new IOException("No se pudo crear el directorio del diario "+directorio+".");
+		TreeMap<Long,File> archivos=listarArchivos();
+		Map<String,Pendiente> recuperadas=new LinkedHashMap<String,Pendiente>();
+		for(File archivo:archivos.values()){
+			long ultimo=leer(archivo, recuperadas);
+			if(ultimo>secuencia.get())
+				secuencia.set(ultimo);
+		}
+		abrirSegmento(archivos.isEmpty()?1:archivos.lastKey().longValue()+1);
+		for(Pendiente p:recuperadas.values()){
+			escribirRegistro(registroFactura(p));
+			p.segmento=segmentoActual;
+			segmentos.get(Long.valueOf(p.segmento))[0]++;
+			if(p.numero!=0)
+				escribirRegistro("N|"+p.ticket+"|"+p.numero);
+			p.verificar=p.numero!=0;
+			pendientes.put(p.ticket, p);
+		}
+		salida.getChannel().force(false);
+		sincronizado=escrito;
+		for(File archivo:archivos.values())
+			if(!archivo.delete())
+				log.advertencia("iniciar", "No se pudo borrar el archivo {}", archivo);
+		for(Pendiente p:recuperadas.values())
+			cola.put(p);
+		log.informacion("iniciar", "Diario {}: {} facturas pendientes recuperadas", directorio, recuperadas.size());
+		hilos=new Thread[escritores];
+		for(int i=0;i<escritores;i++){
+			hilos[i]=new Thread(this, "facturacion-diario-"+(i+1));
+			hilos[i].setDaemon(true);
+			hilos[i].start();
+		}
+	}
+
+	/**
+	 * Registra una factura en el diario y espera a que llegue al disco. Desde
+	 * ese momento la factura no se pierde aunque la aplicacion caiga: se
+	 * guardara en la base de datos en segundo plano.
+	 * @param factura factura con cliente, detalles y fecha de emision.
+	 * @return el ticket para consultar el estado de la factura.
+	 * @throws Exception si la factura no se pudo escribir en el disco.
+	 */
+	public String registrar(FacturaCab factura) throws Exception{
+		List<FacturaDet> detalles=factura.getFacturaDets();
+		int[] productos=new int[detalles.size()];
+		int[] cantidades=new int[detalles.size()];
+		BigDecimal[] precios=new BigDecimal[detalles.size()];
+		for(int i=0;i<productos.length;i++){
+			FacturaDet det=detalles.get(i);
+			productos[i]=det.getProducto().getCodigoProducto().intValue();
+			cantidades[i]=det.getCantidad().intValue();
+			precios[i]=det.getPrecioUnitarioVenta();
+		}
+		String cedula=factura.getCliente().getCedulaCliente();
+		if(cedula.indexOf('|')>=0||cedula.indexOf('\n')>=0||cedula.indexOf('\r')>=0)
+			throw new Exception("La cedula del cliente "+cedula+" no es valida.");
+		String ticket=Long.toString(secuencia.incrementAndGet(), 36).toUpperCase();
+		Pendiente p=new Pendiente(ticket, factura.getFechaEmision().getTime(), cedula, productos, cantidades, precios);
+		long fin;
+		try{
+			synchronized(this){
+				fin=escribirRegistro(registroFactura(p));
+				p.segmento=segmentoActual;
+				segmentos.get(Long.valueOf(p.segmento))[0]++;
+			}
+			sincronizar(fin);
+		}catch(IOException e){
+			log.error("registrar", "No se pudo escribir la factura en el diario", e);
+			throw new Exception("No se pudo registrar la factura: "+e.getMessage());
+		}
+		pendientes.put(ticket, p);
+		cola.put(p);
+		recibidas.incrementAndGet();
+		return ticket;
+	}
+
+	/**
+	 * Consulta el estado de una factura registrada.
+	 * @param ticket ticket entregado por {@link #registrar(FacturaCab)}.
+	 * @return el estado de la factura, o null si el ticket no existe o es de
+	 * una factura guardada hace mucho.
+	 */
+	public TicketFactura consultar(String ticket){
+		Pendiente p=pendientes.get(ticket);
+		if(p!=null)
+			return p.getTicket();
+		synchronized(guardados){
+			return guardados.get(ticket);
+		}
+	}
+
+	public void run(){
+		while(true){
+			Pendiente p;
+			try{
+				p=cola.take();
+			}catch(InterruptedException e){
+				return;
+			}
+			String estado=TicketFactura.GUARDADA;
+			try{
+				guardar(p);
+			}catch(FacturaRechazada e){
+				estado=TicketFactura.RECHAZADA;
+				p.mensaje=e.getMessage();
+				log.advertencia("run", "Se rechazo la factura del ticket {}: {}", p.ticket, e.getMessage());
+			}catch(Exception e){
+				p.intentos++;
+				p.mensaje=e.getMessage();
+				fallos.incrementAndGet();
+				long espera=Math.min(REINTENTO_MAXIMO, reintento<<Math.min(p.intentos-1, 16));
+				log.advertencia("run", "No se pudo guardar la factura del ticket {} (intento {}), se reintenta en {} ms: {}",
+						p.ticket, p.intentos, espera, e.getMessage());
+				p.momento=System.currentTimeMillis()+espera;
+				cola.put(p);
+				continue;
+			}
+			try{
+				terminar(p, estado);
+			}catch(IOException e){
+				//si el registro G se pierde, al recuperar se encuentra su numero en
+				//la base de datos; si se pierde el R, se vuelve a rechazar.
+				log.error("run", "No se pudo escribir en el diario", e);
+			}
+		}
+	}
+
+	/**
+	 * Guarda una factura pendiente en la base de datos, con el numero escrito
+	 * en el diario.
+	 */
+	private void guardar(Pendiente p) throws Exception{
+		if(p.numero==0){
+			long numero=managerNumeracion.reservarNumero(ManagerNumeracion.CONT_FACTURAS);
+			sincronizar(escribirRegistro("N|"+p.ticket+"|"+numero));
+			p.numero=numero;
+		}else if(p.verificar&&managerDAO.findById(FacturaCab.class, Long.toString(p.numero))!=null){
+			log.informacion("guardar", "La factura {} del ticket {} ya estaba guardada", p.numero, p.ticket);
+			return;
+		}
+		p.verificar=true;
+		FacturaCab f=new FacturaCab();
+		f.setNumeroFactura(Long.toString(p.numero));
+		f.setFechaEmision(new Date(p.fecha));
+		Cliente cliente=managerFacturacion.findClienteById(p.cedula);
+		if(cliente==null)
+			throw new FacturaRechazada("No existe el cliente "+p.cedula+".");
+		f.setCliente(cliente);
+		List<FacturaDet> detalles=new ArrayList<FacturaDet>(p.productos.length);
+		for(int i=0;i<p.productos.length;i++){
+			Producto producto=managerFacturacion.findProductoById(Integer.valueOf(p.productos[i]));
+			if(producto==null)
+				throw new FacturaRechazada("No existe el producto "+p.productos[i]+".");
+			FacturaDet det=new FacturaDet();
+			det.setProducto(producto);
+			det.setCantidad(Integer.valueOf(p.cantidades[i]));
+			det.setPrecioUnitarioVenta(p.precios[i]);
+			detalles.add(det);
+		}
+		f.setFacturaDets(detalles);
+		managerFacturacion.guardarFacturaNumerada(f);
+	}
+
+	/**
+	 * Marca como guardada (o rechazada) una factura y borra los archivos
+	 * antiguos que ya no tienen facturas pendientes.
+	 */
+	private void terminar(Pendiente p,String estado) throws IOException{
+		boolean guardada=TicketFactura.GUARDADA.equals(estado);
+		TicketFactura t=new TicketFactura(p.ticket, estado, guardada?Long.toString(p.numero):null,
+				new Date(p.fecha), p.intentos, guardada?null:p.mensaje);
+		synchronized(guardados){
+			guardados.put(p.ticket, t);
+		}
+		pendientes.remove(p.ticket);
+		(guardada?guardadas:rechazadas).incrementAndGet();
+		List<File> borrar=new ArrayList<File>();
+		synchronized(this){
+			escribirRegistro((guardada?"G|":"R|")+p.ticket);
+			segmentos.get(Long.valueOf(p.segmento))[0]--;
+			//solo los mas antiguos: sus registros N y G pueden estar en los siguientes.
+			while(segmentos.size()>1&&segmentos.firstEntry().getValue()[0]==0)
+				borrar.add(archivo(segmentos.pollFirstEntry().getKey().longValue()));
+		}
+		for(File archivo:borrar)
+			if(!archivo.delete())
+				log.advertencia("terminar", "No se pudo borrar el archivo {}", archivo);
+	}
+
+	private String registroFactura(Pendiente p){
+		StringBuilder sb=new StringBuilder(64+p.productos.length*24);
+		sb.append("F|").append(p.ticket).append('|').append(p.fecha).append('|').append(p.cedula).append('|');
+		for(int i=0;i<p.productos.length;i++){
+			if(i>0)
+				sb.append(';');
+			sb.append(p.productos[i]).append(':').append(p.cantidades[i]).append(':')
+				.append(p.precios[i]==null?"":p.precios[i].toPlainString());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Escribe un registro al final del archivo actual (sin fsync), cambiando
+	 * de archivo si el actual ya supera el tamaño del segmento.
+	 * @return la posicion (total de bytes escritos) hasta la que hay que
+	 * sincronizar para que el registro llegue al disco.
+	 */
+	private synchronized long escribirRegistro(String registro) throws IOException{
+		byte[] datos=linea(registro).getBytes(CODIFICACION);
+		if(tamanioActual>=tamanioSegmento)
+			abrirSegmento(segmentoActual+1);
+		salida.write(datos);
+		tamanioActual+=datos.length;
+		escrito+=datos.length;
+		return escrito;
+	}
+
+	/**
+	 * Espera a que todo lo escrito hasta la posicion indicada llegue al disco.
+	 * Un solo fsync cubre los registros de todos los hilos escritos hasta ese
+	 * momento, de modo que los demas hilos no repiten el fsync.
+	 */
+	private void sincronizar(long hasta) throws IOException{
+		synchronized(sincronizacion){
+			if(sincronizado>=hasta)
+				return;
+			long total;
+			FileChannel canal;
+			synchronized(this){
+				total=escrito;
+				canal=salida.getChannel();
+			}
+			try{
+				canal.force(false);
+				fsyncs.incrementAndGet();
+			}catch(ClosedChannelException e){
+				//se cambio de archivo y el anterior ya se sincronizo al cerrarlo.
+			}
+			sincronizado=Math.max(sincronizado, total);
+		}
+	}
+
+	/**
+	 * Cierra el archivo actual (con fsync) y abre uno nuevo.
+	 */
+	private synchronized void abrirSegmento(long numero) throws IOException{
+		if(salida!=null){
+			salida.getChannel().force(false);
+			salida.close();
+		}
+		salida=new FileOutputStream(archivo(numero), true);
+		segmentoActual=numero;
+		tamanioActual=0;
+		segmentos.put(Long.valueOf(numero), new int[1]);
+	}
+
+	private File archivo(long numero){
+		return new File(directorio, PREFIJO+numero+EXTENSION);
+	}
+
+	private TreeMap<Long,File> listarArchivos(){
+		TreeMap<Long,File> archivos=new TreeMap<Long,File>();
+		File[] lista=directorio.listFiles(new FileFilter(){
+			public boolean accept(File f){
+				return f.isFile()&&f.getName().startsWith(PREFIJO)&&f.getName().endsWith(EXTENSION);
+			}
+		});
+		if(lista!=null)
+			for(File f:lista){
+				String nombre=f.getName();
+				try{
+					archivos.put(Long.valueOf(nombre.substring(PREFIJO.length(), nombre.length()-EXTENSION.length())), f);
+				}catch(NumberFormatException e){
+					log.advertencia("listarArchivos", "Archivo ignorado: {}", f);
+				}
+			}
+		return archivos;
+	}
+
+	/**
+	 * Arma la linea del diario de un registro: su CRC32 en hexadecimal, el
+	 * registro y el fin de linea.
+	 */
+	static String linea(String registro) throws IOException{
+		return crc(registro)+"|"+registro+"\n";
+	}
+
+	/**
+	 * Extrae el registro de una linea del diario (sin el fin de linea).
+	 * @return el registro, o null si la linea esta incompleta o su CRC no coincide.
+	 */
+	static String registro(String linea) throws IOException{
+		int i=linea.indexOf('|');
+		if(i<0)
+			return null;
+		String registro=linea.substring(i+1);
+		return crc(registro).equals(linea.substring(0, i))?registro:null;
+	}
+
+	private static String crc(String registro) throws IOException{
+		CRC32 crc=new CRC32();
+		crc.update(registro.getBytes(CODIFICACION));
+		return Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * Lee un archivo del diario, agregando las facturas recibidas y quitando
+	 * las guardadas y las rechazadas. Termina en la primera linea incompleta o con CRC invalido.
+	 * @return el mayor ticket (como numero) de las facturas recibidas en el
+	 * archivo, o 0 si no tiene ninguna.
+	 */
+	static long leer(File archivo,Map<String,Pendiente> facturas) throws IOException{
+		long ultimo=0;
+		BufferedReader lector=new BufferedReader(new InputStreamReader(new FileInputStream(archivo), CODIFICACION));
+		try{
+			String linea;
+			int numeroLinea=0;
+			while((linea=lector.readLine())!=null){
+				numeroLinea++;
+				String registro=registro(linea);
+				if(registro==null){
+					log.advertencia("leer", "Registro invalido en {} linea {}, se ignora el resto del archivo",
+							archivo, numeroLinea);
+					break;
+				}
+				String[] campos=registro.split("\\|", -1);
+				if("F".equals(campos[0])){
+					String[] detalles=campos[4].split(";");
+					int[] productos=new int[detalles.length];
+					int[] cantidades=new int[detalles.length];
+					BigDecimal[] precios=new BigDecimal[detalles.length];
+					for(int d=0;d<detalles.length;d++){
+						String[] det=detalles[d].split(":", -1);
+						productos[d]=Integer.parseInt(det[0]);
+						cantidades[d]=Integer.parseInt(det[1]);
+						precios[d]=det[2].length()==0?null:new BigDecimal(det[2]);
+					}
+					facturas.put(campos[1], new Pendiente(campos[1], Long.parseLong(campos[2]), campos[3],
+							productos, cantidades, precios));
+					ultimo=Math.max(ultimo, Long.parseLong(campos[1], 36));
+				}else if("N".equals(campos[0])){
+					Pendiente p=facturas.get(campos[1]);
+					if(p!=null)
+						p.numero=Long.parseLong(campos[2]);
+				}else if("G".equals(campos[0])||"R".equals(campos[0])){
+					facturas.remove(campos[1]);
+				}
+			}
+		}finally{
+			lector.close();
+		}
+		return ultimo;
+	}
+
+	/**
+	 * @return numero de facturas recibidas desde que inicio la aplicacion.
+	 */
+	public long getRecibidas(){
+		return recibidas.get();
+	}
+
+	/**
+	 * @return numero de facturas guardadas en la base de datos desde que inicio la aplicacion.
+	 */
+	public long getGuardadas(){
+		return guardadas.get();
+	}
+
+	/**
+	 * @return numero de facturas rechazadas desde que inicio la aplicacion.
+	 */
+	public long getRechazadas(){
+		return rechazadas.get();
+	}
+
+	/**
+	 * @return numero de intentos de guardado fallidos.
+	 */
+	public long getFallos(){
+		return fallos.get();
+	}
+
+	/**
+	 * @return numero de fsync realizados (menor que las facturas recibidas si se agrupan).
+	 */
+	public long getFsyncs(){
+		return fsyncs.get();
+	}
+
+	/**
+	 * @return numero de facturas del diario aun no guardadas en la base de datos.
+	 */
+	public int getPendientes(){
+		return pendientes.size();
+	}
+
+	@Override
+	public String toString(){
+		return "DiarioFacturas[recibidas="+getRecibidas()+", guardadas="+getGuardadas()+", pendientes="+getPendientes()
+				+", rechazadas="+getRechazadas()+", fallos="+getFallos()+", fsyncs="+getFsyncs()+"]";
+	}
+
+}
@@ -0,0 +1,96 @@
+package facturacion.model.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Escritor minimo de PDF 1.4 para documentos de texto de ancho fijo: cada
+ * linea del texto se escribe con la fuente estandar Courier (no se incrusta)
+ * en paginas A4, sin depender de bibliotecas externas. Los caracteres fuera
+ * de Windows-1252 se reemplazan por '?'.
+ * @author mrea
+ *
+ */
+final class DocumentoPdf {
+	private static final String CODIFICACION="Cp1252";
+	private static final int ALTO_PAGINA=842;
+	private static final int ANCHO_PAGINA=595;
+	private static final int MARGEN=40;
+	private static final int TAMANIO_FUENTE=9;
+	private static final int INTERLINEA=12;
+	private static final int LINEAS_POR_PAGINA=(ALTO_PAGINA-2*MARGEN)/INTERLINEA;
+
+	private DocumentoPdf(){
+	}
+
+	/**
+	 * Escribe el texto como PDF, paginando cada {@link #LINEAS_POR_PAGINA} lineas.
+	 * @param texto texto con lineas separadas por \n.
+	 * @param salida destino del PDF; no se cierra.
+	 * @throws IOException si falla la escritura.
+	 */
+	static void escribir(String texto,OutputStream salida) throws IOException{
+		String[] lineas=texto.replace("\r", "").split("\n", -1);
+		int paginas=Math.max(1, (lineas.length+LINEAS_POR_PAGINA-1)/LINEAS_POR_PAGINA);
+		ByteArrayOutputStream pdf=new ByteArrayOutputStream(2048+texto.length()*2);
+		List<Integer> posiciones=new ArrayList<Integer>();
+		escribir(pdf, "%PDF-1.4\n%âãÏÓ\n");
+		//objetos: 1 catalogo, 2 arbol de paginas, 3 fuente, y por pagina su
+		//objeto (4+2i) y su contenido (5+2i).
+		objeto(pdf, posiciones, "<< /Type /Catalog /Pages 2 0 R >>");
+		StringBuilder kids=new StringBuilder();
+		for(int i=0;i<paginas;i++)
+			kids.append(4+2*i).append(" 0 R ");
+		objeto(pdf, posiciones, "<< /Type /Pages /Kids [ "+kids+"] /Count "+paginas+" >>");
+		objeto(pdf, posiciones, "<< /Type /Font /Subtype /Type1 /BaseFont /Courier /Encoding /WinAnsiEncoding >>");
+		for(int i=0;i<paginas;i++){
+			objeto(pdf, posiciones, "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 "+ANCHO_PAGINA+" "+ALTO_PAGINA+"]"
+					+" /Resources << /Font << /F1 3 0 R >> >> /Contents "+(5+2*i)+" 0 R >>");
+			ByteArrayOutputStream contenido=new ByteArrayOutputStream();
+			escribir(contenido, "BT /F1 "+TAMANIO_FUENTE+" Tf "+INTERLINEA+" TL "+MARGEN+" "
+					+(ALTO_PAGINA-MARGEN-TAMANIO_FUENTE)+" Td\n");
+			int fin=Math.min(lineas.length, (i+1)*LINEAS_POR_PAGINA);
+			for(int j=i*LINEAS_POR_PAGINA;j<fin;j++){
+				contenido.write('(');
+				cadena(contenido, lineas[j]);
+				escribir(contenido, ") Tj T*\n");
+			}
+			escribir(contenido, "ET");
+			posiciones.add(Integer.valueOf(pdf.size()));
+			escribir(pdf, posiciones.size()+" 0 obj\n<< /Length "+contenido.size()+" >>\nstream\n");
+			contenido.writeTo(pdf);
+			escribir(pdf, "\nendstream\nendobj\n");
+		}
+		int xref=pdf.size();
+		escribir(pdf, "xref\n0 "+(posiciones.size()+1)+"\n0000000000 65535 f \n");
+		for(Integer posicion:posiciones)
+			escribir(pdf, String.format("%010d 00000 n \n", posicion));
+		escribir(pdf, "trailer\n<< /Size "+(posiciones.size()+1)+" /Root 1 0 R >>\nstartxref\n"+xref+"\n%%EOF\n");
+		pdf.writeTo(salida);
+	}
+
+	private static void objeto(ByteArrayOutputStream pdf,List<Integer> posiciones,String contenido) throws IOException{
+		posiciones.add(Integer.valueOf(pdf.size()));
+		escribir(pdf, posiciones.size()+" 0 obj\n"+contenido+"\nendobj\n");
+	}
+
+	/**
+	 * Escribe una cadena literal de PDF, escapando los parentesis y la barra invertida.
+	 */
+	private static void cadena(ByteArrayOutputStream salida,String texto) throws IOException{
+		byte[] bytes=texto.getBytes(CODIFICACION);
+		for(byte b:bytes){
+			if(b=='('||b==')'||b=='\\')
+				salida.write('\\');
+			salida.write(b);
+		}
+	}
+
+	private static void escribir(ByteArrayOutputStream salida,String texto) throws IOException{
+		salida.write(texto.getBytes("ISO-8859-1"));
+	}
+
+}
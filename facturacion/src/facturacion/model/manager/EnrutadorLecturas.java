@@ -0,0 +1,271 @@
+package facturacion.model.manager;
+
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import facturacion.model.dao.PersonalizadorSesion;
+import facturacion.model.dao.PoolConexiones;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Enrutamiento de las lecturas de {@link ManagerDAO} a replicas de solo
+ * lectura de la base de datos (propiedad facturacion.replicas: URLs JDBC
+ * separadas por comas; vacia para leer solo de la principal). Las
+ * escrituras siempre van a la base de datos principal.
+ * <p>
+ * Cada replica tiene su propio EntityManagerFactory (la misma unidad de
+ * persistencia con otra URL, su propio pool de conexiones y sin cache
+ * compartida, para no servir entidades viejas), y su pool se cierra al
+ * cerrar ese factory. Cada lectura va a la replica con menos lecturas en
+ * curso, empezando por turnos. Una replica que no
+ * responde se deja de usar por facturacion.replicas.reintento milisegundos y
+ * sus lecturas van a otra replica o a la principal.
+ * <p>
+ * Que lecturas se enrutan lo decide {@link ManagerDAO}: las que no estan
+ * dentro de una transaccion ni de otra operacion del DAO, y que no siguen a
+ * una escritura del mismo DAO hecha hace menos de
+ * facturacion.replicas.lectura.propia milisegundos (para leer lo propio
+ * aunque la replica aun no lo tenga).
+ * @author mrea
+ *
+ */
+public class EnrutadorLecturas {
+	public static final String PROP_REPLICAS="facturacion.replicas";
+	public static final String PROP_USUARIO="facturacion.replicas.usuario";
+	public static final String PROP_CLAVE="facturacion.replicas.clave";
+	public static final String PROP_LECTURA_PROPIA="facturacion.replicas.lectura.propia";
+	public static final String PROP_REINTENTO="facturacion.replicas.reintento";
+
+	private static final Bitacora log=Bitacora.getBitacora(EnrutadorLecturas.class);
+
+	private final Replica[] replicas;
+	private final long lecturaPropia;
+	private final long reintento;
+	private final AtomicInteger turno=new AtomicInteger();
+	private final Map<EntityManager,Replica> abiertos=new ConcurrentHashMap<EntityManager,Replica>();
+	private final AtomicLong lecturasPrincipal=new AtomicLong();
+	private final AtomicLong fallos=new AtomicLong();
+
+	/**
+	 * Una replica y su EntityManagerFactory, que se crea en la primera
+	 * lectura y se vuelve a crear despues de un fallo.
+	 */
+	private static class Replica{
+		private final String url;
+		private final Map<String,Object> propiedades;
+		/** pools creados por PersonalizadorSesion para los factory de esta replica. */
+		private final List<PoolConexiones> pools=new CopyOnWriteArrayList<PoolConexiones>();
+		private EntityManagerFactory factory;
+		private final AtomicInteger enCurso=new AtomicInteger();
+		private final AtomicLong lecturas=new AtomicLong();
+		private volatile long caidaHasta;
+
+		private Replica(String url,Map<String,Object> propiedades){
+			this.url=url;
+			this.propiedades=propiedades;
+			propiedades.put(PersonalizadorSesion.PROP_REGISTRO, pools);
+		}
+
+		private synchronized EntityManagerFactory factory(){
+			if(factory==null)
+				factory=Persistence.createEntityManagerFactory("facturacion", propiedades);
+			return factory;
+		}
+
+		private synchronized void descartarFactory(){
+			if(factory!=null){
+				try{
+					factory.close();
+				}catch(RuntimeException e){
+					log.advertencia("descartarFactory", "Error al cerrar la replica {}: {}", url, e.getMessage());
+				}
+				factory=null;
+			}
+			//si la sesion no llego a conectarse, cerrar el factory no cierra su pool:
+			for(PoolConexiones pool:pools)
+				pool.cerrar();
+			pools.clear();
+		}
+	}
+
+	/**
+	 * Crea el enrutador con las replicas configuradas.
+	 * @param propiedades propiedades con que se creo la unidad de persistencia
+	 * principal; las replicas las usan con su propia URL.
+	 * @return el enrutador, o null si no hay replicas configuradas.
+	 */
+	static EnrutadorLecturas crear(Map<String,Object> propiedades){
+		String lista=ManagerDAO.getPropiedad(PROP_REPLICAS, "");
+		if(lista.length()==0)
+			return null;
+		String[] urls=lista.split(",");
+		String usuario=ManagerDAO.getPropiedad(PROP_USUARIO, null);
+		String clave=ManagerDAO.getPropiedad(PROP_CLAVE, null);
+		Replica[] replicas=new Replica[urls.length];
+		for(int i=0;i<urls.length;i++){
+			Map<String,Object> p=new HashMap<String,Object>(propiedades);
+			p.put("javax.persistence.jdbc.url", urls[i].trim());
+			//sin usuario propio, las replicas usan el de la principal:
+			if(usuario!=null)
+				p.put("javax.persistence.jdbc.user", usuario);
+			if(clave!=null)
+				p.put("javax.persistence.jdbc.password", clave);
+			//otra sesion de EclipseLink para la misma unidad de persistencia:
+			p.put("eclipselink.session-name", "facturacion-replica-"+(i+1));
+			p.put("eclipselink.cache.shared.default", "false");
+			p.put(PersonalizadorSesion.PROP_PRINCIPAL, "false");
+			replicas[i]=new Replica(urls[i].trim(), p);
+		}
+		EnrutadorLecturas e=new EnrutadorLecturas(replicas, ManagerDAO.getPropiedad(PROP_LECTURA_PROPIA, 5000),
+				ManagerDAO.getPropiedad(PROP_REINTENTO, 30000));
+		log.informacion("crear", "{}", e);
+		return e;
+	}
+
+	private EnrutadorLecturas(Replica[] replicas,long lecturaPropia,long reintento){
+		this.replicas=replicas;
+		this.lecturaPropia=lecturaPropia;
+		this.reintento=reintento;
+	}
+
+	/**
+	 * Abre un EntityManager en la replica disponible con menos lecturas en
+	 * curso, con su transaccion iniciada y su conexion ya obtenida (asi una
+	 * replica caida se detecta aqui y no en la consulta).
+	 * @return el EntityManager, que debe cerrarse con {@link #cerrar(EntityManager)};
+	 * o null si no hay replicas disponibles y se debe leer de la principal.
+	 */
+	EntityManager abrir(){
+		for(int intento=0;intento<replicas.length;intento++){
+			Replica r=elegir();
+			if(r==null)
+				break;
+			r.enCurso.incrementAndGet();
+			EntityManager em=null;
+			try{
+				em=r.factory().createEntityManager();
+				em.getTransaction().begin();
+				em.unwrap(Connection.class);
+				abiertos.put(em, r);
+				r.lecturas.incrementAndGet();
+				return em;
+			}catch(RuntimeException e){
+				r.enCurso.decrementAndGet();
+				if(em!=null&&em.isOpen()){
+					if(em.getTransaction().isActive())
+						em.getTransaction().rollback();
+					em.close();
+				}
+				r.caidaHasta=System.currentTimeMillis()+reintento;
+				r.descartarFactory();
+				fallos.incrementAndGet();
+				log.advertencia("abrir", "Replica {} no disponible, se reintenta en {} ms: {}", r.url, reintento,
+						e.getMessage());
+			}
+		}
+		lecturasPrincipal.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @return la replica disponible con menos lecturas en curso (empezando
+	 * por la del turno), o null si todas estan caidas.
+	 */
+	private Replica elegir(){
+		long ahora=System.currentTimeMillis();
+		int inicio=(turno.getAndIncrement()&Integer.MAX_VALUE)%replicas.length;
+		Replica elegida=null;
+		for(int i=0;i<replicas.length;i++){
+			Replica r=replicas[(inicio+i)%replicas.length];
+			if(r.caidaHasta<=ahora&&(elegida==null||r.enCurso.get()<elegida.enCurso.get()))
+				elegida=r;
+		}
+		return elegida;
+	}
+
+	/**
+	 * Termina una lectura abierta con {@link #abrir()}: deshace la
+	 * transaccion si sigue activa y cierra el EntityManager.
+	 */
+	void cerrar(EntityManager em){
+		Replica r=abiertos.remove(em);
+		try{
+			if(em.getTransaction().isActive())
+				em.getTransaction().rollback();
+			em.close();
+		}finally{
+			if(r!=null)
+				r.enCurso.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Cuenta una lectura que no se enruto (transaccion activa o escritura reciente).
+	 */
+	void registrarLecturaPrincipal(){
+		lecturasPrincipal.incrementAndGet();
+	}
+
+	/**
+	 * @return milisegundos despues de una escritura en que las lecturas del
+	 * mismo DAO van a la principal.
+	 */
+	long getLecturaPropia(){
+		return lecturaPropia;
+	}
+
+	/**
+	 * @return numero de replicas configuradas.
+	 */
+	public int getReplicas(){
+		return replicas.length;
+	}
+
+	/**
+	 * @return lecturas atendidas por las replicas.
+	 */
+	public long getLecturasReplicas(){
+		long total=0;
+		for(Replica r:replicas)
+			total+=r.lecturas.get();
+		return total;
+	}
+
+	/**
+	 * @return lecturas enrutables que se atendieron en la principal.
+	 */
+	public long getLecturasPrincipal(){
+		return lecturasPrincipal.get();
+	}
+
+	/**
+	 * @return veces que una replica no respondio.
+	 */
+	public long getFallos(){
+		return fallos.get();
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder s=new StringBuilder("EnrutadorLecturas[replicas=");
+		long ahora=System.currentTimeMillis();
+		for(int i=0;i<replicas.length;i++){
+			Replica r=replicas[i];
+			s.append(i==0?"":", ").append(r.url).append(" (lecturas=").append(r.lecturas.get())
+					.append(r.caidaHasta>ahora?", caida":"").append(")");
+		}
+		return s.append(", lecturasPrincipal=").append(lecturasPrincipal.get()).append(", fallos=")
+				.append(fallos.get()).append(", lecturaPropiaMs=").append(lecturaPropia).append("]").toString();
+	}
+
+}
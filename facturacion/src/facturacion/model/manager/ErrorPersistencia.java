@@ -0,0 +1,68 @@
+package facturacion.model.manager;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+
+/**
+ * Falla de la base de datos al guardar una factura (no un error de los datos
+ * de la factura). Es temporal si reintentar la operacion puede funcionar:
+ * conexion perdida o no disponible, tiempo agotado, conflicto de
+ * serializacion o bloqueo mutuo.
+ * @author mrea
+ *
+ */
+public class ErrorPersistencia extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private final boolean temporal;
+
+	/**
+	 * @param mensaje descripcion del error.
+	 * @param causa excepcion original; determina si el error es temporal.
+	 */
+	public ErrorPersistencia(String mensaje,Throwable causa){
+		super(mensaje, causa);
+		this.temporal=esTemporal(causa);
+	}
+
+	/**
+	 * @return true si reintentar la operacion mas tarde puede funcionar.
+	 */
+	public boolean isTemporal(){
+		return temporal;
+	}
+
+	/**
+	 * Revisa una excepcion y sus causas.
+	 * @param t excepcion a revisar.
+	 * @return true si alguna indica una falla temporal de la base de datos.
+	 */
+	public static boolean esTemporal(Throwable t){
+		for(int i=0;t!=null&&i<20;i++,t=t.getCause()){
+			if(t instanceof ErrorPersistencia)
+				return ((ErrorPersistencia)t).temporal;
+			if(t instanceof SQLTransientException||t instanceof SQLRecoverableException)
+				return true;
+			if(t instanceof SQLException){
+				SQLException sqle=(SQLException)t;
+				if(esEstadoTemporal(sqle.getSQLState())
+						||(sqle.getNextException()!=null&&esEstadoTemporal(sqle.getNextException().getSQLState())))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * SQLState de PostgreSQL para conexiones (08), conflictos de
+	 * serializacion y bloqueo mutuo (40001, 40P01), bloqueo no disponible
+	 * (55P03), consulta cancelada por tiempo (57014), demasiadas conexiones
+	 * (53300) y cierre del servidor (57P01).
+	 */
+	private static boolean esEstadoTemporal(String estado){
+		return estado!=null&&(estado.startsWith("08")||estado.equals("40001")||estado.equals("40P01")
+				||estado.equals("55P03")||estado.equals("57014")||estado.equals("53300")||estado.equals("57P01"));
+	}
+
+}
@@ -0,0 +1,95 @@
+package facturacion.model.manager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estadisticas de los contextos de persistencia de {@link ManagerDAO}:
+ * entidades administradas al terminar cada operacion, limpiezas aplicadas
+ * por la politica del contexto y duracion de los commits (flush incluido).
+ * @author mrea
+ *
+ */
+public class EstadisticasContexto {
+	private final AtomicLong confirmaciones=new AtomicLong();
+	private final AtomicLong confirmacionTotalNanos=new AtomicLong();
+	private final AtomicLong confirmacionMaximaNanos=new AtomicLong();
+	private final AtomicLong limpiezas=new AtomicLong();
+	private final AtomicLong entidadesMaximas=new AtomicLong();
+	private volatile int entidadesUltimas;
+
+	void registrarConfirmacion(long nanos){
+		confirmaciones.incrementAndGet();
+		confirmacionTotalNanos.addAndGet(nanos);
+		actualizarMaximo(confirmacionMaximaNanos, nanos);
+	}
+
+	void registrarEntidades(int entidades){
+		entidadesUltimas=entidades;
+		actualizarMaximo(entidadesMaximas, entidades);
+	}
+
+	void registrarLimpieza(){
+		limpiezas.incrementAndGet();
+	}
+
+	private static void actualizarMaximo(AtomicLong maximo,long valor){
+		long actual;
+		while(valor>(actual=maximo.get())){
+			if(maximo.compareAndSet(actual, valor))
+				break;
+		}
+	}
+
+	/**
+	 * @return numero de transacciones confirmadas por el DAO.
+	 */
+	public long getConfirmaciones(){
+		return confirmaciones.get();
+	}
+
+	/**
+	 * @return duracion promedio (milisegundos) de un commit, incluido el flush.
+	 */
+	public double getConfirmacionPromedioMs(){
+		long n=confirmaciones.get();
+		return n==0?0:confirmacionTotalNanos.get()/(n*1000000.0);
+	}
+
+	/**
+	 * @return duracion maxima (milisegundos) de un commit.
+	 */
+	public double getConfirmacionMaximaMs(){
+		return confirmacionMaximaNanos.get()/1000000.0;
+	}
+
+	/**
+	 * @return numero de veces que se limpio (clear) un contexto de persistencia.
+	 */
+	public long getLimpiezas(){
+		return limpiezas.get();
+	}
+
+	/**
+	 * @return entidades administradas al terminar la ultima operacion.
+	 */
+	public int getEntidadesUltimas(){
+		return entidadesUltimas;
+	}
+
+	/**
+	 * @return maximo de entidades administradas observado en un contexto.
+	 */
+	public long getEntidadesMaximas(){
+		return entidadesMaximas.get();
+	}
+
+	@Override
+	public String toString(){
+		return "EstadisticasContexto[entidadesUltimas="+getEntidadesUltimas()
+				+", entidadesMaximas="+getEntidadesMaximas()+", limpiezas="+getLimpiezas()
+				+", confirmaciones="+getConfirmaciones()
+				+", confirmacionPromedioMs="+String.format("%.3f", getConfirmacionPromedioMs())
+				+", confirmacionMaximaMs="+String.format("%.3f", getConfirmacionMaximaMs())+"]";
+	}
+
+}
@@ -0,0 +1,222 @@
+package facturacion.model.manager;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Date;
+
+import javax.persistence.EntityManager;
+
+import facturacion.model.log.Bitacora;
+
+/**
+ * Exportacion de facturas con sus detalles, cliente y producto en CSV o JSON
+ * Lines, con memoria constante: las filas se leen con un cursor del servidor
+ * (de facturacion.exportacion.fetch filas a la vez) y se escriben
+ * directamente en la salida, sin armar listas ni entidades.
+ * <ul>
+ * <li>{@link #CSV}: una fila por detalle, con los datos de su factura; separador
+ * coma, decimales con punto y fechas yyyy-MM-dd.</li>
+ * <li>{@link #JSONL}: un objeto JSON por factura (una por linea), con sus
+ * detalles en el arreglo "detalles".</li>
+ * </ul>
+ * Las facturas salen en orden de fecha de emision y numero.
+ * @author mrea
+ *
+ */
+public class ExportadorFacturas {
+	public static final String CSV="CSV";
+	public static final String JSONL="JSONL";
+	public static final String PROP_FETCH="facturacion.exportacion.fetch";
+
+	private static final Bitacora log=Bitacora.getBitacora(ExportadorFacturas.class);
+
+	private static final String CONSULTA="SELECT c.numero_factura,c.fecha_emision,c.cedula_cliente,"
+			+"cl.apellidos,cl.nombres,c.subtotal,c.base_cero,c.valor_iva,c.total,d.numero_factura_det,"
+			+"d.codigo_producto,p.nombre,d.cantidad,d.precio_unitario_venta"
+			+" FROM factura_cab c JOIN factura_det d ON d.numero_factura=c.numero_factura"
+			+" LEFT JOIN cliente cl ON cl.cedula_cliente=c.cedula_cliente"
+			+" LEFT JOIN producto p ON p.codigo_producto=d.codigo_producto";
+	private static final String ORDEN=" ORDER BY c.fecha_emision,c.numero_factura,d.numero_factura_det";
+
+	private static final String[] COLUMNAS={"numero_factura","fecha_emision","cedula_cliente","apellidos",
+			"nombres","subtotal","base_cero","valor_iva","total","numero_factura_det","codigo_producto",
+			"nombre_producto","cantidad","precio_unitario_venta"};
+	private static final String[] CAMPOS_CABECERA={"numeroFactura","fechaEmision","cedulaCliente","apellidos",
+			"nombres","subtotal","baseCero","valorIva","total"};
+	private static final String[] CAMPOS_DETALLE={"numeroFacturaDet","codigoProducto","nombreProducto",
+			"cantidad","precioUnitarioVenta"};
+
+	private final int fetch;
+
+	/**
+	 * @param fetch filas que se traen del servidor en cada viaje.
+	 */
+	ExportadorFacturas(int fetch){
+		this.fetch=Math.max(1, fetch);
+	}
+
+	/**
+	 * Exporta las facturas emitidas en el rango.
+	 * @param desde primer dia del rango, o null para no limitarlo.
+	 * @param hasta ultimo dia del rango (incluido), o null para no limitarlo.
+	 * @param formato {@link #CSV} o {@link #JSONL}.
+	 * @param salida flujo de salida; se escribe en UTF-8 y no se cierra.
+	 * @return numero de facturas exportadas.
+	 * @throws Exception si el formato no existe, o falla la base de datos o la escritura.
+	 */
+	long exportar(Date desde,Date hasta,String formato,OutputStream salida) throws Exception{
+		boolean json=JSONL.equalsIgnoreCase(formato);
+		if(!json&&!CSV.equalsIgnoreCase(formato))
+			throw new Exception("Formato de exportacion desconocido: "+formato+".");
+		long inicio=System.currentTimeMillis();
+		long facturas=0,detalles=0;
+		Writer w=new BufferedWriter(new OutputStreamWriter(salida, "UTF-8"), 65536);
+		EntityManager em=ManagerDAO.abrirContexto();
+		try{
+			//el cursor del servidor solo se usa dentro de una transaccion:
+			em.getTransaction().begin();
+			Connection c=em.unwrap(Connection.class);
+			String sql=CONSULTA+(desde==null&&hasta==null?""
+					:" WHERE "+(desde==null?"":"c.fecha_emision>=?")+(desde!=null&&hasta!=null?" AND ":"")
+					+(hasta==null?"":"c.fecha_emision<=?"))+ORDEN;
+			//con tipo y concurrencia explicitos la sentencia no queda en la cache del pool:
+			PreparedStatement ps=c.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try{
+				int i=1;
+				if(desde!=null)
+					ps.setDate(i++, new java.sql.Date(desde.getTime()));
+				if(hasta!=null)
+					ps.setDate(i++, new java.sql.Date(hasta.getTime()));
+				ps.setFetchSize(fetch);
+				ResultSet rs=ps.executeQuery();
+				try{
+					if(!json)
+						escribirFilaCsv(w, COLUMNAS);
+					String anterior=null;
+					String[] fila=new String[COLUMNAS.length];
+					while(rs.next()){
+						String numero=rs.getString(1);
+						if(!numero.equals(anterior)){
+							if(json&&anterior!=null)
+								w.write("]}\n");
+							anterior=numero;
+							facturas++;
+							if(json)
+								escribirCabeceraJson(w, rs);
+						}else if(json)
+							w.write(',');
+						if(json)
+							escribirDetalleJson(w, rs);
+						else{
+							for(int j=0;j<fila.length;j++)
+								fila[j]=texto(rs.getObject(j+1));
+							escribirFilaCsv(w, fila);
+						}
+						detalles++;
+					}
+					if(json&&anterior!=null)
+						w.write("]}\n");
+				}finally{
+					rs.close();
+				}
+			}finally{
+				ps.close();
+			}
+			w.flush();
+		}catch(Exception e){
+			log.error("exportar", "Error en la exportacion tras "+facturas+" facturas", e);
+			throw new Exception("Error en la exportacion, se escribieron "+facturas+" facturas: "+e.getMessage());
+		}finally{
+			if(em.getTransaction().isActive())
+				em.getTransaction().rollback();
+			ManagerDAO.cerrarContexto();
+		}
+		log.informacion("exportar", "{} facturas y {} detalles exportados en {} ({} ms)", facturas, detalles,
+				formato, System.currentTimeMillis()-inicio);
+		return facturas;
+	}
+
+	private static String texto(Object valor){
+		if(valor==null)
+			return "";
+		if(valor instanceof BigDecimal)
+			return ((BigDecimal)valor).toPlainString();
+		return valor.toString();
+	}
+
+	/**
+	 * Escribe una fila CSV (RFC 4180): los valores con coma, comillas o saltos
+	 * de linea van entre comillas.
+	 */
+	private static void escribirFilaCsv(Writer w,String[] valores) throws IOException{
+		for(int i=0;i<valores.length;i++){
+			if(i>0)
+				w.write(',');
+			String v=valores[i];
+			if(v.indexOf(',')>=0||v.indexOf('"')>=0||v.indexOf('\n')>=0||v.indexOf('\r')>=0){
+				w.write('"');
+				w.write(v.replace("\"", "\"\""));
+				w.write('"');
+			}else
+				w.write(v);
+		}
+		w.write("\r\n");
+	}
+
+	private static void escribirCabeceraJson(Writer w,ResultSet rs) throws Exception{
+		w.write('{');
+		for(int i=0;i<CAMPOS_CABECERA.length;i++){
+			if(i>0)
+				w.write(',');
+			escribirCampoJson(w, CAMPOS_CABECERA[i], rs.getObject(i+1));
+		}
+		w.write(",\"detalles\":[");
+	}
+
+	private static void escribirDetalleJson(Writer w,ResultSet rs) throws Exception{
+		w.write('{');
+		for(int i=0;i<CAMPOS_DETALLE.length;i++){
+			if(i>0)
+				w.write(',');
+			escribirCampoJson(w, CAMPOS_DETALLE[i], rs.getObject(CAMPOS_CABECERA.length+i+1));
+		}
+		w.write('}');
+	}
+
+	/**
+	 * Escribe "nombre":valor; los numeros van sin comillas y las fechas como
+	 * texto yyyy-MM-dd.
+	 */
+	private static void escribirCampoJson(Writer w,String nombre,Object valor) throws IOException{
+		w.write('"');
+		w.write(nombre);
+		w.write("\":");
+		if(valor==null)
+			w.write("null");
+		else if(valor instanceof Number)
+			w.write(texto(valor));
+		else{
+			String v=valor.toString();
+			w.write('"');
+			for(int i=0;i<v.length();i++){
+				char ch=v.charAt(i);
+				if(ch=='"'||ch=='\\'){
+					w.write('\\');
+					w.write(ch);
+				}else if(ch<0x20)
+					w.write(String.format("\\u%04x", Integer.valueOf(ch)));
+				else
+					w.write(ch);
+			}
+			w.write('"');
+		}
+	}
+
+}
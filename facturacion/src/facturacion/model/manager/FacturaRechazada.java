@@ -0,0 +1,21 @@
+package facturacion.model.manager;
+
+/**
+ * La factura no se puede guardar por sus datos: cliente o producto
+ * inexistente, cantidad no valida o existencia insuficiente. Reintentar la
+ * misma factura vuelve a fallar; a diferencia de {@link ErrorPersistencia},
+ * no es una falla de la base de datos.
+ * @author mrea
+ *
+ */
+public class FacturaRechazada extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param mensaje motivo del rechazo, para mostrarlo al usuario.
+	 */
+	public FacturaRechazada(String mensaje){
+		super(mensaje);
+	}
+
+}
@@ -0,0 +1,94 @@
+package facturacion.model.manager;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Fila de un reporte de ventas leida de las tablas de resumen (ver
+ * {@link ResumenVentas}) o calculada sobre la {@link InstantaneaVentas}: las
+ * ventas de un dia, de un mes, de un producto o de un cliente en el periodo
+ * consultado. No es una entidad administrada.
+ * @author mrea
+ *
+ */
+public class FilaResumenVentas implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final Date fecha;
+	private final String clave;
+	private final String descripcion;
+	private final long facturas;
+	private final long cantidad;
+	private final BigDecimal subtotal;
+	private final BigDecimal valorIva;
+	private final BigDecimal total;
+
+	public FilaResumenVentas(Date fecha,String clave,String descripcion,long facturas,long cantidad,
+			BigDecimal subtotal,BigDecimal valorIva,BigDecimal total){
+		this.fecha=fecha;
+		this.clave=clave;
+		this.descripcion=descripcion;
+		this.facturas=facturas;
+		this.cantidad=cantidad;
+		this.subtotal=subtotal;
+		this.valorIva=valorIva;
+		this.total=total;
+	}
+
+	/**
+	 * @return el dia, en las ventas por dia (el primero del mes en las ventas
+	 * por mes); null en las demas.
+	 */
+	public Date getFecha() {
+		return fecha;
+	}
+
+	/**
+	 * @return el codigo del producto o la cedula del cliente; null en las ventas por dia o mes.
+	 */
+	public String getClave() {
+		return clave;
+	}
+
+	/**
+	 * @return el nombre del producto o del cliente; null en las ventas por dia o mes.
+	 */
+	public String getDescripcion() {
+		return descripcion;
+	}
+
+	/**
+	 * @return numero de facturas (en las ventas por producto, las facturas que lo incluyen).
+	 */
+	public long getFacturas() {
+		return facturas;
+	}
+
+	/**
+	 * @return unidades vendidas.
+	 */
+	public long getCantidad() {
+		return cantidad;
+	}
+
+	public BigDecimal getSubtotal() {
+		return subtotal;
+	}
+
+	public BigDecimal getValorIva() {
+		return valorIva;
+	}
+
+	public BigDecimal getTotal() {
+		return total;
+	}
+
+	@Override
+	public String toString(){
+		return (fecha!=null?new java.sql.Date(fecha.getTime()).toString():clave+" "+descripcion)
+				+": "+facturas+" facturas, "+cantidad+" unidades, subtotal "+subtotal
+				+", IVA "+valorIva+", total "+total;
+	}
+
+}
@@ -0,0 +1,205 @@
+package facturacion.model.manager;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.CacheStoreMode;
+import javax.persistence.EntityManager;
+
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Generacion de los documentos imprimibles de las facturas guardadas, en
+ * HTML (plantilla factura.html) o PDF (plantilla de texto factura.txt
+ * escrita con {@link DocumentoPdf}). Las plantillas se compilan una vez y se
+ * reutilizan (ver {@link PlantillaFactura}).
+ * El modo por lotes genera un archivo por factura de un rango de fechas con
+ * facturacion.documentos.hilos hilos: cada hilo toma grupos de
+ * facturacion.documentos.lote facturas, las lee con sus detalles en una
+ * consulta y escribe sus documentos.
+ * @author mrea
+ *
+ */
+public class GeneradorDocumentos {
+	public static final String PDF="PDF";
+	public static final String HTML="HTML";
+	public static final String PROP_HILOS="facturacion.documentos.hilos";
+	public static final String PROP_LOTE="facturacion.documentos.lote";
+
+	private static final Bitacora log=Bitacora.getBitacora(GeneradorDocumentos.class);
+
+	private static final String PLANTILLA_HTML="factura.html";
+	private static final String PLANTILLA_TEXTO="factura.txt";
+	private static final String CONSULTA_NUMEROS="SELECT o.numeroFactura FROM FacturaCab o"
+			+" WHERE o.fechaEmision BETWEEN :desde AND :hasta ORDER BY o.numeroFactura";
+	private static final String CONSULTA_FACTURAS="SELECT DISTINCT o FROM FacturaCab o"
+			+" LEFT JOIN FETCH o.facturaDets WHERE o.numeroFactura IN :numeros";
+
+	private final int hilos;
+	private final int lote;
+
+	/**
+	 * @param hilos numero maximo de hilos del modo por lotes.
+	 * @param lote facturas leidas en cada consulta del modo por lotes.
+	 */
+	GeneradorDocumentos(int hilos,int lote){
+		this.hilos=Math.max(1, hilos);
+		this.lote=Math.max(1, lote);
+	}
+
+	/**
+	 * Escribe el documento de una factura.
+	 * @param f factura con cliente y detalles.
+	 * @param formato {@link #PDF} o {@link #HTML}.
+	 * @param salida destino del documento; no se cierra.
+	 * @throws Exception si el formato no existe o falla la escritura.
+	 */
+	void generar(FacturaCab f,String formato,OutputStream salida) throws Exception{
+		boolean pdf=esPdf(formato);
+		StringBuilder texto=new StringBuilder(4096);
+		PlantillaFactura.getPlantilla(pdf?PLANTILLA_TEXTO:PLANTILLA_HTML).escribir(f, texto);
+		if(pdf)
+			DocumentoPdf.escribir(texto.toString(), salida);
+		else
+			salida.write(texto.toString().getBytes("UTF-8"));
+	}
+
+	/**
+	 * Lee una factura guardada con sus detalles y escribe su documento.
+	 * @param numeroFactura numero de la factura.
+	 * @param formato {@link #PDF} o {@link #HTML}.
+	 * @param salida destino del documento; no se cierra.
+	 * @throws Exception si la factura o el formato no existen, o falla la escritura.
+	 */
+	void generar(String numeroFactura,String formato,OutputStream salida) throws Exception{
+		esPdf(formato);
+		EntityManager em=ManagerDAO.abrirContexto();
+		try{
+			List<FacturaCab> facturas=em.createQuery(CONSULTA_FACTURAS, FacturaCab.class)
+					.setParameter("numeros", Collections.singletonList(numeroFactura))
+					.getResultList();
+			if(facturas.isEmpty())
+				throw new Exception("No existe la factura "+numeroFactura+".");
+			generar(facturas.get(0), formato, salida);
+		}finally{
+			ManagerDAO.cerrarContexto();
+		}
+	}
+
+	/**
+	 * Genera en el directorio un archivo factura-numero.pdf (o .html) por cada
+	 * factura emitida en el rango. Una factura que falla no detiene el lote.
+	 * @param desde primer dia del rango.
+	 * @param hasta ultimo dia del rango (incluido).
+	 * @param formato {@link #PDF} o {@link #HTML}.
+	 * @param directorio directorio de salida; se crea si no existe.
+	 * @return documentos generados, errores, rendimiento y latencias.
+	 * @throws Exception si el formato no existe o no se puede leer el rango.
+	 */
+	ResultadoGeneracion generarLote(Date desde,Date hasta,final String formato,final File directorio) throws Exception{
+		final String extension=esPdf(formato)?".pdf":".html";
+		//las plantillas se compilan antes de repartir el trabajo:
+		PlantillaFactura.getPlantilla(extension.equals(".pdf")?PLANTILLA_TEXTO:PLANTILLA_HTML);
+		if(!directorio.isDirectory()&&!directorio.mkdirs())
+			throw new Exception("No se pudo crear el directorio "+directorio+".");
+		long inicio=System.currentTimeMillis();
+		final List<String> numeros=consultarNumeros(desde, hasta);
+		int numeroHilos=Math.max(1, Math.min(hilos, (numeros.size()+lote-1)/lote));
+		final ResultadoGeneracion resultado=new ResultadoGeneracion(numeroHilos, numeros.size());
+		final AtomicInteger siguiente=new AtomicInteger();
+		Thread[] trabajadores=new Thread[numeroHilos];
+		for(int i=0;i<numeroHilos;i++){
+			trabajadores[i]=new Thread("facturacion-documentos-"+(i+1)){
+				@Override
+				public void run(){
+					int desdeIndice;
+					while((desdeIndice=siguiente.getAndAdd(lote))<numeros.size()){
+						List<String> grupo=numeros.subList(desdeIndice, Math.min(desdeIndice+lote, numeros.size()));
+						generarGrupo(grupo, formato, directorio, extension, resultado);
+					}
+				}
+			};
+			trabajadores[i].setDaemon(true);
+			trabajadores[i].start();
+		}
+		for(Thread t:trabajadores)
+			t.join();
+		resultado.setMilisegundos(System.currentTimeMillis()-inicio);
+		log.informacion("generarLote", "{}", resultado);
+		return resultado;
+	}
+
+	/**
+	 * Lee un grupo de facturas con sus detalles y escribe sus documentos.
+	 */
+	private void generarGrupo(List<String> numeros,String formato,File directorio,String extension,
+			ResultadoGeneracion resultado){
+		List<FacturaCab> facturas;
+		EntityManager em=ManagerDAO.abrirContexto();
+		try{
+			try{
+				//las facturas del lote no se guardan en la cache compartida:
+				facturas=em.createQuery(CONSULTA_FACTURAS, FacturaCab.class)
+						.setParameter("numeros", numeros)
+						.setHint("javax.persistence.cache.storeMode", CacheStoreMode.BYPASS)
+						.getResultList();
+			}catch(RuntimeException e){
+				log.error("generarGrupo", "No se pudieron leer "+numeros.size()+" facturas", e);
+				for(int i=0;i<numeros.size();i++)
+					resultado.registrarError();
+				return;
+			}
+			for(FacturaCab f:facturas){
+				long inicio=System.nanoTime();
+				File archivo=new File(directorio, "factura-"+f.getNumeroFactura()+extension);
+				try{
+					OutputStream salida=new BufferedOutputStream(new FileOutputStream(archivo), 16384);
+					try{
+						generar(f, formato, salida);
+					}finally{
+						salida.close();
+					}
+					resultado.registrarDocumento(System.nanoTime()-inicio);
+				}catch(Exception e){
+					log.error("generarGrupo", "No se pudo generar la factura "+f.getNumeroFactura(), e);
+					archivo.delete();
+					resultado.registrarError();
+				}
+			}
+			//las facturas borradas entre la consulta de numeros y la del grupo:
+			for(int i=facturas.size();i<numeros.size();i++)
+				resultado.registrarError();
+		}finally{
+			ManagerDAO.cerrarContexto();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> consultarNumeros(Date desde,Date hasta){
+		EntityManager em=ManagerDAO.abrirContexto();
+		try{
+			return em.createQuery(CONSULTA_NUMEROS)
+					.setParameter("desde", new java.sql.Date(desde.getTime()))
+					.setParameter("hasta", new java.sql.Date(hasta.getTime()))
+					.getResultList();
+		}finally{
+			ManagerDAO.cerrarContexto();
+		}
+	}
+
+	private static boolean esPdf(String formato) throws Exception{
+		if(PDF.equalsIgnoreCase(formato))
+			return true;
+		if(HTML.equalsIgnoreCase(formato))
+			return false;
+		throw new Exception("Formato de documento desconocido: "+formato+".");
+	}
+
+}
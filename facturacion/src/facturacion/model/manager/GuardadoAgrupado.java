@@ -0,0 +1,298 @@
+package facturacion.model.manager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.FacturaDet;
+import facturacion.model.dao.entities.Producto;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Guarda las facturas en una sola transaccion por factura (o por grupo), con
+ * una sola confirmacion: la cabecera y los detalles se insertan con lotes
+ * JDBC, y en numeracion estricta el numero se reserva en la misma transaccion.
+ * Con facturacion.guardado.grupo mayor a 1 se agrupan los guardados
+ * concurrentes (group commit): mientras un hilo escribe su grupo, las
+ * facturas de los demas cajeros se acumulan, y el siguiente hilo las escribe
+ * todas en una transaccion, sin esperas artificiales. Si un grupo falla, sus
+ * facturas se reintentan una por una, para que solo falle la que tiene el error.
+ * La existencia de los productos vendidos se descuenta en la misma
+ * transaccion con un UPDATE condicionado a que alcance: la base de datos es la
+ * que impide la sobreventa, aunque varios nodos vendan el mismo producto.
+ * Con el resumen de ventas activo (ver {@link ResumenVentas}) sus tablas se
+ * actualizan en la misma transaccion, y despues de confirmarla se agregan las
+ * facturas a la {@link InstantaneaVentas}.
+ * @author mrea
+ *
+ */
+class GuardadoAgrupado {
+	public static final String PROP_GRUPO="facturacion.guardado.grupo";
+	static final String DESCONTAR_EXISTENCIA="UPDATE producto SET existencia=existencia-? WHERE codigo_producto=? AND existencia>=?";
+
+	private static final Bitacora log=Bitacora.getBitacora(GuardadoAgrupado.class);
+
+	private static GuardadoAgrupado instancia;
+
+	private final int maximo;
+	private final ManagerNumeracion managerNumeracion;
+	private final ResumenVentas resumenVentas;
+	private final LinkedList<Solicitud> cola=new LinkedList<Solicitud>();
+	private boolean escribiendo;
+
+	private final AtomicLong facturas=new AtomicLong();
+	private final AtomicLong grupos=new AtomicLong();
+
+	/**
+	 * Factura de un hilo, esperando a ser escrita.
+	 */
+	private static class Solicitud{
+		private final FacturaCab factura;
+		private boolean terminada;
+		private Exception error;
+		private Solicitud(FacturaCab factura){
+			this.factura=factura;
+		}
+	}
+
+	/**
+	 * @return el guardado de la aplicacion, configurado con las propiedades
+	 * facturacion.guardado.grupo y facturacion.resumen.activo de persistence.xml.
+	 * @throws Exception si no se pueden crear las tablas de resumen de ventas.
+	 */
+	static synchronized GuardadoAgrupado getInstancia() throws Exception{
+		if(instancia==null)
+			instancia=new GuardadoAgrupado(ManagerDAO.getPropiedad(PROP_GRUPO, 1), new ManagerNumeracion(),
+					ResumenVentas.getActivo());
+		return instancia;
+	}
+
+	/**
+	 * @param maximo numero maximo de facturas por transaccion; con 1 no se agrupan.
+	 * @param managerNumeracion numeracion de las facturas y sus detalles.
+	 * @param resumenVentas resumen de ventas a actualizar, o null.
+	 */
+	GuardadoAgrupado(int maximo,ManagerNumeracion managerNumeracion,ResumenVentas resumenVentas){
+		this.maximo=Math.max(1, maximo);
+		this.managerNumeracion=managerNumeracion;
+		this.resumenVentas=resumenVentas;
+	}
+
+	/**
+	 * Guarda una factura completa y espera a que se confirme. Si no tiene
+	 * numero se le asigna uno; sus detalles deben estar numerados.
+	 * @param factura factura con cliente, detalles y totales calculados.
+	 * @throws FacturaRechazada si la existencia de algun producto no alcanza.
+	 * @throws ErrorPersistencia si la factura no se pudo guardar.
+	 * @throws Exception si se interrumpe la espera.
+	 */
+	void guardar(FacturaCab factura) throws Exception{
+		Solicitud s=new Solicitud(factura);
+		List<Solicitud> grupo=new ArrayList<Solicitud>();
+		synchronized(this){
+			cola.add(s);
+		}
+		while(true){
+			grupo.clear();
+			synchronized(this){
+				while(escribiendo&&!s.terminada)
+					wait();
+				if(s.terminada)
+					break;
+				//este hilo escribe el grupo: su factura y las que llegaron mientras tanto.
+				escribiendo=true;
+				while(grupo.size()<maximo&&!cola.isEmpty())
+					grupo.add(cola.removeFirst());
+			}
+			try{
+				escribirGrupo(grupo);
+			}finally{
+				synchronized(this){
+					escribiendo=false;
+					for(Solicitud g:grupo)
+						g.terminada=true;
+					notifyAll();
+				}
+			}
+		}
+		if(s.error!=null)
+			throw s.error;
+	}
+
+	private void escribirGrupo(List<Solicitud> grupo){
+		try{
+			escribir(grupo);
+			return;
+		}catch(Exception e){
+			if(grupo.size()==1){
+				grupo.get(0).error=error(e);
+				return;
+			}
+			log.advertencia("escribirGrupo", "Fallo el grupo de {} facturas, se guardan una por una: {}",
+					grupo.size(), e.getMessage());
+		}
+		List<Solicitud> una=new ArrayList<Solicitud>(1);
+		for(Solicitud s:grupo){
+			una.clear();
+			una.add(s);
+			try{
+				escribir(una);
+			}catch(Exception e){
+				s.error=error(e);
+			}
+		}
+	}
+
+	/**
+	 * Escribe las facturas en una transaccion: numera las que no tienen
+	 * numero, inserta las cabeceras y luego los detalles con lotes JDBC,
+	 * actualiza el resumen de ventas, descuenta la existencia y confirma una
+	 * sola vez.
+	 */
+	private void escribir(List<Solicitud> grupo) throws Exception{
+		boolean[] sinNumero=new boolean[grupo.size()];
+		List<FacturaCab> facturasGrupo=new ArrayList<FacturaCab>(grupo.size());
+		for(Solicitud s:grupo)
+			facturasGrupo.add(s.factura);
+		Map<Integer,Integer> vendidas;
+		long transaccion;
+		EntityManager em=ManagerDAO.abrirContexto();
+		try{
+			em.getTransaction().begin();
+			try{
+				int numerar=0;
+				for(int i=0;i<grupo.size();i++){
+					sinNumero[i]=grupo.get(i).factura.getNumeroFactura()==null;
+					if(sinNumero[i])
+						numerar++;
+				}
+				//en numeracion estricta el rango se reserva en esta transaccion:
+				long numero=numerar>0&&managerNumeracion.isNumeracionEstricta()
+						?managerNumeracion.reservarRango(ManagerNumeracion.CONT_FACTURAS, numerar):0;
+				for(int i=0;i<grupo.size();i++)
+					if(sinNumero[i])
+						grupo.get(i).factura.setNumeroFactura(Long.toString(numero>0?numero++
+								:managerNumeracion.siguiente(ManagerNumeracion.CONT_FACTURAS)));
+				Connection c=em.unwrap(Connection.class);
+				PreparedStatement psCab=c.prepareStatement(ImportadorFacturas.INSERT_CAB);
+				PreparedStatement psDet=c.prepareStatement(ImportadorFacturas.INSERT_DET);
+				try{
+					for(Solicitud s:grupo)
+						ImportadorFacturas.agregarCabecera(psCab, s.factura);
+					//las cabeceras primero, por la clave foranea de los detalles:
+					psCab.executeBatch();
+					for(Solicitud s:grupo)
+						ImportadorFacturas.agregarDetalles(psDet, s.factura);
+					psDet.executeBatch();
+				}finally{
+					psCab.close();
+					psDet.close();
+				}
+				if(resumenVentas!=null)
+					resumenVentas.registrar(c, facturasGrupo);
+				//al final, para bloquear lo menos posible las filas de producto:
+				vendidas=descontarExistencias(c, facturasGrupo);
+				transaccion=InstantaneaVentas.transaccion(c);
+				em.getTransaction().commit();
+			}catch(Exception e){
+				if(em.getTransaction().isActive())
+					em.getTransaction().rollback();
+				//un reintento recibe otro numero (en numeracion estricta el rollback lo devolvio):
+				for(int i=0;i<grupo.size();i++)
+					if(sinNumero[i])
+						grupo.get(i).factura.setNumeroFactura(null);
+				throw e;
+			}
+			//la cache compartida de EclipseLink tiene la existencia anterior:
+			for(Integer codigo:vendidas.keySet())
+				em.getEntityManagerFactory().getCache().evict(Producto.class, codigo);
+		}finally{
+			ManagerDAO.cerrarContexto();
+		}
+		InstantaneaVentas.registrar(facturasGrupo, transaccion);
+		facturas.addAndGet(grupo.size());
+		grupos.incrementAndGet();
+	}
+
+	/**
+	 * Descuenta de la tabla producto lo vendido por las facturas, sumado por
+	 * producto y en orden de codigo, para que dos transacciones bloqueen las
+	 * filas en el mismo orden. Cada fila se actualiza solo si su existencia
+	 * alcanza.
+	 * @return cantidad vendida por codigo de producto.
+	 * @throws FacturaRechazada si la existencia de algun producto no alcanza.
+	 */
+	private static Map<Integer,Integer> descontarExistencias(Connection c,List<FacturaCab> facturas)
+			throws SQLException,FacturaRechazada{
+		Map<Integer,Integer> vendidas=new TreeMap<Integer,Integer>();
+		for(FacturaCab f:facturas)
+			for(FacturaDet det:f.getFacturaDets()){
+				Integer codigo=det.getProducto().getCodigoProducto();
+				Integer anterior=vendidas.get(codigo);
+				vendidas.put(codigo, Integer.valueOf((anterior==null?0:anterior.intValue())+det.getCantidad().intValue()));
+			}
+		PreparedStatement ps=c.prepareStatement(DESCONTAR_EXISTENCIA);
+		try{
+			for(Map.Entry<Integer,Integer> v:vendidas.entrySet()){
+				ps.setInt(1, v.getValue().intValue());
+				ps.setInt(2, v.getKey().intValue());
+				ps.setInt(3, v.getValue().intValue());
+				ps.addBatch();
+			}
+			int[] filas=ps.executeBatch();
+			int i=0;
+			for(Integer codigo:vendidas.keySet())
+				if(filas[i++]==0)
+					throw new FacturaRechazada("Existencia insuficiente del producto "+codigo+".");
+		}finally{
+			ps.close();
+		}
+		return vendidas;
+	}
+
+	/**
+	 * Devuelve la falla de una factura: una {@link FacturaRechazada} tal cual,
+	 * y cualquier otra, registrada en la bitacora, como {@link ErrorPersistencia}.
+	 */
+	private Exception error(Exception e){
+		if(e instanceof FacturaRechazada)
+			return e;
+		SQLException sqle=e instanceof SQLException?((SQLException)e).getNextException():null;
+		ErrorPersistencia error=new ErrorPersistencia("No se pudo guardar la factura: "+e.getMessage()
+				+(sqle==null?"":" ("+sqle.getMessage()+")"), e);
+		if(error.isTemporal())
+			log.advertencia("error", error.getMessage());
+		else
+			log.error("error", error.getMessage(), e);
+		return error;
+	}
+
+	/**
+	 * @return numero de facturas guardadas.
+	 */
+	long getFacturas(){
+		return facturas.get();
+	}
+
+	/**
+	 * @return numero de transacciones (grupos) confirmadas.
+	 */
+	long getGrupos(){
+		return grupos.get();
+	}
+
+	@Override
+	public String toString(){
+		return "GuardadoAgrupado[maximo="+maximo+", facturas="+getFacturas()+", grupos="+getGrupos()+"]";
+	}
+
+}
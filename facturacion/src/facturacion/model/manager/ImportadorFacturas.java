@@ -0,0 +1,198 @@
+package facturacion.model.manager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.FacturaDet;
+import facturacion.model.dao.entities.Producto;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Carga masiva de facturas (cabecera y detalles) con inserciones JDBC por lotes.
+ * Los numeros de factura y de detalle se reservan por rangos en
+ * {@link ManagerNumeracion}; en cada lote se insertan primero todas las
+ * cabeceras y luego todos los detalles, y se confirma la transaccion cada
+ * cierto numero de facturas. Con el resumen de ventas activo (ver
+ * {@link ResumenVentas}) sus tablas se actualizan en cada transaccion, y
+ * despues de confirmarla se agregan las facturas a la {@link InstantaneaVentas}.
+ * @author mrea
+ *
+ */
+class ImportadorFacturas {
+	private static final Bitacora log=Bitacora.getBitacora(ImportadorFacturas.class);
+	static final String INSERT_CAB="INSERT INTO factura_cab (numero_factura,fecha_emision,cedula_cliente,"
+			+"subtotal,base_cero,valor_iva,total) VALUES (?,?,?,?,?,?,?)";
+	static final String INSERT_DET="INSERT INTO factura_det (numero_factura_det,numero_factura,"
+			+"codigo_producto,cantidad,precio_unitario_venta) VALUES (?,?,?,?,?)";
+
+	private final ManagerFacturacion managerFacturacion;
+	private final ManagerNumeracion managerNumeracion;
+	private final long porcentajeIVA;
+
+	ImportadorFacturas(ManagerFacturacion managerFacturacion,ManagerNumeracion managerNumeracion,long porcentajeIVA){
+		this.managerFacturacion=managerFacturacion;
+		this.managerNumeracion=managerNumeracion;
+		this.porcentajeIVA=porcentajeIVA;
+	}
+
+	/**
+	 * Importa las facturas.
+	 * @param facturas facturas a importar.
+	 * @param tamanioLote numero de facturas enviadas en cada lote JDBC.
+	 * @param tamanioCommit numero de facturas por transaccion (se redondea a un multiplo del lote).
+	 * @return resultado de la importacion.
+	 * @throws Exception si una factura no es valida o falla la base de datos; las
+	 * transacciones ya confirmadas se conservan.
+	 */
+	ResultadoImportacion importar(Iterator<FacturaCab> facturas,int tamanioLote,int tamanioCommit) throws Exception{
+		if(tamanioLote<=0||tamanioCommit<=0)
+			throw new Exception("Los tamaños de lote y commit deben ser mayores a cero.");
+		ResultadoImportacion resultado=new ResultadoImportacion();
+		long inicio=System.currentTimeMillis();
+		List<FacturaCab> grupo=new ArrayList<FacturaCab>();
+		try{
+			ResumenVentas resumenVentas=ResumenVentas.getActivo();
+			while(facturas.hasNext()){
+				//el grupo se lee y se completa antes de abrir la transaccion: las
+				//consultas del DAO (precios de productos) confirman la transaccion activa.
+				grupo.clear();
+				int porCommit=Math.max(tamanioLote, tamanioCommit/tamanioLote*tamanioLote);
+				while(grupo.size()<porCommit&&facturas.hasNext()){
+					FacturaCab f=facturas.next();
+					preparar(f);
+					grupo.add(f);
+				}
+				long transaccion;
+				EntityManager em=ManagerDAO.abrirContexto();
+				try{
+					em.getTransaction().begin();
+					Connection c=em.unwrap(Connection.class);
+					PreparedStatement psCab=c.prepareStatement(INSERT_CAB);
+					PreparedStatement psDet=c.prepareStatement(INSERT_DET);
+					try{
+						for(int i=0;i<grupo.size();i+=tamanioLote)
+							escribirLote(grupo.subList(i, Math.min(i+tamanioLote, grupo.size())), psCab, psDet, resultado);
+					}finally{
+						psCab.close();
+						psDet.close();
+					}
+					if(resumenVentas!=null)
+						resumenVentas.registrar(c, grupo);
+					transaccion=InstantaneaVentas.transaccion(c);
+					em.getTransaction().commit();
+					resultado.registrarCommit();
+				}finally{
+					ManagerDAO.cerrarContexto();
+				}
+				InstantaneaVentas.registrar(grupo, transaccion);
+				resultado.setMilisegundos(System.currentTimeMillis()-inicio);
+				log.informacion("importar", "{}", resultado);
+			}
+		}catch(Exception e){
+			log.error("importar", "Error en la importacion tras "+resultado.getFacturas()+" facturas", e);
+			SQLException sqle=e instanceof SQLException?((SQLException)e).getNextException():null;
+			throw new Exception("Error en la importacion, se guardaron "+resultado.getFacturas()
+					+" facturas: "+e.getMessage()+(sqle==null?"":" ("+sqle.getMessage()+")"));
+		}
+		resultado.setMilisegundos(System.currentTimeMillis()-inicio);
+		return resultado;
+	}
+
+	/**
+	 * Valida la factura y completa los precios, la fecha y los totales que falten.
+	 */
+	private void preparar(FacturaCab f) throws Exception{
+		validar(f);
+		if(f.getFechaEmision()==null)
+			f.setFechaEmision(new Date());
+		for(FacturaDet det:f.getFacturaDets()){
+			det.setFacturaCab(f);
+			if(det.getPrecioUnitarioVenta()==null){
+				Producto p=managerFacturacion.findProductoById(det.getProducto().getCodigoProducto());
+				if(p==null)
+					throw new Exception("No existe el producto "+det.getProducto().getCodigoProducto()+".");
+				det.setPrecioUnitarioVenta(p.getPrecioUnitario());
+			}
+		}
+		if(f.getTotal()==null)
+			CalculadoraTotales.recalcular(f, porcentajeIVA);
+	}
+
+	private void escribirLote(List<FacturaCab> lote,PreparedStatement psCab,PreparedStatement psDet,
+			ResultadoImportacion resultado) throws Exception{
+		int sinNumero=0,detalles=0;
+		for(FacturaCab f:lote){
+			if(f.getNumeroFactura()==null)
+				sinNumero++;
+			detalles+=f.getFacturaDets().size();
+		}
+		long numeroFactura=sinNumero==0?0:managerNumeracion.reservarRango(ManagerNumeracion.CONT_FACTURAS, sinNumero);
+		long numeroDetalle=managerNumeracion.reservarRango(ManagerNumeracion.CONT_FACTURAS_DET, detalles);
+
+		for(FacturaCab f:lote){
+			if(f.getNumeroFactura()==null)
+				f.setNumeroFactura(Long.toString(numeroFactura++));
+			for(FacturaDet det:f.getFacturaDets())
+				det.setNumeroFacturaDet(new Integer((int)numeroDetalle++));
+
+			agregarCabecera(psCab, f);
+		}
+		//las cabeceras primero, por la clave foranea de los detalles:
+		psCab.executeBatch();
+		for(FacturaCab f:lote)
+			agregarDetalles(psDet, f);
+		psDet.executeBatch();
+		resultado.sumar(lote.size(), detalles);
+	}
+
+	/**
+	 * Agrega la cabecera de la factura al lote de {@link #INSERT_CAB}.
+	 */
+	static void agregarCabecera(PreparedStatement psCab,FacturaCab f) throws SQLException{
+		psCab.setString(1, f.getNumeroFactura());
+		psCab.setDate(2, new java.sql.Date(f.getFechaEmision().getTime()));
+		psCab.setString(3, f.getCliente().getCedulaCliente());
+		psCab.setBigDecimal(4, f.getSubtotal());
+		psCab.setBigDecimal(5, f.getBaseCero());
+		psCab.setBigDecimal(6, f.getValorIva());
+		psCab.setBigDecimal(7, f.getTotal());
+		psCab.addBatch();
+	}
+
+	/**
+	 * Agrega los detalles (ya numerados) de la factura al lote de {@link #INSERT_DET}.
+	 */
+	static void agregarDetalles(PreparedStatement psDet,FacturaCab f) throws SQLException{
+		for(FacturaDet det:f.getFacturaDets()){
+			psDet.setInt(1, det.getNumeroFacturaDet().intValue());
+			psDet.setString(2, f.getNumeroFactura());
+			psDet.setInt(3, det.getProducto().getCodigoProducto().intValue());
+			psDet.setInt(4, det.getCantidad().intValue());
+			psDet.setBigDecimal(5, det.getPrecioUnitarioVenta());
+			psDet.addBatch();
+		}
+	}
+
+	private void validar(FacturaCab f) throws Exception{
+		if(f.getCliente()==null||f.getCliente().getCedulaCliente()==null)
+			throw new Exception("La factura "+f.getNumeroFactura()+" no tiene cliente.");
+		if(f.getFacturaDets()==null||f.getFacturaDets().isEmpty())
+			throw new Exception("La factura "+f.getNumeroFactura()+" no tiene detalles.");
+		for(FacturaDet det:f.getFacturaDets()){
+			Producto p=det.getProducto();
+			if(p==null||p.getCodigoProducto()==null)
+				throw new Exception("La factura "+f.getNumeroFactura()+" tiene un detalle sin producto.");
+			if(det.getCantidad()==null||det.getCantidad().intValue()<=0)
+				throw new Exception("La factura "+f.getNumeroFactura()+" tiene un detalle sin cantidad.");
+		}
+	}
+
+}
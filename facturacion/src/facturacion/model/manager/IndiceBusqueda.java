@@ -0,0 +1,668 @@
+package facturacion.model.manager;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Indice de busqueda de texto en memoria para autocompletar.
+ * Cada elemento se describe con uno o mas campos de texto (ver
+ * {@link #getCampos(Object)}), cada uno con un peso. Los campos se normalizan
+ * (minusculas, sin tildes) y se dividen en terminos:
+ * <ul>
+ * <li>los terminos se guardan ordenados, de modo que la busqueda por prefijo
+ * es un recorrido de un rango del arbol.</li>
+ * <li>opcionalmente se guardan los trigramas de cada termino, para encontrar
+ * texto en medio de una palabra o con un error de escritura cuando los
+ * prefijos no dan suficientes resultados.</li>
+ * </ul>
+ * Todos los terminos de la consulta deben coincidir (AND); el puntaje de un
+ * elemento es la suma del mejor puntaje de cada termino, y se devuelven los
+ * k mejores (empates ordenados por el primer campo).
+ * El indice se actualiza por elemento ({@link #agregar(Object)},
+ * {@link #quitar(Object)}); las busquedas concurrentes solo comparten un
+ * candado de lectura.
+ * @author mrea
+ *
+ * @param <T> tipo de los elementos indexados.
+ */
+public abstract class IndiceBusqueda<T> {
+	private static final int TAMANIO_NGRAMA=3;
+	/** fraccion minima (en porcentaje) de trigramas del termino que deben coincidir. */
+	private static final int NGRAMAS_MINIMO=60;
+	/** los pesos se guardan en los 4 bits bajos de cada posting. */
+	private static final int BITS_PESO=4;
+	private static final int MAXIMO_PESO=(1<<BITS_PESO)-1;
+	/** entradas maximas de un marcador que se guarda para otra busqueda. */
+	private static final int MAXIMO_REUSO=4096;
+	private static final Pattern MARCAS=Pattern.compile("\\p{M}+");
+	private static final Pattern SEPARADORES=Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	private final int[] pesos;
+	private final boolean conNgramas;
+	private final ReentrantReadWriteLock candado=new ReentrantReadWriteLock();
+
+	/** termino -> posiciones de los elementos que lo contienen. */
+	private final TreeMap<String,Postings> terminos=new TreeMap<String,Postings>();
+	/** trigrama -> posiciones de los elementos con un termino que lo contiene. */
+	private final Map<String,Postings> ngramas=new HashMap<String,Postings>();
+	/** clave del elemento -> posicion. */
+	private final Map<Object,Integer> posiciones=new HashMap<Object,Integer>();
+	private final List<Slot<T>> slots=new ArrayList<Slot<T>>();
+	private final List<Integer> libres=new ArrayList<Integer>();
+	/** primeros caracteres del orden de cada posicion, para desempatar sin leer el Slot. */
+	private long[] clavesOrden=new long[16];
+
+	/**
+	 * Marcadores libres para reutilizar entre busquedas; a lo sumo uno por
+	 * procesador y sin los que crecieron mas de MAXIMO_REUSO entradas.
+	 */
+	private final ArrayBlockingQueue<Marcador> marcadores=
+			new ArrayBlockingQueue<Marcador>(Runtime.getRuntime().availableProcessors());
+
+	private final AtomicLong busquedas=new AtomicLong();
+	private final AtomicLong busquedaTotalNanos=new AtomicLong();
+
+	/**
+	 * Elemento indexado junto con lo necesario para quitarlo y ordenarlo.
+	 */
+	private static class Slot<T>{
+		private final T elemento;
+		private final String orden;
+		/** terminos del elemento (las mismas instancias que las claves del arbol). */
+		private final String[] terminos;
+		private Slot(T elemento,String orden,String[] terminos){
+			this.elemento=elemento;
+			this.orden=orden;
+			this.terminos=terminos;
+		}
+	}
+
+	/**
+	 * Lista compacta de postings (posicion y peso en un int).
+	 */
+	private static class Postings{
+		private int[] valores=new int[2];
+		private int tamanio;
+
+		private void agregar(int valor){
+			if(tamanio==valores.length){
+				int[] nuevos=new int[tamanio*2];
+				System.arraycopy(valores, 0, nuevos, 0, tamanio);
+				valores=nuevos;
+			}
+			valores[tamanio++]=valor;
+		}
+
+		private void quitar(int posicion){
+			int j=0;
+			for(int i=0;i<tamanio;i++)
+				if(valores[i]>>>BITS_PESO!=posicion)
+					valores[j++]=valores[i];
+			tamanio=j;
+		}
+	}
+
+	/**
+	 * Puntajes de una busqueda, solo para los elementos que aparecen en los
+	 * postings recorridos: una tabla hash de direccionamiento abierto (posicion
+	 * del elemento -> entrada) y arreglos paralelos por entrada, que crecen con
+	 * las coincidencias y no con el tamanio del indice. Cada busqueda usa el
+	 * suyo (ver marcadores). nivel[e] es el numero de terminos de la consulta
+	 * con que ya coincidio el elemento de la entrada e.
+	 */
+	private static class Marcador{
+		/** entrada+1 de cada posicion de la tabla; 0 si esta libre. */
+		private int[] tabla=new int[128];
+		private int[] posicion=new int[64];
+		private int[] nivel=new int[64], mejor=new int[64], total=new int[64];
+		private int[] cuenta=new int[64], suma=new int[64], marca=new int[64];
+		private int nEntradas;
+		private int[] ngramas=new int[64];
+		private int nNgramas;
+		private int sello;
+
+		/**
+		 * @return la entrada del elemento s; si no tiene, una nueva (crear) o -1.
+		 */
+		private int entrada(int s,boolean crear){
+			int mascara=tabla.length-1;
+			for(int h=mezclar(s)&mascara;;h=(h+1)&mascara){
+				int e=tabla[h]-1;
+				if(e<0){
+					if(!crear)
+						return -1;
+					if(nEntradas==posicion.length){
+						crecer();
+						return entrada(s, true);
+					}
+					e=nEntradas++;
+					posicion[e]=s;
+					nivel[e]=0;
+					mejor[e]=0;
+					total[e]=0;
+					marca[e]=0;
+					tabla[h]=e+1;
+					return e;
+				}
+				if(posicion[e]==s)
+					return e;
+			}
+		}
+
+		/**
+		 * Asegura lugar para al menos n entradas.
+		 */
+		private void reservar(int n){
+			int capacidad=posicion.length;
+			while(capacidad<n)
+				capacidad*=2;
+			if(capacidad>posicion.length)
+				redimensionar(capacidad);
+		}
+
+		private void crecer(){
+			redimensionar(posicion.length*2);
+		}
+
+		/**
+		 * Cambia la capacidad de las entradas a n, con una tabla de 2n (a lo
+		 * sumo la mitad ocupada).
+		 */
+		private void redimensionar(int n){
+			posicion=Arrays.copyOf(posicion, n);
+			nivel=Arrays.copyOf(nivel, n);
+			mejor=Arrays.copyOf(mejor, n);
+			total=Arrays.copyOf(total, n);
+			cuenta=Arrays.copyOf(cuenta, n);
+			suma=Arrays.copyOf(suma, n);
+			marca=Arrays.copyOf(marca, n);
+			tabla=new int[n*2];
+			int mascara=tabla.length-1;
+			for(int e=0;e<nEntradas;e++){
+				int h=mezclar(posicion[e])&mascara;
+				while(tabla[h]!=0)
+					h=(h+1)&mascara;
+				tabla[h]=e+1;
+			}
+		}
+
+		private static int mezclar(int s){
+			int h=s*0x9E3779B9;
+			return h^(h>>>16);
+		}
+
+		/**
+		 * Registra las coincidencias del termino i con los elementos de la
+		 * lista. Solo el primer termino crea entradas: un elemento sin entrada
+		 * ya no puede coincidir con todos los terminos.
+		 */
+		private void registrar(Postings p,int i,int factor){
+			int[] valores=p.valores;
+			for(int j=0,n=p.tamanio;j<n;j++){
+				int e=entrada(valores[j]>>>BITS_PESO, i==0);
+				if(e>=0)
+					registrarEntrada(e, i, (valores[j]&MAXIMO_PESO)*factor);
+			}
+		}
+
+		/**
+		 * Registra una coincidencia del termino i con el elemento de la entrada e.
+		 */
+		private void registrarEntrada(int e,int i,int puntaje){
+			if(nivel[e]==i){
+				nivel[e]=i+1;
+				mejor[e]=puntaje;
+			}else if(nivel[e]==i+1&&puntaje>mejor[e])
+				mejor[e]=puntaje;
+		}
+
+		/**
+		 * Suma el mejor puntaje del termino i a los elementos que coincidieron.
+		 * @return numero de elementos que coinciden con los terminos 0 a i.
+		 */
+		private int cerrarTermino(int i){
+			int vivos=0;
+			for(int e=0;e<nEntradas;e++){
+				if(nivel[e]==i+1){
+					total[e]+=mejor[e];
+					vivos++;
+				}
+			}
+			return vivos;
+		}
+
+		private void iniciarNgramas(){
+			sello++;
+			nNgramas=0;
+		}
+
+		private void contarNgrama(int s,int i,int peso){
+			int e=entrada(s, i==0);
+			if(e<0||nivel[e]<i)
+				return;
+			if(marca[e]!=sello){
+				marca[e]=sello;
+				cuenta[e]=0;
+				suma[e]=0;
+				ngramas=agregar(ngramas, nNgramas++, e);
+			}
+			cuenta[e]++;
+			suma[e]+=peso;
+		}
+
+		private void limpiar(){
+			Arrays.fill(tabla, 0);
+			nEntradas=0;
+		}
+
+		private static int[] agregar(int[] arreglo,int posicion,int valor){
+			if(posicion==arreglo.length){
+				int[] nuevo=new int[posicion*2];
+				System.arraycopy(arreglo, 0, nuevo, 0, posicion);
+				arreglo=nuevo;
+			}
+			arreglo[posicion]=valor;
+			return arreglo;
+		}
+	}
+
+	/**
+	 * @param pesos peso (1 a 15) de cada campo devuelto por {@link #getCampos(Object)}.
+	 * @param conNgramas si se indexan trigramas ademas de prefijos.
+	 */
+	protected IndiceBusqueda(int[] pesos,boolean conNgramas){
+		this.pesos=pesos.clone();
+		for(int i=0;i<this.pesos.length;i++)
+			this.pesos[i]=Math.max(1, Math.min(MAXIMO_PESO, this.pesos[i]));
+		this.conNgramas=conNgramas;
+	}
+
+	/**
+	 * @param elemento elemento indexado.
+	 * @return clave unica del elemento.
+	 */
+	protected abstract Object getClave(T elemento);
+
+	/**
+	 * @param elemento elemento indexado.
+	 * @return texto de cada campo indexado (puede haber null), en el orden de
+	 * los pesos; el primero se usa ademas para ordenar los empates.
+	 */
+	protected abstract String[] getCampos(T elemento);
+
+	/**
+	 * Reemplaza todo el contenido del indice.
+	 * @param elementos elementos a indexar.
+	 */
+	public void cargar(Collection<T> elementos){
+		candado.writeLock().lock();
+		try{
+			terminos.clear();
+			ngramas.clear();
+			posiciones.clear();
+			slots.clear();
+			libres.clear();
+			clavesOrden=new long[Math.max(16, elementos.size())];
+			for(T e:elementos)
+				agregarSinCandado(e);
+		}finally{
+			candado.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Agrega un elemento, o lo reemplaza si ya existe uno con la misma clave.
+	 * @param elemento elemento a indexar.
+	 */
+	public void agregar(T elemento){
+		candado.writeLock().lock();
+		try{
+			agregarSinCandado(elemento);
+		}finally{
+			candado.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Quita del indice el elemento con la clave indicada.
+	 * @param clave clave del elemento.
+	 */
+	public void quitar(Object clave){
+		candado.writeLock().lock();
+		try{
+			quitarSinCandado(clave);
+		}finally{
+			candado.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Busca un elemento por su clave.
+	 * @param clave clave del elemento.
+	 * @return el elemento, o null si no esta indexado.
+	 */
+	public T get(Object clave){
+		candado.readLock().lock();
+		try{
+			Integer p=posiciones.get(clave);
+			return p==null?null:slots.get(p.intValue()).elemento;
+		}finally{
+			candado.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return numero de elementos indexados.
+	 */
+	public int getTamanio(){
+		candado.readLock().lock();
+		try{
+			return posiciones.size();
+		}finally{
+			candado.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Busca los elementos que coinciden con todos los terminos del texto.
+	 * @param texto texto escrito por el usuario.
+	 * @param maximo numero maximo de resultados.
+	 * @return los mejores resultados, de mayor a menor puntaje.
+	 */
+	public List<T> buscar(String texto,int maximo){
+		List<String> consulta=tokenizar(texto);
+		if(consulta.isEmpty()||maximo<=0)
+			return Collections.emptyList();
+		long inicio=System.nanoTime();
+		Marcador m=marcadores.poll();
+		if(m==null)
+			m=new Marcador();
+		candado.readLock().lock();
+		try{
+			int encontrados=puntuar(consulta, false, m);
+			if(conNgramas&&encontrados<maximo){
+				m.limpiar();
+				puntuar(consulta, true, m);
+			}
+			return mejores(m, consulta.size(), maximo);
+		}finally{
+			candado.readLock().unlock();
+			if(m.posicion.length<=MAXIMO_REUSO){
+				m.limpiar();
+				marcadores.offer(m);
+			}
+			busquedas.incrementAndGet();
+			busquedaTotalNanos.addAndGet(System.nanoTime()-inicio);
+		}
+	}
+
+	/**
+	 * Calcula en el marcador el puntaje de los elementos que coinciden con
+	 * todos los terminos de la consulta.
+	 * @return numero de elementos encontrados.
+	 */
+	private int puntuar(List<String> consulta,boolean usarNgramas,Marcador m){
+		int encontrados=0;
+		for(int i=0;i<consulta.size();i++){
+			String termino=consulta.get(i);
+			SortedMap<String,Postings> prefijos=terminos.subMap(termino, true, termino+Character.MAX_VALUE, false);
+			if(i==0){
+				//el primer termino crea las entradas: se reservan de una vez.
+				int postings=0;
+				for(Postings p:prefijos.values())
+					postings+=p.tamanio;
+				m.reservar(Math.min(postings, slots.size()));
+			}
+			//prefijos (una coincidencia exacta vale el doble):
+			for(Map.Entry<String,Postings> e:prefijos.entrySet()){
+				int factor=e.getKey().length()==termino.length()?8:4;
+				m.registrar(e.getValue(), i, factor);
+			}
+			if(usarNgramas&&termino.length()>=TAMANIO_NGRAMA)
+				puntuarNgramas(termino, i, m);
+			encontrados=m.cerrarTermino(i);
+			if(encontrados==0)
+				break;
+		}
+		return encontrados;
+	}
+
+	/**
+	 * Registra los elementos que comparten al menos el NGRAMAS_MINIMO por
+	 * ciento de los trigramas del termino, con un puntaje menor al de un prefijo.
+	 */
+	private void puntuarNgramas(String termino,int i,Marcador m){
+		List<String> lista=ngramasDe(termino);
+		m.iniciarNgramas();
+		for(String ng:lista){
+			Postings p=ngramas.get(ng);
+			if(p!=null)
+				for(int j=0;j<p.tamanio;j++)
+					m.contarNgrama(p.valores[j]>>>BITS_PESO, i, p.valores[j]&MAXIMO_PESO);
+		}
+		int minimo=(lista.size()*NGRAMAS_MINIMO+99)/100;
+		for(int j=0;j<m.nNgramas;j++){
+			int e=m.ngramas[j];
+			if(m.cuenta[e]>=minimo)
+				m.registrarEntrada(e, i, m.suma[e]*2/lista.size());
+		}
+	}
+
+	/**
+	 * Selecciona los k mejores elementos del marcador (seleccion parcial, sin
+	 * ordenar todos los encontrados).
+	 */
+	private List<T> mejores(Marcador m,int nTerminos,int maximo){
+		int[] elegidos=new int[maximo];
+		int[] nivel=m.nivel, total=m.total;
+		int n=0;
+		for(int e=0,nEntradas=m.nEntradas;e<nEntradas;e++){
+			if(nivel[e]!=nTerminos)
+				continue;
+			if(n==maximo&&(total[e]<total[elegidos[n-1]]||comparar(m, e, elegidos[n-1])<=0))
+				continue;
+			int k=n<maximo?n++:n-1;
+			while(k>0&&comparar(m, e, elegidos[k-1])>0){
+				elegidos[k]=elegidos[k-1];
+				k--;
+			}
+			elegidos[k]=e;
+		}
+		List<T> resultado=new ArrayList<T>(n);
+		for(int j=0;j<n;j++)
+			resultado.add(slots.get(m.posicion[elegidos[j]]).elemento);
+		return resultado;
+	}
+
+	/**
+	 * Compara dos entradas del marcador: mayor puntaje primero; en los
+	 * empates, orden alfabetico del primer campo.
+	 */
+	private int comparar(Marcador m,int a,int b){
+		int c=m.total[a]-m.total[b];
+		if(c!=0)
+			return c;
+		int sa=m.posicion[a], sb=m.posicion[b];
+		if(clavesOrden[sa]!=clavesOrden[sb])
+			return clavesOrden[sa]<clavesOrden[sb]?1:-1;
+		return slots.get(sb).orden.compareTo(slots.get(sa).orden);
+	}
+
+	private void agregarSinCandado(T elemento){
+		Object clave=getClave(elemento);
+		quitarSinCandado(clave);
+		String[] campos=getCampos(elemento);
+		//termino -> mejor peso entre los campos donde aparece:
+		Map<String,Integer> pesoTermino=new HashMap<String,Integer>();
+		for(int i=0;i<campos.length&&i<pesos.length;i++)
+			for(String t:tokenizar(campos[i])){
+				Integer previo=pesoTermino.get(t);
+				if(previo==null||previo.intValue()<pesos[i])
+					pesoTermino.put(t, Integer.valueOf(pesos[i]));
+			}
+		Map<String,Integer> pesoNgrama=new HashMap<String,Integer>();
+		if(conNgramas)
+			for(Map.Entry<String,Integer> e:pesoTermino.entrySet())
+				for(String ng:ngramasDe(e.getKey())){
+					Integer previo=pesoNgrama.get(ng);
+					if(previo==null||previo.intValue()<e.getValue().intValue())
+						pesoNgrama.put(ng, e.getValue());
+				}
+
+		int posicion;
+		if(libres.isEmpty()){
+			posicion=slots.size();
+			slots.add(null);
+		}else
+			posicion=libres.remove(libres.size()-1).intValue();
+		String[] lista=new String[pesoTermino.size()];
+		int i=0;
+		for(Map.Entry<String,Integer> e:pesoTermino.entrySet())
+			lista[i++]=agregarTermino(e.getKey(), posicion<<BITS_PESO|e.getValue().intValue());
+		for(Map.Entry<String,Integer> e:pesoNgrama.entrySet())
+			postings(ngramas, e.getKey()).agregar(posicion<<BITS_PESO|e.getValue().intValue());
+		Slot<T> slot=new Slot<T>(elemento, campos.length==0||campos[0]==null?"":normalizar(campos[0]), lista);
+		slots.set(posicion, slot);
+		posiciones.put(clave, Integer.valueOf(posicion));
+		if(posicion>=clavesOrden.length){
+			long[] nuevas=new long[Math.max(posicion+1, clavesOrden.length*2)];
+			System.arraycopy(clavesOrden, 0, nuevas, 0, clavesOrden.length);
+			clavesOrden=nuevas;
+		}
+		clavesOrden[posicion]=claveOrden(slot.orden);
+	}
+
+	/**
+	 * Agrega el posting al termino.
+	 * @return la instancia del termino guardada como clave del arbol, para
+	 * no retener una copia por elemento.
+	 */
+	private String agregarTermino(String termino,int valor){
+		Map.Entry<String,Postings> e=terminos.ceilingEntry(termino);
+		if(e!=null&&e.getKey().equals(termino)){
+			e.getValue().agregar(valor);
+			return e.getKey();
+		}
+		Postings p=new Postings();
+		p.agregar(valor);
+		terminos.put(termino, p);
+		return termino;
+	}
+
+	private void quitarSinCandado(Object clave){
+		Integer p=posiciones.remove(clave);
+		if(p==null)
+			return;
+		int posicion=p.intValue();
+		Slot<T> slot=slots.get(posicion);
+		for(String t:slot.terminos){
+			quitarPosting(terminos, t, posicion);
+			if(conNgramas)
+				for(String ng:ngramasDe(t))
+					quitarPosting(ngramas, ng, posicion);
+		}
+		slots.set(posicion, null);
+		libres.add(p);
+	}
+
+	/**
+	 * Empaqueta los primeros 4 caracteres del texto en un long que se compara
+	 * con &lt; en el mismo orden que el texto.
+	 */
+	private static long claveOrden(String orden){
+		long clave=0;
+		for(int i=0;i<4;i++)
+			clave=clave<<16|(i<orden.length()?orden.charAt(i):0);
+		return clave^Long.MIN_VALUE;
+	}
+
+	private static Postings postings(Map<String,Postings> mapa,String clave){
+		Postings p=mapa.get(clave);
+		if(p==null){
+			p=new Postings();
+			mapa.put(clave, p);
+		}
+		return p;
+	}
+
+	private static void quitarPosting(Map<String,Postings> mapa,String clave,int posicion){
+		Postings p=mapa.get(clave);
+		if(p==null)
+			return;
+		p.quitar(posicion);
+		if(p.tamanio==0)
+			mapa.remove(clave);
+	}
+
+	/**
+	 * Pasa el texto a minusculas y le quita las tildes.
+	 * @param texto texto original.
+	 * @return texto normalizado.
+	 */
+	static String normalizar(String texto){
+		boolean ascii=true;
+		for(int i=0;i<texto.length()&&ascii;i++)
+			ascii=texto.charAt(i)<128;
+		if(ascii)
+			return texto.toLowerCase();
+		String s=Normalizer.normalize(texto, Normalizer.Form.NFD);
+		return MARCAS.matcher(s).replaceAll("").toLowerCase();
+	}
+
+	/**
+	 * Divide el texto normalizado en terminos (letras y digitos).
+	 * @param texto texto original (puede ser null).
+	 * @return terminos del texto.
+	 */
+	static List<String> tokenizar(String texto){
+		List<String> lista=new ArrayList<String>();
+		if(texto==null)
+			return lista;
+		for(String t:SEPARADORES.split(normalizar(texto)))
+			if(t.length()>0)
+				lista.add(t);
+		return lista;
+	}
+
+	private static List<String> ngramasDe(String termino){
+		Set<String> lista=new LinkedHashSet<String>();
+		for(int i=0;i+TAMANIO_NGRAMA<=termino.length();i++)
+			lista.add(termino.substring(i, i+TAMANIO_NGRAMA));
+		return new ArrayList<String>(lista);
+	}
+
+	// ESTADISTICAS:
+
+	public long getBusquedas(){
+		return busquedas.get();
+	}
+
+	/**
+	 * @return duracion promedio (milisegundos) de una busqueda.
+	 */
+	public double getBusquedaPromedioMs(){
+		long n=busquedas.get();
+		return n==0?0:busquedaTotalNanos.get()/(n*1000000.0);
+	}
+
+	@Override
+	public String toString(){
+		return getClass().getSimpleName()+"[tamanio="+getTamanio()+", busquedas="+getBusquedas()
+				+", busquedaPromedioMs="+String.format("%.3f", getBusquedaPromedioMs())+"]";
+	}
+
+}
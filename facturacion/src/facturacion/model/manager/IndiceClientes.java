@@ -0,0 +1,61 @@
+package facturacion.model.manager;
+
+import facturacion.model.dao.entities.Cliente;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Indice en memoria de los clientes para autocompletar el cliente de una
+ * factura: busca por prefijo en la cedula y en "apellidos nombres" (sin
+ * trigramas, solo el arbol ordenado de terminos).
+ * Se carga completo la primera vez que se usa y luego
+ * {@link ManagerFacturacion} lo actualiza cliente por cliente al insertar,
+ * actualizar o eliminar. Los clientes del indice son compartidos y no deben
+ * modificarse.
+ * @author mrea
+ *
+ */
+public class IndiceClientes extends IndiceBusqueda<Cliente> {
+	private static final Bitacora log=Bitacora.getBitacora(IndiceClientes.class);
+	private static final int[] PESOS={8,12};
+
+	private static IndiceClientes instancia;
+
+	/**
+	 * Devuelve el indice de clientes de la aplicacion, cargandolo desde la
+	 * base de datos la primera vez.
+	 * @return el indice de clientes.
+	 */
+	public static synchronized IndiceClientes getInstancia(){
+		if(instancia==null){
+			IndiceClientes indice=new IndiceClientes();
+			indice.recargar();
+			instancia=indice;
+		}
+		return instancia;
+	}
+
+	public IndiceClientes(){
+		super(PESOS, false);
+	}
+
+	/**
+	 * Vuelve a cargar todos los clientes desde la base de datos.
+	 */
+	public void recargar(){
+		long inicio=System.currentTimeMillis();
+		cargar(new ManagerDAO().findNamedSoloLectura(Cliente.class, "Cliente.findAll", null));
+		log.informacion("recargar", "{} clientes indexados en {} ms", getTamanio(), System.currentTimeMillis()-inicio);
+	}
+
+	@Override
+	protected Object getClave(Cliente c){
+		return c.getCedulaCliente();
+	}
+
+	@Override
+	protected String[] getCampos(Cliente c){
+		String nombre=(c.getApellidos()==null?"":c.getApellidos())+" "+(c.getNombres()==null?"":c.getNombres());
+		return new String[]{nombre.trim(), c.getCedulaCliente()};
+	}
+
+}
@@ -0,0 +1,62 @@
+package facturacion.model.manager;
+
+import facturacion.model.dao.entities.Producto;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Indice en memoria del catalogo de productos para autocompletar las lineas
+ * de una factura: busca por prefijo y por trigramas en nombre, codigoProducto
+ * y descripcion (en ese orden de importancia; un codigo exacto queda primero).
+ * Se carga completo la primera vez que se usa y luego
+ * {@link ManagerFacturacion} lo actualiza producto por producto al insertar,
+ * actualizar o eliminar. Los productos del indice son compartidos y no deben
+ * modificarse.
+ * @author mrea
+ *
+ */
+public class IndiceProductos extends IndiceBusqueda<Producto> {
+	private static final Bitacora log=Bitacora.getBitacora(IndiceProductos.class);
+	private static final int[] PESOS={8,12,3};
+
+	private static IndiceProductos instancia;
+
+	/**
+	 * Devuelve el indice de productos de la aplicacion, cargandolo desde la
+	 * base de datos la primera vez.
+	 * @return el indice de productos.
+	 */
+	public static synchronized IndiceProductos getInstancia(){
+		if(instancia==null){
+			IndiceProductos indice=new IndiceProductos();
+			indice.recargar();
+			instancia=indice;
+		}
+		return instancia;
+	}
+
+	public IndiceProductos(){
+		super(PESOS, true);
+	}
+
+	/**
+	 * Vuelve a cargar todos los productos desde la base de datos.
+	 */
+	public void recargar(){
+		long inicio=System.currentTimeMillis();
+		cargar(new ManagerDAO().findNamedSoloLectura(Producto.class, "Producto.findAll", null));
+		log.informacion("recargar", "{} productos indexados en {} ms", getTamanio(), System.currentTimeMillis()-inicio);
+	}
+
+	@Override
+	protected Object getClave(Producto p){
+		return p.getCodigoProducto();
+	}
+
+	@Override
+	protected String[] getCampos(Producto p){
+		return new String[]{p.getNombre(),
+				p.getCodigoProducto()==null?null:p.getCodigoProducto().toString(),
+				p.getDescripcion()};
+	}
+
+}
@@ -0,0 +1,761 @@
+package facturacion.model.manager;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.FacturaDet;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Instantanea en memoria de los detalles de factura para analisis de ventas,
+ * guardada por columnas en arreglos primitivos: producto, cantidad, valor e
+ * IVA en centavos, dia de emision (dias desde 1970-01-01) y cliente (indice
+ * en un diccionario de cedulas). Una linea ocupa 33 bytes, sin objetos.
+ * <p>
+ * Se carga desde la base de datos en la primera consulta (con un cursor del
+ * servidor) y despues se actualiza con las facturas que confirman
+ * {@link GuardadoAgrupado} e {@link ImportadorFacturas} (ver
+ * {@link #registrar(Collection, long)}), sin volver a leer las facturas y sin
+ * bloquear sus transacciones. Las facturas registradas mientras se carga se
+ * aplican al final, sin duplicar ni perder ninguna: cada registro trae el id
+ * de su transaccion (txid de PostgreSQL), y se omiten los que ya eran
+ * visibles en el snapshot de la carga.
+ * <p>
+ * Las consultas agrupan por producto, cliente, dia o mes con filtros de
+ * fechas, producto y cliente, recorriendo las columnas en paralelo: el rango
+ * de lineas se divide en partes que calculan sus grupos en
+ * facturacion.instantanea.hilos hilos, y los grupos parciales se suman al
+ * final (con 0 o menos, uno por procesador). Las lineas agregadas despues de empezar una consulta no cambian su
+ * resultado.
+ * <p>
+ * El IVA de cada factura se reparte entre sus lineas gravadas en proporcion a
+ * su valor (redondeado a centavos) y la diferencia de redondeo va a la ultima,
+ * por lo que las ventas por dia, mes o cliente suman exactamente el IVA de las
+ * facturas. Las facturas sin fecha de emision no se incluyen.
+ * @author mrea
+ *
+ */
+public class InstantaneaVentas {
+	public static final String POR_PRODUCTO="PRODUCTO";
+	public static final String POR_CLIENTE="CLIENTE";
+	public static final String POR_DIA="DIA";
+	public static final String POR_MES="MES";
+	public static final String PROP_HILOS="facturacion.instantanea.hilos";
+
+	private static final Bitacora log=Bitacora.getBitacora(InstantaneaVentas.class);
+
+	private static final String TRANSACCION="SELECT txid_current()";
+	private static final String SNAPSHOT="SELECT txid_current_snapshot()";
+	private static final String CONSULTA="SELECT c.numero_factura,c.fecha_emision,c.cedula_cliente,c.subtotal,"
+			+"c.base_cero,c.valor_iva,d.codigo_producto,d.cantidad,d.precio_unitario_venta,p.tiene_impuesto"
+			+" FROM factura_cab c JOIN factura_det d ON d.numero_factura=c.numero_factura"
+			+" LEFT JOIN producto p ON p.codigo_producto=d.codigo_producto"
+			+" WHERE c.fecha_emision IS NOT NULL ORDER BY c.numero_factura,d.numero_factura_det";
+	private static final int FETCH=10000;
+	/** Lineas minimas de cada parte de una consulta paralela. */
+	private static final int PARTE_MINIMA=32768;
+
+	/** Marca de la primera linea de una factura. */
+	private static final byte PRIMERA_DE_FACTURA=1;
+	/** Marca de la primera linea de un producto dentro de su factura. */
+	private static final byte PRIMERA_DE_PRODUCTO=2;
+
+	private static final int AGRUPAR_PRODUCTO=0;
+	private static final int AGRUPAR_CLIENTE=1;
+	private static final int AGRUPAR_DIA=2;
+	private static final int AGRUPAR_MES=3;
+
+	private static volatile InstantaneaVentas instancia;
+
+	private final int hilos;
+	private final ExecutorService ejecutor;
+
+	//protegidos por this:
+	private Escritura escritura;
+	private List<Registro> pendientes;
+	private boolean cargando;
+
+	/** Ultima version publicada de las columnas; las consultas no toman bloqueos. */
+	private volatile Columnas vista;
+
+	/**
+	 * Columnas publicadas: los arreglos pueden ser mas largos que tamanio y
+	 * seguir creciendo detras de el, pero las posiciones anteriores no cambian.
+	 */
+	private static class Columnas{
+		private final int[] producto;
+		private final int[] cantidad;
+		private final long[] valor;
+		private final long[] iva;
+		private final int[] dia;
+		private final int[] cliente;
+		private final byte[] marcas;
+		private final int tamanio;
+		private final String[] cedulas;
+		private final int clientes;
+		private Columnas(Escritura e){
+			producto=e.producto;
+			cantidad=e.cantidad;
+			valor=e.valor;
+			iva=e.iva;
+			dia=e.dia;
+			cliente=e.cliente;
+			marcas=e.marcas;
+			tamanio=e.tamanio;
+			cedulas=e.cedulas;
+			clientes=e.clientes;
+		}
+	}
+
+	/**
+	 * Facturas confirmadas en una transaccion, registradas durante una carga.
+	 */
+	private static class Registro{
+		private final long transaccion;
+		private final List<FacturaCab> facturas;
+		private Registro(long transaccion,Collection<FacturaCab> facturas){
+			this.transaccion=transaccion;
+			this.facturas=new ArrayList<FacturaCab>(facturas);
+		}
+	}
+
+	/**
+	 * Columnas en construccion, usadas por un solo hilo a la vez: la carga, o
+	 * los registros bajo el bloqueo de la instantanea. Cada factura se
+	 * arma con {@link #abrirFactura(int, String, long, long)} y
+	 * {@link #agregarLinea(int, int, long, boolean)}, y se agrega a las
+	 * columnas al cerrarla.
+	 */
+	private static class Escritura{
+		private int[] producto=new int[1024];
+		private int[] cantidad=new int[1024];
+		private long[] valor=new long[1024];
+		private long[] iva=new long[1024];
+		private int[] dia=new int[1024];
+		private int[] cliente=new int[1024];
+		private byte[] marcas=new byte[1024];
+		private int tamanio;
+		private String[] cedulas=new String[64];
+		private int clientes;
+		private final Map<String,Integer> idsClientes=new HashMap<String,Integer>();
+		//factura abierta:
+		private int diaFactura;
+		private int clienteFactura;
+		private long baseGravada;
+		private long ivaFactura;
+		private int inicio;
+		private boolean[] gravadas=new boolean[16];
+		/** txid_current_snapshot() de la transaccion de la carga. */
+		private String snapshot;
+
+		private void abrirFactura(int dia,String cedula,long baseGravada,long iva){
+			diaFactura=dia;
+			clienteFactura=idCliente(cedula==null?"":cedula);
+			this.baseGravada=baseGravada;
+			ivaFactura=iva;
+			inicio=tamanio;
+		}
+
+		private void agregarLinea(int codigoProducto,int unidades,long valorLinea,boolean gravada){
+			if(tamanio==producto.length)
+				crecer(tamanio*2);
+			int lineas=tamanio-inicio;
+			if(lineas==gravadas.length)
+				gravadas=Arrays.copyOf(gravadas, lineas*2);
+			gravadas[lineas]=gravada;
+			producto[tamanio]=codigoProducto;
+			cantidad[tamanio]=unidades;
+			valor[tamanio]=valorLinea;
+			dia[tamanio]=diaFactura;
+			cliente[tamanio]=clienteFactura;
+			byte marca=lineas==0?PRIMERA_DE_FACTURA:0;
+			marca|=PRIMERA_DE_PRODUCTO;
+			for(int i=inicio;i<tamanio;i++)
+				if(producto[i]==codigoProducto){
+					marca&=~PRIMERA_DE_PRODUCTO;
+					break;
+				}
+			marcas[tamanio]=marca;
+			tamanio++;
+		}
+
+		/**
+		 * Reparte el IVA de la factura abierta entre sus lineas.
+		 */
+		private void cerrarFactura(){
+			long asignado=0;
+			int ultima=tamanio-1;
+			for(int i=inicio;i<tamanio;i++){
+				iva[i]=0;
+				if(gravadas[i-inicio]&&baseGravada!=0){
+					iva[i]=CalculadoraTotales.dividirRedondeando(ivaFactura*valor[i], baseGravada);
+					asignado+=iva[i];
+					ultima=i;
+				}
+			}
+			if(ultima>=inicio)
+				iva[ultima]+=ivaFactura-asignado;
+		}
+
+		private void agregar(FacturaCab f){
+			if(f.getFechaEmision()==null||f.getFacturaDets()==null)
+				return;
+			abrirFactura(dia(f.getFechaEmision()), f.getCliente().getCedulaCliente(),
+					centavos(f.getSubtotal())-centavos(f.getBaseCero()), centavos(f.getValorIva()));
+			for(FacturaDet det:f.getFacturaDets())
+				agregarLinea(det.getProducto().getCodigoProducto().intValue(), det.getCantidad().intValue(),
+						CalculadoraTotales.valorLinea(det), !CalculadoraTotales.esBaseCero(det));
+			cerrarFactura();
+		}
+
+		private int idCliente(String cedula){
+			Integer id=idsClientes.get(cedula);
+			if(id==null){
+				if(clientes==cedulas.length)
+					cedulas=Arrays.copyOf(cedulas, clientes*2);
+				cedulas[clientes]=cedula;
+				id=Integer.valueOf(clientes++);
+				idsClientes.put(cedula, id);
+			}
+			return id.intValue();
+		}
+
+		/**
+		 * Pasa las columnas a arreglos nuevos: los publicados no se modifican
+		 * en las posiciones que ya ven las consultas.
+		 */
+		private void crecer(int capacidad){
+			producto=Arrays.copyOf(producto, capacidad);
+			cantidad=Arrays.copyOf(cantidad, capacidad);
+			valor=Arrays.copyOf(valor, capacidad);
+			iva=Arrays.copyOf(iva, capacidad);
+			dia=Arrays.copyOf(dia, capacidad);
+			cliente=Arrays.copyOf(cliente, capacidad);
+			marcas=Arrays.copyOf(marcas, capacidad);
+		}
+	}
+
+	/**
+	 * Grupos de una consulta: tabla hash de direccionamiento abierto sobre
+	 * claves enteras, con los acumulados en arreglos paralelos.
+	 */
+	private static class Grupos{
+		private int[] tabla=new int[64];
+		private int[] claves=new int[32];
+		private long[] facturas=new long[32];
+		private long[] cantidad=new long[32];
+		private long[] valor=new long[32];
+		private long[] iva=new long[32];
+		private int tamanio;
+
+		private void sumar(int clave,long facturas,long cantidad,long valor,long iva){
+			int i=indice(clave);
+			this.facturas[i]+=facturas;
+			this.cantidad[i]+=cantidad;
+			this.valor[i]+=valor;
+			this.iva[i]+=iva;
+		}
+
+		private void sumar(Grupos otros){
+			for(int i=0;i<otros.tamanio;i++)
+				sumar(otros.claves[i], otros.facturas[i], otros.cantidad[i], otros.valor[i], otros.iva[i]);
+		}
+
+		private int indice(int clave){
+			int mascara=tabla.length-1;
+			int h=mezclar(clave)&mascara;
+			int i;
+			while((i=tabla[h])!=0){
+				if(claves[i-1]==clave)
+					return i-1;
+				h=(h+1)&mascara;
+			}
+			if(tamanio==claves.length){
+				int capacidad=tamanio*2;
+				claves=Arrays.copyOf(claves, capacidad);
+				facturas=Arrays.copyOf(facturas, capacidad);
+				cantidad=Arrays.copyOf(cantidad, capacidad);
+				valor=Arrays.copyOf(valor, capacidad);
+				iva=Arrays.copyOf(iva, capacidad);
+			}
+			claves[tamanio]=clave;
+			tabla[h]=++tamanio;
+			if(tamanio*2>tabla.length)
+				rehacerTabla();
+			return tamanio-1;
+		}
+
+		private static int mezclar(int clave){
+			int h=clave*0x9E3779B9;
+			return h^h>>>16;
+		}
+
+		private void rehacerTabla(){
+			tabla=new int[tabla.length*2];
+			int mascara=tabla.length-1;
+			for(int i=0;i<tamanio;i++){
+				int h=mezclar(claves[i])&mascara;
+				while(tabla[h]!=0)
+					h=(h+1)&mascara;
+				tabla[h]=i+1;
+			}
+		}
+	}
+
+	/**
+	 * @return la instantanea de ventas; se carga en la primera consulta.
+	 */
+	static InstantaneaVentas getInstancia(){
+		if(instancia==null){
+			synchronized(InstantaneaVentas.class){
+				if(instancia==null){
+					int hilos=ManagerDAO.getPropiedad(PROP_HILOS, 0);
+					instancia=new InstantaneaVentas(hilos>0?hilos:Runtime.getRuntime().availableProcessors());
+				}
+			}
+		}
+		return instancia;
+	}
+
+	/**
+	 * Devuelve el id de la transaccion activa, que se debe leer antes de
+	 * confirmarla para luego llamar a {@link #registrar(Collection, long)}.
+	 * @param c conexion con la transaccion activa de las facturas.
+	 * @return txid_current() de la transaccion.
+	 * @throws SQLException si falla la base de datos.
+	 */
+	static long transaccion(Connection c) throws SQLException{
+		PreparedStatement ps=c.prepareStatement(TRANSACCION);
+		try{
+			ResultSet rs=ps.executeQuery();
+			try{
+				rs.next();
+				return rs.getLong(1);
+			}finally{
+				rs.close();
+			}
+		}finally{
+			ps.close();
+		}
+	}
+
+	/**
+	 * Agrega a la instantanea, si ya se creo, las facturas de una transaccion
+	 * ya confirmada. Si no se pueden agregar (datos incompletos), la
+	 * instantanea se descarta y se vuelve a cargar en la siguiente consulta;
+	 * las facturas quedan guardadas igual.
+	 * @param facturas facturas insertadas en la transaccion, con fecha,
+	 * cliente, detalles y totales calculados.
+	 * @param transaccion id de la transaccion (ver {@link #transaccion(Connection)}).
+	 */
+	static void registrar(Collection<FacturaCab> facturas,long transaccion){
+		InstantaneaVentas i=instancia;
+		if(i!=null)
+			i.agregar(facturas, transaccion);
+	}
+
+	/**
+	 * Indica si una transaccion confirmada es visible en un snapshot de
+	 * PostgreSQL (formato de txid_current_snapshot(): xmin:xmax:xip,...),
+	 * como txid_visible_in_snapshot().
+	 * @param transaccion txid de la transaccion.
+	 * @param snapshot texto del snapshot.
+	 * @return true si la transaccion termino antes de tomar el snapshot.
+	 */
+	static boolean visible(long transaccion,String snapshot){
+		String[] partes=snapshot.split(":", -1);
+		if(transaccion<Long.parseLong(partes[0]))
+			return true;
+		if(transaccion>=Long.parseLong(partes[1]))
+			return false;
+		if(partes.length>2&&partes[2].length()>0)
+			for(String activa:partes[2].split(","))
+				if(Long.parseLong(activa)==transaccion)
+					return false;
+		return true;
+	}
+
+	private InstantaneaVentas(int hilos){
+		this.hilos=Math.max(1, hilos);
+		final AtomicInteger numero=new AtomicInteger();
+		ejecutor=Executors.newFixedThreadPool(this.hilos, new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t=new Thread(r, "facturacion-instantanea-"+numero.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private synchronized void agregar(Collection<FacturaCab> facturas,long transaccion){
+		if(pendientes!=null){
+			pendientes.add(new Registro(transaccion, facturas));
+			return;
+		}
+		if(escritura==null)
+			return;
+		try{
+			for(FacturaCab f:facturas)
+				escritura.agregar(f);
+			vista=new Columnas(escritura);
+		}catch(RuntimeException e){
+			log.error("agregar", "No se pudieron agregar "+facturas.size()+" facturas, se descarta la instantanea", e);
+			escritura=null;
+			vista=null;
+		}
+	}
+
+	/**
+	 * Devuelve las columnas publicadas, cargandolas si no lo estan. Solo un
+	 * hilo carga; los demas esperan su resultado.
+	 */
+	private Columnas columnas() throws Exception{
+		synchronized(this){
+			while(cargando)
+				wait();
+			if(vista!=null)
+				return vista;
+			cargando=true;
+		}
+		Escritura nueva=null;
+		Columnas cargadas=null;
+		try{
+			nueva=cargar();
+		}finally{
+			synchronized(this){
+				try{
+					if(nueva!=null){
+						for(Registro r:pendientes)
+							if(!visible(r.transaccion, nueva.snapshot))
+								for(FacturaCab f:r.facturas)
+									nueva.agregar(f);
+						cargadas=new Columnas(nueva);
+						escritura=nueva;
+						vista=cargadas;
+					}
+				}finally{
+					pendientes=null;
+					cargando=false;
+					notifyAll();
+				}
+			}
+		}
+		return cargadas;
+	}
+
+	/**
+	 * Lee todas las lineas de factura con un cursor del servidor. La
+	 * transaccion es REPEATABLE READ, y su snapshot se toma (y se guarda)
+	 * despues de empezar a acumular los registros pendientes: una factura
+	 * registrada durante la carga esta en la lectura solo si su transaccion
+	 * es visible en ese snapshot.
+	 */
+	private Escritura cargar() throws Exception{
+		long inicio=System.currentTimeMillis();
+		Escritura e=new Escritura();
+		EntityManager em=ManagerDAO.crearEntityManagerIndependiente();
+		try{
+			em.getTransaction().begin();
+			Connection c=em.unwrap(Connection.class);
+			Statement st=c.createStatement();
+			try{
+				st.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+				synchronized(this){
+					pendientes=new ArrayList<Registro>();
+				}
+				//la primera consulta fija el snapshot de la transaccion:
+				ResultSet rs=st.executeQuery(SNAPSHOT);
+				try{
+					rs.next();
+					e.snapshot=rs.getString(1);
+				}finally{
+					rs.close();
+				}
+			}finally{
+				st.close();
+			}
+			PreparedStatement ps=c.prepareStatement(CONSULTA, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try{
+				ps.setFetchSize(FETCH);
+				ResultSet rs=ps.executeQuery();
+				try{
+					String anterior=null;
+					while(rs.next()){
+						String numero=rs.getString(1);
+						if(!numero.equals(anterior)){
+							if(anterior!=null)
+								e.cerrarFactura();
+							anterior=numero;
+							e.abrirFactura(dia(rs.getDate(2)), rs.getString(3),
+									centavos(rs.getBigDecimal(4))-centavos(rs.getBigDecimal(5)),
+									centavos(rs.getBigDecimal(6)));
+						}
+						e.agregarLinea(rs.getInt(7), rs.getInt(8),
+								CalculadoraTotales.valorLinea(rs.getBigDecimal(9), rs.getInt(8)),
+								!"N".equalsIgnoreCase(rs.getString(10)));
+					}
+					if(anterior!=null)
+						e.cerrarFactura();
+				}finally{
+					rs.close();
+				}
+			}finally{
+				ps.close();
+			}
+		}catch(Exception ex){
+			log.error("cargar", "No se pudo cargar la instantanea de ventas", ex);
+			throw new Exception("No se pudo cargar la instantanea de ventas: "+ex.getMessage());
+		}finally{
+			if(em.getTransaction().isActive())
+				em.getTransaction().rollback();
+			em.close();
+		}
+		log.informacion("cargar", "Instantanea de ventas cargada: {} lineas y {} clientes en {} ms",
+				e.tamanio, e.clientes, System.currentTimeMillis()-inicio);
+		return e;
+	}
+
+	/**
+	 * Descarta la instantanea y la vuelve a cargar, por ejemplo tras cambios
+	 * hechos directamente en la base de datos.
+	 * @return numero de lineas cargadas.
+	 * @throws Exception si falla la base de datos.
+	 */
+	int recargar() throws Exception{
+		synchronized(this){
+			while(cargando)
+				wait();
+			escritura=null;
+			vista=null;
+		}
+		return columnas().tamanio;
+	}
+
+	/**
+	 * @return numero de lineas de la instantanea, o 0 si aun no se cargo.
+	 */
+	int getLineas(){
+		Columnas c=vista;
+		return c==null?0:c.tamanio;
+	}
+
+	/**
+	 * Agrupa las ventas de la instantanea.
+	 * @param agrupacion {@link #POR_PRODUCTO}, {@link #POR_CLIENTE}, {@link #POR_DIA} o {@link #POR_MES}.
+	 * @param desde primer dia, o null para no limitarlo.
+	 * @param hasta ultimo dia (incluido), o null para no limitarlo.
+	 * @param codigoProducto producto a incluir, o null para todos.
+	 * @param cedulaCliente cliente a incluir, o null para todos.
+	 * @return una fila por grupo sin descripcion: los productos y clientes de
+	 * mayor a menor total, los dias y meses en orden de fecha. Las facturas
+	 * son las que incluyen el producto al agrupar o filtrar por producto.
+	 * @throws Exception si la agrupacion no existe o no se puede cargar la instantanea.
+	 */
+	List<FilaResumenVentas> consultar(String agrupacion,Date desde,Date hasta,final Integer codigoProducto,
+			String cedulaCliente) throws Exception{
+		final int tipo=tipoAgrupacion(agrupacion);
+		final Columnas c=columnas();
+		final int diaDesde=desde==null?Integer.MIN_VALUE:dia(desde);
+		final int diaHasta=hasta==null?Integer.MAX_VALUE:dia(hasta);
+		int idCliente=-1;
+		if(cedulaCliente!=null){
+			for(int i=0;i<c.clientes&&idCliente<0;i++)
+				if(cedulaCliente.equals(c.cedulas[i]))
+					idCliente=i;
+			if(idCliente<0)
+				return new ArrayList<FilaResumenVentas>();
+		}
+		final int cliente=idCliente;
+		final byte marca=tipo==AGRUPAR_PRODUCTO||codigoProducto!=null?PRIMERA_DE_PRODUCTO:PRIMERA_DE_FACTURA;
+		int partes=Math.max(1, Math.min(hilos*4, c.tamanio/PARTE_MINIMA));
+		List<Callable<Grupos>> tareas=new ArrayList<Callable<Grupos>>(partes);
+		for(int p=0;p<partes;p++){
+			final int inicio=(int)((long)c.tamanio*p/partes);
+			final int fin=(int)((long)c.tamanio*(p+1)/partes);
+			tareas.add(new Callable<Grupos>(){
+				public Grupos call(){
+					return recorrer(c, inicio, fin, tipo, diaDesde, diaHasta, codigoProducto, cliente, marca);
+				}
+			});
+		}
+		Grupos grupos;
+		if(partes==1)
+			grupos=tareas.get(0).call();
+		else{
+			grupos=new Grupos();
+			try{
+				for(Future<Grupos> f:ejecutor.invokeAll(tareas))
+					grupos.sumar(f.get());
+			}catch(ExecutionException e){
+				log.error("consultar", "Error en la consulta de la instantanea de ventas", e.getCause());
+				throw new Exception("Error en la consulta de la instantanea de ventas: "+e.getCause());
+			}
+		}
+		return filas(grupos, tipo, c);
+	}
+
+	/**
+	 * Calcula los grupos de las lineas [inicio, fin) de las columnas.
+	 */
+	private static Grupos recorrer(Columnas c,int inicio,int fin,int tipo,int diaDesde,int diaHasta,
+			Integer codigoProducto,int cliente,byte marca){
+		Grupos g=new Grupos();
+		boolean porProducto=codigoProducto!=null;
+		int producto=porProducto?codigoProducto.intValue():0;
+		int[] dias=c.dia;
+		//las lineas de una factura (y las facturas guardadas juntas) comparten el dia:
+		int ultimoDia=Integer.MIN_VALUE,ultimoMes=0;
+		for(int i=inicio;i<fin;i++){
+			int d=dias[i];
+			if(d<diaDesde||d>diaHasta||porProducto&&c.producto[i]!=producto||cliente>=0&&c.cliente[i]!=cliente)
+				continue;
+			int clave;
+			switch(tipo){
+			case AGRUPAR_PRODUCTO: clave=c.producto[i]; break;
+			case AGRUPAR_CLIENTE: clave=c.cliente[i]; break;
+			case AGRUPAR_DIA: clave=d; break;
+			default:
+				if(d!=ultimoDia){
+					ultimoDia=d;
+					ultimoMes=mes(d);
+				}
+				clave=ultimoMes;
+			}
+			g.sumar(clave, (c.marcas[i]&marca)!=0?1:0, c.cantidad[i], c.valor[i], c.iva[i]);
+		}
+		return g;
+	}
+
+	private static List<FilaResumenVentas> filas(Grupos g,int tipo,Columnas c){
+		List<FilaResumenVentas> filas=new ArrayList<FilaResumenVentas>(g.tamanio);
+		for(int i=0;i<g.tamanio;i++){
+			int clave=g.claves[i];
+			Date fecha=null;
+			String codigo=null;
+			switch(tipo){
+			case AGRUPAR_PRODUCTO: codigo=String.valueOf(clave); break;
+			case AGRUPAR_CLIENTE: codigo=c.cedulas[clave]; break;
+			case AGRUPAR_DIA: fecha=fecha(clave); break;
+			default: fecha=fecha(diasDesdeEpoca(clave/12, clave%12+1, 1));
+			}
+			filas.add(new FilaResumenVentas(fecha, codigo, null, g.facturas[i], g.cantidad[i],
+					BigDecimal.valueOf(g.valor[i], 2), BigDecimal.valueOf(g.iva[i], 2),
+					BigDecimal.valueOf(g.valor[i]+g.iva[i], 2)));
+		}
+		Collections.sort(filas, tipo==AGRUPAR_DIA||tipo==AGRUPAR_MES?POR_FECHA:POR_TOTAL);
+		return filas;
+	}
+
+	private static final Comparator<FilaResumenVentas> POR_FECHA=new Comparator<FilaResumenVentas>(){
+		public int compare(FilaResumenVentas a,FilaResumenVentas b){
+			return a.getFecha().compareTo(b.getFecha());
+		}
+	};
+
+	private static final Comparator<FilaResumenVentas> POR_TOTAL=new Comparator<FilaResumenVentas>(){
+		public int compare(FilaResumenVentas a,FilaResumenVentas b){
+			int c=b.getTotal().compareTo(a.getTotal());
+			return c!=0?c:a.getClave().compareTo(b.getClave());
+		}
+	};
+
+	private static int tipoAgrupacion(String agrupacion) throws Exception{
+		if(POR_PRODUCTO.equalsIgnoreCase(agrupacion))
+			return AGRUPAR_PRODUCTO;
+		if(POR_CLIENTE.equalsIgnoreCase(agrupacion))
+			return AGRUPAR_CLIENTE;
+		if(POR_DIA.equalsIgnoreCase(agrupacion))
+			return AGRUPAR_DIA;
+		if(POR_MES.equalsIgnoreCase(agrupacion))
+			return AGRUPAR_MES;
+		throw new Exception("Agrupacion de ventas desconocida: "+agrupacion+".");
+	}
+
+	private static long centavos(BigDecimal valor){
+		return valor==null?0:valor.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValue();
+	}
+
+	/**
+	 * @return dias desde 1970-01-01 del dia de la fecha (en la zona horaria local).
+	 */
+	private static int dia(Date fecha){
+		Calendar cal=Calendar.getInstance();
+		cal.setTime(fecha);
+		return diasDesdeEpoca(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH)+1, cal.get(Calendar.DAY_OF_MONTH));
+	}
+
+	private static Date fecha(int dia){
+		int[] civil=civil(dia);
+		Calendar cal=Calendar.getInstance();
+		cal.clear();
+		cal.set(civil[0], civil[1]-1, civil[2]);
+		return cal.getTime();
+	}
+
+	/**
+	 * @return el mes del dia como anio*12+(mes-1).
+	 */
+	private static int mes(int dia){
+		int[] civil=civil(dia);
+		return civil[0]*12+civil[1]-1;
+	}
+
+	/**
+	 * Dias desde 1970-01-01 de una fecha del calendario gregoriano (algoritmo
+	 * days_from_civil de H. Hinnant).
+	 */
+	private static int diasDesdeEpoca(int anio,int mes,int diaMes){
+		int a=mes<=2?anio-1:anio;
+		int era=(a>=0?a:a-399)/400;
+		int anioEra=a-era*400;
+		int diaAnio=(153*(mes>2?mes-3:mes+9)+2)/5+diaMes-1;
+		int diaEra=anioEra*365+anioEra/4-anioEra/100+diaAnio;
+		return era*146097+diaEra-719468;
+	}
+
+	/**
+	 * @return {anio, mes, dia} de los dias desde 1970-01-01 (inverso de
+	 * {@link #diasDesdeEpoca(int, int, int)}).
+	 */
+	private static int[] civil(int dias){
+		int z=dias+719468;
+		int era=(z>=0?z:z-146096)/146097;
+		int diaEra=z-era*146097;
+		int anioEra=(diaEra-diaEra/1460+diaEra/36524-diaEra/146096)/365;
+		int diaAnio=diaEra-(365*anioEra+anioEra/4-anioEra/100);
+		int mp=(5*diaAnio+2)/153;
+		int mes=mp<10?mp+3:mp-9;
+		return new int[]{anioEra+era*400+(mes<=2?1:0), mes, diaAnio-(153*mp+2)/5+1};
+	}
+
+	@Override
+	public String toString(){
+		return "InstantaneaVentas[hilos="+hilos+", lineas="+getLineas()+"]";
+	}
+
+}
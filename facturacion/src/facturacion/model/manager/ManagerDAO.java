@@ -1,42 +1,384 @@
 package facturacion.model.manager;
 
+import java.sql.SQLTransientConnectionException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import javax.persistence.CacheRetrieveMode;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.EntityType;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.eclipse.persistence.sessions.UnitOfWork;
+
+import facturacion.model.log.Bitacora;
 
 /**
  * Objeto que encapsula la logica basica de acceso a datos mediante JPA. Maneja
- * el patron de diseño singleton para administrar los componentes
- * EntityManagerFactory y EntityManager.
+ * el patron de diseño singleton para administrar el componente
+ * EntityManagerFactory. Cada hilo (peticion) trabaja con su propio
+ * EntityManager, obtenido de un pool acotado y liberado al cerrar el contexto.
+ * Con replicas configuradas (ver {@link EnrutadorLecturas}) los finders que
+ * no participan de una transaccion leen de una replica.
  * 
  * @author mrea
  * 
  */
 public class ManagerDAO {
+	/**
+	 * Propiedad de la unidad de persistencia que indica el numero maximo de
+	 * EntityManager abiertos al mismo tiempo.
+	 */
+	public static final String PROP_EM_MAXIMO = "facturacion.em.maximo";
+	/**
+	 * Propiedad de la unidad de persistencia que indica el tiempo maximo (en
+	 * milisegundos) que una peticion espera por un EntityManager libre.
+	 */
+	public static final String PROP_EM_ESPERA = "facturacion.em.espera";
+	/**
+	 * Propiedad de la unidad de persistencia con la politica de limpieza del
+	 * contexto de persistencia al terminar cada operacion del DAO:
+	 * <ul>
+	 * <li>LIMPIAR_TRAS_TRANSACCION: siempre se limpia (valor por defecto).</li>
+	 * <li>LIMITE: se limpia solo si supera facturacion.contexto.maximo entidades.</li>
+	 * <li>NINGUNA: no se limpia hasta cerrar el contexto.</li>
+	 * </ul>
+	 */
+	public static final String PROP_CONTEXTO_POLITICA = "facturacion.contexto.politica";
+	/**
+	 * Propiedad de la unidad de persistencia que indica el numero maximo de
+	 * entidades administradas por un contexto de persistencia.
+	 */
+	public static final String PROP_CONTEXTO_MAXIMO = "facturacion.contexto.maximo";
+
+	private static final int POLITICA_LIMPIAR = 0;
+	private static final int POLITICA_LIMITE = 1;
+	private static final int POLITICA_NINGUNA = 2;
+
+	private static final Bitacora log = Bitacora.getBitacora(ManagerDAO.class);
+
 	private static EntityManagerFactory factory;
-	private static EntityManager em;
+	private static Semaphore permisosEM;
+	private static long esperaEM;
+	private static final ThreadLocal<ContextoEM> contexto = new ThreadLocal<ContextoEM>();
+	private static int politicaContexto;
+	private static int maximoEntidades;
+	private static final EstadisticasContexto estadisticas = new EstadisticasContexto();
+	private static EnrutadorLecturas enrutador;
+
+	/**
+	 * Momento (milisegundos) de la ultima escritura hecha con este DAO; sus
+	 * lecturas posteriores van a la base de datos principal durante
+	 * facturacion.replicas.lectura.propia milisegundos.
+	 */
+	private volatile long ultimaEscritura;
+	private volatile boolean lecturasEnPrincipal;
+
+	/**
+	 * Contexto de persistencia asociado al hilo actual. Permite anidar
+	 * llamadas: solo la apertura mas externa crea el EntityManager y solo el
+	 * cierre mas externo lo libera. Las operaciones del DAO en curso se
+	 * cuentan aparte, para aplicar la politica de limpieza solo al terminar
+	 * la mas externa.
+	 */
+	private static class ContextoEM {
+		private EntityManager em;
+		private int nivel;
+		private int operaciones;
+	}
 
 	/**
-	 * Constructor de la clase ManagerDAO. Se encarga de crear los objetos
-	 * factory y entity manager utilizando el patron de diseño singleton.
+	 * Constructor de la clase ManagerDAO. Se encarga de crear el objeto
+	 * factory utilizando el patron de diseño singleton.
 	 */
 	public ManagerDAO() {
-		mostrarLog(this.getClass(), "constructor", "ManagerDAO Creado");
+		log.depuracion("constructor", "ManagerDAO Creado");
+		inicializarFactory();
+	}
+
+	/**
+	 * Crea (una sola vez) el EntityManagerFactory y el pool de permisos para
+	 * los EntityManager.
+	 */
+	private static synchronized void inicializarFactory() {
 		if (factory == null) {
-			factory = Persistence.createEntityManagerFactory("facturacion");
-			mostrarLog(this.getClass(), "constructor", "Factory creado");
+			factory = Persistence.createEntityManagerFactory("facturacion", propiedadesJVM());
+			int maximo = getPropiedad(PROP_EM_MAXIMO, 20);
+			esperaEM = getPropiedad(PROP_EM_ESPERA, 5000);
+			permisosEM = new Semaphore(maximo, true);
+			String politica = getPropiedad(PROP_CONTEXTO_POLITICA, "LIMPIAR_TRAS_TRANSACCION");
+			politicaContexto = "NINGUNA".equalsIgnoreCase(politica) ? POLITICA_NINGUNA
+					: "LIMITE".equalsIgnoreCase(politica) ? POLITICA_LIMITE : POLITICA_LIMPIAR;
+			maximoEntidades = getPropiedad(PROP_CONTEXTO_MAXIMO, 1000);
+			enrutador = EnrutadorLecturas.crear(propiedadesJVM());
+			log.informacion("inicializarFactory", "Factory creado, maximo {} EntityManager", maximo);
 		}
-		if (em == null) {
-			em = factory.createEntityManager();
-			mostrarLog(this.getClass(), "constructor", "EntityManager creado");
+	}
+
+	/**
+	 * Propiedades de la JVM (-D) que reemplazan a las de persistence.xml: las
+	 * de conexion (javax.persistence.jdbc.*) y las de la aplicacion
+	 * (facturacion.*). Permiten, por ejemplo, ejecutar los benchmarks contra
+	 * otra base de datos.
+	 */
+	private static Map<String, Object> propiedadesJVM() {
+		Map<String, Object> propiedades = new HashMap<String, Object>();
+		for (String nombre : System.getProperties().stringPropertyNames())
+			if (nombre.startsWith("javax.persistence.jdbc.")
+					|| nombre.startsWith("facturacion."))
+				propiedades.put(nombre, System.getProperty(nombre));
+		return propiedades;
+	}
+
+	/**
+	 * Lee una propiedad de configuracion de la unidad de persistencia
+	 * (persistence.xml).
+	 * 
+	 * @param nombre
+	 *            nombre de la propiedad.
+	 * @param valorDefecto
+	 *            valor que se devuelve si la propiedad no existe.
+	 * @return valor de la propiedad.
+	 */
+	public static String getPropiedad(String nombre, String valorDefecto) {
+		inicializarFactory();
+		Object valor = factory.getProperties().get(nombre);
+		if (valor == null || valor.toString().trim().length() == 0)
+			return valorDefecto;
+		return valor.toString().trim();
+	}
+
+	/**
+	 * Lee una propiedad numerica de configuracion de la unidad de persistencia
+	 * (persistence.xml).
+	 * 
+	 * @param nombre
+	 *            nombre de la propiedad.
+	 * @param valorDefecto
+	 *            valor que se devuelve si la propiedad no existe o no es un
+	 *            numero valido.
+	 * @return valor de la propiedad.
+	 */
+	public static int getPropiedad(String nombre, int valorDefecto) {
+		try {
+			return Integer.parseInt(getPropiedad(nombre, Integer.toString(valorDefecto)));
+		} catch (NumberFormatException e) {
+			return valorDefecto;
 		}
 	}
 
 	/**
-	 * Metodo basico para mostrar mensajes de depuracion.
+	 * Abre (o reutiliza) el contexto de persistencia del hilo actual. Cada
+	 * llamada debe tener su correspondiente {@link #cerrarContexto()} en un
+	 * bloque finally.
+	 * 
+	 * @return el EntityManager asignado al hilo actual.
+	 * @throws IllegalStateException
+	 *             si no se obtiene un EntityManager libre en el tiempo de
+	 *             espera configurado; su causa es una
+	 *             SQLTransientConnectionException (ver
+	 *             {@link ErrorPersistencia#esTemporal(Throwable)}).
+	 */
+	public static EntityManager abrirContexto() {
+		inicializarFactory();
+		ContextoEM ctx = contexto.get();
+		if (ctx == null) {
+			try {
+				if (!permisosEM.tryAcquire(esperaEM, TimeUnit.MILLISECONDS)) {
+					String mensaje = "No existen conexiones disponibles, intente nuevamente.";
+					throw new IllegalStateException(mensaje,
+							new SQLTransientConnectionException(mensaje));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(
+						"Peticion interrumpida mientras esperaba una conexion.");
+			}
+			ctx = new ContextoEM();
+			try {
+				ctx.em = factory.createEntityManager();
+			} catch (RuntimeException e) {
+				permisosEM.release();
+				throw e;
+			}
+			contexto.set(ctx);
+		}
+		ctx.nivel++;
+		return ctx.em;
+	}
+
+	/**
+	 * Abre el contexto para una operacion del DAO.
+	 */
+	private static EntityManager abrirOperacion() {
+		EntityManager em = abrirContexto();
+		contexto.get().operaciones++;
+		return em;
+	}
+
+	/**
+	 * Abre el contexto para un finder: una replica (ver
+	 * {@link EnrutadorLecturas}) si el finder no se ejecuta dentro de una
+	 * transaccion ni de otra operacion del DAO, la politica del contexto
+	 * desvincula igual las entidades leidas, y este DAO no escribio hace
+	 * poco; si no, el contexto del hilo en la base de datos principal.
+	 */
+	private EntityManager abrirLectura() {
+		if (enrutador == null)
+			return abrirOperacion();
+		ContextoEM ctx = contexto.get();
+		boolean enrutable = ctx == null
+				|| (ctx.operaciones == 0 && politicaContexto == POLITICA_LIMPIAR
+						&& !ctx.em.getTransaction().isActive());
+		if (enrutable && !lecturasEnPrincipal
+				&& System.currentTimeMillis() - ultimaEscritura >= enrutador.getLecturaPropia()) {
+			EntityManager em = enrutador.abrir();
+			if (em != null)
+				return em;
+		} else
+			enrutador.registrarLecturaPrincipal();
+		return abrirOperacion();
+	}
+
+	/**
+	 * Termina un finder abierto con {@link #abrirLectura()}.
+	 */
+	private static void cerrarLectura(EntityManager em) {
+		ContextoEM ctx = contexto.get();
+		if (ctx != null && ctx.em == em)
+			cerrarOperacion();
+		else
+			enrutador.cerrar(em);
+	}
+
+	/**
+	 * Registra una escritura hecha fuera de este DAO (por ejemplo el
+	 * guardado de facturas con JDBC), para que las lecturas siguientes de
+	 * este DAO vean los cambios aunque las replicas aun no los tengan.
+	 */
+	public void registrarEscritura() {
+		ultimaEscritura = System.currentTimeMillis();
+	}
+
+	/**
+	 * Indica que todas las lecturas de este DAO deben ir a la base de datos
+	 * principal, para los componentes que necesitan el ultimo estado (por
+	 * ejemplo las existencias o la verificacion de facturas ya guardadas).
+	 * 
+	 * @param lecturasEnPrincipal
+	 *            true para no usar las replicas.
+	 */
+	public void setLecturasEnPrincipal(boolean lecturasEnPrincipal) {
+		this.lecturasEnPrincipal = lecturasEnPrincipal;
+	}
+
+	/**
+	 * @return el enrutador de lecturas a las replicas, o null si no hay
+	 *         replicas configuradas (propiedad facturacion.replicas).
+	 */
+	public static EnrutadorLecturas getEnrutadorLecturas() {
+		inicializarFactory();
+		return enrutador;
+	}
+
+	/**
+	 * Termina una operacion del DAO. Si es la operacion mas externa, no hay
+	 * una transaccion en curso y el contexto sigue abierto (por ejemplo
+	 * durante una peticion), aplica la politica de limpieza: las entidades
+	 * leidas quedan desvinculadas (detached) y el contexto no crece con cada
+	 * consulta.
+	 */
+	private static void cerrarOperacion() {
+		ContextoEM ctx = contexto.get();
+		if (ctx != null && --ctx.operaciones == 0 && politicaContexto != POLITICA_NINGUNA
+				&& !ctx.em.getTransaction().isActive()) {
+			int entidades = contarEntidades(ctx.em);
+			estadisticas.registrarEntidades(entidades);
+			if (ctx.nivel > 1 && entidades > 0
+					&& (politicaContexto == POLITICA_LIMPIAR || entidades > maximoEntidades)) {
+				ctx.em.clear();
+				estadisticas.registrarLimpieza();
+			}
+		}
+		cerrarContexto();
+	}
+
+	/**
+	 * Numero de entidades administradas por el EntityManager (EclipseLink).
+	 */
+	private static int contarEntidades(EntityManager em) {
+		try {
+			return ((UnitOfWorkImpl) em.unwrap(UnitOfWork.class)).getCloneMapping().size();
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Confirma la transaccion activa, registrando la duracion del commit
+	 * (incluye el flush de los cambios).
+	 */
+	private static void confirmar(EntityManager em) {
+		long inicio = System.nanoTime();
+		em.getTransaction().commit();
+		estadisticas.registrarConfirmacion(System.nanoTime() - inicio);
+	}
+
+	/**
+	 * @return estadisticas de los contextos de persistencia.
+	 */
+	public static EstadisticasContexto getEstadisticasContexto() {
+		return estadisticas;
+	}
+
+	/**
+	 * Crea un EntityManager fuera del contexto del hilo actual, para
+	 * operaciones cortas que deben confirmarse en su propia transaccion. No
+	 * consume permisos del pool, por lo que solo debe usarse en operaciones
+	 * serializadas y poco frecuentes. El llamador debe cerrarlo.
+	 * 
+	 * @return un nuevo EntityManager.
+	 */
+	static EntityManager crearEntityManagerIndependiente() {
+		inicializarFactory();
+		return factory.createEntityManager();
+	}
+
+	/**
+	 * Cierra el contexto de persistencia del hilo actual. Cuando se cierra el
+	 * nivel mas externo se deshace cualquier transaccion pendiente, se cierra
+	 * el EntityManager y se devuelve su permiso al pool.
+	 */
+	public static void cerrarContexto() {
+		ContextoEM ctx = contexto.get();
+		if (ctx == null)
+			return;
+		ctx.nivel--;
+		if (ctx.nivel > 0)
+			return;
+		contexto.remove();
+		try {
+			if (ctx.em.getTransaction().isActive())
+				ctx.em.getTransaction().rollback();
+			ctx.em.close();
+		} finally {
+			permisosEM.release();
+		}
+	}
+
+	/**
+	 * Metodo basico para mostrar mensajes de depuracion. Los mensajes se
+	 * registran en la {@link Bitacora} con nivel DEPURACION.
 	 * 
 	 * @param clase
 	 *            Informacion de la clase (Class) para generar el mensaje de
@@ -45,11 +387,13 @@ public class ManagerDAO {
 	 *            Metodo que genera el mensaje de depuracion.
 	 * @param mensaje
 	 *            El mensaje a desplegar.
+	 * @deprecated el mensaje se construye aunque la depuracion este
+	 *             deshabilitada; utilice {@link Bitacora#getBitacora(Class)}.
 	 */
+	@Deprecated
 	@SuppressWarnings("rawtypes")
 	public void mostrarLog(Class clase, String nombreMetodo, String mensaje) {
-		System.out.println("[" + clase.getSimpleName() + "/" + nombreMetodo
-				+ "]: " + mensaje);
+		Bitacora.getBitacora(clase).depuracion(nombreMetodo, mensaje);
 	}
 
 	/**
@@ -73,21 +417,25 @@ public class ManagerDAO {
 	 */
 	@SuppressWarnings("rawtypes")
 	public List findAll(Class clase, String orderBy) {
-		mostrarLog(this.getClass(), "findAll", clase.getSimpleName()
-				+ " orderBy " + orderBy);
+		log.depuracion("findAll", "{} orderBy {}", clase.getSimpleName(), orderBy);
 		Query q;
 		List listado;
-		if (!em.getTransaction().isActive()) {
-			em.getTransaction().begin();
-		}
-		if (orderBy == null || orderBy.length() == 0)
-			q = em.createQuery("SELECT o FROM " + clase.getSimpleName() + " o");
-		else
-			q = em.createQuery("SELECT o FROM " + clase.getSimpleName()
-					+ " o ORDER BY " + orderBy);
-		listado = q.getResultList();
-		if (em.getTransaction().isActive()) {
-			em.getTransaction().commit();
+		EntityManager em = abrirLectura();
+		try {
+			if (!em.getTransaction().isActive()) {
+				em.getTransaction().begin();
+			}
+			if (orderBy == null || orderBy.length() == 0)
+				q = em.createQuery("SELECT o FROM " + clase.getSimpleName() + " o");
+			else
+				q = em.createQuery("SELECT o FROM " + clase.getSimpleName()
+						+ " o ORDER BY " + orderBy);
+			listado = q.getResultList();
+			if (em.getTransaction().isActive()) {
+				confirmar(em);
+			}
+		} finally {
+			cerrarLectura(em);
 		}
 		return listado;
 	}
@@ -104,15 +452,20 @@ public class ManagerDAO {
 	 */
 	@SuppressWarnings("rawtypes")
 	public List findAll(Class clase) {
-		mostrarLog(this.getClass(), "findAll", clase.getSimpleName());
+		log.depuracion("findAll", "{}", clase.getSimpleName());
 		Query q;
 		List listado;
-		if (!em.getTransaction().isActive()) {
-			em.getTransaction().begin();
+		EntityManager em = abrirLectura();
+		try {
+			if (!em.getTransaction().isActive()) {
+				em.getTransaction().begin();
+			}
+			q = em.createQuery("SELECT o FROM " + clase.getSimpleName() + " o");
+			listado = q.getResultList();
+			confirmar(em);
+		} finally {
+			cerrarLectura(em);
 		}
-		q = em.createQuery("SELECT o FROM " + clase.getSimpleName() + " o");
-		listado = q.getResultList();
-		em.getTransaction().commit();
 		return listado;
 	}
 
@@ -138,23 +491,30 @@ public class ManagerDAO {
 	 *        </ul>
 	 *        Tanto para la clausula <b>where</b> como <b>order by</b> debe utilizarse el alias de entidad "o".
 	 * @return Listado resultante.
+	 * @see #findWhere(Class, String, Map, String) para consultas con
+	 *      parametros, que no se vuelven a traducir con cada valor distinto.
 	 */
 	@SuppressWarnings("rawtypes")
 	public List findWhere(Class clase, String pClausulaWhere, String pOrderBy) {
-		mostrarLog(this.getClass(),"findWhere", clase.getSimpleName() + " where "
-				+ pClausulaWhere + "order by " + pOrderBy);
+		log.depuracion("findWhere", "{} where {} order by {}", clase.getSimpleName(),
+				pClausulaWhere, pOrderBy);
 		Query q;
 		List listado;
-		if (!em.getTransaction().isActive())
-			em.getTransaction().begin();
-		if (pOrderBy == null || pOrderBy.length() == 0)
-			q = em.createQuery("SELECT o FROM " + clase.getSimpleName()
-					+ " o WHERE " + pClausulaWhere);
-		else
-			q = em.createQuery("SELECT o FROM " + clase.getSimpleName()
-					+ " o WHERE " + pClausulaWhere + " ORDER BY " + pOrderBy);
-		listado = q.getResultList();
-		em.getTransaction().commit();
+		EntityManager em = abrirLectura();
+		try {
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			if (pOrderBy == null || pOrderBy.length() == 0)
+				q = em.createQuery("SELECT o FROM " + clase.getSimpleName()
+						+ " o WHERE " + pClausulaWhere);
+			else
+				q = em.createQuery("SELECT o FROM " + clase.getSimpleName()
+						+ " o WHERE " + pClausulaWhere + " ORDER BY " + pOrderBy);
+			listado = q.getResultList();
+			confirmar(em);
+		} finally {
+			cerrarLectura(em);
+		}
 		return listado;
 	}
 
@@ -164,20 +524,345 @@ public class ManagerDAO {
 	 * @param pClausulaJPQL
 	 *            Sentencia JPQL que se va a ejecutar.
 	 * @return
+	 * @see #findNamed(Class, String, Map) para consultas frecuentes.
 	 */
 	@SuppressWarnings("rawtypes")
 	public List findJPQL(String pClausulaJPQL) {
-		mostrarLog(this.getClass(),"findSQL", pClausulaJPQL);
+		log.depuracion("findSQL", pClausulaJPQL);
 		Query q;
 		List listado;
-		if (!em.getTransaction().isActive())
-			em.getTransaction().begin();
-		q = em.createQuery(pClausulaJPQL);
-		listado = q.getResultList();
-		em.getTransaction().commit();
+		EntityManager em = abrirLectura();
+		try {
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			q = em.createQuery(pClausulaJPQL);
+			listado = q.getResultList();
+			confirmar(em);
+		} finally {
+			cerrarLectura(em);
+		}
+		return listado;
+	}
+
+	/**
+	 * Finder tipado que ejecuta una consulta con nombre (@NamedQuery) de las
+	 * entidades. El proveedor analiza y traduce la consulta a SQL una sola vez,
+	 * al iniciar la unidad de persistencia, y los valores se envian como
+	 * parametros de la sentencia preparada.
+	 * 
+	 * @param clase
+	 *            Tipo de las entidades resultantes. Ej: Producto.class
+	 * @param nombreConsulta
+	 *            Nombre de la consulta, por ejemplo:
+	 *            <ul>
+	 *            <li>Producto.findAllOrdenado</li>
+	 *            <li>FacturaCab.findByCliente</li>
+	 *            </ul>
+	 * @param parametros
+	 *            Valores de los parametros nombrados de la consulta. Puede ser
+	 *            null.
+	 * @return Listado resultante.
+	 */
+	public <T> List<T> findNamed(Class<T> clase, String nombreConsulta,
+			Map<String, Object> parametros) {
+		log.depuracion("findNamed", "{} {}", nombreConsulta, parametros);
+		return consultarNombrada(clase, nombreConsulta, parametros, false);
+	}
+
+	/**
+	 * Igual que {@link #findNamed(Class, String, Map)}, pero con la sugerencia
+	 * de solo lectura de EclipseLink: las entidades se toman de la cache
+	 * compartida sin copiarlas ni registrarlas en el contexto de persistencia,
+	 * y no intervienen en el flush. Las entidades devueltas son compartidas y
+	 * <b>no deben modificarse</b>; para modificar una entidad utilice
+	 * {@link #findById(Class, Object)}. Como se atiende desde la cache, no se
+	 * enruta a las replicas.
+	 * 
+	 * @return Listado resultante (solo lectura).
+	 */
+	public <T> List<T> findNamedSoloLectura(Class<T> clase, String nombreConsulta,
+			Map<String, Object> parametros) {
+		log.depuracion("findNamedSoloLectura", "{} {}", nombreConsulta, parametros);
+		return consultarNombrada(clase, nombreConsulta, parametros, true);
+	}
+
+	private <T> List<T> consultarNombrada(Class<T> clase, String nombreConsulta,
+			Map<String, Object> parametros, boolean soloLectura) {
+		List<T> listado;
+		EntityManager em = soloLectura ? abrirOperacion() : abrirLectura();
+		try {
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			TypedQuery<T> q = em.createNamedQuery(nombreConsulta, clase);
+			if (soloLectura)
+				q.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+			asignarParametros(q, parametros);
+			listado = q.getResultList();
+			confirmar(em);
+		} finally {
+			cerrarLectura(em);
+		}
+		return listado;
+	}
+
+	/**
+	 * Finder tipado con clausulas where y order by, y valores enlazados como
+	 * parametros nombrados. Como el texto de la consulta no incluye los
+	 * valores, el proveedor reutiliza su traduccion (cache de consultas JPQL,
+	 * propiedad facturacion.jpql.cache) y la base de datos puede reutilizar la
+	 * sentencia preparada.
+	 * 
+	 * @param clase
+	 *            La entidad sobre la que se desea consultar. Ej: Producto.class
+	 * @param pClausulaWhere
+	 *            Clausula where JPQL con parametros nombrados (alias "o"), por
+	 *            ejemplo:
+	 *            <ul>
+	 *            <li>o.nombre like :nombre</li>
+	 *            </ul>
+	 * @param parametros
+	 *            Valores de los parametros nombrados. Puede ser null.
+	 * @param pOrderBy
+	 *            Clausula order by JPQL (alias "o"). Puede ser null.
+	 * @return Listado resultante.
+	 */
+	public <T> List<T> findWhere(Class<T> clase, String pClausulaWhere,
+			Map<String, Object> parametros, String pOrderBy) {
+		log.depuracion("findWhere", "{} where {} {} order by {}", clase.getSimpleName(),
+				pClausulaWhere, parametros, pOrderBy);
+		StringBuilder jpql = new StringBuilder("SELECT o FROM ")
+				.append(clase.getSimpleName()).append(" o");
+		if (pClausulaWhere != null && pClausulaWhere.length() > 0)
+			jpql.append(" WHERE ").append(pClausulaWhere);
+		if (pOrderBy != null && pOrderBy.length() > 0)
+			jpql.append(" ORDER BY ").append(pOrderBy);
+		List<T> listado;
+		EntityManager em = abrirLectura();
+		try {
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			TypedQuery<T> q = em.createQuery(jpql.toString(), clase);
+			asignarParametros(q, parametros);
+			listado = q.getResultList();
+			confirmar(em);
+		} finally {
+			cerrarLectura(em);
+		}
 		return listado;
 	}
 
+	/**
+	 * Finder generico paginado por clave (keyset). En lugar de saltar filas con
+	 * OFFSET, continua a partir de los valores de ordenamiento de la ultima
+	 * fila de la pagina anterior, por lo que el costo de cada pagina no depende
+	 * de su posicion.
+	 * 
+	 * @param clase
+	 *            La entidad sobre la que se desea consultar. Ej: Usuario.class
+	 * @param pClausulaWhere
+	 *            Clausula where de tipo JPQL (sin la palabra reservada WHERE)
+	 *            con parametros nombrados. Puede ser null. Ej:
+	 *            <ul>
+	 *            <li>o.nombre like :nombre</li>
+	 *            </ul>
+	 * @param parametros
+	 *            Valores de los parametros nombrados de la clausula where.
+	 *            Puede ser null.
+	 * @param camposOrden
+	 *            Propiedades (con el alias "o") por las que se ordena. La
+	 *            combinacion debe ser unica, por ejemplo terminando con la
+	 *            clave primaria: {"o.fecha","o.codigo"}.
+	 * @param descendente
+	 *            Sentido del orden de cada campo de camposOrden.
+	 * @param ultimaClave
+	 *            Valores de camposOrden de la ultima fila de la pagina
+	 *            anterior, o null para obtener la primera pagina.
+	 * @param tamanioPagina
+	 *            Numero maximo de filas a devolver.
+	 * @return Listado resultante.
+	 */
+	@SuppressWarnings("rawtypes")
+	public List findPagina(Class clase, String pClausulaWhere,
+			Map<String, Object> parametros, String[] camposOrden,
+			boolean[] descendente, Object[] ultimaClave, int tamanioPagina) {
+		log.depuracion("findPagina", "{} where {} desde {}", clase.getSimpleName(),
+				pClausulaWhere, ultimaClave);
+		return consultarPagina("o", clase, pClausulaWhere, parametros,
+				camposOrden, descendente, ultimaClave, 0, tamanioPagina);
+	}
+
+	/**
+	 * Igual que
+	 * {@link #findPagina(Class, String, Map, String[], boolean[], Object[], int)},
+	 * pero devuelve una proyeccion en lugar de las entidades: valores sueltos
+	 * (Object[]) o una expresion constructor (SELECT NEW ...). Las relaciones
+	 * usadas en la seleccion, el filtro y el orden se resuelven con joins en la
+	 * misma sentencia, y los resultados no quedan administrados por el
+	 * contexto de persistencia.
+	 * 
+	 * @param pSeleccion
+	 *            Expresion de seleccion JPQL con el alias "o", por ejemplo:
+	 *            <ul>
+	 *            <li>NEW paquete.Resumen(o.codigo, o.cliente.nombres)</li>
+	 *            </ul>
+	 * @return Listado resultante.
+	 */
+	@SuppressWarnings("rawtypes")
+	public List findPaginaProyeccion(String pSeleccion, Class clase,
+			String pClausulaWhere, Map<String, Object> parametros,
+			String[] camposOrden, boolean[] descendente, Object[] ultimaClave,
+			int tamanioPagina) {
+		log.depuracion("findPaginaProyeccion", "{} where {} desde {}", clase.getSimpleName(),
+				pClausulaWhere, ultimaClave);
+		return consultarPagina(pSeleccion, clase, pClausulaWhere, parametros,
+				camposOrden, descendente, ultimaClave, 0, tamanioPagina);
+	}
+
+	/**
+	 * Obtiene los valores de camposOrden de la fila que se encuentra a
+	 * <i>desplazamiento</i> filas despues de ultimaClave. Solo lee las
+	 * columnas de ordenamiento, y permite calcular la clave de inicio de una
+	 * pagina lejana a partir de la pagina conocida mas cercana.
+	 * 
+	 * @return los valores de la fila encontrada, o null si no existe.
+	 * @see #findPagina(Class, String, Map, String[], boolean[], Object[], int)
+	 */
+	@SuppressWarnings("rawtypes")
+	public Object[] findClavePagina(Class clase, String pClausulaWhere,
+			Map<String, Object> parametros, String[] camposOrden,
+			boolean[] descendente, Object[] ultimaClave, int desplazamiento) {
+		log.depuracion("findClavePagina", "{} desde {} + {}", clase.getSimpleName(),
+				ultimaClave, desplazamiento);
+		StringBuilder seleccion = new StringBuilder();
+		for (int i = 0; i < camposOrden.length; i++) {
+			if (i > 0)
+				seleccion.append(",");
+			seleccion.append(camposOrden[i]);
+		}
+		List listado = consultarPagina(seleccion.toString(), clase,
+				pClausulaWhere, parametros, camposOrden, descendente,
+				ultimaClave, desplazamiento - 1, 1);
+		if (listado.isEmpty())
+			return null;
+		Object fila = listado.get(0);
+		return fila instanceof Object[] ? (Object[]) fila : new Object[] { fila };
+	}
+
+	/**
+	 * Cuenta las entidades que cumplen una clausula where.
+	 * 
+	 * @param clase
+	 *            La entidad sobre la que se desea consultar.
+	 * @param pClausulaWhere
+	 *            Clausula where JPQL con parametros nombrados. Puede ser null.
+	 * @param parametros
+	 *            Valores de los parametros nombrados. Puede ser null.
+	 * @return numero de entidades.
+	 */
+	@SuppressWarnings("rawtypes")
+	public long contar(Class clase, String pClausulaWhere,
+			Map<String, Object> parametros) {
+		log.depuracion("contar", "{} where {}", clase.getSimpleName(), pClausulaWhere);
+		StringBuilder jpql = new StringBuilder("SELECT COUNT(o) FROM ")
+				.append(clase.getSimpleName()).append(" o");
+		if (pClausulaWhere != null && pClausulaWhere.length() > 0)
+			jpql.append(" WHERE ").append(pClausulaWhere);
+		Number total;
+		EntityManager em = abrirLectura();
+		try {
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			Query q = em.createQuery(jpql.toString());
+			asignarParametros(q, parametros);
+			total = (Number) q.getSingleResult();
+			confirmar(em);
+		} finally {
+			cerrarLectura(em);
+		}
+		return total.longValue();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private List consultarPagina(String seleccion, Class clase,
+			String pClausulaWhere, Map<String, Object> parametros,
+			String[] camposOrden, boolean[] descendente, Object[] ultimaClave,
+			int primero, int maximo) {
+		String jpql = construirConsultaPagina(seleccion, clase.getSimpleName(),
+				pClausulaWhere, camposOrden, descendente, ultimaClave != null);
+		List listado;
+		EntityManager em = abrirLectura();
+		try {
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			Query q = em.createQuery(jpql);
+			asignarParametros(q, parametros);
+			if (ultimaClave != null)
+				for (int i = 0; i < ultimaClave.length; i++)
+					q.setParameter("clave" + i, ultimaClave[i]);
+			if (primero > 0)
+				q.setFirstResult(primero);
+			q.setMaxResults(maximo);
+			listado = q.getResultList();
+			confirmar(em);
+		} finally {
+			cerrarLectura(em);
+		}
+		return listado;
+	}
+
+	/**
+	 * Arma la sentencia JPQL de una pagina por clave: el filtro, la condicion
+	 * de continuar despues de la ultima clave (parametros :clave0, :clave1,
+	 * ...) y el orden.
+	 * 
+	 * @param seleccion
+	 *            expresion de seleccion con el alias "o".
+	 * @param entidad
+	 *            nombre de la entidad.
+	 * @param conClave
+	 *            true si la pagina continua a partir de una clave.
+	 * @return la sentencia JPQL.
+	 */
+	static String construirConsultaPagina(String seleccion, String entidad,
+			String pClausulaWhere, String[] camposOrden, boolean[] descendente,
+			boolean conClave) {
+		StringBuilder jpql = new StringBuilder("SELECT ").append(seleccion)
+				.append(" FROM ").append(entidad).append(" o");
+		String conector = " WHERE ";
+		if (pClausulaWhere != null && pClausulaWhere.length() > 0) {
+			jpql.append(conector).append("(").append(pClausulaWhere).append(")");
+			conector = " AND ";
+		}
+		if (conClave) {
+			//(c0 > :k0) OR (c0 = :k0 AND c1 > :k1) OR ...
+			jpql.append(conector).append("(");
+			for (int i = 0; i < camposOrden.length; i++) {
+				if (i > 0)
+					jpql.append(" OR ");
+				jpql.append("(");
+				for (int j = 0; j < i; j++)
+					jpql.append(camposOrden[j]).append(" = :clave").append(j).append(" AND ");
+				jpql.append(camposOrden[i]).append(descendente[i] ? " < " : " > ")
+						.append(":clave").append(i).append(")");
+			}
+			jpql.append(")");
+		}
+		jpql.append(" ORDER BY ");
+		for (int i = 0; i < camposOrden.length; i++) {
+			if (i > 0)
+				jpql.append(",");
+			jpql.append(camposOrden[i]).append(descendente[i] ? " DESC" : " ASC");
+		}
+		return jpql.toString();
+	}
+
+	private static void asignarParametros(Query q, Map<String, Object> parametros) {
+		if (parametros == null)
+			return;
+		for (Map.Entry<String, Object> p : parametros.entrySet())
+			q.setParameter(p.getKey(), p.getValue());
+	}
+
 	/**
 	 * Finder generico para buscar un objeto especifico.
 	 * 
@@ -190,21 +875,93 @@ public class ManagerDAO {
 	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public Object findById(Class clase, Object pID) throws Exception {
-		mostrarLog(this.getClass(),"findById", clase.getSimpleName() + " : " + pID);
-		if (!em.getTransaction().isActive())
-			em.getTransaction().begin();
+		log.depuracion("findById", "{} : {}", clase.getSimpleName(), pID);
 		if (pID == null)
 			throw new Exception(
 					"Debe especificar el codigo para buscar el dato.");
 		Object o;
+		EntityManager em = abrirLectura();
 		try {
-			o = em.find(clase, pID);
-		} catch (Exception e) {
-			em.getTransaction().rollback();
-			throw new Exception("No se encontro la informacion especificada: "
-					+ e.getMessage());
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			try {
+				o = em.find(clase, pID);
+			} catch (Exception e) {
+				em.getTransaction().rollback();
+				throw new Exception("No se encontro la informacion especificada: "
+						+ e.getMessage());
+			}
+			confirmar(em);
+		} finally {
+			cerrarLectura(em);
+		}
+		return o;
+	}
+
+	/**
+	 * Busca una entidad por su clave primaria con la sugerencia de solo
+	 * lectura (ver {@link #findNamedSoloLectura(Class, String, Map)}). La
+	 * entidad devuelta es compartida y <b>no debe modificarse</b>.
+	 * 
+	 * @param clase
+	 *            La clase sobre la que se desea consultar.
+	 * @param pID
+	 *            Identificador (la clave primaria).
+	 * @return La entidad solicitada, o null si no existe.
+	 * @throws Exception
+	 *             si no se especifica el identificador.
+	 */
+	public <T> T findByIdSoloLectura(Class<T> clase, Object pID) throws Exception {
+		log.depuracion("findByIdSoloLectura", "{} : {}", clase.getSimpleName(), pID);
+		if (pID == null)
+			throw new Exception(
+					"Debe especificar el codigo para buscar el dato.");
+		T o;
+		EntityManager em = abrirOperacion();
+		try {
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			o = em.find(clase, pID, Collections.<String, Object> singletonMap(
+					QueryHints.READ_ONLY, HintValues.TRUE));
+			confirmar(em);
+		} finally {
+			cerrarOperacion();
+		}
+		return o;
+	}
+
+	/**
+	 * Busca una entidad por su clave primaria leyendo la fila de la base de
+	 * datos, sin usar la cache compartida de EclipseLink (que es local a cada
+	 * nodo). Como {@link #findByIdSoloLectura(Class, Object)}, la entidad
+	 * devuelta <b>no debe modificarse</b>.
+	 * 
+	 * @param clase
+	 *            La clase sobre la que se desea consultar.
+	 * @param pID
+	 *            Identificador (la clave primaria).
+	 * @return La entidad solicitada, o null si no existe.
+	 * @throws Exception
+	 *             si no se especifica el identificador.
+	 */
+	public <T> T findByIdActualizado(Class<T> clase, Object pID) throws Exception {
+		log.depuracion("findByIdActualizado", "{} : {}", clase.getSimpleName(), pID);
+		if (pID == null)
+			throw new Exception(
+					"Debe especificar el codigo para buscar el dato.");
+		Map<String, Object> sugerencias = new HashMap<String, Object>();
+		sugerencias.put(QueryHints.READ_ONLY, HintValues.TRUE);
+		sugerencias.put("javax.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS);
+		T o;
+		EntityManager em = abrirOperacion();
+		try {
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			o = em.find(clase, pID, sugerencias);
+			confirmar(em);
+		} finally {
+			cerrarOperacion();
 		}
-		em.getTransaction().commit();
 		return o;
 	}
 
@@ -216,27 +973,30 @@ public class ManagerDAO {
 	 * @throws Exception
 	 */
 	public void insertar(Object pObjeto) throws Exception {
-		mostrarLog(this.getClass(),"insertar", pObjeto.getClass().getSimpleName() + " : "
-				+ pObjeto);
-		if (!em.getTransaction().isActive()) {
-			em.getTransaction().begin();
-		}
+		log.depuracion("insertar", "{} : {}", pObjeto.getClass().getSimpleName(), pObjeto);
+		EntityManager em = abrirOperacion();
 		try {
-			em.persist(pObjeto);
-			mostrarLog(this.getClass(),"insertar", "Objeto insertado: "
-					+ pObjeto.getClass().getSimpleName() + " " + pObjeto);
-		} catch (Exception e) {
-			mostrarLog(this.getClass(),"insertar",
-					"No se pudo insertar el objeto especificado: "
-							+ pObjeto.getClass().getSimpleName() + " "
-							+ pObjeto);
-			em.getTransaction().rollback();
-			mostrarLog(this.getClass(),"insertar", "transaccion rollback");
-			throw new Exception("No se pudo insertar el objeto especificado: "
-					+ e.getMessage());
+			if (!em.getTransaction().isActive()) {
+				em.getTransaction().begin();
+			}
+			try {
+				em.persist(pObjeto);
+				log.depuracion("insertar", "Objeto insertado: {} {}",
+						pObjeto.getClass().getSimpleName(), pObjeto);
+			} catch (Exception e) {
+				log.advertencia("insertar", "No se pudo insertar el objeto especificado: {} {}",
+						pObjeto.getClass().getSimpleName(), pObjeto);
+				em.getTransaction().rollback();
+				log.depuracion("insertar", "transaccion rollback");
+				throw new Exception("No se pudo insertar el objeto especificado: "
+						+ e.getMessage());
+			}
+			confirmar(em);
+			registrarEscritura();
+		} finally {
+			cerrarOperacion();
 		}
-		em.getTransaction().commit();
-		mostrarLog(this.getClass(),"insertar", "transaccion commit");
+		log.depuracion("insertar", "transaccion commit");
 	}
 
 	/**
@@ -251,30 +1011,35 @@ public class ManagerDAO {
 	@SuppressWarnings("rawtypes")
 	public void eliminar(Class clase, Object pID) throws Exception {
 		if (pID == null) {
-			mostrarLog(this.getClass(),"eliminar",
-					"Debe especificar un identificador para eliminar el dato solicitado: "
-							+ clase.getSimpleName() + " : " + pID);
+			log.advertencia("eliminar",
+					"Debe especificar un identificador para eliminar el dato solicitado: {} : {}",
+					clase.getSimpleName(), pID);
 			throw new Exception(
 					"Debe especificar un identificador para eliminar el dato solicitado.");
 		}
-		Object o = findById(clase, pID);
-		if (!em.getTransaction().isActive()) {
-			em.getTransaction().begin();
-		}
+		//el contexto se abre antes del findById para que el objeto siga administrado:
+		EntityManager em = abrirOperacion();
 		try {
-			em.remove(o);
-			mostrarLog(this.getClass(),"eliminar", "Dato eliminado: " + clase.getSimpleName()
-					+ " : " + pID.toString());
-		} catch (Exception e) {
-			em.getTransaction().rollback();
-			mostrarLog(this.getClass(),"eliminar",
-					"No se pudo eliminar el dato: " + clase.getSimpleName()
-							+ " : " + pID);
-			throw new Exception("No se pudo eliminar el dato: "
-					+ e.getMessage());
+			Object o = findById(clase, pID);
+			if (!em.getTransaction().isActive()) {
+				em.getTransaction().begin();
+			}
+			try {
+				em.remove(o);
+				log.depuracion("eliminar", "Dato eliminado: {} : {}", clase.getSimpleName(), pID);
+			} catch (Exception e) {
+				em.getTransaction().rollback();
+				log.advertencia("eliminar", "No se pudo eliminar el dato: {} : {}",
+						clase.getSimpleName(), pID);
+				throw new Exception("No se pudo eliminar el dato: "
+						+ e.getMessage());
+			}
+			confirmar(em);
+			registrarEscritura();
+		} finally {
+			cerrarOperacion();
 		}
-		em.getTransaction().commit();
-		mostrarLog(this.getClass(),"eliminar", "transaccion commit");
+		log.depuracion("eliminar", "transaccion commit");
 	}
 
 	/**
@@ -287,23 +1052,190 @@ public class ManagerDAO {
 	public void actualizar(Object pObjeto) throws Exception {
 		if (pObjeto == null)
 			throw new Exception("No se puede actualizar un dato null");
-		if (!em.getTransaction().isActive())
-			em.getTransaction().begin();
+		EntityManager em = abrirOperacion();
 		try {
-			em.merge(pObjeto);
-			mostrarLog(this.getClass(),"actualizar", "Dato actualizado: "
-					+ pObjeto.getClass().getSimpleName() + " : " + pObjeto);
-		} catch (Exception e) {
-			em.getTransaction().rollback();
-			throw new Exception("No se pudo actualizar el dato: "
-					+ e.getMessage());
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			try {
+				em.merge(pObjeto);
+				log.depuracion("actualizar", "Dato actualizado: {} : {}",
+						pObjeto.getClass().getSimpleName(), pObjeto);
+			} catch (Exception e) {
+				em.getTransaction().rollback();
+				throw new Exception("No se pudo actualizar el dato: "
+						+ e.getMessage());
+			}
+			confirmar(em);
+			registrarEscritura();
+		} finally {
+			cerrarOperacion();
 		}
-		em.getTransaction().commit();
-		mostrarLog(this.getClass(),"actualizar", "transaccion commit");
+		log.depuracion("actualizar", "transaccion commit");
+	}
+
+	/**
+	 * Actualiza solo los campos indicados de un objeto, con una unica sentencia
+	 * UPDATE (sin leerlo ni hacer merge). Maneja concurrencia optimista por
+	 * campo: la fila se modifica solo si cada campo cambiado todavia tiene su
+	 * valor original en la base de datos, de modo que dos usuarios que editan
+	 * campos distintos no se pisan, pero el segundo que edita el mismo campo
+	 * no sobrescribe el cambio del primero.
+	 *
+	 * @param clase
+	 *            La clase (entidad) que se desea actualizar.
+	 * @param pID
+	 *            El identificador del objeto que se desea actualizar.
+	 * @param valores
+	 *            Los nuevos valores, por nombre de atributo de la entidad.
+	 * @param originales
+	 *            Los valores originales de los mismos atributos (los que el
+	 *            usuario vio antes de editarlos).
+	 * @return el numero de filas actualizadas: 0 si el objeto no existe o si
+	 *         alguno de sus campos fue modificado por otro usuario.
+	 * @throws Exception
+	 */
+	@SuppressWarnings("rawtypes")
+	public int actualizarCampos(Class clase, Object pID,
+			Map<String, Object> valores, Map<String, Object> originales)
+			throws Exception {
+		return actualizarCampos(clase, pID, valores, originales, null);
 	}
 
+	/**
+	 * Igual que {@link #actualizarCampos(Class, Object, Map, Map)}, y ademas
+	 * suma una cantidad a campos numericos en la misma sentencia
+	 * (campo = campo + cantidad). Los incrementos no se comparan con un valor
+	 * original: se aplican sobre el valor que tenga la fila, sin pisar los
+	 * cambios hechos por otros (por ejemplo las ventas sobre la existencia).
+	 * 
+	 * @param clase
+	 *            La clase (entidad) que se desea actualizar.
+	 * @param pID
+	 *            El identificador del objeto que se desea actualizar.
+	 * @param valores
+	 *            Los nuevos valores, por nombre de atributo de la entidad.
+	 * @param originales
+	 *            Los valores originales de los mismos atributos, o null.
+	 * @param incrementos
+	 *            Las cantidades a sumar, por nombre de atributo, o null.
+	 * @return el numero de filas actualizadas: 0 si el objeto no existe o si
+	 *         alguno de sus campos fue modificado por otro usuario.
+	 * @throws Exception
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public int actualizarCampos(Class clase, Object pID,
+			Map<String, Object> valores, Map<String, Object> originales,
+			Map<String, Number> incrementos) throws Exception {
+		if (pID == null)
+			throw new Exception(
+					"Debe especificar un identificador para actualizar el dato solicitado.");
+		if (valores == null)
+			valores = Collections.emptyMap();
+		if (incrementos == null)
+			incrementos = Collections.emptyMap();
+		if (valores.isEmpty() && incrementos.isEmpty())
+			return 0;
+		int filas;
+		EntityManager em = abrirOperacion();
+		try {
+			EntityType entidad;
+			String id;
+			try {
+				entidad = em.getMetamodel().entity(clase);
+				id = entidad.getId(entidad.getIdType().getJavaType()).getName();
+				for (String campo : valores.keySet())
+					entidad.getAttribute(campo);
+				for (String campo : incrementos.keySet())
+					entidad.getAttribute(campo);
+			} catch (IllegalArgumentException e) {
+				throw new Exception("No se pudo actualizar el dato: "
+						+ e.getMessage());
+			}
+			StringBuilder jpql = new StringBuilder("UPDATE ")
+					.append(entidad.getName()).append(" o SET ");
+			StringBuilder condicion = new StringBuilder(" WHERE o.")
+					.append(id).append(" = :id");
+			int i = 0;
+			for (String campo : valores.keySet()) {
+				if (i > 0)
+					jpql.append(", ");
+				jpql.append("o.").append(campo).append(" = :v").append(i);
+				if (originales != null && originales.containsKey(campo)) {
+					condicion.append(" AND o.").append(campo);
+					if (originales.get(campo) == null)
+						condicion.append(" IS NULL");
+					else
+						condicion.append(" = :o").append(i);
+				}
+				i++;
+			}
+			int j = 0;
+			for (String campo : incrementos.keySet()) {
+				if (i + j > 0)
+					jpql.append(", ");
+				jpql.append("o.").append(campo).append(" = o.").append(campo)
+						.append(" + :i").append(j);
+				j++;
+			}
+			Query q = em.createQuery(jpql.append(condicion).toString());
+			q.setParameter("id", pID);
+			i = 0;
+			for (Map.Entry<String, Object> campo : valores.entrySet()) {
+				q.setParameter("v" + i, campo.getValue());
+				if (originales != null && originales.get(campo.getKey()) != null)
+					q.setParameter("o" + i, originales.get(campo.getKey()));
+				i++;
+			}
+			j = 0;
+			for (Number incremento : incrementos.values())
+				q.setParameter("i" + j++, incremento);
+			if (!em.getTransaction().isActive())
+				em.getTransaction().begin();
+			try {
+				filas = q.executeUpdate();
+				log.depuracion("actualizarCampos", "{} : {} {} {} ({} filas)",
+						clase.getSimpleName(), pID, valores.keySet(),
+						incrementos.keySet(), filas);
+			} catch (Exception e) {
+				em.getTransaction().rollback();
+				throw new Exception("No se pudo actualizar el dato: "
+						+ e.getMessage());
+			}
+			confirmar(em);
+			registrarEscritura();
+		} finally {
+			cerrarOperacion();
+		}
+		return filas;
+	}
+
+	/**
+	 * Inicia una transaccion en el contexto de persistencia del hilo actual, si
+	 * no existe una activa. Las operaciones de este DAO que se ejecuten dentro
+	 * del mismo contexto se unen a ella, y el primer commit la confirma. Si el
+	 * contexto se cierra sin confirmarla, se deshace.
+	 * 
+	 * @throws IllegalStateException
+	 *             si el hilo actual no tiene un contexto abierto.
+	 */
+	public void iniciarTransaccion() {
+		EntityManager em = getEntityManager();
+		if (em == null)
+			throw new IllegalStateException(
+					"Debe abrir un contexto de persistencia antes de iniciar una transaccion.");
+		if (!em.getTransaction().isActive())
+			em.getTransaction().begin();
+	}
+
+	/**
+	 * Devuelve el EntityManager asignado al hilo actual.
+	 * 
+	 * @return el EntityManager del contexto abierto, o null si el hilo actual
+	 *         no tiene un contexto de persistencia abierto.
+	 */
 	public static EntityManager getEntityManager() {
-		return em;
+		ContextoEM ctx = contexto.get();
+		return ctx == null ? null : ctx.em;
 	}
 
 }
@@ -1,9 +1,17 @@
 package facturacion.model.manager;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import facturacion.model.dao.entities.Cliente;
 import facturacion.model.dao.entities.FacturaCab;
@@ -17,31 +25,54 @@ import facturacion.model.dao.entities.Producto;
  */
 public class ManagerFacturacion {
 	private ManagerDAO managerDAO;
+	private ManagerNumeracion managerNumeracion;
+	private CacheProductos cacheProductos;
+	private RegistroParametros registroParametros;
+	private boolean guardadoAsincrono;
 	
 	public ManagerFacturacion(){
 		managerDAO=new ManagerDAO();
+		managerNumeracion=new ManagerNumeracion();
+		cacheProductos=CacheProductos.getInstancia();
+		registroParametros=RegistroParametros.getInstancia();
+		guardadoAsincrono=Boolean.parseBoolean(ManagerDAO.getPropiedad(DiarioFacturas.PROP_ACTIVO, "false"));
 	}
 	
 	//MANEJO DE PRODUCTOS:
 	/**
 	 * Metodo finder para consulta de productos.
 	 * Hace uso del componente {@link model.manager.ManagerDAO ManagerDAO} de la capa model.
-	 * @return listado de Productos ordenados por nombre.
+	 * El listado se atiende desde {@link CacheProductos} mientras no expire ni se modifique un producto.
+	 * @return listado de Productos ordenados por nombre (no modificable).
 	 */
-	@SuppressWarnings("unchecked")
 	public List<Producto> findAllProductos(){
-		return managerDAO.findAll(Producto.class, "o.nombre");
+		List<Producto> listado=cacheProductos.getListado();
+		if(listado==null){
+			long version=cacheProductos.getVersion();
+			listado=managerDAO.findNamedSoloLectura(Producto.class, "Producto.findAllOrdenado", null);
+			cacheProductos.putListado(listado, version);
+			listado=Collections.unmodifiableList(listado);
+		}
+		return listado;
 	}
 	
 	/**
 	 * Metodo finder para consulta de productos.
 	 * Hace uso del componente {@link model.manager.ManagerDAO ManagerDAO} de la capa model.
+	 * El producto se atiende desde {@link CacheProductos} cuando es posible, por lo
+	 * que no debe modificarse.
 	 * @param codigoProducto codigo del producto que se desea buscar.
 	 * @return el producto encontrado.
 	 * @throws Exception
 	 */
 	public Producto findProductoById(Integer codigoProducto) throws Exception{
-		return (Producto) managerDAO.findById(Producto.class, codigoProducto);
+		Producto p=cacheProductos.get(codigoProducto);
+		if(p==null){
+			long version=cacheProductos.getVersion();
+			p=managerDAO.findByIdSoloLectura(Producto.class, codigoProducto);
+			cacheProductos.put(p, version);
+		}
+		return p;
 	}
 	
 	/**
@@ -51,7 +82,12 @@ public class ManagerFacturacion {
 	 * @throws Exception
 	 */
 	public void insertarProducto(Producto p) throws Exception{
-		managerDAO.insertar(p);
+		try{
+			managerDAO.insertar(p);
+			IndiceProductos.getInstancia().agregar(p);
+		}finally{
+			cacheProductos.invalidar(p.getCodigoProducto());
+		}
 	}
 	
 	/**
@@ -61,33 +97,157 @@ public class ManagerFacturacion {
 	 * @throws Exception
 	 */
 	public void eliminarProducto(Integer codigoProducto) throws Exception{
-		managerDAO.eliminar(Producto.class, codigoProducto);
+		try{
+			managerDAO.eliminar(Producto.class, codigoProducto);
+			IndiceProductos.getInstancia().quitar(codigoProducto);
+			MotorExistencias.getInstancia().olvidar(codigoProducto);
+		}finally{
+			cacheProductos.invalidar(codigoProducto);
+		}
 	}
 	
 	/**
-	 * Actualiza la informacion de un producto en la base de datos.
-	 * Hace uso del componente {@link model.manager.ManagerDAO ManagerDAO} de la capa model.
+	 * Lee un producto desde la base de datos principal (no desde {@link CacheProductos})
+	 * para editarlo. Es el original que se debe enviar a
+	 * {@link #actualizarProducto(Producto, Producto)}.
+	 * @param codigoProducto codigo del producto que se desea editar.
+	 * @return el producto encontrado.
+	 * @throws Exception
+	 */
+	public Producto findProductoParaEdicion(Integer codigoProducto) throws Exception{
+		managerDAO.registrarEscritura();
+		//copia propia (no la compartida de solo lectura, que EclipseLink refresca
+		//al actualizar) para que siga siendo el original:
+		Producto p=(Producto) managerDAO.findById(Producto.class, codigoProducto);
+		if(p==null)
+			throw new Exception("Error el producto "+codigoProducto+" no existe.");
+		return p;
+	}
+	
+	/**
+	 * Actualiza la informacion de un producto en la base de datos, sin control
+	 * de concurrencia: se escriben los cinco campos aunque otro usuario los haya
+	 * cambiado. Para ediciones del usuario se debe usar
+	 * {@link #actualizarProducto(Producto, Producto)}.
 	 * @param producto Los datos del producto que se desea actualizar.
 	 * @throws Exception
 	 */
 	public void actualizarProducto(Producto producto) throws Exception{
-		Producto p=null;
+		actualizarProducto(null, producto);
+	}
+	
+	/**
+	 * Actualiza solo los campos de un producto que cambiaron respecto al
+	 * original, con una unica sentencia UPDATE (ver {@link ManagerDAO#actualizarCampos}).
+	 * Concurrencia optimista: si otro usuario modifico alguno de esos campos
+	 * desde que se leyo el original, no se actualiza nada y se lanza una excepcion.
+	 * La existencia no se compara, porque las ventas la cambian todo el tiempo:
+	 * se le suma la diferencia entre la nueva y la original, asi las ventas
+	 * hechas mientras se editaba se conservan.
+	 * Hace uso del componente {@link model.manager.ManagerDAO ManagerDAO} de la capa model.
+	 * @param original El producto tal como se leyo antes de editarlo
+	 * (ver {@link #findProductoParaEdicion(Integer)}); null para escribir todos
+	 * los campos sin control de concurrencia.
+	 * @param producto Los datos del producto que se desea actualizar.
+	 * @return true si se actualizo la fila, false si no habia cambios.
+	 * @throws Exception si el producto no existe o fue modificado por otro usuario.
+	 */
+	public boolean actualizarProducto(Producto original, Producto producto) throws Exception{
+		Integer codigo=producto.getCodigoProducto();
+		Map<String,Object> valores=new HashMap<String,Object>();
+		Map<String,Object> originales=original==null?null:new HashMap<String,Object>();
+		comparar("nombre", original==null?null:original.getNombre(), producto.getNombre(), valores, originales);
+		comparar("descripcion", original==null?null:original.getDescripcion(), producto.getDescripcion(), valores, originales);
+		comparar("precioUnitario", original==null?null:original.getPrecioUnitario(), producto.getPrecioUnitario(), valores, originales);
+		comparar("tieneImpuesto", original==null?null:original.getTieneImpuesto(), producto.getTieneImpuesto(), valores, originales);
+		Map<String,Number> incrementos=null;
+		if(original==null)
+			valores.put("existencia", producto.getExistencia());
+		else if(original.getExistencia()!=null&&producto.getExistencia()!=null
+				&&original.getExistencia().intValue()!=producto.getExistencia().intValue())
+			incrementos=Collections.<String,Number>singletonMap("existencia",
+					Integer.valueOf(producto.getExistencia().intValue()-original.getExistencia().intValue()));
+		if(valores.isEmpty()&&incrementos==null)
+			return false;
 		try {
-			//buscamos el producto a modificar desde la bdd:
-			p=findProductoById(producto.getCodigoProducto());
-			//actualizamos las propiedades:
-			p.setDescripcion(producto.getDescripcion());
+			if(managerDAO.actualizarCampos(Producto.class, codigo, valores, originales, incrementos)==0)
+				throw new Exception("Error el producto "+codigo
+						+" no existe o fue modificado por otro usuario, vuelva a cargarlo.");
+			//el indice se actualiza con una copia (los productos del indice son compartidos):
+			Producto p=new Producto();
+			p.setCodigoProducto(codigo);
+			p.setNombre((String)valor("nombre", valores, original));
+			p.setDescripcion((String)valor("descripcion", valores, original));
+			p.setPrecioUnitario((BigDecimal)valor("precioUnitario", valores, original));
 			p.setExistencia(producto.getExistencia());
-			p.setNombre(producto.getNombre());
-			p.setPrecioUnitario(producto.getPrecioUnitario());
-			p.setTieneImpuesto(producto.getTieneImpuesto());
-			//actualizamos:
-			managerDAO.actualizar(p);
+			p.setTieneImpuesto((String)valor("tieneImpuesto", valores, original));
+			IndiceProductos.getInstancia().agregar(p);
+			MotorExistencias.getInstancia().invalidar(codigo);
+			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new Exception(e.getMessage());
+		} finally {
+			cacheProductos.invalidar(codigo);
 		}
 	}
+	
+	/**
+	 * Agrega el campo a los valores por actualizar si cambio respecto al
+	 * original (sin original, se agrega siempre).
+	 */
+	@SuppressWarnings("unchecked")
+	private static void comparar(String campo,Object anterior,Object nuevo,Map<String,Object> valores,Map<String,Object> originales){
+		if(originales!=null){
+			boolean igual;
+			if(anterior==null || nuevo==null)
+				igual=anterior==nuevo;
+			else if(anterior instanceof Comparable && anterior.getClass()==nuevo.getClass())
+				//BigDecimal: 1.5 y 1.50 son el mismo precio
+				igual=((Comparable<Object>)anterior).compareTo(nuevo)==0;
+			else
+				igual=anterior.equals(nuevo);
+			if(igual)
+				return;
+			originales.put(campo, anterior);
+		}
+		valores.put(campo, nuevo);
+	}
+	
+	/**
+	 * Valor del campo despues de actualizar: el nuevo si cambio, o el del original.
+	 */
+	private static Object valor(String campo,Map<String,Object> valores,Producto original){
+		if(valores.containsKey(campo))
+			return valores.get(campo);
+		if("nombre".equals(campo))
+			return original.getNombre();
+		if("descripcion".equals(campo))
+			return original.getDescripcion();
+		if("precioUnitario".equals(campo))
+			return original.getPrecioUnitario();
+		return original.getTieneImpuesto();
+	}
+	
+	/**
+	 * Busca productos por nombre, codigo o descripcion para autocompletar
+	 * (prefijos de cada palabra y, si no alcanzan, trigramas).
+	 * Se atiende desde {@link IndiceProductos}, sin consultar la base de datos.
+	 * @param texto texto escrito por el usuario.
+	 * @param maximo numero maximo de productos devueltos.
+	 * @return los productos que mejor coinciden (no deben modificarse).
+	 */
+	public List<Producto> buscarProductos(String texto,int maximo){
+		return IndiceProductos.getInstancia().buscar(texto, maximo);
+	}
+	
+	/**
+	 * Devuelve la cache del catalogo de productos, para consultar sus estadisticas.
+	 * @return la cache de productos.
+	 */
+	public CacheProductos getCacheProductos(){
+		return cacheProductos;
+	}
 
 	
 	//MANEJO DE PARAMETROS:
@@ -97,125 +257,114 @@ public class ManagerFacturacion {
 	 * Hace uso del componente {@link model.manager.ManagerDAO ManagerDAO} de la capa model.
 	 * @return listado de parametros.
 	 */
-	@SuppressWarnings("unchecked")
 	public List<Parametro> findAllParametros(){
-		return managerDAO.findAll(Parametro.class);
+		return managerDAO.findNamed(Parametro.class, "Parametro.findAll", null);
 	}
 	/**
 	 * Obtiene el valor actual para el porcentaje de impuesto IVA.
+	 * El valor se lee desde {@link RegistroParametros}, sin acceder a la base de datos.
 	 * @return valor del IVA
 	 */
 	public double getPorcentajeIVA(){
-		Parametro parametro;
 		try {
-			parametro=(Parametro)managerDAO.findById(Parametro.class, "valor_iva");
+			return registroParametros.getDecimal("valor_iva").doubleValue();
 		} catch (Exception e) {
 			e.printStackTrace();
 			return 0;
 		}
-		return Double.parseDouble(parametro.getValorParametro());
-		
 	}
 	
 	/**
-	 * Retorna el valor actual del contador de facturas. 
-	 * Este contador es un parametro del sistema.
-	 * @return ultimo valor del contador de facturas
-	 * @throws Exception
+	 * Vuelve a cargar los parametros del sistema en {@link RegistroParametros},
+	 * por ejemplo luego de modificar la tabla parametro.
 	 */
-	private int getContFacturas() throws Exception{
-		int contFacturas=0;
-		Parametro parametro=null;
-		try {
-			parametro=(Parametro)managerDAO.findById(Parametro.class, "cont_facturas");
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new Exception("Revise el parametro 'cont_facturas': "+e.getMessage());
-		}
-		contFacturas=Integer.parseInt(parametro.getValorParametro());
-		return contFacturas;
+	public void recargarParametros(){
+		registroParametros.recargar();
 	}
 	
+	//MANEJO DE CLIENTES:
+	
 	/**
-	 * Retorna el valor actual del contador de los detalles de facturas. 
-	 * Este contador es un parametro del sistema.
-	 * @return ultimo valor del contador del detalle de facturas
-	 * @throws Exception
+	 * Metodo finder para la consulta de clientes.
+	 * Hace uso del componente {@link model.manager.ManagerDAO ManagerDAO} de la capa model.
+	 * @return listado de clientes ordenados por apellidos.
 	 */
-	private int getContFacturasDet() throws Exception{
-		int contFacturasDet=0;
-		Parametro parametro=null;
-		try {
-			parametro=(Parametro)managerDAO.findById(Parametro.class, "cont_facturas_det");
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new Exception("Revise el parametro 'cont_facturas_det': "+e.getMessage());
-		}
-		contFacturasDet=Integer.parseInt(parametro.getValorParametro());
-		return contFacturasDet;
+	public List<Cliente> findAllClientes(){
+		return managerDAO.findNamed(Cliente.class, "Cliente.findAllOrdenado", null);
 	}
 	
 	/**
-	 * Actualiza el valor del contador de facturas.
-	 * @param nuevoContadorFacturas nuevo valor del contador.
+	 * Metodo finder para la consulta de un cliente especifico.
+	 * @param cedula cedula del cliente que se desea buscar.
+	 * @return datos del cliente.
 	 * @throws Exception
 	 */
-	private void actualizarContFacturas(int nuevoContadorFacturas) throws Exception{
-		Parametro parametro=null;
+	public Cliente findClienteById(String cedula) throws Exception{
+		Cliente cliente=null;
 		try {
-			parametro=(Parametro)managerDAO.findById(Parametro.class, "cont_facturas");
-			parametro.setValorParametro(Integer.toString(nuevoContadorFacturas));
-			managerDAO.actualizar(parametro);
+			cliente=(Cliente)managerDAO.findById(Cliente.class, cedula);
 		} catch (Exception e) {
 			e.printStackTrace();
-			throw new Exception("Error al actualizar el parametro 'cont_facturas': "+e.getMessage());
+			throw new Exception("Error al buscar cliente: "+e.getMessage());
 		}
+		return cliente;
 	}
 	
 	/**
-	 * Actualiza el contador del detalle de facturas.
-	 * @param nuevoContadorFacturasDet nuevo valor del contador.
-	 * @throws Exception
+	 * Busca clientes por prefijo de la cedula o de sus apellidos y nombres,
+	 * para autocompletar.
+	 * Se atiende desde {@link IndiceClientes}, sin consultar la base de datos.
+	 * @param texto texto escrito por el usuario.
+	 * @param maximo numero maximo de clientes devueltos.
+	 * @return los clientes que mejor coinciden (no deben modificarse).
 	 */
-	private void actualizarContFacturasDet(int nuevoContadorFacturasDet) throws Exception{
-		Parametro parametro=null;
-		try {
-			parametro=(Parametro)managerDAO.findById(Parametro.class, "cont_facturas_det");
-			parametro.setValorParametro(Integer.toString(nuevoContadorFacturasDet));
-			managerDAO.actualizar(parametro);
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new Exception("Error al actualizar el parametro 'cont_facturas_det': "+e.getMessage());
-		}
+	public List<Cliente> buscarClientes(String texto,int maximo){
+		return IndiceClientes.getInstancia().buscar(texto, maximo);
 	}
 	
-	//MANEJO DE CLIENTES:
-	
 	/**
-	 * Metodo finder para la consulta de clientes.
+	 * Guarda un nuevo cliente en la base de datos.
 	 * Hace uso del componente {@link model.manager.ManagerDAO ManagerDAO} de la capa model.
-	 * @return listado de clientes ordenados por apellidos.
+	 * @param c El nuevo cliente.
+	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
-	public List<Cliente> findAllClientes(){
-		return managerDAO.findAll(Cliente.class, "o.apellidos");
+	public void insertarCliente(Cliente c) throws Exception{
+		managerDAO.insertar(c);
+		IndiceClientes.getInstancia().agregar(c);
 	}
 	
 	/**
-	 * Metodo finder para la consulta de un cliente especifico.
-	 * @param cedula cedula del cliente que se desea buscar.
-	 * @return datos del cliente.
+	 * Actualiza los datos de un cliente en la base de datos.
+	 * Hace uso del componente {@link model.manager.ManagerDAO ManagerDAO} de la capa model.
+	 * @param cliente Los datos del cliente que se desea actualizar.
 	 * @throws Exception
 	 */
-	public Cliente findClienteById(String cedula) throws Exception{
-		Cliente cliente=null;
+	public void actualizarCliente(Cliente cliente) throws Exception{
+		Cliente c=null;
 		try {
-			cliente=(Cliente)managerDAO.findById(Cliente.class, cedula);
+			c=(Cliente) managerDAO.findById(Cliente.class, cliente.getCedulaCliente());
+			if(c==null)
+				throw new Exception("No existe el cliente "+cliente.getCedulaCliente()+".");
+			c.setApellidos(cliente.getApellidos());
+			c.setNombres(cliente.getNombres());
+			c.setDireccion(cliente.getDireccion());
+			managerDAO.actualizar(c);
+			IndiceClientes.getInstancia().agregar(c);
 		} catch (Exception e) {
 			e.printStackTrace();
-			throw new Exception("Error al buscar cliente: "+e.getMessage());
+			throw new Exception(e.getMessage());
 		}
-		return cliente;
+	}
+	
+	/**
+	 * Borra de la base de datos un cliente especifico.
+	 * Hace uso del componente {@link model.manager.ManagerDAO ManagerDAO} de la capa model.
+	 * @param cedula la cedula del cliente que se desea eliminar.
+	 * @throws Exception
+	 */
+	public void eliminarCliente(String cedula) throws Exception{
+		managerDAO.eliminar(Cliente.class, cedula);
+		IndiceClientes.getInstancia().quitar(cedula);
 	}
 	
 	//MANEJO DE FACTURAS:
@@ -225,9 +374,184 @@ public class ManagerFacturacion {
 	 * Hace uso del componente {@link model.manager.ManagerDAO ManagerDAO} de la capa model.
 	 * @return Listado de facturas ordenadas por fecha de emision y numero de factura.
 	 */
-	@SuppressWarnings("unchecked")
 	public List<FacturaCab> findAllFacturaCab(){
-		return managerDAO.findAll(FacturaCab.class, "o.fechaEmision desc,o.numeroFactura desc");
+		return managerDAO.findNamed(FacturaCab.class, "FacturaCab.findAllOrdenado", null);
+	}
+	
+	/**
+	 * Metodo finder para la consulta de las facturas de un cliente.
+	 * @param cedula cedula del cliente.
+	 * @return Listado de facturas del cliente ordenadas por numero de factura.
+	 */
+	public List<FacturaCab> findFacturaCabByCliente(String cedula){
+		return managerDAO.findNamed(FacturaCab.class, "FacturaCab.findByCliente",
+				Collections.<String,Object>singletonMap("cedula", cedula));
+	}
+	
+	/**
+	 * Metodo finder paginado para la consulta de facturas. Cada pagina continua
+	 * a partir de la clave de la ultima factura de la pagina anterior (keyset),
+	 * sin recorrer las paginas previas.
+	 * @param filtros valores de filtro por campo (ver {@link #contarFacturaCab(Map)}).
+	 * @param campoOrden campo por el que se ordena (numeroFactura, fechaEmision,
+	 * cliente.cedulaCliente, cliente.apellidos, subtotal, valorIva o total), o null
+	 * para ordenar por fecha de emision y numero de factura descendentes.
+	 * @param descendente sentido del orden cuando se especifica campoOrden.
+	 * @param ultimaClave clave de la ultima factura de la pagina anterior
+	 * (ver {@link #getClaveFacturaCab(FacturaCab, String)}), o null para la primera pagina.
+	 * @param tamanioPagina numero maximo de facturas a devolver.
+	 * @return pagina de facturas.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<FacturaCab> findFacturaCabPagina(Map<String,Object> filtros,String campoOrden,
+			boolean descendente,Object[] ultimaClave,int tamanioPagina){
+		Map<String,Object> parametros=new HashMap<String,Object>();
+		String where=construirFiltroFacturas(filtros, parametros);
+		String[] campos=getCamposOrdenFacturas(campoOrden);
+		return managerDAO.findPagina(FacturaCab.class, where, parametros, campos,
+				getSentidoOrdenFacturas(campos.length, campoOrden, descendente), ultimaClave, tamanioPagina);
+	}
+	
+	/**
+	 * Metodo finder paginado para el listado de facturas. Igual que
+	 * {@link #findFacturaCabPagina(Map, String, boolean, Object[], int)}, pero
+	 * trae solo las columnas del listado (factura y cliente) en una sola
+	 * consulta, sin crear entidades administradas.
+	 * @return pagina del listado de facturas.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<ResumenFactura> findResumenFacturaPagina(Map<String,Object> filtros,String campoOrden,
+			boolean descendente,Object[] ultimaClave,int tamanioPagina){
+		Map<String,Object> parametros=new HashMap<String,Object>();
+		String where=construirFiltroFacturas(filtros, parametros);
+		String[] campos=getCamposOrdenFacturas(campoOrden);
+		return managerDAO.findPaginaProyeccion(ResumenFactura.SELECCION, FacturaCab.class, where, parametros,
+				campos, getSentidoOrdenFacturas(campos.length, campoOrden, descendente), ultimaClave, tamanioPagina);
+	}
+	
+	/**
+	 * Calcula la clave de la factura que se encuentra <i>desplazamiento</i>
+	 * posiciones despues de ultimaClave, leyendo solo las columnas de orden.
+	 * Sirve para saltar a una pagina lejana desde la pagina conocida mas cercana.
+	 * @return la clave encontrada, o null si no existe.
+	 * @see #findFacturaCabPagina(Map, String, boolean, Object[], int)
+	 */
+	public Object[] findClaveFacturaCab(Map<String,Object> filtros,String campoOrden,
+			boolean descendente,Object[] ultimaClave,int desplazamiento){
+		Map<String,Object> parametros=new HashMap<String,Object>();
+		String where=construirFiltroFacturas(filtros, parametros);
+		String[] campos=getCamposOrdenFacturas(campoOrden);
+		return managerDAO.findClavePagina(FacturaCab.class, where, parametros, campos,
+				getSentidoOrdenFacturas(campos.length, campoOrden, descendente), ultimaClave, desplazamiento);
+	}
+	
+	/**
+	 * Cuenta las facturas que cumplen los filtros.
+	 * @param filtros valores de filtro por campo. Se aceptan numeroFactura y
+	 * cliente.cedulaCliente (que empiecen con el valor) y cliente.apellidos
+	 * (que contenga el valor, sin distinguir mayusculas). Puede ser null.
+	 * @return numero de facturas.
+	 */
+	public long contarFacturaCab(Map<String,Object> filtros){
+		Map<String,Object> parametros=new HashMap<String,Object>();
+		String where=construirFiltroFacturas(filtros, parametros);
+		return managerDAO.contar(FacturaCab.class, where, parametros);
+	}
+	
+	/**
+	 * Devuelve la clave de paginacion de una factura, es decir los valores de
+	 * los campos de orden de {@link #findFacturaCabPagina(Map, String, boolean, Object[], int)}.
+	 * @param f factura.
+	 * @param campoOrden campo de orden utilizado en la consulta.
+	 * @return clave de la factura.
+	 */
+	public Object[] getClaveFacturaCab(FacturaCab f,String campoOrden){
+		return getClaveResumenFactura(ResumenFactura.de(f), campoOrden);
+	}
+	
+	/**
+	 * Devuelve la clave de paginacion de una fila del listado de facturas.
+	 * @param f fila del listado.
+	 * @param campoOrden campo de orden utilizado en la consulta.
+	 * @return clave de la fila.
+	 * @see #getClaveFacturaCab(FacturaCab, String)
+	 */
+	public Object[] getClaveResumenFactura(ResumenFactura f,String campoOrden){
+		if(campoOrden==null||!CAMPOS_FACTURA.containsKey(campoOrden))
+			return new Object[]{f.getFechaEmision(),f.getNumeroFactura()};
+		if(campoOrden.equals("numeroFactura"))
+			return new Object[]{f.getNumeroFactura()};
+		Object valor;
+		if(campoOrden.equals("fechaEmision"))
+			valor=f.getFechaEmision();
+		else if(campoOrden.equals("cliente.cedulaCliente"))
+			valor=f.getCedulaCliente();
+		else if(campoOrden.equals("cliente.apellidos"))
+			valor=f.getApellidos();
+		else if(campoOrden.equals("subtotal"))
+			valor=f.getSubtotal();
+		else if(campoOrden.equals("valorIva"))
+			valor=f.getValorIva();
+		else
+			valor=f.getTotal();
+		return new Object[]{valor,f.getNumeroFactura()};
+	}
+	
+	/**
+	 * Campos del listado de facturas por los que se puede ordenar, con su
+	 * expresion JPQL.
+	 */
+	private static final Map<String,String> CAMPOS_FACTURA=new HashMap<String,String>();
+	static{
+		CAMPOS_FACTURA.put("numeroFactura", "o.numeroFactura");
+		CAMPOS_FACTURA.put("fechaEmision", "o.fechaEmision");
+		CAMPOS_FACTURA.put("cliente.cedulaCliente", "o.cliente.cedulaCliente");
+		CAMPOS_FACTURA.put("cliente.apellidos", "o.cliente.apellidos");
+		CAMPOS_FACTURA.put("subtotal", "o.subtotal");
+		CAMPOS_FACTURA.put("valorIva", "o.valorIva");
+		CAMPOS_FACTURA.put("total", "o.total");
+	}
+	
+	private String[] getCamposOrdenFacturas(String campoOrden){
+		if(campoOrden==null||!CAMPOS_FACTURA.containsKey(campoOrden))
+			return new String[]{"o.fechaEmision","o.numeroFactura"};
+		if(campoOrden.equals("numeroFactura"))
+			return new String[]{"o.numeroFactura"};
+		//el numero de factura desempata y hace unica la clave:
+		return new String[]{CAMPOS_FACTURA.get(campoOrden),"o.numeroFactura"};
+	}
+	
+	private boolean[] getSentidoOrdenFacturas(int numeroCampos,String campoOrden,boolean descendente){
+		boolean[] sentido=new boolean[numeroCampos];
+		boolean desc=campoOrden==null||!CAMPOS_FACTURA.containsKey(campoOrden)||descendente;
+		for(int i=0;i<numeroCampos;i++)
+			sentido[i]=desc;
+		return sentido;
+	}
+	
+	private String construirFiltroFacturas(Map<String,Object> filtros,Map<String,Object> parametros){
+		if(filtros==null)
+			return null;
+		StringBuilder where=new StringBuilder();
+		Object valor;
+		valor=filtros.get("numeroFactura");
+		if(valor!=null&&valor.toString().trim().length()>0){
+			where.append("o.numeroFactura LIKE :numeroFactura");
+			parametros.put("numeroFactura", valor.toString().trim()+"%");
+		}
+		valor=filtros.get("cliente.cedulaCliente");
+		if(valor!=null&&valor.toString().trim().length()>0){
+			if(where.length()>0) where.append(" AND ");
+			where.append("o.cliente.cedulaCliente LIKE :cedulaCliente");
+			parametros.put("cedulaCliente", valor.toString().trim()+"%");
+		}
+		valor=filtros.get("cliente.apellidos");
+		if(valor!=null&&valor.toString().trim().length()>0){
+			if(where.length()>0) where.append(" AND ");
+			where.append("UPPER(o.cliente.apellidos) LIKE :apellidos");
+			parametros.put("apellidos", "%"+valor.toString().trim().toUpperCase()+"%");
+		}
+		return where.length()==0?null:where.toString();
 	}
 	
 	/**
@@ -267,26 +591,22 @@ public class ManagerFacturacion {
 	}
 	
 	/**
-	 * Realiza los calculos de subtotales, impuestos y totales.
+	 * Realiza los calculos de subtotales, impuestos y totales recorriendo
+	 * todos los detalles de la factura (ver {@link CalculadoraTotales}).
 	 * @param facturaCabTmp Factura temporal creada en memoria.
+	 * @throws Exception si el parametro valor_iva no es valido.
 	 */
-	private void calcularFacturaTmp(FacturaCab facturaCabTmp){
-		double sumaSubtotales;
-		double porcentajeIVA,valorIVA,totalFactura;
-		//verificamos los campos calculados:
-		sumaSubtotales=0;
-		for(FacturaDet det:facturaCabTmp.getFacturaDets()){
-			sumaSubtotales+= det.getCantidad().intValue() * det.getPrecioUnitarioVenta().doubleValue();
-		}
-		
-		porcentajeIVA=getPorcentajeIVA();
-		valorIVA=sumaSubtotales*porcentajeIVA/100;
-		totalFactura=sumaSubtotales+valorIVA;
-		
-		facturaCabTmp.setSubtotal(new BigDecimal(sumaSubtotales));
-		facturaCabTmp.setValorIva(new BigDecimal(valorIVA));
-		facturaCabTmp.setBaseCero(new BigDecimal(0));//no calculamos la base cero en este ejemplo.
-		facturaCabTmp.setTotal(new BigDecimal(totalFactura));
+	void calcularFacturaTmp(FacturaCab facturaCabTmp) throws Exception{
+		CalculadoraTotales.recalcular(facturaCabTmp, getPorcentajeIVACentesimas());
+	}
+	
+	/**
+	 * Obtiene el porcentaje de IVA vigente en centesimas de punto (12% = 1200).
+	 * @return porcentaje de IVA en centesimas.
+	 * @throws Exception si el parametro valor_iva no es valido.
+	 */
+	private long getPorcentajeIVACentesimas() throws Exception{
+		return CalculadoraTotales.porcentajeACentesimas(registroParametros.getDecimal("valor_iva"));
 	}
 	
 	/**
@@ -309,6 +629,10 @@ public class ManagerFacturacion {
 		
 		//buscamos el producto:
 		p=findProductoById(codigoProducto);
+		if(p==null)
+			throw new Exception("Error el producto "+codigoProducto+" no existe.");
+		//reservamos la cantidad (falla si la existencia disponible no alcanza):
+		MotorExistencias.getInstancia().reservar(facturaCabTmp, codigoProducto, cantidad.intValue());
 		//creamos un nuevo detalle y llenamos sus propiedades:
 		fd=new FacturaDet();
 		fd.setCantidad(cantidad);
@@ -316,8 +640,24 @@ public class ManagerFacturacion {
 		fd.setProducto(p);
 		facturaCabTmp.getFacturaDets().add(fd);
 		
-		//verificamos los campos calculados:
-		calcularFacturaTmp(facturaCabTmp);
+		//actualizamos los campos calculados solo con la nueva linea:
+		CalculadoraTotales.agregarDetalle(facturaCabTmp, fd, getPorcentajeIVACentesimas());
+	}
+	
+	/**
+	 * Quita un item detalle de una factura temporal y actualiza sus totales.
+	 * @param facturaCabTmp Factura temporal creada en memoria.
+	 * @param indice posicion del detalle en la factura.
+	 * @throws Exception si el detalle no existe.
+	 */
+	public void quitarDetalleFacturaTmp(FacturaCab facturaCabTmp,int indice) throws Exception{
+		if(facturaCabTmp==null)
+			throw new Exception("Error primero debe crear una nueva factura.");
+		if(indice<0||indice>=facturaCabTmp.getFacturaDets().size())
+			throw new Exception("Error el detalle especificado no existe.");
+		FacturaDet fd=facturaCabTmp.getFacturaDets().remove(indice);
+		MotorExistencias.getInstancia().liberar(facturaCabTmp, fd.getProducto().getCodigoProducto(), fd.getCantidad().intValue());
+		CalculadoraTotales.quitarDetalle(facturaCabTmp, fd, getPorcentajeIVACentesimas());
 	}
 	
 	/**
@@ -327,43 +667,433 @@ public class ManagerFacturacion {
 	 */
 	public void guardarFacturaTemporal(FacturaCab facturaCabTmp) throws Exception{
 		
-		if(facturaCabTmp==null)
-			throw new Exception("Debe crear una factura primero.");
-		if(facturaCabTmp.getFacturaDets()==null || facturaCabTmp.getFacturaDets().size()==0)
-			throw new Exception("Debe ingresar los productos en la factura.");
-		if(facturaCabTmp.getCliente()==null)
-			throw new Exception("Debe registrar el cliente.");
+		validarFacturaTmp(facturaCabTmp);
 
 		facturaCabTmp.setFechaEmision(new Date());
 		
-		//obtenemos el numero de la nueva factura:
-		int contFacturas;
-		contFacturas=getContFacturas();
-		contFacturas++;
-		facturaCabTmp.setNumeroFactura(Integer.toString(contFacturas));
-		
 		//verificamos los campos calculados:
 		calcularFacturaTmp(facturaCabTmp);
 		
-		//asignamos la clave primaria a los detalles:
-		int contFacturasDet;
-		contFacturasDet=getContFacturasDet();
+		numerarDetalles(facturaCabTmp);
+		
+		//cabecera, detalles y existencia en una transaccion con lotes JDBC (y
+		//agrupada con los guardados concurrentes si facturacion.guardado.grupo es
+		//mayor a 1); falla si la existencia no alcanza:
+		GuardadoAgrupado.getInstancia().guardar(facturaCabTmp);
+		//las lecturas siguientes de este usuario deben ver la factura:
+		managerDAO.registrarEscritura();
 		
+		//la factura ya esta guardada: se libera su reserva.
+		MotorExistencias.getInstancia().confirmar(facturaCabTmp, cantidadesVendidas(facturaCabTmp));
+		
+		facturaCabTmp=null;
+	}
+	
+	/**
+	 * Arma, guarda y devuelve una factura completa en una sola llamada, sin
+	 * factura temporal entre peticiones (para clientes sin sesion, por ejemplo
+	 * terminales de venta o integraciones). No usa estado local del nodo: el
+	 * cliente y los productos se leen de la base de datos y la existencia se
+	 * descuenta con un UPDATE condicional en la transaccion del guardado (ver
+	 * {@link GuardadoAgrupado}), sin reservas en {@link MotorExistencias}.
+	 * @param cedulaCliente codigo del cliente.
+	 * @param detalles cantidad por codigo de producto, en el orden de la factura.
+	 * @return la factura guardada, con su numero y sus totales.
+	 * @throws FacturaRechazada si el cliente o un producto no existen, una
+	 * cantidad no es valida o la existencia no alcanza.
+	 * @throws ErrorPersistencia si falla la insercion.
+	 * @throws Exception si falla la lectura del cliente, los productos o los parametros.
+	 */
+	public FacturaCab guardarFactura(String cedulaCliente,Map<Integer,Integer> detalles) throws Exception{
+		FacturaCab f=armarFactura(cedulaCliente, detalles);
+		numerarDetalles(f);
+		GuardadoAgrupado.getInstancia().guardar(f);
+		managerDAO.registrarEscritura();
+		return f;
+	}
+
+	/**
+	 * Calcula los totales de una factura completa sin guardarla. La
+	 * existencia se compara con la de la base de datos pero no se reserva.
+	 * @param cedulaCliente codigo del cliente.
+	 * @param detalles cantidad por codigo de producto, en el orden de la factura.
+	 * @return la factura sin numero, con sus totales.
+	 * @throws FacturaRechazada si el cliente o un producto no existen, una
+	 * cantidad no es valida o la existencia no alcanza.
+	 * @throws Exception si falla la lectura del cliente, los productos o los parametros.
+	 */
+	public FacturaCab cotizarFactura(String cedulaCliente,Map<Integer,Integer> detalles) throws Exception{
+		return armarFactura(cedulaCliente, detalles);
+	}
+
+	/**
+	 * Crea una factura con su cliente, sus detalles y sus totales, leyendo
+	 * el cliente y los productos de la base de datos (no de las caches del
+	 * nodo). La existencia se verifica aqui para rechazar pronto; el
+	 * descuento al guardar es el que decide.
+	 */
+	private FacturaCab armarFactura(String cedulaCliente,Map<Integer,Integer> detalles) throws Exception{
+		if(cedulaCliente==null||cedulaCliente.length()==0)
+			throw new FacturaRechazada("Debe especificar la cedula del cliente.");
+		if(detalles==null||detalles.isEmpty())
+			throw new FacturaRechazada("Debe ingresar los productos en la factura.");
+		FacturaCab f=crearFacturaTmp();
+		Cliente cliente=managerDAO.findByIdActualizado(Cliente.class, cedulaCliente);
+		if(cliente==null)
+			throw new FacturaRechazada("El cliente "+cedulaCliente+" no existe.");
+		f.setCliente(cliente);
+		long porcentajeIVA=getPorcentajeIVACentesimas();
+		for(Map.Entry<Integer,Integer> d:detalles.entrySet()){
+			Integer codigoProducto=d.getKey();
+			Integer cantidad=d.getValue();
+			if(codigoProducto==null||codigoProducto.intValue()<0)
+				throw new FacturaRechazada("Debe especificar el codigo del producto.");
+			if(cantidad==null||cantidad.intValue()<=0)
+				throw new FacturaRechazada("La cantidad del producto "+codigoProducto+" debe ser mayor a cero.");
+			Producto p=managerDAO.findByIdActualizado(Producto.class, codigoProducto);
+			if(p==null)
+				throw new FacturaRechazada("El producto "+codigoProducto+" no existe.");
+			if(p.getExistencia()!=null&&p.getExistencia().intValue()<cantidad.intValue())
+				throw new FacturaRechazada("Existencia insuficiente del producto "+codigoProducto+".");
+			FacturaDet fd=new FacturaDet();
+			fd.setCantidad(cantidad);
+			fd.setPrecioUnitarioVenta(p.getPrecioUnitario());
+			fd.setProducto(p);
+			f.getFacturaDets().add(fd);
+			CalculadoraTotales.agregarDetalle(f, fd, porcentajeIVA);
+		}
+		return f;
+	}
+
+	/**
+	 * Indica si las facturas se guardan de forma asincrona
+	 * (propiedad facturacion.diario.activo, ver {@link DiarioFacturas}).
+	 * @return true si se debe usar {@link #guardarFacturaAsincrona(FacturaCab)}.
+	 */
+	public boolean isGuardadoAsincrono(){
+		return guardadoAsincrono;
+	}
+	
+	/**
+	 * Recupera las facturas que quedaron pendientes en el diario (por ejemplo
+	 * tras una caida) y empieza a guardarlas, si el guardado asincrono esta activo.
+	 * @throws Exception si no se puede leer el diario.
+	 */
+	public void iniciarGuardadoAsincrono() throws Exception{
+		if(guardadoAsincrono)
+			DiarioFacturas.getInstancia();
+	}
+	
+	/**
+	 * Recibe una factura para guardarla en segundo plano: se valida, se
+	 * calculan sus totales y se escribe en el diario local (ver
+	 * {@link DiarioFacturas}); no espera a la base de datos. La reserva de la
+	 * factura se libera: la existencia se descuenta en la base de datos cuando
+	 * la factura se guarda, y si para entonces no alcanza la factura queda
+	 * {@link TicketFactura#RECHAZADA} sin descontar nada.
+	 * @param facturaCabTmp factura temporal creada en memoria.
+	 * @return el ticket para consultar el estado y el numero de la factura.
+	 * @throws Exception si el guardado asincrono no esta activo, la factura no
+	 * es valida o no se pudo escribir en el diario.
+	 */
+	public String guardarFacturaAsincrona(FacturaCab facturaCabTmp) throws Exception{
+		if(!guardadoAsincrono)
+			throw new Exception("El guardado asincrono no esta activo ("+DiarioFacturas.PROP_ACTIVO+").");
+		validarFacturaTmp(facturaCabTmp);
+		facturaCabTmp.setFechaEmision(new Date());
+		calcularFacturaTmp(facturaCabTmp);
+		String ticket=DiarioFacturas.getInstancia().registrar(facturaCabTmp);
+		MotorExistencias.getInstancia().liberarTodo(facturaCabTmp);
+		return ticket;
+	}
+	
+	/**
+	 * Consulta el estado de una factura recibida con
+	 * {@link #guardarFacturaAsincrona(FacturaCab)}.
+	 * @param ticket ticket de la factura.
+	 * @return el estado de la factura, o null si el ticket no existe o el
+	 * guardado asincrono no esta activo.
+	 * @throws Exception si no se puede leer el diario.
+	 */
+	public TicketFactura consultarTicket(String ticket) throws Exception{
+		if(!guardadoAsincrono)
+			return null;
+		return DiarioFacturas.getInstancia().consultar(ticket);
+	}
+	
+	/**
+	 * Guarda una factura del diario que ya tiene su numero y su fecha de
+	 * emision, descontando su existencia (sin reservas: la factura ya no esta
+	 * en la sesion del cajero).
+	 * @param factura factura con numero, cliente y detalles con su precio.
+	 * @throws FacturaRechazada si la existencia de algun producto no alcanza.
+	 * @throws Exception problemas ocurridos en la insercion.
+	 */
+	void guardarFacturaNumerada(FacturaCab factura) throws Exception{
+		calcularFacturaTmp(factura);
+		numerarDetalles(factura);
+		GuardadoAgrupado.getInstancia().guardar(factura);
+		MotorExistencias.getInstancia().registrarVenta(cantidadesVendidas(factura));
+	}
+	
+	private void validarFacturaTmp(FacturaCab facturaCabTmp) throws Exception{
+		if(facturaCabTmp==null)
+			throw new Exception("Debe crear una factura primero.");
+		if(facturaCabTmp.getFacturaDets()==null || facturaCabTmp.getFacturaDets().size()==0)
+			throw new Exception("Debe ingresar los productos en la factura.");
+		if(facturaCabTmp.getCliente()==null)
+			throw new Exception("Debe registrar el cliente.");
+	}
+	
+	/**
+	 * Suma las cantidades de las lineas de una factura por codigo de producto.
+	 */
+	private static Map<Integer,Integer> cantidadesVendidas(FacturaCab facturaCabTmp){
+		Map<Integer,Integer> vendidas=new HashMap<Integer,Integer>();
 		for(FacturaDet det:facturaCabTmp.getFacturaDets()){
-			contFacturasDet++;
-			det.setNumeroFacturaDet(new Integer(contFacturasDet));
+			Integer codigo=det.getProducto().getCodigoProducto();
+			Integer anterior=vendidas.get(codigo);
+			vendidas.put(codigo, Integer.valueOf((anterior==null?0:anterior.intValue())+det.getCantidad().intValue()));
+		}
+		return vendidas;
+	}
+	
+	/**
+	 * Asigna la clave primaria a los detalles y los vincula a la cabecera.
+	 */
+	private void numerarDetalles(FacturaCab facturaCabTmp) throws Exception{
+		for(FacturaDet det:facturaCabTmp.getFacturaDets()){
+			long contFacturasDet=managerNumeracion.siguiente(ManagerNumeracion.CONT_FACTURAS_DET);
+			det.setNumeroFacturaDet(new Integer((int)contFacturasDet));
 			//vinculamos el detalle a la cabecera (relacion bidireccional):
 			det.setFacturaCab(facturaCabTmp);
 		}
-		
-		//guardamos la factura completa en la bdd:
-		managerDAO.insertar(facturaCabTmp);
-		
-		//actualizamos los parametros contadores de facturas:
-		actualizarContFacturas(contFacturas);
-		actualizarContFacturasDet(contFacturasDet);
-		
-		facturaCabTmp=null;
+	}
+	
+	/**
+	 * Descarta una factura temporal que no se va a guardar, liberando la
+	 * existencia reservada por sus detalles.
+	 * @param facturaCabTmp Factura temporal creada en memoria.
+	 */
+	public void descartarFacturaTmp(FacturaCab facturaCabTmp){
+		if(facturaCabTmp!=null)
+			MotorExistencias.getInstancia().liberarTodo(facturaCabTmp);
+	}
+	
+	/**
+	 * Importa de forma masiva facturas completas (cabecera con sus detalles),
+	 * por ejemplo datos historicos o facturas de otras sucursales.
+	 * Las facturas sin numero reciben uno nuevo; los detalles siempre reciben
+	 * un numero nuevo. Si la factura no trae el total, se calculan sus totales.
+	 * Las filas se insertan con lotes JDBC (primero las cabeceras y luego los
+	 * detalles) y se confirma la transaccion cada tamanioCommit facturas.
+	 * @param facturas facturas a importar; cada una debe tener cliente y detalles
+	 * con producto y cantidad.
+	 * @param tamanioLote numero de facturas por lote JDBC.
+	 * @param tamanioCommit numero de facturas por transaccion.
+	 * @return cantidades importadas, tiempo y filas por segundo.
+	 * @throws Exception si una factura no es valida o falla la base de datos; las
+	 * transacciones ya confirmadas se conservan.
+	 */
+	public ResultadoImportacion importarFacturas(Iterator<FacturaCab> facturas,int tamanioLote,int tamanioCommit) throws Exception{
+		ImportadorFacturas importador=new ImportadorFacturas(this, managerNumeracion, getPorcentajeIVACentesimas());
+		try{
+			return importador.importar(facturas, tamanioLote, tamanioCommit);
+		}finally{
+			managerDAO.registrarEscritura();
+		}
+	}
+	
+	/**
+	 * Exporta las facturas emitidas en el rango, con sus detalles, cliente y
+	 * producto, leyendo con un cursor del servidor (ver {@link ExportadorFacturas}):
+	 * la memoria usada no depende del numero de facturas.
+	 * @param desde primer dia del rango, o null para no limitarlo.
+	 * @param hasta ultimo dia del rango (incluido), o null para no limitarlo.
+	 * @param formato {@link ExportadorFacturas#CSV} o {@link ExportadorFacturas#JSONL}.
+	 * @param salida flujo de salida (UTF-8); no se cierra.
+	 * @return numero de facturas exportadas.
+	 * @throws Exception si el formato no existe, o falla la base de datos o la escritura.
+	 */
+	public long exportarFacturas(Date desde,Date hasta,String formato,OutputStream salida) throws Exception{
+		ExportadorFacturas exportador=new ExportadorFacturas(ManagerDAO.getPropiedad(ExportadorFacturas.PROP_FETCH, 1000));
+		return exportador.exportar(desde, hasta, formato, salida);
+	}
+	
+	/**
+	 * Exporta las facturas emitidas en el rango a un archivo; si la
+	 * exportacion falla, el archivo incompleto se elimina.
+	 * @param desde primer dia del rango, o null para no limitarlo.
+	 * @param hasta ultimo dia del rango (incluido), o null para no limitarlo.
+	 * @param formato {@link ExportadorFacturas#CSV} o {@link ExportadorFacturas#JSONL}.
+	 * @param archivo archivo de salida; se reemplaza si existe.
+	 * @return numero de facturas exportadas.
+	 * @throws Exception si el formato no existe, o falla la base de datos o la escritura.
+	 */
+	public long exportarFacturas(Date desde,Date hasta,String formato,File archivo) throws Exception{
+		boolean exportado=false;
+		OutputStream salida=new FileOutputStream(archivo);
+		try{
+			long facturas=exportarFacturas(desde, hasta, formato, salida);
+			exportado=true;
+			return facturas;
+		}finally{
+			salida.close();
+			if(!exportado)
+				archivo.delete();
+		}
+	}
+	
+	//DOCUMENTOS DE FACTURAS:
+	/**
+	 * Escribe el documento imprimible de una factura (ver {@link GeneradorDocumentos}).
+	 * @param facturaCab factura con cliente y detalles, por ejemplo la recien guardada.
+	 * @param formato {@link GeneradorDocumentos#PDF} o {@link GeneradorDocumentos#HTML}.
+	 * @param salida destino del documento; no se cierra.
+	 * @throws Exception si el formato no existe o falla la escritura.
+	 */
+	public void generarDocumento(FacturaCab facturaCab,String formato,OutputStream salida) throws Exception{
+		crearGeneradorDocumentos().generar(facturaCab, formato, salida);
+	}
+	
+	/**
+	 * Genera el documento imprimible de una factura guardada.
+	 * @param numeroFactura numero de la factura.
+	 * @param formato {@link GeneradorDocumentos#PDF} o {@link GeneradorDocumentos#HTML}.
+	 * @return el contenido del documento.
+	 * @throws Exception si la factura o el formato no existen.
+	 */
+	public byte[] generarDocumento(String numeroFactura,String formato) throws Exception{
+		ByteArrayOutputStream salida=new ByteArrayOutputStream();
+		crearGeneradorDocumentos().generar(numeroFactura, formato, salida);
+		return salida.toByteArray();
+	}
+	
+	/**
+	 * Genera en paralelo los documentos de todas las facturas emitidas en el
+	 * rango, un archivo por factura, por ejemplo para reimpresiones de fin de
+	 * mes o envios por correo. Los hilos y el tamaño de los grupos se
+	 * configuran con facturacion.documentos.hilos y facturacion.documentos.lote.
+	 * @param desde primer dia del rango.
+	 * @param hasta ultimo dia del rango (incluido).
+	 * @param formato {@link GeneradorDocumentos#PDF} o {@link GeneradorDocumentos#HTML}.
+	 * @param directorio directorio de salida.
+	 * @return documentos generados, errores, documentos por segundo y latencias.
+	 * @throws Exception si el formato no existe o no se puede leer el rango.
+	 */
+	public ResultadoGeneracion generarDocumentos(Date desde,Date hasta,String formato,File directorio) throws Exception{
+		return crearGeneradorDocumentos().generarLote(desde, hasta, formato, directorio);
+	}
+	
+	private GeneradorDocumentos crearGeneradorDocumentos(){
+		return new GeneradorDocumentos(ManagerDAO.getPropiedad(GeneradorDocumentos.PROP_HILOS, 4),
+				ManagerDAO.getPropiedad(GeneradorDocumentos.PROP_LOTE, 50));
+	}
+	
+	//REPORTES DE VENTAS:
+	/**
+	 * Ventas de cada dia del rango, leidas de las tablas de resumen
+	 * (ver {@link ResumenVentas}), sin recorrer las facturas.
+	 * @param desde primer dia del rango.
+	 * @param hasta ultimo dia del rango (incluido).
+	 * @return una fila por dia con ventas, en orden de fecha.
+	 * @throws Exception si no se pueden crear las tablas de resumen.
+	 */
+	public List<FilaResumenVentas> findVentasPorDia(Date desde,Date hasta) throws Exception{
+		return ResumenVentas.getInstancia().consultarPorDia(desde, hasta);
+	}
+	
+	/**
+	 * Ventas de cada producto en los meses del rango (el resumen por producto
+	 * es mensual: se incluyen los meses completos de desde y hasta).
+	 * @param desde dia del primer mes del rango.
+	 * @param hasta dia del ultimo mes del rango.
+	 * @return una fila por producto vendido, de mayor a menor total.
+	 * @throws Exception si no se pueden crear las tablas de resumen.
+	 */
+	public List<FilaResumenVentas> findVentasPorProducto(Date desde,Date hasta) throws Exception{
+		return ResumenVentas.getInstancia().consultarPorProducto(desde, hasta);
+	}
+	
+	/**
+	 * Ventas a cada cliente en los meses del rango (el resumen por cliente
+	 * es mensual: se incluyen los meses completos de desde y hasta).
+	 * @param desde dia del primer mes del rango.
+	 * @param hasta dia del ultimo mes del rango.
+	 * @return una fila por cliente, de mayor a menor total.
+	 * @throws Exception si no se pueden crear las tablas de resumen.
+	 */
+	public List<FilaResumenVentas> findVentasPorCliente(Date desde,Date hasta) throws Exception{
+		return ResumenVentas.getInstancia().consultarPorCliente(desde, hasta);
+	}
+	
+	/**
+	 * Vuelve a calcular las tablas de resumen de ventas desde todas las
+	 * facturas: al activar el resumen sobre facturas existentes, o para
+	 * corregirlo tras cambios hechos directamente en la base de datos.
+	 * @return numero de filas de resumen.
+	 * @throws Exception si falla la base de datos.
+	 */
+	public int reconstruirResumenVentas() throws Exception{
+		return ResumenVentas.getInstancia().reconstruir();
+	}
+	
+	/**
+	 * Ventas agrupadas por producto, cliente, dia o mes, calculadas en memoria
+	 * sobre la instantanea columnar de los detalles de factura (ver
+	 * {@link InstantaneaVentas}), con cualquier rango de dias y filtros de
+	 * producto y cliente. La primera consulta carga la instantanea.
+	 * @param agrupacion {@link InstantaneaVentas#POR_PRODUCTO}, {@link InstantaneaVentas#POR_CLIENTE},
+	 * {@link InstantaneaVentas#POR_DIA} o {@link InstantaneaVentas#POR_MES}.
+	 * @param desde primer dia del rango, o null para no limitarlo.
+	 * @param hasta ultimo dia del rango (incluido), o null para no limitarlo.
+	 * @param codigoProducto producto a incluir, o null para todos.
+	 * @param cedulaCliente cliente a incluir, o null para todos.
+	 * @return una fila por grupo: los productos y clientes (con su nombre) de
+	 * mayor a menor total, los dias y meses en orden de fecha.
+	 * @throws Exception si la agrupacion no existe o no se puede cargar la instantanea.
+	 */
+	public List<FilaResumenVentas> analizarVentas(String agrupacion,Date desde,Date hasta,
+			Integer codigoProducto,String cedulaCliente) throws Exception{
+		List<FilaResumenVentas> filas=InstantaneaVentas.getInstancia().consultar(agrupacion, desde, hasta,
+				codigoProducto, cedulaCliente);
+		boolean productos=InstantaneaVentas.POR_PRODUCTO.equalsIgnoreCase(agrupacion);
+		if(!productos&&!InstantaneaVentas.POR_CLIENTE.equalsIgnoreCase(agrupacion))
+			return filas;
+		List<FilaResumenVentas> descritas=new ArrayList<FilaResumenVentas>(filas.size());
+		for(FilaResumenVentas f:filas)
+			descritas.add(new FilaResumenVentas(f.getFecha(), f.getClave(),
+					productos?nombreProducto(f.getClave()):nombreCliente(f.getClave()), f.getFacturas(),
+					f.getCantidad(), f.getSubtotal(), f.getValorIva(), f.getTotal()));
+		return descritas;
+	}
+	
+	private String nombreProducto(String codigo){
+		try{
+			Producto p=findProductoById(Integer.valueOf(codigo));
+			return p==null?null:p.getNombre();
+		}catch(Exception e){
+			return null;
+		}
+	}
+	
+	private String nombreCliente(String cedula){
+		try{
+			Cliente c=findClienteById(cedula);
+			return c==null?null:(c.getApellidos()+" "+c.getNombres()).trim();
+		}catch(Exception e){
+			return null;
+		}
+	}
+	
+	/**
+	 * Descarta la instantanea de ventas y la vuelve a cargar desde las
+	 * facturas, tras cambios hechos directamente en la base de datos.
+	 * @return numero de lineas de factura cargadas.
+	 * @throws Exception si falla la base de datos.
+	 */
+	public int recargarInstantaneaVentas() throws Exception{
+		return InstantaneaVentas.getInstancia().recargar();
 	}
 	
 }
@@ -0,0 +1,213 @@
+package facturacion.model.manager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManager;
+
+import facturacion.model.dao.entities.Parametro;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Clase que administra los contadores del sistema (parametros cont_facturas y
+ * cont_facturas_det).
+ * Los numeros se reservan en bloques (hi/lo) con una sola sentencia UPDATE
+ * atomica sobre la tabla parametro, y luego se entregan desde memoria.
+ * Opcionalmente los numeros de factura pueden asignarse en modo estricto
+ * (sin saltos), reservandolos dentro de la misma transaccion que guarda la factura.
+ * @author mrea
+ *
+ */
+public class ManagerNumeracion {
+	public static final String CONT_FACTURAS="cont_facturas";
+	public static final String CONT_FACTURAS_DET="cont_facturas_det";
+
+	/**
+	 * Propiedad de persistence.xml con el tamaño del bloque de numeros que se
+	 * reserva en cada acceso a la base de datos.
+	 */
+	public static final String PROP_TAMANIO_BLOQUE="facturacion.numeracion.bloque";
+	/**
+	 * Propiedad de persistence.xml que activa la numeracion estricta (sin
+	 * saltos) de las facturas.
+	 */
+	public static final String PROP_NUMERACION_ESTRICTA="facturacion.numeracion.estricta";
+
+	private static final Bitacora log=Bitacora.getBitacora(ManagerNumeracion.class);
+
+	private static final Map<String,Bloque> bloques=new ConcurrentHashMap<String,Bloque>();
+
+	private int tamanioBloque;
+	private boolean numeracionEstricta;
+
+	/**
+	 * Rango de numeros reservado en la base de datos y pendiente de entregar.
+	 */
+	private static class Bloque{
+		private long siguiente=1;
+		private long maximo=0;
+	}
+
+	public ManagerNumeracion(){
+		tamanioBloque=Math.max(1, ManagerDAO.getPropiedad(PROP_TAMANIO_BLOQUE, 50));
+		numeracionEstricta=Boolean.parseBoolean(ManagerDAO.getPropiedad(PROP_NUMERACION_ESTRICTA, "false"));
+	}
+
+	/**
+	 * Indica si los numeros de factura se asignan sin saltos.
+	 * En este modo el numero se reserva dentro de la transaccion que guarda
+	 * la factura, por lo que un error al guardar devuelve el numero.
+	 * @return true si la numeracion de facturas es estricta.
+	 */
+	public boolean isNumeracionEstricta(){
+		return numeracionEstricta;
+	}
+
+	/**
+	 * Entrega el siguiente numero de un contador.
+	 * Para el contador de facturas en modo estricto, el numero se reserva en la
+	 * transaccion activa del hilo actual (ver {@link ManagerDAO#iniciarTransaccion()}).
+	 * En los demas casos el numero se toma del bloque en memoria, y solo se accede
+	 * a la base de datos cuando el bloque se agota.
+	 * @param nombreContador nombre del parametro contador.
+	 * @return el siguiente numero del contador.
+	 * @throws Exception
+	 */
+	public long siguiente(String nombreContador) throws Exception{
+		if(numeracionEstricta && CONT_FACTURAS.equals(nombreContador))
+			return siguienteEstricto(nombreContador);
+
+		Bloque bloque=bloques.get(nombreContador);
+		if(bloque==null){
+			synchronized(bloques){
+				bloque=bloques.get(nombreContador);
+				if(bloque==null){
+					bloque=new Bloque();
+					bloques.put(nombreContador, bloque);
+				}
+			}
+		}
+		synchronized(bloque){
+			if(bloque.siguiente>bloque.maximo){
+				long fin=reservarBloque(nombreContador, tamanioBloque);
+				bloque.siguiente=fin-tamanioBloque+1;
+				bloque.maximo=fin;
+			}
+			return bloque.siguiente++;
+		}
+	}
+
+	/**
+	 * Reserva un rango de numeros consecutivos de un contador, para cargas
+	 * masivas. El rango se toma directamente de la base de datos, sin pasar por
+	 * el bloque en memoria. Para el contador de facturas en modo estricto la
+	 * reserva forma parte de la transaccion activa del hilo actual; en los
+	 * demas casos se confirma de inmediato.
+	 * @param nombreContador nombre del parametro contador.
+	 * @param cantidad cantidad de numeros a reservar.
+	 * @return el primer numero del rango.
+	 * @throws Exception
+	 */
+	public long reservarRango(String nombreContador,int cantidad) throws Exception{
+		if(cantidad<=0)
+			throw new Exception("La cantidad de numeros a reservar debe ser mayor a cero.");
+		long fin;
+		if(numeracionEstricta && CONT_FACTURAS.equals(nombreContador)){
+			EntityManager em=ManagerDAO.getEntityManager();
+			if(em==null||!em.getTransaction().isActive())
+				throw new Exception("La numeracion estricta de '"+nombreContador+"' requiere una transaccion activa.");
+			fin=incrementar(em, nombreContador, cantidad);
+		}else{
+			fin=reservarBloque(nombreContador, cantidad);
+		}
+		return fin-cantidad+1;
+	}
+
+	/**
+	 * Entrega el siguiente numero de un contador ya confirmado en la base de
+	 * datos, tambien en numeracion estricta (en una transaccion propia). Lo usa
+	 * el guardado asincrono de facturas ({@link DiarioFacturas}), que anota el
+	 * numero en su diario antes de guardar la factura y lo conserva en los
+	 * reintentos.
+	 * @param nombreContador nombre del parametro contador.
+	 * @return el numero reservado.
+	 * @throws Exception
+	 */
+	long reservarNumero(String nombreContador) throws Exception{
+		if(numeracionEstricta && CONT_FACTURAS.equals(nombreContador))
+			return reservarBloque(nombreContador, 1);
+		return siguiente(nombreContador);
+	}
+
+	/**
+	 * Reserva un solo numero dentro de la transaccion activa. La fila del
+	 * contador queda bloqueada hasta el commit o rollback de esa transaccion.
+	 * @param nombreContador nombre del parametro contador.
+	 * @return el numero reservado.
+	 * @throws Exception si no existe una transaccion activa.
+	 */
+	private long siguienteEstricto(String nombreContador) throws Exception{
+		EntityManager em=ManagerDAO.getEntityManager();
+		if(em==null||!em.getTransaction().isActive())
+			throw new Exception("La numeracion estricta de '"+nombreContador+"' requiere una transaccion activa.");
+		try{
+			return incrementar(em, nombreContador, 1);
+		}catch(Exception e){
+			log.error("siguienteEstricto", "No se pudo incrementar el contador "+nombreContador, e);
+			throw new Exception("Revise el parametro '"+nombreContador+"': "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Reserva un bloque de numeros y lo confirma de inmediato en una
+	 * transaccion propia, independiente de la que tenga abierta el hilo actual;
+	 * asi un rollback posterior no devuelve a la base de datos numeros que ya
+	 * estan en memoria.
+	 * @param nombreContador nombre del parametro contador.
+	 * @param cantidad cantidad de numeros a reservar.
+	 * @return el ultimo numero del rango reservado.
+	 * @throws Exception
+	 */
+	private long reservarBloque(String nombreContador,int cantidad) throws Exception{
+		EntityManager em=ManagerDAO.crearEntityManagerIndependiente();
+		try{
+			em.getTransaction().begin();
+			long fin=incrementar(em, nombreContador, cantidad);
+			em.getTransaction().commit();
+			return fin;
+		}catch(Exception e){
+			if(em.getTransaction().isActive())
+				em.getTransaction().rollback();
+			log.error("reservarBloque", "No se pudo reservar un bloque del contador "+nombreContador, e);
+			throw new Exception("Revise el parametro '"+nombreContador+"': "+e.getMessage());
+		}finally{
+			em.close();
+		}
+	}
+
+	/**
+	 * Incrementa un contador en la base de datos con una sentencia atomica,
+	 * dentro de la transaccion activa del EntityManager recibido.
+	 * @param em EntityManager con una transaccion activa.
+	 * @param nombreContador nombre del parametro contador.
+	 * @param cantidad cantidad de numeros a reservar.
+	 * @return el ultimo numero del rango reservado.
+	 * @throws Exception
+	 */
+	private long incrementar(EntityManager em,String nombreContador,int cantidad) throws Exception{
+		//el UPDATE bloquea la fila, la lectura posterior ve el valor propio:
+		int filas=em.createNativeQuery("UPDATE parametro SET valor_parametro="
+				+"CAST(CAST(valor_parametro AS bigint)+?1 AS varchar) WHERE nombre_parametro=?2")
+				.setParameter(1, cantidad)
+				.setParameter(2, nombreContador)
+				.executeUpdate();
+		if(filas==0)
+			throw new Exception("No existe el parametro.");
+		Object valor=em.createNativeQuery("SELECT valor_parametro FROM parametro WHERE nombre_parametro=?1")
+				.setParameter(1, nombreContador)
+				.getSingleResult();
+		em.getEntityManagerFactory().getCache().evict(Parametro.class, nombreContador);
+		return Long.parseLong(valor.toString().trim());
+	}
+
+}
@@ -0,0 +1,425 @@
+package facturacion.model.manager;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import facturacion.model.log.Bitacora;
+
+/**
+ * Reservas de existencia de las facturas temporales, para avisar al cajero
+ * en cuanto agrega una linea que no alcanza la existencia.
+ * <ul>
+ * <li>Al agregar una linea a una factura temporal se reserva la cantidad; al
+ * quitarla o descartar la factura se libera, y al guardar la factura la
+ * reserva se libera y lo vendido se descuenta.</li>
+ * <li>Cada producto tiene en memoria un contador atomico con la cantidad
+ * disponible (existencia leida de la base de datos menos lo reservado y lo
+ * vendido en este nodo desde la lectura). Una reserva lo descuenta con
+ * compareAndSet y se rechaza si no alcanza, sin candados: los cajeros que
+ * venden el mismo producto no se bloquean entre si.</li>
+ * </ul>
+ * Los contadores son solo una estimacion: la existencia la descuenta la base
+ * de datos al guardar cada factura, con un UPDATE condicionado a que alcance
+ * (ver {@link GuardadoAgrupado}), que es lo que impide la sobreventa aunque
+ * varios nodos vendan el mismo producto. Por eso la existencia de cada
+ * producto se vuelve a leer cuando tiene mas de facturacion.existencias.refresco
+ * milisegundos, o antes de rechazar una reserva. Las reservas sin uso por mas
+ * de facturacion.existencias.reserva.ttl (facturas abandonadas) se liberan solas.
+ * @author mrea
+ *
+ */
+public class MotorExistencias implements Runnable {
+	public static final String PROP_REFRESCO="facturacion.existencias.refresco";
+	public static final String PROP_RESERVA_TTL="facturacion.existencias.reserva.ttl";
+
+	private static final Bitacora log=Bitacora.getBitacora(MotorExistencias.class);
+
+	private static MotorExistencias instancia;
+
+	private final long refresco;
+	private final long ttlReserva;
+	private final ConcurrentHashMap<Integer,Existencia> existencias=new ConcurrentHashMap<Integer,Existencia>();
+	private final ConcurrentHashMap<Documento,Reserva> reservas=new ConcurrentHashMap<Documento,Reserva>();
+	private Thread hilo;
+
+	private final AtomicLong reservadas=new AtomicLong();
+	private final AtomicLong rechazadas=new AtomicLong();
+	private final AtomicLong confirmadas=new AtomicLong();
+	private final AtomicLong caducadas=new AtomicLong();
+	private final AtomicLong lecturas=new AtomicLong();
+
+	/**
+	 * Estado en memoria de un producto.
+	 */
+	private static class Existencia{
+		/** existencia leida, menos lo reservado y lo vendido desde la lectura. */
+		private final AtomicInteger disponible;
+		private final AtomicInteger reservado=new AtomicInteger();
+		/** existencia en la base de datos segun este motor. */
+		private int base;
+		/** momento de la ultima lectura de la base de datos. */
+		private volatile long leido=System.currentTimeMillis();
+		private final AtomicBoolean leyendo=new AtomicBoolean();
+		private Existencia(int base){
+			this.base=base;
+			this.disponible=new AtomicInteger(base);
+		}
+	}
+
+	/**
+	 * Cantidades reservadas por una factura temporal, por codigo de producto.
+	 * Solo la usa el hilo de la sesion duenia de la factura.
+	 */
+	private static class Reserva{
+		private final Map<Integer,int[]> cantidades=new HashMap<Integer,int[]>();
+		private volatile long ultimoUso=System.currentTimeMillis();
+	}
+
+	/**
+	 * Clave de una factura temporal por identidad (aun no tiene numero).
+	 */
+	private static class Documento{
+		private final Object objeto;
+		private Documento(Object objeto){
+			this.objeto=objeto;
+		}
+		@Override
+		public int hashCode(){
+			return System.identityHashCode(objeto);
+		}
+		@Override
+		public boolean equals(Object o){
+			return o instanceof Documento&&((Documento)o).objeto==objeto;
+		}
+	}
+
+	/**
+	 * Devuelve el motor de existencias de la aplicacion, configurado con las
+	 * propiedades facturacion.existencias.* de persistence.xml, e inicia su
+	 * hilo de mantenimiento.
+	 * @return el motor de existencias.
+	 */
+	public static synchronized MotorExistencias getInstancia(){
+		if(instancia==null){
+			instancia=new MotorExistencias(ManagerDAO.getPropiedad(PROP_REFRESCO, 5000),
+					ManagerDAO.getPropiedad(PROP_RESERVA_TTL, 1800000));
+			instancia.iniciar();
+		}
+		return instancia;
+	}
+
+	/**
+	 * Constructor del motor (sin hilo de mantenimiento, ver {@link #iniciar()}).
+	 * @param refresco tiempo (milisegundos) tras el cual se vuelve a leer la
+	 * existencia de un producto; con 0 se lee en cada reserva.
+	 * @param ttlReserva tiempo (milisegundos) sin uso tras el cual se libera la
+	 * reserva de una factura; con 0 no caducan.
+	 */
+	public MotorExistencias(long refresco,long ttlReserva){
+		this.refresco=Math.max(0, refresco);
+		this.ttlReserva=ttlReserva;
+	}
+
+	/**
+	 * Inicia el hilo (daemon) que libera las reservas caducadas.
+	 */
+	public synchronized void iniciar(){
+		if(hilo!=null||ttlReserva<=0)
+			return;
+		hilo=new Thread(this, "facturacion-existencias");
+		hilo.setDaemon(true);
+		hilo.start();
+	}
+
+	public void run(){
+		long intervalo=Math.max(1000, Math.min(60000, ttlReserva/10));
+		while(true){
+			try{
+				Thread.sleep(intervalo);
+				liberarCaducadas();
+			}catch(InterruptedException e){
+				return;
+			}catch(RuntimeException e){
+				log.error("run", "No se pudieron liberar las reservas caducadas", e);
+			}
+		}
+	}
+
+	/**
+	 * Reserva una cantidad de un producto para una factura temporal.
+	 * @param documento factura temporal.
+	 * @param codigoProducto codigo del producto.
+	 * @param cantidad cantidad a reservar.
+	 * @throws FacturaRechazada si la existencia disponible no alcanza o el producto no existe.
+	 */
+	public void reservar(Object documento,Integer codigoProducto,int cantidad) throws FacturaRechazada{
+		Existencia e=getExistencia(codigoProducto);
+		boolean releida=false;
+		int disponible;
+		while(true){
+			disponible=e.disponible.get();
+			if(disponible>=cantidad){
+				if(e.disponible.compareAndSet(disponible, disponible-cantidad))
+					break;
+			}else if(!releida){
+				//otro nodo pudo aumentar la existencia desde la ultima lectura:
+				leer(codigoProducto, e);
+				releida=true;
+			}else{
+				rechazadas.incrementAndGet();
+				throw new FacturaRechazada("Existencia insuficiente del producto "+codigoProducto
+						+" (disponible: "+Math.max(0, disponible)+").");
+			}
+		}
+		e.reservado.addAndGet(cantidad);
+		Reserva r=getReserva(documento, true);
+		synchronized(r){
+			int[] c=r.cantidades.get(codigoProducto);
+			if(c==null)
+				r.cantidades.put(codigoProducto, new int[]{cantidad});
+			else
+				c[0]+=cantidad;
+			r.ultimoUso=System.currentTimeMillis();
+		}
+		reservadas.incrementAndGet();
+	}
+
+	/**
+	 * Libera una cantidad reservada por una factura temporal (linea quitada).
+	 * @param documento factura temporal.
+	 * @param codigoProducto codigo del producto.
+	 * @param cantidad cantidad a liberar.
+	 */
+	public void liberar(Object documento,Integer codigoProducto,int cantidad){
+		Reserva r=getReserva(documento, false);
+		if(r==null)
+			return;
+		int liberada;
+		synchronized(r){
+			int[] c=r.cantidades.get(codigoProducto);
+			if(c==null)
+				return;
+			liberada=Math.min(cantidad, c[0]);
+			c[0]-=liberada;
+			if(c[0]==0)
+				r.cantidades.remove(codigoProducto);
+			r.ultimoUso=System.currentTimeMillis();
+		}
+		devolver(codigoProducto, liberada);
+	}
+
+	/**
+	 * Libera todas las reservas de una factura temporal descartada.
+	 * @param documento factura temporal.
+	 */
+	public void liberarTodo(Object documento){
+		Reserva r=reservas.remove(new Documento(documento));
+		if(r!=null)
+			devolverReserva(r);
+	}
+
+	/**
+	 * Libera la reserva de una factura ya guardada y descuenta lo que vendio
+	 * (ver {@link #registrarVenta(Map)}).
+	 * @param documento factura guardada.
+	 * @param vendidas cantidad vendida por codigo de producto (las lineas de la factura).
+	 */
+	public void confirmar(Object documento,Map<Integer,Integer> vendidas){
+		liberarTodo(documento);
+		registrarVenta(vendidas);
+		confirmadas.incrementAndGet();
+	}
+
+	/**
+	 * Descuenta de la estimacion las cantidades de una factura ya guardada
+	 * (la base de datos ya las desconto), sin esperar a la siguiente lectura.
+	 * @param vendidas cantidad vendida por codigo de producto.
+	 */
+	public void registrarVenta(Map<Integer,Integer> vendidas){
+		for(Map.Entry<Integer,Integer> v:vendidas.entrySet()){
+			Existencia e=existencias.get(v.getKey());
+			if(e==null)
+				continue;
+			int vendida=v.getValue().intValue();
+			synchronized(e){
+				e.base-=vendida;
+				e.disponible.addAndGet(-vendida);
+			}
+		}
+	}
+
+	/**
+	 * Existencia disponible para vender segun la estimacion: la de la base
+	 * de datos menos lo reservado en este nodo.
+	 * @param codigoProducto codigo del producto.
+	 * @return cantidad disponible.
+	 * @throws FacturaRechazada si el producto no existe.
+	 */
+	public int getDisponible(Integer codigoProducto) throws FacturaRechazada{
+		return getExistencia(codigoProducto).disponible.get();
+	}
+
+	/**
+	 * Marca la existencia de un producto para volver a leerla de la base de
+	 * datos en la siguiente reserva (por ejemplo tras editarla).
+	 * @param codigoProducto codigo del producto.
+	 */
+	public void invalidar(Integer codigoProducto){
+		Existencia e=existencias.get(codigoProducto);
+		if(e!=null)
+			e.leido=0;
+	}
+
+	/**
+	 * Descarta el estado de un producto eliminado.
+	 * @param codigoProducto codigo del producto.
+	 */
+	public void olvidar(Integer codigoProducto){
+		existencias.remove(codigoProducto);
+	}
+
+	/**
+	 * Descarta todo el estado en memoria (reservas incluidas), para volver a
+	 * leer las existencias de la base de datos.
+	 */
+	public void reiniciar(){
+		reservas.clear();
+		existencias.clear();
+	}
+
+	/**
+	 * Libera las reservas de las facturas sin uso por mas del tiempo de vida.
+	 */
+	private void liberarCaducadas(){
+		if(ttlReserva<=0)
+			return;
+		long limite=System.currentTimeMillis()-ttlReserva;
+		for(Iterator<Map.Entry<Documento,Reserva>> it=reservas.entrySet().iterator();it.hasNext();){
+			Map.Entry<Documento,Reserva> r=it.next();
+			if(r.getValue().ultimoUso<limite&&reservas.remove(r.getKey(), r.getValue())){
+				devolverReserva(r.getValue());
+				caducadas.incrementAndGet();
+			}
+		}
+	}
+
+	private void devolverReserva(Reserva r){
+		synchronized(r){
+			for(Map.Entry<Integer,int[]> c:r.cantidades.entrySet())
+				devolver(c.getKey(), c.getValue()[0]);
+			r.cantidades.clear();
+		}
+	}
+
+	private void devolver(Integer codigoProducto,int cantidad){
+		Existencia e=existencias.get(codigoProducto);
+		if(e==null||cantidad<=0)
+			return;
+		e.reservado.addAndGet(-cantidad);
+		e.disponible.addAndGet(cantidad);
+	}
+
+	private Reserva getReserva(Object documento,boolean crear){
+		Documento d=new Documento(documento);
+		Reserva r=reservas.get(d);
+		if(r==null&&crear){
+			r=new Reserva();
+			Reserva previa=reservas.putIfAbsent(d, r);
+			if(previa!=null)
+				r=previa;
+		}
+		return r;
+	}
+
+	/**
+	 * Devuelve el estado del producto, leyendo su existencia de la base de
+	 * datos la primera vez y cuando la lectura tiene mas del tiempo de refresco
+	 * (un solo hilo la vuelve a leer, los demas usan la anterior).
+	 */
+	private Existencia getExistencia(Integer codigoProducto) throws FacturaRechazada{
+		Existencia e=existencias.get(codigoProducto);
+		if(e==null){
+			e=new Existencia(leerExistencia(codigoProducto));
+			Existencia previa=existencias.putIfAbsent(codigoProducto, e);
+			return previa==null?e:previa;
+		}
+		if(System.currentTimeMillis()-e.leido>=refresco&&e.leyendo.compareAndSet(false, true)){
+			try{
+				leer(codigoProducto, e);
+			}finally{
+				e.leyendo.set(false);
+			}
+		}
+		return e;
+	}
+
+	private void leer(Integer codigoProducto,Existencia e) throws FacturaRechazada{
+		int existencia;
+		try{
+			existencia=leerExistencia(codigoProducto);
+		}catch(FacturaRechazada ex){
+			olvidar(codigoProducto);
+			throw ex;
+		}
+		//las reservas en curso se respetan:
+		synchronized(e){
+			e.disponible.addAndGet(existencia-e.base);
+			e.base=existencia;
+			e.leido=System.currentTimeMillis();
+		}
+	}
+
+	private int leerExistencia(Integer codigoProducto) throws FacturaRechazada{
+		//la existencia se lee de la base de datos principal, nunca de una replica:
+		ManagerDAO managerDAO=new ManagerDAO();
+		managerDAO.setLecturasEnPrincipal(true);
+		List<Integer> lista=managerDAO.findNamed(Integer.class, "Producto.findExistencia",
+				Collections.<String,Object>singletonMap("codigo", codigoProducto));
+		lecturas.incrementAndGet();
+		if(lista.isEmpty())
+			throw new FacturaRechazada("No existe el producto "+codigoProducto+".");
+		Integer existencia=lista.get(0);
+		return existencia==null?0:existencia.intValue();
+	}
+
+	// ESTADISTICAS:
+
+	public long getReservadas(){
+		return reservadas.get();
+	}
+
+	public long getRechazadas(){
+		return rechazadas.get();
+	}
+
+	public long getConfirmadas(){
+		return confirmadas.get();
+	}
+
+	public long getCaducadas(){
+		return caducadas.get();
+	}
+
+	/**
+	 * @return numero de lecturas de existencia en la base de datos.
+	 */
+	public long getLecturas(){
+		return lecturas.get();
+	}
+
+	@Override
+	public String toString(){
+		return "MotorExistencias[productos="+existencias.size()+", reservas="+reservas.size()
+				+", reservadas="+getReservadas()+", rechazadas="+getRechazadas()
+				+", confirmadas="+getConfirmadas()+", caducadas="+getCaducadas()
+				+", lecturas="+getLecturas()+"]";
+	}
+
+}
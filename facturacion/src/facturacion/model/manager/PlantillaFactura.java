@@ -0,0 +1,270 @@
+package facturacion.model.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import facturacion.model.dao.entities.Cliente;
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.FacturaDet;
+
+/**
+ * Plantilla de un documento de factura, compilada una sola vez: el texto se
+ * divide en segmentos literales y referencias a campos ya resueltas, y la
+ * plantilla compilada se guarda en una cache por nombre. Las plantillas estan
+ * en META-INF/plantillas; las .html escapan los valores.
+ * Sintaxis:
+ * <ul>
+ * <li>{{campo}}: valor de un campo de la factura o, dentro del bloque, del detalle.</li>
+ * <li>{{campo:12}} y {{campo:-12}}: el valor alineado a la derecha o a la
+ * izquierda en 12 caracteres (se recorta si es mas largo).</li>
+ * <li>{{#detalles}}...{{/detalles}}: se repite por cada detalle, en orden.</li>
+ * </ul>
+ * Campos de la factura: numeroFactura, fechaEmision, cedulaCliente, cliente,
+ * direccion, subtotal, baseCero, valorIva, total. Campos del detalle:
+ * codigoProducto, producto, cantidad, precioUnitario, valor.
+ * Una plantilla compilada es inmutable y puede usarse desde varios hilos.
+ * @author mrea
+ *
+ */
+final class PlantillaFactura {
+	private static final String UBICACION="/META-INF/plantillas/";
+	private static final String[] CAMPOS_CABECERA={"numeroFactura","fechaEmision","cedulaCliente","cliente",
+			"direccion","subtotal","baseCero","valorIva","total"};
+	private static final String[] CAMPOS_DETALLE={"codigoProducto","producto","cantidad","precioUnitario","valor"};
+	private static final String BLOQUE="detalles";
+
+	private static final ConcurrentMap<String,PlantillaFactura> plantillas=new ConcurrentHashMap<String,PlantillaFactura>();
+
+	private static final Comparator<FacturaDet> ORDEN_DETALLES=new Comparator<FacturaDet>(){
+		public int compare(FacturaDet a,FacturaDet b){
+			if(a.getNumeroFacturaDet()==null||b.getNumeroFacturaDet()==null)
+				return 0;
+			return a.getNumeroFacturaDet().compareTo(b.getNumeroFacturaDet());
+		}
+	};
+
+	private final Segmento[] segmentos;
+	private final boolean html;
+
+	/**
+	 * Parte de la plantilla compilada: un texto literal, un campo (de la
+	 * cabecera o del detalle) o el bloque de detalles.
+	 */
+	private static class Segmento{
+		private String texto;
+		private int campo=-1;
+		private boolean detalle;
+		private int ancho;
+		private boolean izquierda;
+		private Segmento[] bloque;
+	}
+
+	/**
+	 * Devuelve la plantilla compilada, compilandola la primera vez.
+	 * @param nombre nombre del archivo en META-INF/plantillas, por ejemplo factura.html.
+	 * @return la plantilla compilada.
+	 * @throws Exception si la plantilla no existe o tiene errores.
+	 */
+	static PlantillaFactura getPlantilla(String nombre) throws Exception{
+		PlantillaFactura p=plantillas.get(nombre);
+		if(p==null){
+			p=new PlantillaFactura(leer(nombre), nombre.toLowerCase().endsWith(".html"));
+			PlantillaFactura anterior=plantillas.putIfAbsent(nombre, p);
+			if(anterior!=null)
+				p=anterior;
+		}
+		return p;
+	}
+
+	private static String leer(String nombre) throws Exception{
+		InputStream in=PlantillaFactura.class.getResourceAsStream(UBICACION+nombre);
+		if(in==null)
+			throw new Exception("No existe la plantilla "+nombre+".");
+		try{
+			ByteArrayOutputStream contenido=new ByteArrayOutputStream();
+			byte[] buffer=new byte[4096];
+			int n;
+			while((n=in.read(buffer))>0)
+				contenido.write(buffer, 0, n);
+			return contenido.toString("UTF-8");
+		}finally{
+			in.close();
+		}
+	}
+
+	PlantillaFactura(String texto,boolean html) throws Exception{
+		this.html=html;
+		List<Segmento> raiz=new ArrayList<Segmento>();
+		List<Segmento> actual=raiz;
+		Segmento bloque=null;
+		int i=0;
+		while(i<texto.length()){
+			int inicio=texto.indexOf("{{", i);
+			if(inicio<0){
+				actual.add(literal(texto.substring(i)));
+				break;
+			}
+			int fin=texto.indexOf("}}", inicio);
+			if(fin<0)
+				throw new Exception("Plantilla con {{ sin cerrar en la posicion "+inicio+".");
+			if(inicio>i)
+				actual.add(literal(texto.substring(i, inicio)));
+			String marca=texto.substring(inicio+2, fin).trim();
+			i=fin+2;
+			if(marca.equals("#"+BLOQUE)){
+				if(bloque!=null)
+					throw new Exception("Plantilla con bloques de detalles anidados.");
+				bloque=new Segmento();
+				raiz.add(bloque);
+				actual=new ArrayList<Segmento>();
+			}else if(marca.equals("/"+BLOQUE)){
+				if(bloque==null)
+					throw new Exception("Plantilla con {{/"+BLOQUE+"}} sin abrir.");
+				bloque.bloque=actual.toArray(new Segmento[actual.size()]);
+				bloque=null;
+				actual=raiz;
+			}else
+				actual.add(campo(marca, bloque!=null));
+		}
+		if(bloque!=null)
+			throw new Exception("Plantilla con {{#"+BLOQUE+"}} sin cerrar.");
+		segmentos=raiz.toArray(new Segmento[raiz.size()]);
+	}
+
+	private static Segmento literal(String texto){
+		Segmento s=new Segmento();
+		s.texto=texto;
+		return s;
+	}
+
+	private static Segmento campo(String marca,boolean enBloque) throws Exception{
+		Segmento s=new Segmento();
+		String nombre=marca;
+		int dosPuntos=marca.indexOf(':');
+		if(dosPuntos>=0){
+			nombre=marca.substring(0, dosPuntos).trim();
+			try{
+				s.ancho=Integer.parseInt(marca.substring(dosPuntos+1).trim());
+			}catch(NumberFormatException e){
+				throw new Exception("Ancho no valido en la plantilla: {{"+marca+"}}.");
+			}
+			s.izquierda=s.ancho<0;
+			s.ancho=Math.abs(s.ancho);
+		}
+		s.campo=Arrays.asList(CAMPOS_CABECERA).indexOf(nombre);
+		if(s.campo<0&&enBloque){
+			s.campo=Arrays.asList(CAMPOS_DETALLE).indexOf(nombre);
+			s.detalle=true;
+		}
+		if(s.campo<0)
+			throw new Exception("Campo desconocido en la plantilla: {{"+marca+"}}.");
+		return s;
+	}
+
+	/**
+	 * Escribe el documento de una factura.
+	 * @param f factura con cliente y detalles (con su producto).
+	 * @param salida destino del documento.
+	 */
+	void escribir(FacturaCab f,StringBuilder salida){
+		String[] cabecera=valoresCabecera(f);
+		List<FacturaDet> detalles=f.getFacturaDets()==null?Collections.<FacturaDet>emptyList()
+				:new ArrayList<FacturaDet>(f.getFacturaDets());
+		Collections.sort(detalles, ORDEN_DETALLES);
+		for(Segmento s:segmentos){
+			if(s.bloque==null){
+				escribir(s, cabecera, null, salida);
+				continue;
+			}
+			for(FacturaDet det:detalles){
+				String[] detalle=valoresDetalle(det);
+				for(Segmento b:s.bloque)
+					escribir(b, cabecera, detalle, salida);
+			}
+		}
+	}
+
+	private void escribir(Segmento s,String[] cabecera,String[] detalle,StringBuilder salida){
+		if(s.texto!=null){
+			salida.append(s.texto);
+			return;
+		}
+		String valor=s.detalle?detalle[s.campo]:cabecera[s.campo];
+		if(s.ancho>0){
+			if(valor.length()>s.ancho)
+				valor=valor.substring(0, s.ancho);
+			if(!s.izquierda)
+				relleno(salida, s.ancho-valor.length());
+			agregar(salida, valor);
+			if(s.izquierda)
+				relleno(salida, s.ancho-valor.length());
+		}else
+			agregar(salida, valor);
+	}
+
+	private static void relleno(StringBuilder salida,int espacios){
+		for(int i=0;i<espacios;i++)
+			salida.append(' ');
+	}
+
+	private void agregar(StringBuilder salida,String valor){
+		if(!html){
+			salida.append(valor);
+			return;
+		}
+		for(int i=0;i<valor.length();i++){
+			char c=valor.charAt(i);
+			switch(c){
+			case '<': salida.append("&lt;"); break;
+			case '>': salida.append("&gt;"); break;
+			case '&': salida.append("&amp;"); break;
+			case '"': salida.append("&quot;"); break;
+			case '\'': salida.append("&#39;"); break;
+			default: salida.append(c);
+			}
+		}
+	}
+
+	private static String[] valoresCabecera(FacturaCab f){
+		Cliente c=f.getCliente();
+		return new String[]{
+				texto(f.getNumeroFactura()),
+				f.getFechaEmision()==null?"":new SimpleDateFormat("yyyy-MM-dd").format(f.getFechaEmision()),
+				c==null?"":texto(c.getCedulaCliente()),
+				c==null?"":(texto(c.getApellidos())+" "+texto(c.getNombres())).trim(),
+				c==null?"":texto(c.getDireccion()),
+				texto(f.getSubtotal()),
+				texto(f.getBaseCero()),
+				texto(f.getValorIva()),
+				texto(f.getTotal())};
+	}
+
+	private static String[] valoresDetalle(FacturaDet det){
+		boolean conProducto=det.getProducto()!=null;
+		return new String[]{
+				conProducto?texto(det.getProducto().getCodigoProducto()):"",
+				conProducto?texto(det.getProducto().getNombre()):"",
+				texto(det.getCantidad()),
+				texto(det.getPrecioUnitarioVenta()),
+				det.getCantidad()==null||det.getPrecioUnitarioVenta()==null?""
+						:texto(BigDecimal.valueOf(CalculadoraTotales.valorLinea(det), 2))};
+	}
+
+	private static String texto(Object valor){
+		if(valor==null)
+			return "";
+		if(valor instanceof BigDecimal)
+			return ((BigDecimal)valor).toPlainString();
+		return valor.toString();
+	}
+
+}
@@ -0,0 +1,169 @@
+package facturacion.model.manager;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import facturacion.model.dao.entities.Parametro;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Registro en memoria de los parametros del sistema (tabla parametro).
+ * Carga todos los parametros de una sola vez y los convierte a valores tipados;
+ * las consultas se atienden sin bloqueos desde una copia inmutable.
+ * La copia se vuelve a cargar periodicamente (propiedad
+ * facturacion.parametros.refresco de persistence.xml) o de forma explicita con
+ * {@link #recargar()}.
+ * Los contadores (cont_facturas, cont_facturas_det) cambian con cada factura,
+ * por lo que deben leerse mediante {@link ManagerNumeracion} y no desde este registro.
+ * @author mrea
+ *
+ */
+public class RegistroParametros {
+	public static final String PROP_REFRESCO="facturacion.parametros.refresco";
+
+	private static final Bitacora log=Bitacora.getBitacora(RegistroParametros.class);
+
+	private static RegistroParametros instancia;
+
+	private final long refresco;
+	private final AtomicBoolean recargando=new AtomicBoolean();
+	private volatile Valores valores;
+
+	/**
+	 * Copia inmutable de los parametros, con la version y el momento de carga.
+	 */
+	private static class Valores{
+		private final Map<String,String> textos;
+		private final Map<String,BigDecimal> decimales;
+		private final long version;
+		private final long cargado;
+		private Valores(Map<String,String> textos,Map<String,BigDecimal> decimales,long version){
+			this.textos=textos;
+			this.decimales=decimales;
+			this.version=version;
+			this.cargado=System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Devuelve el registro de parametros de la aplicacion.
+	 * @return el registro de parametros.
+	 */
+	public static synchronized RegistroParametros getInstancia(){
+		if(instancia==null)
+			instancia=new RegistroParametros(ManagerDAO.getPropiedad(PROP_REFRESCO, 60000));
+		return instancia;
+	}
+
+	/**
+	 * Constructor del registro.
+	 * @param refresco tiempo (milisegundos) tras el cual se vuelven a cargar los
+	 * parametros. Con 0 solo se recargan con {@link #recargar()}.
+	 */
+	public RegistroParametros(long refresco){
+		this.refresco=refresco;
+	}
+
+	/**
+	 * Vuelve a cargar todos los parametros desde la base de datos (la consulta
+	 * Parametro.findAll refresca la cache compartida de EclipseLink, asi se
+	 * ven los cambios hechos fuera de la aplicacion).
+	 * Las consultas en curso siguen usando la copia anterior hasta que la
+	 * nueva esta completa.
+	 */
+	public void recargar(){
+		List<Parametro> lista=new ManagerDAO().findNamedSoloLectura(Parametro.class, "Parametro.findAll", null);
+		Map<String,String> textos=new HashMap<String,String>();
+		Map<String,BigDecimal> decimales=new HashMap<String,BigDecimal>();
+		for(Parametro p:lista){
+			String valor=p.getValorParametro()==null?null:p.getValorParametro().trim();
+			textos.put(p.getNombreParametro(), valor);
+			try{
+				if(valor!=null)
+					decimales.put(p.getNombreParametro(), new BigDecimal(valor));
+			}catch(NumberFormatException e){
+				//parametro de texto.
+			}
+		}
+		Valores anteriores=valores;
+		valores=new Valores(Collections.unmodifiableMap(textos),Collections.unmodifiableMap(decimales),
+				anteriores==null?1:anteriores.version+1);
+	}
+
+	/**
+	 * Devuelve la copia vigente, cargandola si no existe o si expiro.
+	 * Cuando expira, un solo hilo recarga y los demas siguen con la copia anterior.
+	 */
+	private Valores getValores(){
+		Valores v=valores;
+		if(v==null){
+			synchronized(this){
+				if(valores==null)
+					recargar();
+				return valores;
+			}
+		}
+		if(refresco>0&&System.currentTimeMillis()-v.cargado>refresco
+				&&recargando.compareAndSet(false, true)){
+			try{
+				recargar();
+			}catch(RuntimeException e){
+				//se siguen usando los valores anteriores hasta la proxima recarga:
+				log.advertencia("getValores", "No se pudieron recargar los parametros: {}", e);
+			}finally{
+				recargando.set(false);
+			}
+			v=valores;
+		}
+		return v;
+	}
+
+	/**
+	 * Obtiene el valor de un parametro como texto.
+	 * @param nombreParametro nombre del parametro.
+	 * @return el valor, o null si el parametro no existe.
+	 */
+	public String getTexto(String nombreParametro){
+		return getValores().textos.get(nombreParametro);
+	}
+
+	/**
+	 * Obtiene el valor numerico de un parametro.
+	 * @param nombreParametro nombre del parametro.
+	 * @return el valor decimal.
+	 * @throws Exception si el parametro no existe o no es numerico.
+	 */
+	public BigDecimal getDecimal(String nombreParametro) throws Exception{
+		BigDecimal valor=getValores().decimales.get(nombreParametro);
+		if(valor==null)
+			throw new Exception("Revise el parametro '"+nombreParametro+"': no existe o no es numerico.");
+		return valor;
+	}
+
+	/**
+	 * Obtiene el valor entero de un parametro.
+	 * @param nombreParametro nombre del parametro.
+	 * @return el valor entero.
+	 * @throws Exception si el parametro no existe o no es un numero entero.
+	 */
+	public int getEntero(String nombreParametro) throws Exception{
+		try{
+			return getDecimal(nombreParametro).intValueExact();
+		}catch(ArithmeticException e){
+			throw new Exception("Revise el parametro '"+nombreParametro+"': no es un numero entero.");
+		}
+	}
+
+	/**
+	 * Version de la copia vigente; aumenta con cada recarga.
+	 * @return version de los parametros.
+	 */
+	public long getVersion(){
+		return getValores().version;
+	}
+
+}
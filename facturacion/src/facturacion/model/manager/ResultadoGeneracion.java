@@ -0,0 +1,120 @@
+package facturacion.model.manager;
+
+import java.util.Arrays;
+
+/**
+ * Resultado de una generacion de documentos por lotes
+ * (ver {@link ManagerFacturacion#generarDocumentos(java.util.Date, java.util.Date, String, java.io.File)}):
+ * rendimiento del lote y latencia de cada documento (armado y escritura,
+ * sin la lectura de la base de datos).
+ * @author mrea
+ *
+ */
+public class ResultadoGeneracion {
+	private final int hilos;
+	private long documentos;
+	private long errores;
+	private long milisegundos;
+	private long[] latencias;
+	private int numeroLatencias;
+	private boolean ordenadas;
+
+	ResultadoGeneracion(int hilos,int facturas){
+		this.hilos=hilos;
+		this.latencias=new long[Math.max(1, facturas)];
+	}
+
+	synchronized void registrarDocumento(long nanos){
+		documentos++;
+		if(numeroLatencias==latencias.length)
+			latencias=Arrays.copyOf(latencias, latencias.length*2);
+		latencias[numeroLatencias++]=nanos;
+		ordenadas=false;
+	}
+
+	synchronized void registrarError(){
+		errores++;
+	}
+
+	synchronized void setMilisegundos(long milisegundos){
+		this.milisegundos=milisegundos;
+	}
+
+	/**
+	 * @return numero de hilos que generaron los documentos.
+	 */
+	public int getHilos() {
+		return hilos;
+	}
+
+	/**
+	 * @return numero de documentos generados.
+	 */
+	public synchronized long getDocumentos() {
+		return documentos;
+	}
+
+	/**
+	 * @return numero de facturas que no se pudieron generar.
+	 */
+	public synchronized long getErrores() {
+		return errores;
+	}
+
+	/**
+	 * @return duracion del lote en milisegundos.
+	 */
+	public synchronized long getMilisegundos() {
+		return milisegundos;
+	}
+
+	/**
+	 * @return documentos generados por segundo.
+	 */
+	public synchronized double getDocumentosPorSegundo(){
+		return milisegundos==0?0:documentos*1000.0/milisegundos;
+	}
+
+	/**
+	 * @return latencia promedio de un documento en milisegundos.
+	 */
+	public synchronized double getLatenciaPromedioMs(){
+		long suma=0;
+		for(int i=0;i<numeroLatencias;i++)
+			suma+=latencias[i];
+		return numeroLatencias==0?0:suma/(numeroLatencias*1000000.0);
+	}
+
+	/**
+	 * @param percentil percentil entre 0 y 100, por ejemplo 95.
+	 * @return latencia de un documento en milisegundos para el percentil.
+	 */
+	public synchronized double getLatenciaPercentilMs(double percentil){
+		if(numeroLatencias==0)
+			return 0;
+		if(!ordenadas){
+			Arrays.sort(latencias, 0, numeroLatencias);
+			ordenadas=true;
+		}
+		int i=(int)Math.ceil(percentil/100.0*numeroLatencias)-1;
+		return latencias[Math.max(0, Math.min(numeroLatencias-1, i))]/1000000.0;
+	}
+
+	/**
+	 * @return latencia maxima de un documento en milisegundos.
+	 */
+	public double getLatenciaMaximaMs(){
+		return getLatenciaPercentilMs(100);
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "ResultadoGeneracion[hilos="+hilos+", documentos="+documentos+", errores="+errores
+				+", milisegundos="+milisegundos
+				+", documentosPorSegundo="+String.format("%.1f", getDocumentosPorSegundo())
+				+", latenciaPromedioMs="+String.format("%.2f", getLatenciaPromedioMs())
+				+", latenciaP95Ms="+String.format("%.2f", getLatenciaPercentilMs(95))
+				+", latenciaMaximaMs="+String.format("%.2f", getLatenciaMaximaMs())+"]";
+	}
+
+}
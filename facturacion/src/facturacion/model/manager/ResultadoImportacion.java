@@ -0,0 +1,77 @@
+package facturacion.model.manager;
+
+/**
+ * Resultado de una importacion masiva de facturas
+ * (ver {@link ManagerFacturacion#importarFacturas(java.util.Iterator, int, int)}).
+ * @author mrea
+ *
+ */
+public class ResultadoImportacion {
+	private long facturas;
+	private long detalles;
+	private long commits;
+	private long milisegundos;
+
+	void sumar(long facturas,long detalles){
+		this.facturas+=facturas;
+		this.detalles+=detalles;
+	}
+
+	void registrarCommit(){
+		commits++;
+	}
+
+	void setMilisegundos(long milisegundos){
+		this.milisegundos=milisegundos;
+	}
+
+	/**
+	 * @return numero de facturas (cabeceras) guardadas.
+	 */
+	public long getFacturas() {
+		return facturas;
+	}
+
+	/**
+	 * @return numero de detalles guardados.
+	 */
+	public long getDetalles() {
+		return detalles;
+	}
+
+	/**
+	 * @return numero de transacciones confirmadas.
+	 */
+	public long getCommits() {
+		return commits;
+	}
+
+	/**
+	 * @return duracion de la importacion en milisegundos.
+	 */
+	public long getMilisegundos() {
+		return milisegundos;
+	}
+
+	/**
+	 * @return facturas guardadas por segundo.
+	 */
+	public double getFacturasPorSegundo(){
+		return milisegundos==0?0:facturas*1000.0/milisegundos;
+	}
+
+	/**
+	 * @return filas (cabeceras mas detalles) guardadas por segundo.
+	 */
+	public double getFilasPorSegundo(){
+		return milisegundos==0?0:(facturas+detalles)*1000.0/milisegundos;
+	}
+
+	@Override
+	public String toString(){
+		return "ResultadoImportacion[facturas="+facturas+", detalles="+detalles
+				+", commits="+commits+", milisegundos="+milisegundos
+				+", filasPorSegundo="+String.format("%.1f", getFilasPorSegundo())+"]";
+	}
+
+}
@@ -0,0 +1,94 @@
+package facturacion.model.manager;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import facturacion.model.dao.entities.FacturaCab;
+
+/**
+ * Fila del listado de facturas: los datos de la cabecera y del cliente que se
+ * muestran en pantalla. Se obtiene con una sola consulta (factura_cab unida a
+ * cliente) mediante una expresion constructor de JPQL, por lo que no es una
+ * entidad administrada y no ocupa el contexto de persistencia.
+ * @author mrea
+ *
+ */
+public class ResumenFactura implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Expresion de seleccion JPQL (alias "o" para FacturaCab) que construye
+	 * un ResumenFactura.
+	 */
+	static final String SELECCION="NEW facturacion.model.manager.ResumenFactura(o.numeroFactura,"
+			+"o.fechaEmision,o.cliente.cedulaCliente,o.cliente.apellidos,o.cliente.nombres,"
+			+"o.subtotal,o.valorIva,o.total)";
+
+	private final String numeroFactura;
+	private final Date fechaEmision;
+	private final String cedulaCliente;
+	private final String apellidos;
+	private final String nombres;
+	private final BigDecimal subtotal;
+	private final BigDecimal valorIva;
+	private final BigDecimal total;
+
+	public ResumenFactura(String numeroFactura,Date fechaEmision,String cedulaCliente,
+			String apellidos,String nombres,BigDecimal subtotal,BigDecimal valorIva,BigDecimal total){
+		this.numeroFactura=numeroFactura;
+		this.fechaEmision=fechaEmision;
+		this.cedulaCliente=cedulaCliente;
+		this.apellidos=apellidos;
+		this.nombres=nombres;
+		this.subtotal=subtotal;
+		this.valorIva=valorIva;
+		this.total=total;
+	}
+
+	/**
+	 * Crea el resumen de una factura ya cargada.
+	 * @param f factura con su cliente.
+	 * @return el resumen de la factura.
+	 */
+	public static ResumenFactura de(FacturaCab f){
+		return new ResumenFactura(f.getNumeroFactura(), f.getFechaEmision(),
+				f.getCliente()==null?null:f.getCliente().getCedulaCliente(),
+				f.getCliente()==null?null:f.getCliente().getApellidos(),
+				f.getCliente()==null?null:f.getCliente().getNombres(),
+				f.getSubtotal(), f.getValorIva(), f.getTotal());
+	}
+
+	public String getNumeroFactura() {
+		return numeroFactura;
+	}
+
+	public Date getFechaEmision() {
+		return fechaEmision;
+	}
+
+	public String getCedulaCliente() {
+		return cedulaCliente;
+	}
+
+	public String getApellidos() {
+		return apellidos;
+	}
+
+	public String getNombres() {
+		return nombres;
+	}
+
+	public BigDecimal getSubtotal() {
+		return subtotal;
+	}
+
+	public BigDecimal getValorIva() {
+		return valorIva;
+	}
+
+	public BigDecimal getTotal() {
+		return total;
+	}
+
+}
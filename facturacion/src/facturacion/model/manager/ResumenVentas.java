@@ -0,0 +1,416 @@
+package facturacion.model.manager;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.FacturaDet;
+import facturacion.model.log.Bitacora;
+
+/**
+ * Tablas de resumen de ventas, mantenidas de forma incremental en la misma
+ * transaccion en que se guardan las facturas (ver {@link GuardadoAgrupado} e
+ * {@link ImportadorFacturas}), para que los reportes lean unos cientos de filas
+ * agregadas en lugar de recorrer factura_cab y factura_det:
+ * <ul>
+ * <li>resumen_ventas_dia: una fila por dia de emision.</li>
+ * <li>resumen_ventas_producto: una fila por mes y producto.</li>
+ * <li>resumen_ventas_cliente: una fila por mes y cliente.</li>
+ * </ul>
+ * Cada fila acumula facturas, unidades, subtotal, IVA y total. El IVA por
+ * producto es la parte del IVA de cada factura que corresponde a sus lineas
+ * gravadas (proporcional a su valor, redondeada a centavos), por lo que su
+ * suma puede diferir en centavos del IVA por dia o por cliente.
+ * Las tablas se crean si no existen. Las filas se actualizan en orden de
+ * clave (sin interbloqueos entre transacciones); la primera venta de una clave
+ * inserta la fila, y si otra transaccion la inserto al mismo tiempo se vuelve
+ * a actualizar. {@link #reconstruir()} las calcula de nuevo desde las facturas.
+ * @author mrea
+ *
+ */
+class ResumenVentas {
+	public static final String PROP_ACTIVO="facturacion.resumen.activo";
+
+	private static final Bitacora log=Bitacora.getBitacora(ResumenVentas.class);
+
+	private static final String[] CREAR_TABLAS={
+		"CREATE TABLE IF NOT EXISTS resumen_ventas_dia (fecha date PRIMARY KEY,"
+				+"facturas integer NOT NULL,cantidad bigint NOT NULL,subtotal numeric(14,2) NOT NULL,"
+				+"valor_iva numeric(14,2) NOT NULL,total numeric(14,2) NOT NULL)",
+		"CREATE TABLE IF NOT EXISTS resumen_ventas_producto (mes date NOT NULL,codigo_producto integer NOT NULL,"
+				+"facturas integer NOT NULL,cantidad bigint NOT NULL,subtotal numeric(14,2) NOT NULL,"
+				+"valor_iva numeric(14,2) NOT NULL,total numeric(14,2) NOT NULL,PRIMARY KEY (mes,codigo_producto))",
+		"CREATE TABLE IF NOT EXISTS resumen_ventas_cliente (mes date NOT NULL,cedula_cliente varchar(10) NOT NULL,"
+				+"facturas integer NOT NULL,cantidad bigint NOT NULL,subtotal numeric(14,2) NOT NULL,"
+				+"valor_iva numeric(14,2) NOT NULL,total numeric(14,2) NOT NULL,PRIMARY KEY (mes,cedula_cliente))"
+	};
+
+	/** SQLState de PostgreSQL para una clave primaria duplicada. */
+	private static final String CLAVE_DUPLICADA="23505";
+
+	private static final String MES="CAST(date_trunc('month',c.fecha_emision) AS date)";
+	private static final String VALOR_LINEA="round(d.cantidad*d.precio_unitario_venta,2)";
+	private static final String[] RECONSTRUIR={
+		"LOCK TABLE resumen_ventas_dia,resumen_ventas_producto,resumen_ventas_cliente IN EXCLUSIVE MODE",
+		"DELETE FROM resumen_ventas_dia",
+		"DELETE FROM resumen_ventas_producto",
+		"DELETE FROM resumen_ventas_cliente",
+		"INSERT INTO resumen_ventas_dia (fecha,facturas,cantidad,subtotal,valor_iva,total)"
+				+" SELECT c.fecha_emision,count(*),coalesce(sum(d.cantidad),0),coalesce(sum(c.subtotal),0),"
+				+"coalesce(sum(c.valor_iva),0),coalesce(sum(c.total),0)"
+				+" FROM factura_cab c LEFT JOIN (SELECT numero_factura,sum(cantidad) AS cantidad FROM factura_det"
+				+" GROUP BY numero_factura) d ON d.numero_factura=c.numero_factura"
+				+" WHERE c.fecha_emision IS NOT NULL GROUP BY c.fecha_emision",
+		"INSERT INTO resumen_ventas_cliente (mes,cedula_cliente,facturas,cantidad,subtotal,valor_iva,total)"
+				+" SELECT "+MES+",c.cedula_cliente,count(*),coalesce(sum(d.cantidad),0),coalesce(sum(c.subtotal),0),"
+				+"coalesce(sum(c.valor_iva),0),coalesce(sum(c.total),0)"
+				+" FROM factura_cab c LEFT JOIN (SELECT numero_factura,sum(cantidad) AS cantidad FROM factura_det"
+				+" GROUP BY numero_factura) d ON d.numero_factura=c.numero_factura"
+				+" WHERE c.fecha_emision IS NOT NULL AND c.cedula_cliente IS NOT NULL GROUP BY 1,2",
+		//el IVA de cada linea gravada se calcula igual que en registrar():
+		"INSERT INTO resumen_ventas_producto (mes,codigo_producto,facturas,cantidad,subtotal,valor_iva,total)"
+				+" SELECT x.mes,x.codigo_producto,count(DISTINCT x.numero_factura),sum(x.cantidad),sum(x.valor),"
+				+"sum(x.iva),sum(x.valor+x.iva) FROM (SELECT "+MES+" AS mes,d.codigo_producto,d.numero_factura,"
+				+"d.cantidad,"+VALOR_LINEA+" AS valor,CASE WHEN upper(p.tiene_impuesto)='N'"
+				+" OR c.subtotal=c.base_cero THEN 0 ELSE round(c.valor_iva*"+VALOR_LINEA
+				+"/(c.subtotal-c.base_cero),2) END AS iva"
+				+" FROM factura_det d JOIN factura_cab c ON c.numero_factura=d.numero_factura"
+				+" LEFT JOIN producto p ON p.codigo_producto=d.codigo_producto"
+				+" WHERE c.fecha_emision IS NOT NULL AND d.cantidad IS NOT NULL) x GROUP BY x.mes,x.codigo_producto"
+	};
+
+	private static final String CONSULTA_DIA="SELECT fecha,facturas,cantidad,subtotal,valor_iva,total"
+			+" FROM resumen_ventas_dia WHERE fecha BETWEEN ?1 AND ?2 ORDER BY fecha";
+	private static final String CONSULTA_PRODUCTO="SELECT CAST(r.codigo_producto AS varchar),p.nombre,"
+			+"sum(r.facturas),sum(r.cantidad),sum(r.subtotal),sum(r.valor_iva),sum(r.total)"
+			+" FROM resumen_ventas_producto r LEFT JOIN producto p ON p.codigo_producto=r.codigo_producto"
+			+" WHERE r.mes BETWEEN ?1 AND ?2 GROUP BY r.codigo_producto,p.nombre ORDER BY 7 DESC,1";
+	private static final String CONSULTA_CLIENTE="SELECT r.cedula_cliente,cl.apellidos||' '||cl.nombres,"
+			+"sum(r.facturas),sum(r.cantidad),sum(r.subtotal),sum(r.valor_iva),sum(r.total)"
+			+" FROM resumen_ventas_cliente r LEFT JOIN cliente cl ON cl.cedula_cliente=r.cedula_cliente"
+			+" WHERE r.mes BETWEEN ?1 AND ?2 GROUP BY r.cedula_cliente,cl.apellidos,cl.nombres ORDER BY 7 DESC,1";
+
+	private static final Tabla DIA=new Tabla("resumen_ventas_dia", "fecha", null);
+	private static final Tabla PRODUCTO=new Tabla("resumen_ventas_producto", "mes", "codigo_producto");
+	private static final Tabla CLIENTE=new Tabla("resumen_ventas_cliente", "mes", "cedula_cliente");
+
+	private static ResumenVentas instancia;
+
+	/**
+	 * Sentencias de una tabla de resumen; las claves van al final en ambas.
+	 */
+	private static class Tabla{
+		private final String actualizar;
+		private final String insertar;
+		private Tabla(String nombre,String columnaFecha,String columnaClave){
+			actualizar="UPDATE "+nombre+" SET facturas=facturas+?,cantidad=cantidad+?,subtotal=subtotal+?,"
+					+"valor_iva=valor_iva+?,total=total+? WHERE "+columnaFecha+"=?"
+					+(columnaClave==null?"":" AND "+columnaClave+"=?");
+			insertar="INSERT INTO "+nombre+" (facturas,cantidad,subtotal,valor_iva,total,"+columnaFecha
+					+(columnaClave==null?"":","+columnaClave)+") VALUES (?,?,?,?,?,?"
+					+(columnaClave==null?"":",?")+")";
+		}
+	}
+
+	/**
+	 * Clave de una fila: el dia (o el primer dia del mes) y el codigo del
+	 * producto o la cedula del cliente.
+	 */
+	private static class Clave implements Comparable<Clave>{
+		private final java.sql.Date fecha;
+		private final Comparable<Object> codigo;
+		@SuppressWarnings("unchecked")
+		private Clave(java.sql.Date fecha,Object codigo){
+			this.fecha=fecha;
+			this.codigo=(Comparable<Object>)codigo;
+		}
+		public int compareTo(Clave o){
+			int c=fecha.compareTo(o.fecha);
+			return c!=0||codigo==null?c:codigo.compareTo(o.codigo);
+		}
+	}
+
+	/**
+	 * Valores a sumar en una fila.
+	 */
+	private static class Acumulado{
+		private long facturas;
+		private long cantidad;
+		private BigDecimal subtotal=BigDecimal.ZERO;
+		private BigDecimal valorIva=BigDecimal.ZERO;
+		private BigDecimal total=BigDecimal.ZERO;
+		private void sumar(long facturas,long cantidad,BigDecimal subtotal,BigDecimal valorIva,BigDecimal total){
+			this.facturas+=facturas;
+			this.cantidad+=cantidad;
+			this.subtotal=this.subtotal.add(subtotal);
+			this.valorIva=this.valorIva.add(valorIva);
+			this.total=this.total.add(total);
+		}
+	}
+
+	/**
+	 * @return el resumen de ventas, creando sus tablas si no existen.
+	 * @throws Exception si no se pueden crear las tablas.
+	 */
+	static synchronized ResumenVentas getInstancia() throws Exception{
+		if(instancia==null){
+			crearTablas();
+			instancia=new ResumenVentas();
+		}
+		return instancia;
+	}
+
+	/**
+	 * @return el resumen de ventas si la propiedad facturacion.resumen.activo
+	 * es true; si no, null y las tablas solo se actualizan con {@link #reconstruir()}.
+	 * @throws Exception si no se pueden crear las tablas.
+	 */
+	static ResumenVentas getActivo() throws Exception{
+		return Boolean.parseBoolean(ManagerDAO.getPropiedad(PROP_ACTIVO, "false"))?getInstancia():null;
+	}
+
+	private static void crearTablas() throws Exception{
+		EntityManager em=ManagerDAO.crearEntityManagerIndependiente();
+		try{
+			em.getTransaction().begin();
+			for(String sql:CREAR_TABLAS)
+				em.createNativeQuery(sql).executeUpdate();
+			em.getTransaction().commit();
+		}catch(Exception e){
+			log.error("crearTablas", "No se pudieron crear las tablas de resumen de ventas", e);
+			throw new Exception("No se pudieron crear las tablas de resumen de ventas: "+e.getMessage());
+		}finally{
+			if(em.getTransaction().isActive())
+				em.getTransaction().rollback();
+			em.close();
+		}
+	}
+
+	private ResumenVentas(){
+	}
+
+	/**
+	 * Suma las facturas a las tablas de resumen, en la transaccion activa de
+	 * la conexion (la misma en que se insertan las facturas).
+	 * @param c conexion con la transaccion de las facturas.
+	 * @param facturas facturas con fecha, cliente, detalles y totales calculados.
+	 * @throws SQLException si falla la base de datos.
+	 */
+	void registrar(Connection c,Collection<FacturaCab> facturas) throws SQLException{
+		Map<Clave,Acumulado> dias=new TreeMap<Clave,Acumulado>();
+		Map<Clave,Acumulado> productos=new TreeMap<Clave,Acumulado>();
+		Map<Clave,Acumulado> clientes=new TreeMap<Clave,Acumulado>();
+		Set<Integer> productosFactura=new HashSet<Integer>();
+		for(FacturaCab f:facturas){
+			java.sql.Date dia=dia(f.getFechaEmision());
+			java.sql.Date mes=mes(f.getFechaEmision());
+			BigDecimal baseGravada=f.getSubtotal().subtract(f.getBaseCero());
+			long cantidad=0;
+			productosFactura.clear();
+			for(FacturaDet det:f.getFacturaDets()){
+				Integer codigo=det.getProducto().getCodigoProducto();
+				BigDecimal valor=BigDecimal.valueOf(CalculadoraTotales.valorLinea(det), 2);
+				BigDecimal iva=CalculadoraTotales.esBaseCero(det)||baseGravada.signum()==0?BigDecimal.ZERO
+						:f.getValorIva().multiply(valor).divide(baseGravada, 2, RoundingMode.HALF_UP);
+				cantidad+=det.getCantidad().intValue();
+				acumulado(productos, new Clave(mes, codigo)).sumar(productosFactura.add(codigo)?1:0,
+						det.getCantidad().intValue(), valor, iva, valor.add(iva));
+			}
+			acumulado(dias, new Clave(dia, null)).sumar(1, cantidad, f.getSubtotal(), f.getValorIva(), f.getTotal());
+			acumulado(clientes, new Clave(mes, f.getCliente().getCedulaCliente()))
+					.sumar(1, cantidad, f.getSubtotal(), f.getValorIva(), f.getTotal());
+		}
+		//siempre en el mismo orden de tablas y de claves:
+		escribir(c, DIA, dias);
+		escribir(c, PRODUCTO, productos);
+		escribir(c, CLIENTE, clientes);
+	}
+
+	private static Acumulado acumulado(Map<Clave,Acumulado> filas,Clave clave){
+		Acumulado a=filas.get(clave);
+		if(a==null){
+			a=new Acumulado();
+			filas.put(clave, a);
+		}
+		return a;
+	}
+
+	/**
+	 * Actualiza las filas en un lote JDBC e inserta las que no existen.
+	 */
+	private void escribir(Connection c,Tabla tabla,Map<Clave,Acumulado> filas) throws SQLException{
+		List<Map.Entry<Clave,Acumulado>> nuevas=new ArrayList<Map.Entry<Clave,Acumulado>>();
+		List<Map.Entry<Clave,Acumulado>> lista=new ArrayList<Map.Entry<Clave,Acumulado>>(filas.entrySet());
+		PreparedStatement ps=c.prepareStatement(tabla.actualizar);
+		try{
+			for(Map.Entry<Clave,Acumulado> fila:lista){
+				asignar(ps, fila.getKey(), fila.getValue());
+				ps.addBatch();
+			}
+			int[] filasActualizadas=ps.executeBatch();
+			for(int i=0;i<lista.size();i++)
+				if(filasActualizadas[i]==0)
+					nuevas.add(lista.get(i));
+		}finally{
+			ps.close();
+		}
+		for(Map.Entry<Clave,Acumulado> fila:nuevas)
+			insertar(c, tabla, fila.getKey(), fila.getValue());
+	}
+
+	/**
+	 * Inserta la fila de una clave nueva. Si otra transaccion la inserto
+	 * primero, se vuelve al punto de guardado y se actualiza la fila.
+	 */
+	private void insertar(Connection c,Tabla tabla,Clave clave,Acumulado valores) throws SQLException{
+		//el punto de guardado se maneja con SQL: el driver 9.2 no reconoce la
+		//version de los servidores 10 o posteriores en Connection.setSavepoint().
+		Statement st=c.createStatement();
+		PreparedStatement ps=c.prepareStatement(tabla.insertar);
+		try{
+			st.execute("SAVEPOINT resumen_ventas");
+			try{
+				asignar(ps, clave, valores);
+				ps.executeUpdate();
+				st.execute("RELEASE SAVEPOINT resumen_ventas");
+				return;
+			}catch(SQLException e){
+				if(!CLAVE_DUPLICADA.equals(e.getSQLState()))
+					throw e;
+				st.execute("ROLLBACK TO SAVEPOINT resumen_ventas");
+			}
+		}finally{
+			ps.close();
+			st.close();
+		}
+		ps=c.prepareStatement(tabla.actualizar);
+		try{
+			asignar(ps, clave, valores);
+			if(ps.executeUpdate()==0)
+				throw new SQLException("No se pudo actualizar el resumen de ventas.");
+		}finally{
+			ps.close();
+		}
+	}
+
+	private static void asignar(PreparedStatement ps,Clave clave,Acumulado valores) throws SQLException{
+		ps.setLong(1, valores.facturas);
+		ps.setLong(2, valores.cantidad);
+		ps.setBigDecimal(3, valores.subtotal);
+		ps.setBigDecimal(4, valores.valorIva);
+		ps.setBigDecimal(5, valores.total);
+		ps.setDate(6, clave.fecha);
+		if(clave.codigo!=null)
+			ps.setObject(7, clave.codigo);
+	}
+
+	/**
+	 * Vuelve a calcular las tablas de resumen desde las facturas, en una
+	 * transaccion. Mientras tanto los guardados de facturas esperan y los
+	 * reportes leen el resumen anterior.
+	 * @return numero de filas de resumen.
+	 * @throws Exception si falla la base de datos.
+	 */
+	int reconstruir() throws Exception{
+		long inicio=System.currentTimeMillis();
+		int filas=0;
+		EntityManager em=ManagerDAO.abrirContexto();
+		try{
+			em.getTransaction().begin();
+			for(int i=0;i<RECONSTRUIR.length;i++){
+				int n=em.createNativeQuery(RECONSTRUIR[i]).executeUpdate();
+				if(RECONSTRUIR[i].startsWith("INSERT"))
+					filas+=n;
+			}
+			em.getTransaction().commit();
+		}catch(Exception e){
+			log.error("reconstruir", "No se pudo reconstruir el resumen de ventas", e);
+			throw new Exception("No se pudo reconstruir el resumen de ventas: "+e.getMessage());
+		}finally{
+			ManagerDAO.cerrarContexto();
+		}
+		log.informacion("reconstruir", "Resumen de ventas reconstruido: {} filas en {} ms", filas,
+				System.currentTimeMillis()-inicio);
+		return filas;
+	}
+
+	/**
+	 * @return las ventas de cada dia del rango, en orden de fecha.
+	 */
+	List<FilaResumenVentas> consultarPorDia(Date desde,Date hasta){
+		List<FilaResumenVentas> resultado=new ArrayList<FilaResumenVentas>();
+		for(Object[] f:consultar(CONSULTA_DIA, dia(desde), dia(hasta)))
+			resultado.add(new FilaResumenVentas((Date)f[0], null, null, numero(f[1]), numero(f[2]),
+					(BigDecimal)f[3], (BigDecimal)f[4], (BigDecimal)f[5]));
+		return resultado;
+	}
+
+	/**
+	 * @return las ventas de cada producto en los meses del rango, de mayor a menor total.
+	 */
+	List<FilaResumenVentas> consultarPorProducto(Date desde,Date hasta){
+		return filasPorClave(consultar(CONSULTA_PRODUCTO, mes(desde), mes(hasta)));
+	}
+
+	/**
+	 * @return las ventas de cada cliente en los meses del rango, de mayor a menor total.
+	 */
+	List<FilaResumenVentas> consultarPorCliente(Date desde,Date hasta){
+		return filasPorClave(consultar(CONSULTA_CLIENTE, mes(desde), mes(hasta)));
+	}
+
+	private static List<FilaResumenVentas> filasPorClave(List<Object[]> filas){
+		List<FilaResumenVentas> resultado=new ArrayList<FilaResumenVentas>();
+		for(Object[] f:filas)
+			resultado.add(new FilaResumenVentas(null, (String)f[0], (String)f[1], numero(f[2]), numero(f[3]),
+					(BigDecimal)f[4], (BigDecimal)f[5], (BigDecimal)f[6]));
+		return resultado;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Object[]> consultar(String sql,java.sql.Date desde,java.sql.Date hasta){
+		EntityManager em=ManagerDAO.abrirContexto();
+		try{
+			return em.createNativeQuery(sql).setParameter(1, desde).setParameter(2, hasta).getResultList();
+		}finally{
+			ManagerDAO.cerrarContexto();
+		}
+	}
+
+	private static long numero(Object valor){
+		return valor==null?0:((Number)valor).longValue();
+	}
+
+	private static java.sql.Date dia(Date fecha){
+		Calendar c=Calendar.getInstance();
+		c.setTime(fecha);
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		return new java.sql.Date(c.getTimeInMillis());
+	}
+
+	private static java.sql.Date mes(Date fecha){
+		Calendar c=Calendar.getInstance();
+		c.setTime(dia(fecha));
+		c.set(Calendar.DAY_OF_MONTH, 1);
+		return new java.sql.Date(c.getTimeInMillis());
+	}
+
+}
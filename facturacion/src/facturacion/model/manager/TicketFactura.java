@@ -0,0 +1,95 @@
+package facturacion.model.manager;
+
+import java.util.Date;
+
+/**
+ * Estado de una factura recibida con guardado asincrono (ver
+ * {@link DiarioFacturas}): el ticket entregado al cajero, si la factura ya se
+ * guardo en la base de datos y con que numero, y el ultimo error si se esta
+ * reintentando.
+ * @author mrea
+ *
+ */
+public class TicketFactura {
+	/**
+	 * La factura esta en el diario y aun no se guarda en la base de datos.
+	 */
+	public static final String PENDIENTE="PENDIENTE";
+	/**
+	 * La factura ya se guardo en la base de datos.
+	 */
+	public static final String GUARDADA="GUARDADA";
+	/**
+	 * La factura no se guardo ni se guardara (por ejemplo porque la existencia
+	 * ya no alcanzaba); la existencia no se desconto.
+	 */
+	public static final String RECHAZADA="RECHAZADA";
+
+	private final String ticket;
+	private final String estado;
+	private final String numeroFactura;
+	private final Date fechaEmision;
+	private final int intentos;
+	private final String mensaje;
+
+	TicketFactura(String ticket,String estado,String numeroFactura,Date fechaEmision,int intentos,String mensaje){
+		this.ticket=ticket;
+		this.estado=estado;
+		this.numeroFactura=numeroFactura;
+		this.fechaEmision=fechaEmision;
+		this.intentos=intentos;
+		this.mensaje=mensaje;
+	}
+
+	public String getTicket(){
+		return ticket;
+	}
+
+	/**
+	 * @return {@link #PENDIENTE}, {@link #GUARDADA} o {@link #RECHAZADA}.
+	 */
+	public String getEstado(){
+		return estado;
+	}
+
+	public boolean isGuardada(){
+		return GUARDADA.equals(estado);
+	}
+
+	public boolean isRechazada(){
+		return RECHAZADA.equals(estado);
+	}
+
+	/**
+	 * @return el numero de la factura; puede asignarse antes de guardarla, y
+	 * no cambia en los reintentos.
+	 */
+	public String getNumeroFactura(){
+		return numeroFactura;
+	}
+
+	public Date getFechaEmision(){
+		return fechaEmision;
+	}
+
+	/**
+	 * @return numero de intentos fallidos de guardar la factura.
+	 */
+	public int getIntentos(){
+		return intentos;
+	}
+
+	/**
+	 * @return el error del ultimo intento fallido (o el motivo del rechazo), o null.
+	 */
+	public String getMensaje(){
+		return mensaje;
+	}
+
+	@Override
+	public String toString(){
+		return ticket+" "+estado+(numeroFactura==null?"":" factura "+numeroFactura)
+				+(mensaje==null?"":" ("+intentos+" intentos: "+mensaje+")");
+	}
+
+}
@@ -0,0 +1,122 @@
+package facturacion.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Pruebas de la lectura y escritura de JSON de {@link JsonUtil}.
+ * @author mrea
+ *
+ */
+public class JsonUtilTest {
+
+	private static Object leer(String texto) throws Exception{
+		return JsonUtil.leer(new StringReader(texto));
+	}
+
+	private static String escribir(Object valor) throws Exception{
+		StringWriter w=new StringWriter();
+		JsonUtil.escribir(w, valor);
+		return w.toString();
+	}
+
+	private static void invalido(String texto){
+		try{
+			leer(texto);
+			fail("Se esperaba un error con "+texto);
+		}catch(Exception e){
+			assertTrue(e.getMessage(), e.getMessage().startsWith("JSON no valido en la posicion "));
+		}
+	}
+
+	@Test
+	public void leeUnaFacturaDeLaApi() throws Exception{
+		Object valor=leer(" {\"cedulaCliente\" : \"1001\",\n\t\"detalles\":[{\"codigoProducto\":1,\"cantidad\":2},"
+				+"{\"codigoProducto\":3,\"cantidad\":10}]}\r\n");
+		Map<?,?> factura=(Map<?,?>)valor;
+		assertEquals(Arrays.asList("cedulaCliente", "detalles"), new ArrayList<Object>(factura.keySet()));
+		assertEquals("1001", factura.get("cedulaCliente"));
+		List<?> detalles=(List<?>)factura.get("detalles");
+		assertEquals(2, detalles.size());
+		assertEquals(new BigDecimal("3"), ((Map<?,?>)detalles.get(1)).get("codigoProducto"));
+		assertEquals(new BigDecimal("10"), ((Map<?,?>)detalles.get(1)).get("cantidad"));
+	}
+
+	@Test
+	public void leeLosValoresSimples() throws Exception{
+		assertEquals(Boolean.TRUE, leer("true"));
+		assertEquals(Boolean.FALSE, leer("false"));
+		assertNull(leer("null"));
+		assertEquals(new BigDecimal("-12.50"), leer("-12.50"));
+		assertEquals(new BigDecimal("1.5E+3"), leer("1.5e3"));
+		assertEquals(new LinkedHashMap<String,Object>(), leer("{ }"));
+		assertEquals(new ArrayList<Object>(), leer("[ ]"));
+	}
+
+	@Test
+	public void leeLosEscapesDeTexto() throws Exception{
+		assertEquals("a\"b\\c/d\b\f\n\r\t\u00f1\u20ac", leer("\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\\u00f1\\u20AC\""));
+		assertEquals("ñandú", leer("\"ñandú\""));
+	}
+
+	@Test
+	public void rechazaTextoQueNoEsJson(){
+		invalido("");
+		invalido("{\"a\":1,}");
+		invalido("[1,]");
+		invalido("{\"a\" 1}");
+		invalido("{'a':1}");
+		invalido("[1 2]");
+		invalido("\"sin cerrar");
+		invalido("\"salto\nde linea\"");
+		invalido("\"\\x\"");
+		invalido("\"\\u12g4\"");
+		invalido("tru");
+		invalido("1e");
+		invalido("--1");
+		invalido("{} {}");
+		invalido("+1");
+	}
+
+	@Test
+	public void indicaLaPosicionDelError(){
+		try{
+			leer("{\"a\":1,}");
+			fail();
+		}catch(Exception e){
+			assertEquals("JSON no valido en la posicion 8: se esperaba un nombre.", e.getMessage());
+		}
+	}
+
+	@Test
+	public void escribeEnFormatoLegiblePorLeer() throws Exception{
+		Map<String,Object> r=new LinkedHashMap<String,Object>();
+		r.put("numeroFactura", "17");
+		r.put("total", new BigDecimal("1E+1").setScale(2));
+		r.put("cantidad", Integer.valueOf(3));
+		r.put("activo", Boolean.TRUE);
+		r.put("nota", null);
+		r.put("error", "comillas \" barra \\ y control \u0001\n");
+		r.put("detalles", Arrays.asList(Integer.valueOf(1), "dos"));
+		String texto=escribir(r);
+		assertEquals("{\"numeroFactura\":\"17\",\"total\":10.00,\"cantidad\":3,\"activo\":true,\"nota\":null,"
+				+"\"error\":\"comillas \\\" barra \\\\ y control \\u0001\\u000a\",\"detalles\":[1,\"dos\"]}", texto);
+		Map<?,?> leido=(Map<?,?>)leer(texto);
+		assertEquals(r.get("error"), leido.get("error"));
+		assertEquals(new BigDecimal("10.00"), leido.get("total"));
+	}
+
+}
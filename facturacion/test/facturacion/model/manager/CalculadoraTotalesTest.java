@@ -0,0 +1,107 @@
+package facturacion.model.manager;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import facturacion.model.dao.entities.FacturaCab;
+import facturacion.model.dao.entities.FacturaDet;
+import facturacion.model.dao.entities.Producto;
+
+/**
+ * Pruebas de las reglas de redondeo de {@link CalculadoraTotales}.
+ * @author mrea
+ *
+ */
+public class CalculadoraTotalesTest {
+	private static final long IVA_12=1200;
+
+	private static FacturaDet detalle(String precio,int cantidad,String tieneImpuesto){
+		Producto p=new Producto();
+		p.setPrecioUnitario(new BigDecimal(precio));
+		p.setTieneImpuesto(tieneImpuesto);
+		FacturaDet det=new FacturaDet();
+		det.setProducto(p);
+		det.setPrecioUnitarioVenta(p.getPrecioUnitario());
+		det.setCantidad(Integer.valueOf(cantidad));
+		return det;
+	}
+
+	private static FacturaCab factura(FacturaDet... detalles){
+		FacturaCab f=new FacturaCab();
+		f.setFacturaDets(new ArrayList<FacturaDet>());
+		for(FacturaDet det:detalles)
+			f.getFacturaDets().add(det);
+		return f;
+	}
+
+	@Test
+	public void redondeaCadaLineaACentavos(){
+		assertEquals(13, CalculadoraTotales.valorLinea(new BigDecimal("0.125"), 1));
+		assertEquals(12, CalculadoraTotales.valorLinea(new BigDecimal("0.1249"), 1));
+		assertEquals(100, CalculadoraTotales.valorLinea(new BigDecimal("0.3333"), 3));
+		//el precio se lleva primero a cuatro decimales:
+		assertEquals(1, CalculadoraTotales.valorLinea(new BigDecimal("0.00495"), 1));
+		assertEquals(0, CalculadoraTotales.valorLinea(new BigDecimal("0.00494"), 1));
+	}
+
+	@Test
+	public void dividirRedondeandoAlejaDeCeroLosEmpates(){
+		assertEquals(1, CalculadoraTotales.dividirRedondeando(5, 10));
+		assertEquals(0, CalculadoraTotales.dividirRedondeando(4, 10));
+		assertEquals(-1, CalculadoraTotales.dividirRedondeando(-5, 10));
+		assertEquals(0, CalculadoraTotales.dividirRedondeando(-4, 10));
+	}
+
+	@Test
+	public void convierteElPorcentajeACentesimas(){
+		assertEquals(1200, CalculadoraTotales.porcentajeACentesimas(new BigDecimal("12")));
+		assertEquals(1250, CalculadoraTotales.porcentajeACentesimas(new BigDecimal("12.5")));
+		assertEquals(1235, CalculadoraTotales.porcentajeACentesimas(new BigDecimal("12.345")));
+	}
+
+	@Test
+	public void elIvaSeRedondeaUnaVezSobreLaBaseGravada(){
+		//tres lineas de 0.35: el IVA de cada una (0.042) redondeado sumaria 0.12,
+		//sobre la base (1.05 * 12% = 0.126) es 0.13.
+		FacturaCab f=factura(detalle("0.35", 1, "S"), detalle("0.35", 1, "S"), detalle("0.35", 1, "S"));
+		CalculadoraTotales.recalcular(f, IVA_12);
+		assertEquals(new BigDecimal("1.05"), f.getSubtotal());
+		assertEquals(new BigDecimal("0.13"), f.getValorIva());
+		assertEquals(new BigDecimal("1.18"), f.getTotal());
+	}
+
+	@Test
+	public void laBaseCeroNoPagaIva(){
+		FacturaCab f=factura(detalle("10.00", 2, "S"), detalle("0.12", 10, "N"));
+		CalculadoraTotales.recalcular(f, IVA_12);
+		assertEquals(new BigDecimal("21.20"), f.getSubtotal());
+		assertEquals(new BigDecimal("1.20"), f.getBaseCero());
+		assertEquals(new BigDecimal("2.40"), f.getValorIva());
+		assertEquals(new BigDecimal("23.60"), f.getTotal());
+	}
+
+	@Test
+	public void agregarYQuitarDetallesCoincideConRecalcular(){
+		FacturaDet[] detalles={detalle("0.3333", 7, "S"), detalle("1.005", 3, "N"),
+				detalle("12.4999", 11, "S"), detalle("0.0051", 1, "S")};
+		FacturaCab incremental=factura();
+		for(FacturaDet det:detalles){
+			incremental.getFacturaDets().add(det);
+			CalculadoraTotales.agregarDetalle(incremental, det, 1250);
+		}
+		FacturaDet quitado=incremental.getFacturaDets().remove(1);
+		CalculadoraTotales.quitarDetalle(incremental, quitado, 1250);
+		FacturaCab completa=factura(detalles[0], detalles[2], detalles[3]);
+		CalculadoraTotales.recalcular(completa, 1250);
+		assertEquals(completa.getSubtotal(), incremental.getSubtotal());
+		assertEquals(completa.getBaseCero(), incremental.getBaseCero());
+		assertEquals(completa.getValorIva(), incremental.getValorIva());
+		assertEquals(completa.getTotal(), incremental.getTotal());
+		assertEquals(BigDecimal.ZERO.setScale(2), completa.getBaseCero());
+	}
+
+}
@@ -0,0 +1,117 @@
+package facturacion.model.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas del formato de las lineas del diario (CRC) y de la recuperacion
+ * de las facturas pendientes de {@link DiarioFacturas}.
+ * @author mrea
+ *
+ */
+public class DiarioFacturasTest {
+	@Rule
+	public TemporaryFolder carpeta=new TemporaryFolder();
+
+	private File archivo(String... contenido) throws IOException{
+		File f=carpeta.newFile();
+		FileOutputStream salida=new FileOutputStream(f);
+		try{
+			for(String c:contenido)
+				salida.write(c.getBytes("UTF-8"));
+		}finally{
+			salida.close();
+		}
+		return f;
+	}
+
+	private static String linea(String registro) throws IOException{
+		return DiarioFacturas.linea(registro);
+	}
+
+	@Test
+	public void laLineaLlevaElCrcDelRegistro() throws IOException{
+		String registro="F|A1|1000|0102030405|1:2:0.35";
+		String linea=linea(registro);
+		assertTrue(linea.endsWith("\n"));
+		assertEquals(registro, DiarioFacturas.registro(linea.substring(0, linea.length()-1)));
+	}
+
+	@Test
+	public void rechazaLineasIncompletasOModificadas() throws IOException{
+		String linea=linea("F|A1|1000|0102030405|1:2:0.35");
+		linea=linea.substring(0, linea.length()-1);
+		assertNull(DiarioFacturas.registro(linea.substring(0, linea.length()-3)));
+		assertNull(DiarioFacturas.registro(linea.replace("1:2", "1:3")));
+		assertNull(DiarioFacturas.registro("sin separador"));
+		assertNull(DiarioFacturas.registro(""));
+	}
+
+	@Test
+	public void recuperaSoloLasFacturasPendientes() throws IOException{
+		File f=archivo(linea("F|A1|1000|0102030405|1:2:0.35;3:1:"),
+				linea("F|A2|2000|0102030405|2:1:1.50"),
+				linea("F|A3|3000|0911223344|1:1:0.35"),
+				linea("N|A1|17"),
+				linea("N|A2|18"),
+				linea("G|A2"),
+				linea("R|A3"));
+		Map<String,DiarioFacturas.Pendiente> pendientes=new LinkedHashMap<String,DiarioFacturas.Pendiente>();
+		long ultimo=DiarioFacturas.leer(f, pendientes);
+		assertEquals(Long.parseLong("A3", 36), ultimo);
+		assertEquals(1, pendientes.size());
+		TicketFactura t=pendientes.get("A1").getTicket();
+		assertEquals(TicketFactura.PENDIENTE, t.getEstado());
+		assertEquals("17", t.getNumeroFactura());
+		assertEquals(1000, t.getFechaEmision().getTime());
+	}
+
+	@Test
+	public void ignoraElRestoDelArchivoTrasUnaLineaInvalida() throws IOException{
+		String corrupta=linea("F|B2|2000|0102030405|2:1:1.50").replace("2:1", "2:9");
+		File f=archivo(linea("F|B1|1000|0102030405|1:2:0.35"),
+				corrupta,
+				linea("F|B3|3000|0102030405|1:1:0.35"));
+		Map<String,DiarioFacturas.Pendiente> pendientes=new LinkedHashMap<String,DiarioFacturas.Pendiente>();
+		DiarioFacturas.leer(f, pendientes);
+		assertEquals("[B1]", pendientes.keySet().toString());
+	}
+
+	@Test
+	public void descartaLaUltimaLineaSinTerminar() throws IOException{
+		String ultima=linea("F|C2|2000|0102030405|2:1:1.50");
+		File f=archivo(linea("F|C1|1000|0102030405|1:2:0.35"),
+				linea("N|C1|40"),
+				ultima.substring(0, ultima.length()/2));
+		Map<String,DiarioFacturas.Pendiente> pendientes=new LinkedHashMap<String,DiarioFacturas.Pendiente>();
+		long ultimo=DiarioFacturas.leer(f, pendientes);
+		assertEquals(1, pendientes.size());
+		assertEquals("40", pendientes.get("C1").getTicket().getNumeroFactura());
+		assertEquals(Long.parseLong("C1", 36), ultimo);
+	}
+
+	@Test
+	public void losArchivosSiguientesCompletanLosAnteriores() throws IOException{
+		//el registro F queda en un segmento y su N y G en el siguiente:
+		File primero=archivo(linea("F|D1|1000|0102030405|1:2:0.35"),
+				linea("F|D2|2000|0102030405|1:1:0.35"));
+		File segundo=archivo(linea("N|D1|50"), linea("G|D1"), linea("N|D2|51"));
+		Map<String,DiarioFacturas.Pendiente> pendientes=new LinkedHashMap<String,DiarioFacturas.Pendiente>();
+		DiarioFacturas.leer(primero, pendientes);
+		assertEquals(0, DiarioFacturas.leer(segundo, pendientes));
+		assertEquals(1, pendientes.size());
+		assertEquals("51", pendientes.get("D2").getTicket().getNumeroFactura());
+	}
+
+}
@@ -0,0 +1,69 @@
+package facturacion.model.manager;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Pruebas de la construccion de las consultas paginadas por clave (keyset)
+ * de {@link ManagerDAO}.
+ * @author mrea
+ *
+ */
+public class ManagerDAOTest {
+	private static final String[] FECHA_NUMERO={"o.fechaEmision","o.numeroFactura"};
+
+	@Test
+	public void laPrimeraPaginaSoloOrdena(){
+		assertEquals("SELECT o FROM FacturaCab o ORDER BY o.fechaEmision DESC,o.numeroFactura DESC",
+				ManagerDAO.construirConsultaPagina("o", "FacturaCab", null, FECHA_NUMERO,
+						new boolean[]{true,true}, false));
+	}
+
+	@Test
+	public void continuaDespuesDeLaUltimaClave(){
+		assertEquals("SELECT o FROM FacturaCab o WHERE ((o.fechaEmision < :clave0)"
+				+" OR (o.fechaEmision = :clave0 AND o.numeroFactura < :clave1))"
+				+" ORDER BY o.fechaEmision DESC,o.numeroFactura DESC",
+				ManagerDAO.construirConsultaPagina("o", "FacturaCab", "", FECHA_NUMERO,
+						new boolean[]{true,true}, true));
+	}
+
+	@Test
+	public void respetaElSentidoDeCadaCampo(){
+		assertEquals("SELECT o FROM FacturaCab o WHERE ((o.total > :clave0)"
+				+" OR (o.total = :clave0 AND o.numeroFactura < :clave1)"
+				+" OR (o.total = :clave0 AND o.numeroFactura = :clave1 AND o.fechaEmision > :clave2))"
+				+" ORDER BY o.total ASC,o.numeroFactura DESC,o.fechaEmision ASC",
+				ManagerDAO.construirConsultaPagina("o", "FacturaCab", null,
+						new String[]{"o.total","o.numeroFactura","o.fechaEmision"},
+						new boolean[]{false,true,false}, true));
+	}
+
+	@Test
+	public void elFiltroVaEntreParentesisAntesDeLaClave(){
+		assertEquals("SELECT o FROM FacturaCab o WHERE (o.numeroFactura LIKE :numeroFactura OR o.total > :t)"
+				+" AND ((o.numeroFactura > :clave0)) ORDER BY o.numeroFactura ASC",
+				ManagerDAO.construirConsultaPagina("o", "FacturaCab",
+						"o.numeroFactura LIKE :numeroFactura OR o.total > :t",
+						new String[]{"o.numeroFactura"}, new boolean[]{false}, true));
+	}
+
+	@Test
+	public void aceptaProyecciones(){
+		//listado de facturas (ResumenFactura) y clave de una pagina lejana:
+		assertEquals("SELECT NEW facturacion.model.manager.ResumenFactura(o.numeroFactura, o.cliente.apellidos)"
+				+" FROM FacturaCab o WHERE (UPPER(o.cliente.apellidos) LIKE :apellidos)"
+				+" ORDER BY o.fechaEmision DESC,o.numeroFactura DESC",
+				ManagerDAO.construirConsultaPagina(
+						"NEW facturacion.model.manager.ResumenFactura(o.numeroFactura, o.cliente.apellidos)",
+						"FacturaCab", "UPPER(o.cliente.apellidos) LIKE :apellidos", FECHA_NUMERO,
+						new boolean[]{true,true}, false));
+		assertEquals("SELECT o.fechaEmision,o.numeroFactura FROM FacturaCab o"
+				+" WHERE ((o.fechaEmision < :clave0) OR (o.fechaEmision = :clave0 AND o.numeroFactura < :clave1))"
+				+" ORDER BY o.fechaEmision DESC,o.numeroFactura DESC",
+				ManagerDAO.construirConsultaPagina("o.fechaEmision,o.numeroFactura", "FacturaCab", null,
+						FECHA_NUMERO, new boolean[]{true,true}, true));
+	}
+
+}